@@ -15,8 +15,6 @@
  */
 package org.achartengine.chart;
 
-import java.util.List;
-
 import org.achartengine.model.XYMultipleSeriesDataset;
 import org.achartengine.model.XYSeries;
 import org.achartengine.renderer.SimpleSeriesRenderer;
@@ -128,12 +126,12 @@ public class CombinedXYChart extends XYChart {
   }
 
   @Override
-  protected void drawSeries(XYSeries series, Canvas canvas, Paint paint, List<Float> pointsList,
+  protected void drawSeries(XYSeries series, Canvas canvas, Paint paint, float[] points,
       SimpleSeriesRenderer seriesRenderer, float yAxisValue, int seriesIndex, Orientation or) {
     mCharts[seriesIndex].setScreenR(getScreenR());
     mCharts[seriesIndex].setCalcRange(getCalcRange(mDataset.getSeriesAt(seriesIndex)
         .getScaleNumber()), 0);
-    mCharts[seriesIndex].drawSeries(series, canvas, paint, pointsList, seriesRenderer, yAxisValue,
+    mCharts[seriesIndex].drawSeries(series, canvas, paint, points, seriesRenderer, yAxisValue,
         0, or);
   }
 
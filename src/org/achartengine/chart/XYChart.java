@@ -65,6 +65,8 @@ public abstract class XYChart extends AbstractChart {
   transient private Rect mScreenR;
   /** The calculated range. */
   private Map<Integer, double[]> mCalcRange = new HashMap<Integer, double[]>();
+  /** The screen points of each series, kept between frames. */
+  transient private float[][] mPointsBuffers;
 
   /**
    * The clickable areas for all points. The array index is the series index,
@@ -234,10 +236,12 @@ public abstract class XYChart extends AbstractChart {
       }
       hasValues = true;
       SimpleSeriesRenderer seriesRenderer = mRenderer.getSeriesRendererAt(i);
-      int originalValuesLength = series.getItemCount();
-      int valuesLength = originalValuesLength;
-      int length = valuesLength * 2;
-      List<Float> points = new ArrayList<Float>();
+      int length = series.getItemCount() * 2;
+      // the screen points are written into an array kept between frames, a
+      // new one is only needed when the series changes size
+      float[] points = getPointsBuffer(i, length);
+      int start = 0;
+      int end = 0;
       float yAxisValue = Math.min(bottom, (float) (bottom + yPixelsPerUnit[scale] * minY[scale]));
       LinkedList<RectF> clickableArea = new LinkedList<RectF>();
       clickableAreas.put(i, clickableArea);
@@ -245,27 +249,23 @@ public abstract class XYChart extends AbstractChart {
         int index = j / 2;
         double yValue = series.getY(index);
         if (yValue != MathHelper.NULL_VALUE) {
-          points.add((float) (left + xPixelsPerUnit[scale] * (series.getX(index) - minX[scale])));
-          points.add((float) (bottom - yPixelsPerUnit[scale] * (yValue - minY[scale])));
+          points[end++] = (float) (left + xPixelsPerUnit[scale] * (series.getX(index) - minX[scale]));
+          points[end++] = (float) (bottom - yPixelsPerUnit[scale] * (yValue - minY[scale]));
         } else if (isRenderNullValues()) {
-          points.add((float) (left + xPixelsPerUnit[scale] * (series.getX(index) - minX[scale])));
-          points.add((float) (bottom - yPixelsPerUnit[scale] * (-minY[scale])));
+          points[end++] = (float) (left + xPixelsPerUnit[scale] * (series.getX(index) - minX[scale]));
+          points[end++] = (float) (bottom - yPixelsPerUnit[scale] * (-minY[scale]));
         } else {
-          if (points.size() > 0) {
-            drawSeries(series, canvas, paint, points, seriesRenderer, yAxisValue, i, or);
-            RectF[] clickableAreasForSubSeries = clickableAreasForPoints(MathHelper
-                .getFloats(points), yAxisValue, i);
-            clickableArea.addAll(Arrays.asList(clickableAreasForSubSeries));
-            points.clear();
+          if (end > start) {
+            drawSubSeries(series, canvas, paint, subSeries(points, start, end), seriesRenderer,
+                yAxisValue, i, or, clickableArea);
+            start = end;
           }
           clickableArea.add(null);
         }
       }
-      if (points.size() > 0) {
-        drawSeries(series, canvas, paint, points, seriesRenderer, yAxisValue, i, or);
-        RectF[] clickableAreasForSubSeries = clickableAreasForPoints(MathHelper.getFloats(points),
-            yAxisValue, i);
-        clickableArea.addAll(Arrays.asList(clickableAreasForSubSeries));
+      if (end > start) {
+        drawSubSeries(series, canvas, paint, subSeries(points, start, end), seriesRenderer,
+            yAxisValue, i, or, clickableArea);
       }
     }
 
@@ -479,6 +479,54 @@ public abstract class XYChart extends AbstractChart {
     mScreenR = screenR;
   }
 
+  /**
+   * Returns the array the screen points of a series are written to. The array
+   * is reused across frames while the series keeps the same number of values.
+   * 
+   * @param seriesIndex the series index
+   * @param length the number of coordinates, twice the number of values
+   * @return the points array
+   */
+  private float[] getPointsBuffer(int seriesIndex, int length) {
+    if (mPointsBuffers == null || mPointsBuffers.length <= seriesIndex) {
+      float[][] buffers = new float[mDataset.getSeriesCount()][];
+      if (mPointsBuffers != null) {
+        System.arraycopy(mPointsBuffers, 0, buffers, 0,
+            Math.min(mPointsBuffers.length, buffers.length));
+      }
+      mPointsBuffers = buffers;
+    }
+    float[] buffer = mPointsBuffers[seriesIndex];
+    if (buffer == null || buffer.length != length) {
+      buffer = new float[length];
+      mPointsBuffers[seriesIndex] = buffer;
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns the points between start and end. The charts use the length of
+   * the array as the number of points, so a copy is only made when the
+   * series is split by null values.
+   */
+  private static float[] subSeries(float[] points, int start, int end) {
+    if (start == 0 && end == points.length) {
+      return points;
+    }
+    float[] sub = new float[end - start];
+    System.arraycopy(points, start, sub, 0, sub.length);
+    return sub;
+  }
+
+  private void drawSubSeries(XYSeries series, Canvas canvas, Paint paint, float[] points,
+      SimpleSeriesRenderer seriesRenderer, float yAxisValue, int seriesIndex, Orientation or,
+      List<RectF> clickableArea) {
+    drawSeries(series, canvas, paint, points, seriesRenderer, yAxisValue, seriesIndex, or);
+    RectF[] clickableAreasForSubSeries = clickableAreasForPoints(points, yAxisValue,
+        seriesIndex);
+    clickableArea.addAll(Arrays.asList(clickableAreasForSubSeries));
+  }
+
   private List<Double> getValidLabels(List<Double> labels) {
     List<Double> result = new ArrayList<Double>(labels);
     for (Double label : labels) {
@@ -489,7 +537,7 @@ public abstract class XYChart extends AbstractChart {
     return result;
   }
 
-  protected void drawSeries(XYSeries series, Canvas canvas, Paint paint, List<Float> pointsList,
+  protected void drawSeries(XYSeries series, Canvas canvas, Paint paint, float[] points,
       SimpleSeriesRenderer seriesRenderer, float yAxisValue, int seriesIndex, Orientation or) {
     BasicStroke stroke = seriesRenderer.getStroke();
     Cap cap = paint.getStrokeCap();
@@ -505,7 +553,6 @@ public abstract class XYChart extends AbstractChart {
       setStroke(stroke.getCap(), stroke.getJoin(), stroke.getMiter(), Style.FILL_AND_STROKE,
           effect, paint);
     }
-    float[] points = MathHelper.getFloats(pointsList);
     drawSeries(canvas, paint, points, seriesRenderer, yAxisValue, seriesIndex);
     if (isRenderPoints(seriesRenderer)) {
       ScatterChart pointsChart = getPointsChart();
@@ -16,8 +16,6 @@
 package org.achartengine.model;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.achartengine.util.MathHelper;
 
@@ -28,10 +26,14 @@ import org.achartengine.util.MathHelper;
 public class XYSeries implements Serializable {
   /** The series title. */
   private String mTitle;
-  /** A list to contain the values for the X axis. */
-  private List<Double> mX = new ArrayList<Double>();
-  /** A list to contain the values for the Y axis. */
-  private List<Double> mY = new ArrayList<Double>();
+  /** The initial capacity of the value arrays. */
+  private static final int INITIAL_CAPACITY = 16;
+  /** The values for the X axis, only the first mCount are used. */
+  private double[] mX = new double[INITIAL_CAPACITY];
+  /** The values for the Y axis, only the first mCount are used. */
+  private double[] mY = new double[INITIAL_CAPACITY];
+  /** The number of values in the series. */
+  private int mCount;
   /** The minimum value for the X axis. */
   private double mMinX = MathHelper.NULL_VALUE;
   /** The maximum value for the X axis. */
@@ -80,11 +82,8 @@ public class XYSeries implements Serializable {
     mMaxX = -MathHelper.NULL_VALUE;
     mMinY = MathHelper.NULL_VALUE;
     mMaxY = -MathHelper.NULL_VALUE;
-    int length = getItemCount();
-    for (int k = 0; k < length; k++) {
-      double x = getX(k);
-      double y = getY(k);
-      updateRange(x, y);
+    for (int k = 0; k < mCount; k++) {
+      updateRange(mX[k], mY[k]);
     }
   }
 
@@ -126,23 +125,68 @@ public class XYSeries implements Serializable {
    * @param y the value for the Y axis
    */
   public synchronized void add(double x, double y) {
-    mX.add(x);
+    ensureCapacity(mCount + 1);
+    mX[mCount] = x;
+    mY[mCount] = y;
+    mCount++;
     mSumX += x;
-    mY.add(y);
     mSumY += y;
     updateRange(x, y);
   }
 
+  /**
+   * Adds a number of values to the series at once.
+   * 
+   * @param x the values for the X axis
+   * @param y the values for the Y axis, must be as long as x
+   */
+  public synchronized void addAll(double[] x, double[] y) {
+    if (x.length != y.length) {
+      throw new IllegalArgumentException("There must be as many Y values as X values");
+    }
+    ensureCapacity(mCount + x.length);
+    System.arraycopy(x, 0, mX, mCount, x.length);
+    System.arraycopy(y, 0, mY, mCount, y.length);
+    mCount += x.length;
+    for (int k = 0; k < x.length; k++) {
+      mSumX += x[k];
+      mSumY += y[k];
+      updateRange(x[k], y[k]);
+    }
+  }
+
+  /**
+   * Grows the value arrays so they can hold at least the given number of
+   * values.
+   * 
+   * @param capacity the number of values
+   */
+  private void ensureCapacity(int capacity) {
+    if (capacity > mX.length) {
+      int length = Math.max(capacity, mX.length * 2);
+      double[] x = new double[length];
+      double[] y = new double[length];
+      System.arraycopy(mX, 0, x, 0, mCount);
+      System.arraycopy(mY, 0, y, 0, mCount);
+      mX = x;
+      mY = y;
+    }
+  }
+
   /**
    * Removes an existing value from the series.
    * 
    * @param index the index in the series of the value to remove
    */
   public synchronized void remove(int index) {
-    double removedX = mX.remove(index);
+    checkIndex(index);
+    double removedX = mX[index];
     mSumX -= removedX;
-    double removedY = mY.remove(index);
+    double removedY = mY[index];
     mSumY -= removedY;
+    System.arraycopy(mX, index + 1, mX, index, mCount - index - 1);
+    System.arraycopy(mY, index + 1, mY, index, mCount - index - 1);
+    mCount--;
     if (removedX == mMinX || removedX == mMaxX || removedY == mMinY || removedY == mMaxY) {
       initRange();
     }
@@ -152,8 +196,7 @@ public class XYSeries implements Serializable {
    * Removes all the existing values from the series.
    */
   public synchronized void clear() {
-    mX.clear();
-    mY.clear();
+    mCount = 0;
     mSumX = 0;
     mSumY = 0;
     initRange();
@@ -166,7 +209,8 @@ public class XYSeries implements Serializable {
    * @return the X value
    */
   public synchronized double getX(int index) {
-    return mX.get(index);
+    checkIndex(index);
+    return mX[index];
   }
 
   /**
@@ -176,7 +220,20 @@ public class XYSeries implements Serializable {
    * @return the Y value
    */
   public synchronized double getY(int index) {
-    return mY.get(index);
+    checkIndex(index);
+    return mY[index];
+  }
+
+  /**
+   * Throws the same exception as a list would for an index out of range, as
+   * the arrays may be longer than the series.
+   * 
+   * @param index the index
+   */
+  private void checkIndex(int index) {
+    if (index < 0 || index >= mCount) {
+      throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + mCount);
+    }
   }
 
   /**
@@ -185,7 +242,7 @@ public class XYSeries implements Serializable {
    * @return the series item count
    */
   public synchronized int getItemCount() {
-    return mX.size();
+    return mCount;
   }
 
   /**
@@ -238,10 +295,10 @@ public class XYSeries implements Serializable {
    * 
    * @return the average Y value, null if there are no points
    */
-  public Double getAverageY() {
-	if(mY.isEmpty())
+  public synchronized Double getAverageY() {
+	if(mCount == 0)
 		return null;
-    return mSumY / mY.size();
+    return mSumY / mCount;
   }
 
   /**
@@ -258,9 +315,9 @@ public class XYSeries implements Serializable {
    * 
    * @return the average X value, null if there are no points
    */
-  public Double getAverageX() {
-	if(mX.isEmpty())
+  public synchronized Double getAverageX() {
+	if(mCount == 0)
 		return null;
-    return mSumX / mX.size();
+    return mSumX / mCount;
   }
 }
@@ -22,6 +22,7 @@ import android.database.Cursor;
 
 import org.ohmage.db.DbContract.Campaigns;
 import org.ohmage.db.Models.Campaign;
+import org.ohmage.responsesync.ResponseDigest;
 
 /**
  * Creates preferences specific to certain campaigns
@@ -31,6 +32,9 @@ import org.ohmage.db.Models.Campaign;
 public class CampaignPreferencesHelper {
 
     public static final String KEY_SHOW_INSTRUCTIONS = "key_show_instructions";
+    private static final String KEY_SYNC_HIGH_WATER = "key_sync_high_water";
+    private static final String KEY_SYNC_DIGEST = "key_sync_digest";
+    private static final String KEY_SYNC_LAST_FULL = "key_sync_last_full";
 
     private final SharedPreferences mPreferences;
 
@@ -71,4 +75,33 @@ public class CampaignPreferencesHelper {
         return mPreferences.edit().putBoolean(KEY_SHOW_INSTRUCTIONS, show).commit();
     }
 
+    /**
+     * @return the time of the newest response seen on the server during the
+     *         last response sync
+     */
+    public long getSyncHighWater() {
+        return mPreferences.getLong(KEY_SYNC_HIGH_WATER, 0);
+    }
+
+    /**
+     * @return the digest of the responses on the server after the last
+     *         response sync, or null if there hasn't been one
+     */
+    public ResponseDigest getSyncDigest() {
+        return ResponseDigest.fromString(mPreferences.getString(KEY_SYNC_DIGEST, null));
+    }
+
+    /**
+     * @return the time of the last response sync which looked at every day
+     */
+    public long getLastFullSync() {
+        return mPreferences.getLong(KEY_SYNC_LAST_FULL, 0);
+    }
+
+    public boolean setSyncState(long highWater, ResponseDigest digest, long lastFullSync) {
+        return mPreferences.edit().putLong(KEY_SYNC_HIGH_WATER, highWater)
+                .putString(KEY_SYNC_DIGEST, digest.toString())
+                .putLong(KEY_SYNC_LAST_FULL, lastFullSync).commit();
+    }
+
 }
@@ -76,6 +76,22 @@ public class ConfigHelper {
         return getConfigBoolean("log_analytics", R.bool.log_analytics);
     }
 
+    public static String getProbeBackpressurePolicy() {
+        return getConfigString("probe_backpressure_policy", R.string.probe_backpressure_policy);
+    }
+
+    public static boolean getGzipRequests() {
+        return getConfigBoolean("gzip_requests", R.bool.gzip_requests);
+    }
+
+    public static boolean getPipelineProbeUploads() {
+        return getConfigBoolean("pipeline_probe_uploads", R.bool.pipeline_probe_uploads);
+    }
+
+    public static boolean getIncrementalResponseSync() {
+        return getConfigBoolean("incremental_response_sync", R.bool.incremental_response_sync);
+    }
+
     private static String getConfigString(String key, int defValueId) {
         return (String) getConfigValue(key, OhmageApplication.getContext().getResources()
                 .getString(defValueId));
@@ -16,28 +16,34 @@
 package org.ohmage;
 
 import android.content.Context;
+import android.net.http.AndroidHttpClient;
+import android.os.SystemClock;
 import android.widget.Toast;
 
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.ParseException;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.mime.MIME;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.AbstractContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -49,11 +55,12 @@ import org.ohmage.logprobe.Log;
 import org.ohmage.prompt.PromptFactory;
 import org.ohmage.service.ProbeUploadService.JsonContentBody;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -73,6 +80,15 @@ public class OhmageApi {
 	private static final String MOBILITY_AGGREGATE_READ_PATH = "app/mobility/aggregate/read";
 	public static final String IMAGE_READ_PATH = "app/image/read";
 
+	/** Size of the buffer used to compress request bodies */
+	private static final int GZIP_BUFFER_SIZE = 8192;
+
+	/** Size of the buffer used to read response bodies which are kept as text */
+	private static final int CONTENT_BUFFER_SIZE = 8192;
+
+	/** Largest content length we trust to presize the buffer for a response body */
+	private static final int MAX_CONTENT_HINT = 4 * 1024 * 1024;
+
 	public static String CLIENT_NAME = "ohmage-android";
 
 	private final Context mContext;
@@ -136,6 +152,19 @@ public class OhmageApi {
 			// do nothing here
 		}
 
+		/**
+		 * Reads a field of the json returned by the server as it is streamed in. The result
+		 * and the errors are read by the api, every other field is passed here.
+		 * @param name the name of the field
+		 * @param reader positioned at the value of the field
+		 * @return true if the value was read, false if it should be skipped
+		 * @throws IOException
+		 * @throws JSONException
+		 */
+		protected boolean readJson(String name, JsonReader reader) throws IOException, JSONException {
+			return false;
+		}
+
 		public void handleError(Context context) {
 			switch(mResult) {
 			case SUCCESS:
@@ -209,6 +238,18 @@ public class OhmageApi {
 				mToken = rootJson.getString("token");
 		}
 
+		@Override
+		protected boolean readJson(String name, JsonReader reader) throws IOException {
+			if ("hashed_password".equals(name)) {
+				mHashedPassword = reader.nextString();
+				return true;
+			} else if ("token".equals(name)) {
+				mToken = reader.nextString();
+				return true;
+			}
+			return false;
+		}
+
 		@Override
 		public void handleError(Context context) {
             switch(mResult) {
@@ -267,6 +308,18 @@ public class OhmageApi {
 				mMetadata = rootJson.getJSONObject("metadata");
 		}
 
+		@Override
+		protected boolean readJson(String name, JsonReader reader) throws IOException, JSONException {
+			if ("data".equals(name)) {
+				mData = readJSONObject(reader);
+				return true;
+			} else if ("metadata".equals(name)) {
+				mMetadata = readJSONObject(reader);
+				return true;
+			}
+			return false;
+		}
+
 		@Override
 		public void handleError(Context context) {
 			super.handleError(context);
@@ -333,6 +386,18 @@ public class OhmageApi {
 			if (rootJson.has("metadata"))
 				mMetadata = rootJson.getJSONObject("metadata");
 		}
+
+		@Override
+		protected boolean readJson(String name, JsonReader reader) throws IOException, JSONException {
+			if ("data".equals(name)) {
+				mData = readJSONArray(reader);
+				return true;
+			} else if ("metadata".equals(name)) {
+				mMetadata = readJSONObject(reader);
+				return true;
+			}
+			return false;
+		}
 	}
 
 	public class ImageReadResponse extends Response {
@@ -454,12 +519,91 @@ public class OhmageApi {
 
         @Override
         public void writeTo(OutputStream out) throws IOException {
-            GZIPOutputStream zos = new GZIPOutputStream(out);
+            GZIPOutputStream zos = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
             mBody.writeTo(zos);
             zos.finish();
         }
     }
 
+    /**
+     * Compresses the wrapped entity as it is written to the connection. The
+     * request is sent chunked with a gzip content encoding, so its size is
+     * never known up front and it is never copied into memory.
+     */
+    public static class GZIPStreamingEntity extends HttpEntityWrapper {
+
+        public GZIPStreamingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader(HTTP.CONTENT_ENCODING, "gzip");
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            GZIPOutputStream zos = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+            wrappedEntity.writeTo(zos);
+            zos.finish();
+        }
+    }
+
+	/**
+	 * Records the time until the response has been read and the number of bytes read once the
+	 * content is closed or consumed
+	 */
+	private static class TimedEntity extends HttpEntityWrapper {
+		private final String mEndpoint;
+		private final long mStart;
+		private CountingInputStream mContent;
+		private boolean mCompleted;
+
+		public TimedEntity(HttpEntity entity, String endpoint, long start) {
+			super(entity);
+			mEndpoint = endpoint;
+			mStart = start;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			if (mContent == null) {
+				mContent = new CountingInputStream(wrappedEntity.getContent()) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						completed();
+					}
+				};
+			}
+			return mContent;
+		}
+
+		@Override
+		public void consumeContent() throws IOException {
+			super.consumeContent();
+			completed();
+		}
+
+		private synchronized void completed() {
+			if (!mCompleted) {
+				mCompleted = true;
+				OhmageApiStats.completed(mEndpoint, SystemClock.elapsedRealtime() - mStart,
+						mContent != null ? mContent.amountRead() : 0);
+			}
+		}
+	}
+
 	public UploadResponse observerUpload(String serverUrl, String username, String hashedPassword, String client, String observerId, String observerVersion, JsonContentBody data) {
 
 		String url = serverUrl + OBSERVER_UPLOAD_PATH;
@@ -497,7 +641,7 @@ public class OhmageApi {
 			reqEntity.addPart("client", new StringBody(client));
 			reqEntity.addPart("surveys", data);
 
-			return parseUploadResponse(url, doHttpPost(url, reqEntity, false));
+			return parseUploadResponse(url, doHttpPost(url, reqEntity, ConfigHelper.getGzipRequests()));
 		} catch (IOException e) {
 			Log.e(TAG, "IOException while creating http entity", e);
 			return new UploadResponse(Result.INTERNAL_ERROR, null);
@@ -656,30 +800,22 @@ public class OhmageApi {
 				if (responseEntity != null) {
 					if (responseEntity.getContentType().getValue().equals("text/xml")) {
 						try {
-							String xml = parseContent(url, responseEntity);
+							String xml = readContent(url, responseEntity);
 							result = Result.SUCCESS;
 							candidate.setXml(xml);
-						} catch (ParseException e) {
-							Log.e(TAG, "Problem reading response body", e);
-							result = Result.INTERNAL_ERROR;
 						} catch (IOException e) {
 							Log.e(TAG, "Problem reading response body", e);
 							result = Result.INTERNAL_ERROR;
 						}
 					} else if (responseEntity.getContentType().getValue().equals("text/html")) {
 						try {
-							JSONObject rootJson = parseContentToJSON(url, responseEntity);
-							if (rootJson.getString("result").equals("success")) {
+							readJsonContent(url, responseEntity, candidate);
+							if (candidate.getResult() == Result.SUCCESS) {
 								result = Result.INTERNAL_ERROR;
 								Log.e(TAG, "CampaignReadXml should never return json with SUCCESS!");
 							} else {
 								result = Result.FAILURE;
-								JSONArray errorsJsonArray = rootJson.getJSONArray("errors");
-								int errorCount = errorsJsonArray.length();
-								errorCodes = new String[errorCount];
-								for (int i = 0; i < errorCount; i++) {
-									errorCodes[i] = errorsJsonArray.getJSONObject(i).getString("code");
-								}
+								errorCodes = candidate.getErrorCodes().toArray(new String[candidate.getErrorCodes().size()]);
 							}
 						} catch (JSONException e) {
 							Log.e(TAG, "Problem parsing response json", e);
@@ -707,6 +843,7 @@ public class OhmageApi {
 			result = Result.HTTP_ERROR;
 		}
 
+		consume(response);
 		candidate.setResponseStatus(result, errorCodes);
 
 		return candidate;
@@ -892,159 +1029,254 @@ public class OhmageApi {
 	private HttpResponse doHttpPost(String url, HttpEntity requestEntity, boolean gzip) {
 
 		HttpPost httpPost = new HttpPost(url);
+		// Responses are decompressed as they are read if the server chooses to gzip them
+		AndroidHttpClient.modifyRequestToAcceptGzipResponse(httpPost);
 
 		if (gzip) {
-			try {
-				//InputStream is = requestEntity.getContent();
-
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				//BufferedOutputStream zipper = new BufferedOutputStream(new GZIPOutputStream(baos));
-				GZIPOutputStream zipper = new GZIPOutputStream(baos);
-
-				requestEntity.writeTo(zipper);
-
-				/* byte [] data2 = new byte[(int)formEntity.getContentLength()]; 
-			        is.read(data2);
-
-			        String testing = new String(data2);
-			        Log.i("api", testing);
-			        zipper.write(data2);*/
-
-				/*int bufferSize = 1024;
-			        byte [] buffer = new byte [bufferSize];
-			        int len = 0;
-			        String fullString = "";
-			        while ((len = is.read(buffer, 0, bufferSize)) != -1) {
-			        	zipper.write(buffer, 0, len);
-			        	//fullString += new String(buffer, 0, len);
-			        	Log.i("api", new String(buffer, 0, len));
-			        }
-			        Log.i("api", fullString);
-
-			        is.close();*/
-				//zipper.flush();
-				//zipper.finish();
-				zipper.close();
-
-
-				ByteArrayEntity byteEntity = new ByteArrayEntity(baos.toByteArray());
-				//baos.close();
-				byteEntity.setContentEncoding("gzip");
-
-				httpPost.setEntity(byteEntity);
-			} catch (IOException e) {
-				Log.e(TAG, "Unable to gzip entity, using unzipped entity", e);
-				httpPost.setEntity(requestEntity);
-			}
-
+			// Compressed as it is written to the connection so the request is never held in memory
+			httpPost.setEntity(new GZIPStreamingEntity(requestEntity));
 		} else {
 			httpPost.setEntity(requestEntity);
 		}
 
+		String endpoint = httpPost.getURI().getPath();
+		HttpContext context = new BasicHttpContext();
+		long start = SystemClock.elapsedRealtime();
 
 		try {
 			Analytics.network(mContext, httpPost);
-			return OhmageApplication.getHttpClient().execute(httpPost);
+			HttpResponse response = OhmageApplication.getHttpClient().execute(httpPost, context);
+			OhmageApiStats.firstByte(endpoint, SystemClock.elapsedRealtime() - start, isReused(context));
+			if (response.getEntity() != null) {
+				response.setEntity(new TimedEntity(response.getEntity(), endpoint, start));
+			}
+			return response;
 		} catch (ClientProtocolException e) {
 			Log.e(TAG, "ClientProtocolException while executing httpPost", e);
+			OhmageApiStats.failed(endpoint);
 			return null;
 		} catch (IOException e) {
 			Log.e(TAG, "IOException while executing httpPost", e);
+			OhmageApiStats.failed(endpoint);
 			return null;
 		}
 	}
 
 	/**
-	 * Parses and logs to the network analytics
-	 * @param url
+	 * Checks if the request was sent on a connection which had already been used by an earlier
+	 * request. This has to be called before the response is read, since the connection is given
+	 * back to the pool once it is.
+	 * @param context the context the request was executed with
+	 * @return true if the connection was reused
+	 */
+	private static boolean isReused(HttpContext context) {
+		Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		try {
+			return connection instanceof HttpConnection
+					&& ((HttpConnection) connection).getMetrics().getRequestCount() > 1;
+		} catch (RuntimeException e) {
+			// The connection was already released
+			return false;
+		}
+	}
+
+	/**
+	 * Consumes whatever is left of the response so the connection can be reused
+	 * @param response
+	 */
+	private static void consume(HttpResponse response) {
+		if (response != null && response.getEntity() != null) {
+			try {
+				response.getEntity().consumeContent();
+			} catch (IOException e) {
+				Log.e(TAG, "Error consuming content", e);
+			}
+		}
+	}
+
+	/**
+	 * Opens the content of an entity, decompressing it as it is read if the server gzipped it
 	 * @param entity
-	 * @return
-	 * @throws ParseException
+	 * @return the content, which counts the bytes read for the network analytics
 	 * @throws IOException
 	 */
-	private String parseContent(String url, HttpEntity entity) throws ParseException, IOException {
-		String content = EntityUtils.toString(entity, HTTP.UTF_8);
-		Analytics.network(mContext, url, content.length());
-		return content;
+	private static CountingInputStream openContent(HttpEntity entity) throws IOException {
+		return new CountingInputStream(AndroidHttpClient.getUngzippedContent(entity));
 	}
 
 	/**
-	 * Parses the content to JSON
+	 * Reads the content into a string and logs to the network analytics
 	 * @param url
 	 * @param entity
 	 * @return
-	 * @throws ParseException
 	 * @throws IOException
-	 * @throws JSONException
 	 */
-	private JSONObject parseContentToJSON(String url, HttpEntity entity) throws ParseException, IOException, JSONException {
-		JSONObject json = new JSONObject(parseContent(url, entity));
-		Log.v(TAG, "result: " + json.getString("result"));
-		return json;
+	private String readContent(String url, HttpEntity entity) throws IOException {
+		String charset = EntityUtils.getContentCharSet(entity);
+		long length = entity.getContentLength();
+		StringBuilder content = new StringBuilder(length > 0 && length < MAX_CONTENT_HINT ? (int) length : CONTENT_BUFFER_SIZE);
+
+		CountingInputStream in = openContent(entity);
+		try {
+			Reader reader = new InputStreamReader(in, charset != null ? charset : HTTP.UTF_8);
+			char[] buffer = new char[CONTENT_BUFFER_SIZE];
+			int count;
+			while ((count = reader.read(buffer)) != -1) {
+				content.append(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+
+		Analytics.network(mContext, url, in.amountRead());
+		return content.toString();
 	}
 
-	private AuthenticateResponse parseAuthenticateResponse(HttpResponse response) {
-		Result result = Result.HTTP_ERROR;
-		String hashedPassword = null;
-		String authToken = null;
+	/**
+	 * Reads the json content as it is streamed in and logs to the network analytics. The result
+	 * and errors are set on the candidate and every other field is passed to
+	 * {@link Response#readJson(String, JsonReader)}.
+	 * @param url
+	 * @param entity
+	 * @param candidate
+	 * @throws IOException if the content couldn't be read or isn't a valid response
+	 * @throws JSONException
+	 */
+	private void readJsonContent(String url, HttpEntity entity, Response candidate) throws IOException, JSONException {
+		String result = null;
 		String[] errorCodes = null;
-		String url = "/" + AUTHENTICATE_PATH;
 
-		if (response != null) {
-			Log.v(TAG, response.getStatusLine().toString());
-			if (response.getStatusLine().getStatusCode() == 200) {
-				HttpEntity responseEntity = response.getEntity();
-				if (responseEntity != null) {
-					try {
-						JSONObject rootJson = parseContentToJSON(url, responseEntity);
+		CountingInputStream in = openContent(entity);
+		try {
+			JsonReader reader = new JsonReader(new InputStreamReader(in, HTTP.UTF_8));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("result".equals(name)) {
+					result = reader.nextString();
+				} else if ("errors".equals(name)) {
+					errorCodes = readErrorCodes(reader);
+				} else if (!candidate.readJson(name, reader)) {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IllegalStateException e) {
+			// thrown by the reader when a value has an unexpected type
+			throw new JSONException(e.getMessage());
+		} finally {
+			in.close();
+		}
 
-						if (rootJson.getString("result").equals("success")) {
-							result = Result.SUCCESS;
-							if (rootJson.has("hashed_password")) {
-								hashedPassword = rootJson.getString("hashed_password");
-							}
+		Analytics.network(mContext, url, in.amountRead());
+		Log.v(TAG, "result: " + result);
 
-							if (rootJson.has("token")) {
-								authToken = rootJson.getString("token");
-							}
+		if ("success".equals(result)) {
+			candidate.setResponseStatus(Result.SUCCESS, null);
+		} else if (result != null && errorCodes != null) {
+			candidate.setResponseStatus(Result.FAILURE, errorCodes);
+		} else {
+			throw new JSONException("No result or errors in response");
+		}
+	}
 
-						} else {
-							result = Result.FAILURE;
-							JSONArray errorsJsonArray = rootJson.getJSONArray("errors");
-							int errorCount = errorsJsonArray.length();
-							errorCodes = new String[errorCount];
-							for (int i = 0; i < errorCount; i++) {
-								errorCodes[i] = errorsJsonArray.getJSONObject(i).getString("code");
-							}
-						}
-					} catch (JSONException e) {
-						Log.e(TAG, "Problem parsing response json", e);
-						result = Result.INTERNAL_ERROR;
-					} catch (IOException e) {
-						Log.e(TAG, "Problem reading response body", e);
-						result = Result.INTERNAL_ERROR;
-					}
+	private static String[] readErrorCodes(JsonReader reader) throws IOException {
+		List<String> errorList = new ArrayList<String>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("code".equals(reader.nextName())) {
+					errorList.add(reader.nextString());
 				} else {
-					Log.e(TAG, "No response entity in response");
-					result = Result.HTTP_ERROR;
+					reader.skipValue();
 				}
-
-			} else {
-				Log.e(TAG, "Returned status code: " + String.valueOf(response.getStatusLine().getStatusCode()));
-				result = Result.HTTP_ERROR;
 			}
+			reader.endObject();
+		}
+		reader.endArray();
+		return errorList.toArray(new String[errorList.size()]);
+	}
 
-		} else {
-			Log.e(TAG, "Response is null");
-			result = Result.HTTP_ERROR;
+	/**
+	 * Reads an object from the stream into a {@link JSONObject} without first reading the
+	 * whole response into a string
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	static JSONObject readJSONObject(JsonReader reader) throws IOException, JSONException {
+		JSONObject object = new JSONObject();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			object.put(reader.nextName(), readJSONValue(reader));
 		}
+		reader.endObject();
+		return object;
+	}
 
-		return new AuthenticateResponse(result, hashedPassword, authToken, errorCodes);
+	/**
+	 * Reads an array from the stream into a {@link JSONArray}
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	static JSONArray readJSONArray(JsonReader reader) throws IOException, JSONException {
+		JSONArray array = new JSONArray();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			array.put(readJSONValue(reader));
+		}
+		reader.endArray();
+		return array;
 	}
 
-	private UploadResponse parseUploadResponse(String url, HttpResponse response) {
+	private static Object readJSONValue(JsonReader reader) throws IOException, JSONException {
+		switch (reader.peek()) {
+			case BEGIN_OBJECT:
+				return readJSONObject(reader);
+			case BEGIN_ARRAY:
+				return readJSONArray(reader);
+			case STRING:
+				return reader.nextString();
+			case NUMBER:
+				return readJSONNumber(reader.nextString());
+			case BOOLEAN:
+				return reader.nextBoolean();
+			case NULL:
+				reader.nextNull();
+				return JSONObject.NULL;
+			default:
+				throw new JSONException("Unexpected " + reader.peek());
+		}
+	}
+
+	/**
+	 * Numbers get the same types {@link JSONObject} would give them when parsing a string
+	 */
+	private static Object readJSONNumber(String number) {
+		try {
+			long value = Long.parseLong(number);
+			if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+				return Integer.valueOf((int) value);
+			}
+			return Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			return Double.valueOf(number);
+		}
+	}
+
+	/**
+	 * Reads the json response for a request which returns the result and possibly some data
+	 * @param url
+	 * @param response
+	 * @param candidate the response to populate with the result and any data
+	 * @return the candidate
+	 */
+	private <T extends Response> T parseJsonResponse(String url, HttpResponse response, T candidate) {
 		Result result = Result.HTTP_ERROR;
-		String[] errorCodes = null;
 
 		if (response != null) {
 			Log.v(TAG, response.getStatusLine().toString());
@@ -1052,20 +1284,8 @@ public class OhmageApi {
 				HttpEntity responseEntity = response.getEntity();
 				if (responseEntity != null) {
 					try {
-						JSONObject rootJson = parseContentToJSON(url, responseEntity);
-
-						if (rootJson.getString("result").equals("success")) {
-							result = Result.SUCCESS;
-						} else {
-						    Log.v(TAG, rootJson.toString());
-							result = Result.FAILURE;
-							JSONArray errorsJsonArray = rootJson.getJSONArray("errors");
-							int errorCount = errorsJsonArray.length();
-							errorCodes = new String[errorCount];
-							for (int i = 0; i < errorCount; i++) {
-								errorCodes[i] = errorsJsonArray.getJSONObject(i).getString("code");
-							}
-						}
+						readJsonContent(url, responseEntity, candidate);
+						return candidate;
 					} catch (JSONException e) {
 						Log.e(TAG, "Problem parsing response json", e);
 						result = Result.INTERNAL_ERROR;
@@ -1088,15 +1308,23 @@ public class OhmageApi {
 			result = Result.HTTP_ERROR;
 		}
 
-		return new UploadResponse(result, errorCodes);
+		consume(response);
+		candidate.setResponseStatus(result, null);
+		return candidate;
 	}
 
-	private Response parseReadResponse(String url, HttpResponse response, Class<? extends Response> outputType) {
-		Result result = Result.HTTP_ERROR;
-		String[] errorCodes = null;
+	private AuthenticateResponse parseAuthenticateResponse(HttpResponse response) {
+		String url = "/" + AUTHENTICATE_PATH;
+		return parseJsonResponse(url, response, new AuthenticateResponse(Result.HTTP_ERROR, null, null, null));
+	}
 
+	private UploadResponse parseUploadResponse(String url, HttpResponse response) {
+		return parseJsonResponse(url, response, new UploadResponse(Result.HTTP_ERROR, null));
+	}
+
+	private Response parseReadResponse(String url, HttpResponse response, Class<? extends Response> outputType) {
 		// the response object that will be returned; its type is decided by outputType
-		// it's also populated by a call to populateFromJSON() which transforms the server response into the Response object
+		// it reads the fields it needs as the server response is streamed in
 		Response candidate;
 
 		try {
@@ -1107,54 +1335,7 @@ public class OhmageApi {
 			return null;
 		}
 
-		if (response != null) {
-			Log.v(TAG, response.getStatusLine().toString());
-			if (response.getStatusLine().getStatusCode() == 200) {
-				HttpEntity responseEntity = response.getEntity();
-				if (responseEntity != null) {
-					try {
-						JSONObject rootJson = parseContentToJSON(url, responseEntity);
-
-						if (rootJson.getString("result").equals("success")) {
-							result = Result.SUCCESS;
-
-							// allow the output type to determine how to extract data from the json collection
-							candidate.populateFromJSON(rootJson);
-
-						} else {
-							result = Result.FAILURE;
-							JSONArray errorsJsonArray = rootJson.getJSONArray("errors");
-							int errorCount = errorsJsonArray.length();
-							errorCodes = new String[errorCount];
-							for (int i = 0; i < errorCount; i++) {
-								errorCodes[i] = errorsJsonArray.getJSONObject(i).getString("code");
-							}
-						}
-					} catch (JSONException e) {
-						Log.e(TAG, "Problem parsing response json", e);
-						result = Result.INTERNAL_ERROR;
-					} catch (IOException e) {
-						Log.e(TAG, "Problem reading response body", e);
-						result = Result.INTERNAL_ERROR;
-					}
-				} else {
-					Log.e(TAG, "No response entity in response");
-					result = Result.HTTP_ERROR;
-				}
-
-			} else {
-				Log.e(TAG, "Returned status code: " + String.valueOf(response.getStatusLine().getStatusCode()));
-				result = Result.HTTP_ERROR;
-			}
-
-		} else {
-			Log.e(TAG, "Response is null");
-			result = Result.HTTP_ERROR;
-		}
-
-		candidate.setResponseStatus(result, errorCodes);
-
-		return candidate;
+		return parseJsonResponse(url, response, candidate);
 	}
 
 	/**
@@ -1167,7 +1348,20 @@ public class OhmageApi {
 		 * Called for each record found in the "data" section of a JSON response.
 		 * @param object the JsonObject which was read from the input stream
 		 */
-		public abstract void readObject(JsonObject object);
+		public void readObject(JsonObject object) { }
+
+		/**
+		 * Called for each record found in the "data" section of a JSON response with the reader
+		 * positioned at the start of the record. The record must be read completely.
+		 * 
+		 * By default the record is parsed into a JsonObject and passed to {@link #readObject(JsonObject)}.
+		 * Listeners which only need some of the values can read them here instead of building the tree.
+		 * @param reader the reader for the response
+		 * @throws IOException
+		 */
+		public void readObject(JsonReader reader) throws IOException {
+			readObject(new JsonParser().parse(reader).getAsJsonObject());
+		}
 
 		/**
 		 * Called once when the "result" section is read to indicate the status of the call.
@@ -1215,9 +1409,8 @@ public class OhmageApi {
                 if (responseEntity != null) {
                     try {
 
-                        JsonParser parser = new JsonParser();
-                        JsonReader reader = new JsonReader(new InputStreamReader(
-                                new CountingInputStream(responseEntity.getContent()), "UTF-8"));
+                        inputstream = openContent(responseEntity);
+                        JsonReader reader = new JsonReader(new InputStreamReader(inputstream, "UTF-8"));
                         reader.beginObject();
 
                         // expecting: {result: "<status>", data: [{},{},{}...]}
@@ -1236,8 +1429,7 @@ public class OhmageApi {
                                 listener.beforeRead();
 
                                 while (reader.hasNext()) {
-                                    JsonElement elem = parser.parse(reader);
-                                    listener.readObject(elem.getAsJsonObject());
+                                    listener.readObject(reader);
                                 }
 
                                 // do post-read cleanup
@@ -1245,20 +1437,7 @@ public class OhmageApi {
 
                                 reader.endArray();
                             } else if ("errors".equals(name)) {
-                                reader.beginArray();
-
-                                List<String> errorList = new ArrayList<String>();
-
-                                while (reader.hasNext()) {
-                                    // read off each of the errors and stick it
-                                    // into the error array
-                                    JsonElement elem = parser.parse(reader);
-                                    errorList.add(elem.getAsJsonObject().get("code").getAsString());
-                                }
-
-                                errorCodes = errorList.toArray(new String[errorList.size()]);
-
-                                reader.endArray();
+                                errorCodes = readErrorCodes(reader);
                             } else {
                                 reader.skipValue();
                             }
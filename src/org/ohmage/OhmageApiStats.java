@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohmage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps timings for the requests {@link OhmageApi} makes, per endpoint. Requests
+ * which had to open a new connection are counted separately from the ones which
+ * reused a pooled connection, so the difference in their time to first byte is
+ * what setting up the connection (dns, connect and tls) costs us. The timings
+ * are written to the analytics stream each time probes are uploaded.
+ */
+public class OhmageApiStats {
+
+	private static final HashMap<String, Endpoint> sEndpoints = new HashMap<String, Endpoint>();
+
+	/**
+	 * Records that the response headers for a request were received
+	 * @param endpoint the path of the request
+	 * @param firstByte ms from sending the request to the response headers
+	 * @param reused true if the request was sent on a pooled connection
+	 */
+	public static synchronized void firstByte(String endpoint, long firstByte, boolean reused) {
+		Endpoint e = get(endpoint);
+		if (reused) {
+			e.mReused++;
+			e.mReusedFirstByte += firstByte;
+		} else {
+			e.mOpened++;
+			e.mOpenedFirstByte += firstByte;
+		}
+	}
+
+	/**
+	 * Records that the response for a request was completely read
+	 * @param endpoint the path of the request
+	 * @param total ms from sending the request until the response was read
+	 * @param bytes the number of bytes read from the connection
+	 */
+	public static synchronized void completed(String endpoint, long total, long bytes) {
+		Endpoint e = get(endpoint);
+		e.mCompleted++;
+		e.mTotal += total;
+		e.mBytes += bytes;
+	}
+
+	/**
+	 * Records that a request failed before any response was received
+	 * @param endpoint the path of the request
+	 */
+	public static synchronized void failed(String endpoint) {
+		get(endpoint).mFailed++;
+	}
+
+	/**
+	 * @return a copy of the timings of every endpoint a request was made to
+	 */
+	public static synchronized List<Endpoint> getEndpoints() {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>(sEndpoints.size());
+		for (Endpoint e : sEndpoints.values()) {
+			endpoints.add(new Endpoint(e));
+		}
+		return endpoints;
+	}
+
+	/**
+	 * @return the timings of every endpoint since the last time they were
+	 *         drained, which are then cleared
+	 */
+	public static synchronized List<Endpoint> drain() {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>(sEndpoints.values());
+		sEndpoints.clear();
+		return endpoints;
+	}
+
+	public static synchronized void reset() {
+		sEndpoints.clear();
+	}
+
+	private static Endpoint get(String endpoint) {
+		Endpoint e = sEndpoints.get(endpoint);
+		if (e == null) {
+			e = new Endpoint(endpoint);
+			sEndpoints.put(endpoint, e);
+		}
+		return e;
+	}
+
+	public static class Endpoint {
+		private final String mName;
+		private int mOpened;
+		private int mReused;
+		private int mCompleted;
+		private int mFailed;
+		private long mOpenedFirstByte;
+		private long mReusedFirstByte;
+		private long mTotal;
+		private long mBytes;
+
+		private Endpoint(String name) {
+			mName = name;
+		}
+
+		private Endpoint(Endpoint other) {
+			mName = other.mName;
+			mOpened = other.mOpened;
+			mReused = other.mReused;
+			mCompleted = other.mCompleted;
+			mFailed = other.mFailed;
+			mOpenedFirstByte = other.mOpenedFirstByte;
+			mReusedFirstByte = other.mReusedFirstByte;
+			mTotal = other.mTotal;
+			mBytes = other.mBytes;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * @return the number of requests which got a response
+		 */
+		public int getRequests() {
+			return mOpened + mReused;
+		}
+
+		/**
+		 * @return the number of requests which had to open a new connection
+		 */
+		public int getOpenedConnections() {
+			return mOpened;
+		}
+
+		/**
+		 * @return the number of requests which reused a pooled connection
+		 */
+		public int getReusedConnections() {
+			return mReused;
+		}
+
+		/**
+		 * @return the number of requests which failed without a response
+		 */
+		public int getFailures() {
+			return mFailed;
+		}
+
+		/**
+		 * @return average ms to first byte for requests on a new connection,
+		 *         which includes dns, connect and tls
+		 */
+		public long getAverageOpenedFirstByte() {
+			return mOpened == 0 ? 0 : mOpenedFirstByte / mOpened;
+		}
+
+		/**
+		 * @return average ms to first byte for requests on a pooled connection
+		 */
+		public long getAverageReusedFirstByte() {
+			return mReused == 0 ? 0 : mReusedFirstByte / mReused;
+		}
+
+		/**
+		 * @return average ms for the whole request including reading the response
+		 */
+		public long getAverageTotal() {
+			return mCompleted == 0 ? 0 : mTotal / mCompleted;
+		}
+
+		/**
+		 * @return bytes read for all the responses
+		 */
+		public long getBytes() {
+			return mBytes;
+		}
+
+		/**
+		 * @return the timings as they are written to the analytics stream
+		 * @throws JSONException
+		 */
+		public JSONObject toJSON() throws JSONException {
+			JSONObject data = new JSONObject();
+			data.put("endpoint", mName);
+			data.put("opened", mOpened);
+			data.put("reused", mReused);
+			data.put("failed", mFailed);
+			data.put("opened_first_byte", getAverageOpenedFirstByte());
+			data.put("reused_first_byte", getAverageReusedFirstByte());
+			data.put("total", getAverageTotal());
+			data.put("bytes", mBytes);
+			return data;
+		}
+
+		@Override
+		public String toString() {
+			return mName + ": " + getRequests() + " requests (" + mOpened + " new connections, "
+					+ mReused + " reused, " + mFailed + " failed), first byte "
+					+ getAverageOpenedFirstByte() + "ms new/" + getAverageReusedFirstByte()
+					+ "ms reused, total " + getAverageTotal() + "ms, " + mBytes + " bytes";
+		}
+	}
+}
@@ -32,7 +32,10 @@ import com.android.volley.toolbox.ImageLoader;
 import com.android.volley.toolbox.Volley;
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.ohmage.authenticator.Authenticator;
 import org.ohmage.db.DbContract.Responses;
 import org.ohmage.db.DbHelper;
@@ -45,6 +48,7 @@ import org.ohmage.logprobe.LogProbe.Status;
 import org.ohmage.prompt.multichoicecustom.MultiChoiceCustomDbAdapter;
 import org.ohmage.prompt.singlechoicecustom.SingleChoiceCustomDbAdapter;
 import org.ohmage.responsesync.ResponseSyncService;
+import org.ohmage.service.MediaCleanupService;
 import org.ohmage.service.SurveyGeotagService;
 import org.ohmage.service.UploadService;
 import org.ohmage.triggers.glue.TriggerFramework;
@@ -52,6 +56,7 @@ import org.ohmage.triggers.glue.TriggerFramework;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class OhmageApplication extends Application {
 
@@ -100,6 +105,15 @@ public class OhmageApplication extends Application {
 
     private static AndroidHttpClient mHttpClient;
 
+    /** Uploads run alongside the response sync, so allow a few at once */
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    /**
+     * Seconds a pooled connection can stay idle before it is closed, which is
+     * less than the keep-alive timeout of the server
+     */
+    private static final long MAX_CONNECTION_IDLE = 10;
+
     private static AccountManager mAccountManager;
 
     @Override
@@ -120,6 +134,9 @@ public class OhmageApplication extends Application {
 
         verifyState();
 
+        // Finish deleting media of responses deleted before the process died
+        MediaCleanupService.resume(this);
+
         // If they can't set a custom server, verify the server that is set is
         // the first in the list of servers
         if (!getResources().getBoolean(R.bool.allow_custom_server)) {
@@ -268,12 +285,26 @@ public class OhmageApplication extends Application {
         return self;
     }
 
-    public static AndroidHttpClient getHttpClient() {
+    /**
+     * The client shared by all the api calls. Connections to the server are
+     * kept alive and pooled so a burst of small requests doesn't pay for a new
+     * connection (and tls handshake) each time.
+     * 
+     * @return the http client
+     */
+    public static synchronized AndroidHttpClient getHttpClient() {
         if (mHttpClient == null) {
             mHttpClient = AndroidHttpClient.newInstance(Build.MANUFACTURER + " " + Build.MODEL
                     + " (" + Build.VERSION.RELEASE + ")");
-            HttpConnectionParams.setSoTimeout(mHttpClient.getParams(), 60000);
+            HttpParams params = mHttpClient.getParams();
+            HttpConnectionParams.setSoTimeout(params, 60000);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+                    MAX_CONNECTIONS_PER_HOST));
         }
+        // Stale checking is turned off for this client, so connections the
+        // server may have timed out already are closed before they are reused
+        mHttpClient.getConnectionManager().closeIdleConnections(MAX_CONNECTION_IDLE,
+                TimeUnit.SECONDS);
         return mHttpClient;
     }
 
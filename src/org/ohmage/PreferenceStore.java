@@ -23,6 +23,9 @@ public class PreferenceStore implements SharedPreferences {
     private static final String KEY_LOGIN_TIMESTAMP = "login_timestamp";
     private static final String KEY_LAST_SURVEY_TIMESTAMP = "last_timestamp_";
     private static final String KEY_CAMPAIGN_REFRESH_TIME = "campaign_refresh_time";
+    private static final String KEY_UPLOAD_BATCH_COUNT = "upload_batch_count_";
+    private static final String KEY_UPLOAD_BATCH_BYTES = "upload_batch_bytes_";
+    private static final String KEY_UPLOAD_THROUGHPUT = "upload_throughput_";
 
     private final SharedPreferences mPreferences;
 
@@ -183,6 +186,17 @@ public class PreferenceStore implements SharedPreferences {
             mEditor.putLong(KEY_CAMPAIGN_REFRESH_TIME, time);
             return this;
         }
+
+        public PreferenceStoreEditor putUploadBatchSize(String observerId, int count, long bytes) {
+            mEditor.putInt(KEY_UPLOAD_BATCH_COUNT + observerId, count);
+            mEditor.putLong(KEY_UPLOAD_BATCH_BYTES + observerId, bytes);
+            return this;
+        }
+
+        public PreferenceStoreEditor putUploadThroughput(String observerId, float pointsPerSecond) {
+            mEditor.putFloat(KEY_UPLOAD_THROUGHPUT + observerId, pointsPerSecond);
+            return this;
+        }
     }
 
     public int getLastMobilityVersion() {
@@ -209,4 +223,21 @@ public class PreferenceStore implements SharedPreferences {
         return mPreferences.getLong(KEY_CAMPAIGN_REFRESH_TIME, 0);
     }
 
+    public int getUploadBatchCount(String observerId, int defValue) {
+        return mPreferences.getInt(KEY_UPLOAD_BATCH_COUNT + observerId, defValue);
+    }
+
+    public long getUploadBatchBytes(String observerId, long defValue) {
+        return mPreferences.getLong(KEY_UPLOAD_BATCH_BYTES + observerId, defValue);
+    }
+
+    /**
+     * @param observerId
+     * @return the average number of points per second uploaded for this
+     *         observer
+     */
+    public float getUploadThroughput(String observerId) {
+        return mPreferences.getFloat(KEY_UPLOAD_THROUGHPUT + observerId, 0);
+    }
+
 }
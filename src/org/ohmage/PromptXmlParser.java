@@ -19,14 +19,11 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Xml;
 
+import org.ohmage.SurveyCache.CampaignSurveys;
+import org.ohmage.SurveyCache.ElementSpec;
+import org.ohmage.SurveyCache.MessageSpec;
+import org.ohmage.SurveyCache.PromptSpec;
 import org.ohmage.Utilities.KVLTriplet;
-import org.ohmage.db.Models.Campaign;
-import org.ohmage.logprobe.Log;
-import org.ohmage.prompt.Message;
-import org.ohmage.prompt.Prompt;
-import org.ohmage.prompt.PromptBuilder;
-import org.ohmage.prompt.PromptBuilderFactory;
-import org.ohmage.prompt.PromptFactory;
 import org.ohmage.prompt.SurveyElement;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -68,38 +65,47 @@ public class PromptXmlParser {
 
     private static final String INSTRUCTIONS = "instructions";
 
+	/**
+	 * Builds the elements of a survey. The campaign is parsed once and kept in
+	 * the {@link SurveyCache} so this is cheap for every survey after the first.
+	 * @param context
+	 * @param campaignUrn
+	 * @param surveyId
+	 * @return the survey elements or null if the survey doesn't exist
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
 	public static List<SurveyElement> parseSurveyElements(Context context, String campaignUrn, String surveyId) throws XmlPullParserException, IOException {
-	    InputStream promptXmlStream = Campaign.loadCampaignXml(context, campaignUrn);
-		if(promptXmlStream == null)
+		CampaignSurveys surveys = SurveyCache.get(context, campaignUrn);
+		if(surveys == null)
 			return null;
+		return surveys.createSurveyElements(campaignUrn, surveyId);
+	}
 
+	/**
+	 * Parses every survey in a campaign in a single pass
+	 * @param campaignXml
+	 * @return the surveys and instructions of the campaign
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	static CampaignSurveys parseCampaign(InputStream campaignXml) throws XmlPullParserException, IOException {
 		XmlPullParser parser = Xml.newPullParser();
-		parser.setInput(new BufferedReader(new InputStreamReader(promptXmlStream, "UTF-8")));
+		parser.setInput(new BufferedReader(new InputStreamReader(campaignXml, "UTF-8")));
 		
-		List<SurveyElement> surveyElements = null;
+		CampaignSurveys surveys = new CampaignSurveys();
+		List<ElementSpec> surveyElements = null;
 		boolean promptInProgress = false;
 		boolean messageInProgress = false;
 		boolean surveyInProgress = false;
 		boolean surveyFound = false;
 		
-		String id = null;
-		String displayLabel = null;
-		String unit = null;
-		String promptText = null;
-		String explanationText = null;
-		String promptType = null;
-		String defaultValue = null;
-		String condition = null;
-		String skippable = null;
-		String skipLabel = null;
-		//ArrayList<String[]> properties = null;
-		ArrayList<KVLTriplet> properties = null;
+		PromptSpec prompt = null;
 		String key = null;
 		String value = null;
 		String label = null;
 		
-		String messageText = null;
-		String messageCondition = null;
+		MessageSpec message = null;
 		
 		// TODO deal with optional tags
 		
@@ -114,60 +120,51 @@ public class PromptXmlParser {
 				break;
 			case XmlPullParser.START_TAG:
 				tagName = parser.getName();
-				if (tagName.equalsIgnoreCase(SURVEY)) {
+				if (tagName.equalsIgnoreCase(INSTRUCTIONS)) {
+					if (surveys.mInstructions == null) {
+						parser.next();
+						surveys.mInstructions = parser.getText();
+					}
+				} else if (tagName.equalsIgnoreCase(SURVEY)) {
 					surveyInProgress = true;
 				} else if (surveyInProgress) {
 					if (tagName.equalsIgnoreCase(SURVEY_ID) && !promptInProgress && !messageInProgress) {
-						if (parser.nextText().trim().equals(surveyId)) {
+						String surveyId = parser.nextText().trim();
+						if (!surveyFound && !surveys.mSurveys.containsKey(surveyId)) {
 							surveyFound = true;
-							surveyElements = new ArrayList<SurveyElement>();
+							surveyElements = new ArrayList<ElementSpec>();
+							surveys.mSurveys.put(surveyId, surveyElements);
 						}
 					} else if (surveyFound) {
 						if (tagName.equalsIgnoreCase(PROMPT)) {
 							promptInProgress = true;
-							
-							id  = null;
-							displayLabel = null;
-							unit = null;
-							promptText = null;
-							explanationText = null;
-							promptType = null;
-							defaultValue = null;
-							condition = null;
-							skippable = null;
-							skipLabel = null;
-							properties = null;
+							prompt = new PromptSpec();
 						} else if (tagName.equalsIgnoreCase(MESSAGE)) {
 							messageInProgress = true;
-							
-							messageText = null;
-							messageCondition = null;
-							
+							message = new MessageSpec();
 						} else if (promptInProgress) {
 							if (tagName.equalsIgnoreCase(PROMPT_ID)) {
-								id = parser.nextText().trim();
+								prompt.id = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_DISPLAY_LABEL)) {
-								displayLabel = parser.nextText().trim();
-							} else if (tagName.equalsIgnoreCase(PROMPT_UNIT)) {
-								unit = parser.nextText().trim();
-							} else if (tagName.equalsIgnoreCase(PROMPT_TEXT) && TextUtils.isEmpty(promptText)) {
-								promptText = parser.nextText().trim();
+								prompt.displayLabel = parser.nextText().trim();
+							} else if (tagName.equalsIgnoreCase(PROMPT_TEXT) && TextUtils.isEmpty(prompt.promptText)) {
+								prompt.promptText = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(MARKDOWN_PROMPT_TEXT)) {
-							    promptText = parser.nextText().trim();
+								prompt.promptText = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_EXPLANATION_TEXT)) {
-								explanationText = parser.nextText().trim();
+								prompt.explanationText = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_TYPE)) {
-								promptType = parser.nextText().trim();
+								prompt.type = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_DEFAULT)) {
-								defaultValue = parser.nextText().trim();
+								prompt.defaultValue = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_CONDITION)) {
-								condition = parser.nextText().trim();
+								prompt.condition = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_SKIPPABLE)) {
-								skippable = parser.nextText().trim();
+								prompt.skippable = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_SKIP_LABEL)) {
-								skipLabel = parser.nextText().trim();
+								prompt.skipLabel = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(PROMPT_PROPERTIES)) {
-								properties = new ArrayList<KVLTriplet>();
+								prompt.properties = new ArrayList<KVLTriplet>();
 							} else if (tagName.equalsIgnoreCase(PROMPT_PROPERTY)) {
 								key = null;
 								value = null;
@@ -181,9 +178,9 @@ public class PromptXmlParser {
 							}
 						} else if (messageInProgress) {
 							if (tagName.equalsIgnoreCase(MESSAGE_TEXT)) {
-								messageText = parser.nextText().trim();
+								message.text = parser.nextText().trim();
 							} else if (tagName.equalsIgnoreCase(MESSAGE_CONDITION)) {
-								messageCondition = parser.nextText().trim();
+								message.condition = parser.nextText().trim();
 							}
 						}
 					}
@@ -197,23 +194,14 @@ public class PromptXmlParser {
 					surveyFound = false;
 				} else if (surveyFound) {
 					if (tagName.equalsIgnoreCase(PROMPT)) {
-						try {
-							Prompt prompt = PromptFactory.createPrompt(promptType);
-							PromptBuilder builder = PromptBuilderFactory.createPromptBuilder(promptType);
-							builder.build(prompt, id, displayLabel, promptText, explanationText, defaultValue, condition, skippable, skipLabel, properties);
-							prompt.setCampaignUrn(campaignUrn);
-							surveyElements.add(prompt);
-						} catch (Exception e) {
-							Log.e(TAG, "Error building prompt", e);
-						}
-						
+						surveyElements.add(prompt);
 						promptInProgress = false;
 					} else if (tagName.equalsIgnoreCase(PROMPT_PROPERTY)) {
 						if (promptInProgress) {
-							properties.add(new KVLTriplet(key, value, label));
+							prompt.properties.add(new KVLTriplet(key, value, label));
 						}
 					} else if (tagName.equalsIgnoreCase(MESSAGE)) {
-						surveyElements.add(Message.getInstance(messageText, messageCondition));
+						surveyElements.add(message);
 						messageInProgress = false;
 					}
 				}
@@ -222,7 +210,23 @@ public class PromptXmlParser {
 			eventType = parser.next();
 		}
 		
-		return surveyElements;
+		return surveys;
+	}
+
+	/**
+	 * Returns the instructions of a campaign from the {@link SurveyCache}
+	 * @param context
+	 * @param campaignUrn
+	 * @return the instructions or null if there are none
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	public static String parseCampaignInstructions(Context context, String campaignUrn)
+			throws XmlPullParserException, IOException {
+		CampaignSurveys surveys = SurveyCache.get(context, campaignUrn);
+		if(surveys == null)
+			return null;
+		return surveys.getInstructions();
 	}
 
 	/**
@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohmage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.util.LruCache;
+
+import org.ohmage.Utilities.KVLTriplet;
+import org.ohmage.db.DbContract.Campaigns;
+import org.ohmage.db.Models.Campaign;
+import org.ohmage.logprobe.Log;
+import org.ohmage.prompt.Message;
+import org.ohmage.prompt.Prompt;
+import org.ohmage.prompt.PromptBuilder;
+import org.ohmage.prompt.PromptBuilderFactory;
+import org.ohmage.prompt.PromptFactory;
+import org.ohmage.prompt.SurveyElement;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Caches the parsed surveys of each campaign so the campaign xml only has to
+ * be loaded and parsed once each time it changes. Campaigns are kept in memory
+ * and serialized to the campaign's cache directory. Both copies are stamped
+ * with the {@link Campaigns#CAMPAIGN_UPDATED} time of the campaign they were
+ * parsed from and are ignored once the campaign is updated.
+ * <p>
+ * Survey elements hold the user's responses, so the cache only keeps what was
+ * read from the xml and new elements are built for each caller.
+ * </p>
+ */
+public class SurveyCache {
+
+    private static final String TAG = "SurveyCache";
+
+    private static final String CACHE_FILE = "surveys.cache";
+
+    /**
+     * Changed whenever the serialized format changes
+     */
+    private static final int VERSION = 1;
+
+    private static final int MEMORY_CACHE_SIZE = 8;
+
+    private static final LruCache<String, CampaignSurveys> sCache = new LruCache<String, CampaignSurveys>(
+            MEMORY_CACHE_SIZE);
+
+    /**
+     * Returns the parsed surveys for a campaign, parsing the campaign xml if
+     * there is no up to date copy in the cache.
+     *
+     * @param context
+     * @param campaignUrn
+     * @return the surveys, or null if the campaign doesn't exist
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    public static CampaignSurveys get(Context context, String campaignUrn)
+            throws XmlPullParserException, IOException {
+        // Read the stamp before the xml so a concurrent update can only make
+        // the cached copy look older than it is
+        long updated = getCampaignUpdated(context, campaignUrn);
+        if (updated == -1)
+            return null;
+
+        CampaignSurveys surveys = sCache.get(campaignUrn);
+        if (surveys != null && surveys.mUpdated == updated)
+            return surveys;
+
+        File cacheFile = new File(Campaign.getCacheDirFor(context, campaignUrn), CACHE_FILE);
+        surveys = read(cacheFile, updated);
+        if (surveys == null) {
+            InputStream xml = Campaign.loadCampaignXml(context, campaignUrn);
+            if (xml == null)
+                return null;
+
+            surveys = PromptXmlParser.parseCampaign(xml);
+            surveys.mUpdated = updated;
+            write(cacheFile, surveys);
+        }
+
+        sCache.put(campaignUrn, surveys);
+        return surveys;
+    }
+
+    /**
+     * Removes a campaign from the memory cache. The copy on disk is removed
+     * with the rest of the campaign cache directory.
+     *
+     * @param campaignUrn
+     */
+    public static void invalidate(String campaignUrn) {
+        sCache.remove(campaignUrn);
+    }
+
+    private static long getCampaignUpdated(Context context, String campaignUrn) {
+        Cursor c = context.getContentResolver().query(Campaigns.buildCampaignUri(campaignUrn),
+                new String[] {
+                    Campaigns.CAMPAIGN_UPDATED
+                }, null, null, null);
+        try {
+            if (c.moveToFirst() && c.getCount() == 1)
+                return c.getLong(0);
+            return -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static CampaignSurveys read(File file, long updated) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION || in.readLong() != updated)
+                return null;
+
+            CampaignSurveys surveys = new CampaignSurveys();
+            surveys.mUpdated = updated;
+            surveys.mInstructions = readString(in);
+            for (int i = in.readInt(); i > 0; i--) {
+                String surveyId = readString(in);
+                int count = in.readInt();
+                ArrayList<ElementSpec> elements = new ArrayList<ElementSpec>(count);
+                for (int j = 0; j < count; j++) {
+                    elements.add(ElementSpec.read(in));
+                }
+                surveys.mSurveys.put(surveyId, elements);
+            }
+            return surveys;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading cached surveys", e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void write(File file, CampaignSurveys surveys) {
+        // Write to a temporary file so readers never see a partial cache
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            tmp = File.createTempFile(CACHE_FILE, null, file.getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeLong(surveys.mUpdated);
+            writeString(out, surveys.mInstructions);
+            out.writeInt(surveys.mSurveys.size());
+            for (String surveyId : surveys.mSurveys.keySet()) {
+                List<ElementSpec> elements = surveys.mSurveys.get(surveyId);
+                writeString(out, surveyId);
+                out.writeInt(elements.size());
+                for (ElementSpec element : elements) {
+                    element.write(out);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+                tmp.delete();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing cached surveys", e);
+            if (tmp != null)
+                tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF is limited to 64k which long prompt text could exceed
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * The surveys of a campaign as they were read from the xml
+     */
+    public static class CampaignSurveys {
+        long mUpdated;
+        String mInstructions;
+        final LinkedHashMap<String, List<ElementSpec>> mSurveys = new LinkedHashMap<String, List<ElementSpec>>();
+
+        /**
+         * @return the ids of the surveys in the order they are in the xml
+         */
+        public Set<String> getSurveyIds() {
+            return mSurveys.keySet();
+        }
+
+        public String getInstructions() {
+            return mInstructions;
+        }
+
+        /**
+         * Builds new survey elements for a survey
+         *
+         * @param campaignUrn
+         * @param surveyId
+         * @return the elements or null if the survey doesn't exist
+         */
+        public List<SurveyElement> createSurveyElements(String campaignUrn, String surveyId) {
+            List<ElementSpec> specs = mSurveys.get(surveyId);
+            if (specs == null)
+                return null;
+
+            List<SurveyElement> surveyElements = new ArrayList<SurveyElement>(specs.size());
+            for (ElementSpec spec : specs) {
+                SurveyElement element = spec.create(campaignUrn);
+                if (element != null)
+                    surveyElements.add(element);
+            }
+            return surveyElements;
+        }
+    }
+
+    /**
+     * The values read from the xml for a prompt or message
+     */
+    static abstract class ElementSpec {
+        private static final byte PROMPT = 0;
+        private static final byte MESSAGE = 1;
+
+        abstract SurveyElement create(String campaignUrn);
+
+        abstract void write(DataOutputStream out) throws IOException;
+
+        static ElementSpec read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == PROMPT) {
+                PromptSpec p = new PromptSpec();
+                p.type = readString(in);
+                p.id = readString(in);
+                p.displayLabel = readString(in);
+                p.promptText = readString(in);
+                p.explanationText = readString(in);
+                p.defaultValue = readString(in);
+                p.condition = readString(in);
+                p.skippable = readString(in);
+                p.skipLabel = readString(in);
+                int count = in.readInt();
+                if (count >= 0) {
+                    p.properties = new ArrayList<KVLTriplet>(count);
+                    for (int i = 0; i < count; i++) {
+                        p.properties.add(new KVLTriplet(readString(in), readString(in),
+                                readString(in)));
+                    }
+                }
+                return p;
+            } else if (type == MESSAGE) {
+                MessageSpec m = new MessageSpec();
+                m.text = readString(in);
+                m.condition = readString(in);
+                return m;
+            }
+            throw new IOException("Unknown survey element type " + type);
+        }
+    }
+
+    static class PromptSpec extends ElementSpec {
+        String type;
+        String id;
+        String displayLabel;
+        String promptText;
+        String explanationText;
+        String defaultValue;
+        String condition;
+        String skippable;
+        String skipLabel;
+        ArrayList<KVLTriplet> properties;
+
+        @Override
+        SurveyElement create(String campaignUrn) {
+            // Prompts may keep the properties, so each one gets its own copy
+            ArrayList<KVLTriplet> props = null;
+            if (properties != null) {
+                props = new ArrayList<KVLTriplet>(properties.size());
+                for (KVLTriplet p : properties) {
+                    props.add(new KVLTriplet(p.key, p.value, p.label));
+                }
+            }
+
+            try {
+                Prompt prompt = PromptFactory.createPrompt(type);
+                PromptBuilder builder = PromptBuilderFactory.createPromptBuilder(type);
+                builder.build(prompt, id, displayLabel, promptText, explanationText, defaultValue,
+                        condition, skippable, skipLabel, props);
+                prompt.setCampaignUrn(campaignUrn);
+                return prompt;
+            } catch (Exception e) {
+                Log.e(TAG, "Error building prompt", e);
+                return null;
+            }
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(ElementSpec.PROMPT);
+            writeString(out, type);
+            writeString(out, id);
+            writeString(out, displayLabel);
+            writeString(out, promptText);
+            writeString(out, explanationText);
+            writeString(out, defaultValue);
+            writeString(out, condition);
+            writeString(out, skippable);
+            writeString(out, skipLabel);
+            if (properties == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(properties.size());
+                for (KVLTriplet p : properties) {
+                    writeString(out, p.key);
+                    writeString(out, p.value);
+                    writeString(out, p.label);
+                }
+            }
+        }
+    }
+
+    static class MessageSpec extends ElementSpec {
+        String text;
+        String condition;
+
+        @Override
+        SurveyElement create(String campaignUrn) {
+            return Message.getInstance(text, condition);
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(ElementSpec.MESSAGE);
+            writeString(out, text);
+            writeString(out, condition);
+        }
+    }
+}
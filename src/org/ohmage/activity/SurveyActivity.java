@@ -87,7 +87,9 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
 
@@ -110,6 +112,11 @@ public class SurveyActivity extends SherlockFragmentActivity implements Location
     private List<SurveyElement> mSurveyElements;
     // private List<PromptResponse> mResponses;
     private int mCurrentPosition;
+
+    // Responses to the prompts before mPreviousResponsesEnd keyed by prompt id
+    private final HashMap<String, DataPoint> mPreviousResponses = new HashMap<String, DataPoint>();
+    private int mPreviousResponsesEnd = 0;
+
     private String mCampaignUrn;
     private String mSurveyId;
     private String mSurveyTitle;
@@ -180,8 +187,7 @@ public class SurveyActivity extends SherlockFragmentActivity implements Location
                 mInstructions = null;
 
                 try {
-                    mInstructions = PromptXmlParser.parseCampaignInstructions(Campaign
-                            .loadCampaignXml(this, mCampaignUrn));
+                    mInstructions = PromptXmlParser.parseCampaignInstructions(this, mCampaignUrn);
                 } catch (XmlPullParserException e) {
                     Log.e(TAG, "Error parsing campaign instructions from xml", e);
                 } catch (IOException e) {
@@ -668,77 +674,98 @@ public class SurveyActivity extends SherlockFragmentActivity implements Location
      * PromptResponse(id, value)); }
      */
 
-    private List<DataPoint> getPreviousResponses() {
-        ArrayList<DataPoint> previousResponses = new ArrayList<DataPoint>();
-        for (int i = 0; i < mCurrentPosition; i++) {
-            if (mSurveyElements.get(i) instanceof Prompt) {
-                Prompt prompt = ((Prompt) mSurveyElements.get(i));
+    /**
+     * Returns the responses to all the prompts before the current position.
+     * Prompts can only be changed while they are at the current position, so
+     * the map is updated incrementally as the position moves instead of being
+     * rebuilt for every condition.
+     * 
+     * @return the responses keyed by prompt id
+     */
+    private Map<String, DataPoint> getPreviousResponses() {
+        // Drop the prompts we moved back over since they may be changed
+        while (mPreviousResponsesEnd > mCurrentPosition) {
+            mPreviousResponsesEnd--;
+            if (mSurveyElements.get(mPreviousResponsesEnd) instanceof Prompt) {
+                mPreviousResponses.remove(((Prompt) mSurveyElements.get(mPreviousResponsesEnd))
+                        .getPromptId());
+            }
+        }
 
-                DataPoint dataPoint = new DataPoint(prompt.getPromptId());
+        // Add the prompts we moved forward over
+        for (; mPreviousResponsesEnd < mCurrentPosition; mPreviousResponsesEnd++) {
+            if (mSurveyElements.get(mPreviousResponsesEnd) instanceof Prompt) {
+                DataPoint dataPoint = createDataPoint((Prompt) mSurveyElements
+                        .get(mPreviousResponsesEnd));
+                mPreviousResponses.put(dataPoint.getId(), dataPoint);
+            }
+        }
+        return mPreviousResponses;
+    }
 
-                dataPoint.setPromptType(prompt);
+    private static DataPoint createDataPoint(Prompt prompt) {
+        DataPoint dataPoint = new DataPoint(prompt.getPromptId());
 
-                if (prompt.isSkipped()) {
-                    dataPoint.setSkipped();
-                } else if (!prompt.isDisplayed()) {
-                    dataPoint.setNotDisplayed();
-                } else {
-                    if (PromptType.single_choice.equals(dataPoint.getPromptType())) {
-                        dataPoint.setValue(prompt.getResponseObject());
-                    } else if (PromptType.single_choice_custom.equals(dataPoint.getPromptType())) {
-                        dataPoint.setValue(prompt.getResponseObject());
-
-                        // The condition evaluator needs to know the index of
-                        // hardcoded options
-                        if (prompt instanceof SingleChoiceCustomPrompt) {
-                            int idx = ((SingleChoiceCustomPrompt) prompt).getSelectedIndex();
-                            if (idx != -1)
-                                dataPoint.setIndex(idx);
-                        }
-                    } else if (PromptType.multi_choice.equals(dataPoint.getPromptType())) {
-                        JSONArray jsonArray;
-                        ArrayList<Integer> dataPointValue = new ArrayList<Integer>();
-                        try {
-                            jsonArray = (JSONArray) prompt.getResponseObject();
-                            for (int j = 0; j < jsonArray.length(); j++) {
-                                dataPointValue.add((Integer) jsonArray.get(j));
-                            }
-                        } catch (JSONException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
-                        dataPoint.setValue(dataPointValue);
-                    } else if (PromptType.multi_choice_custom.equals(dataPoint.getPromptType())) {
-                        JSONArray jsonArray;
-                        ArrayList<String> dataPointValue = new ArrayList<String>();
-                        try {
-                            jsonArray = (JSONArray) prompt.getResponseObject();
-                            for (int j = 0; j < jsonArray.length(); j++) {
-                                dataPointValue.add((String) jsonArray.get(j));
-                            }
-                        } catch (JSONException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
-                        dataPoint.setValue(dataPointValue);
+        dataPoint.setPromptType(prompt);
 
-                        // The condition evaluator needs to know the index of
-                        // hardcoded options
-                        if (prompt instanceof MultiChoiceCustomPrompt) {
-                            dataPoint.setIndexes(((MultiChoiceCustomPrompt) prompt)
-                                    .getSelectedIndexes());
-                        }
-                    } else if (PromptType.number.equals(dataPoint.getPromptType())) {
-                        dataPoint.setValue(prompt.getResponseObject());
-                    } else if (PromptType.hours_before_now.equals(dataPoint.getPromptType())) {
-                        dataPoint.setValue(prompt.getResponseObject());
+        if (prompt.isSkipped()) {
+            dataPoint.setSkipped();
+        } else if (!prompt.isDisplayed()) {
+            dataPoint.setNotDisplayed();
+        } else {
+            if (PromptType.single_choice.equals(dataPoint.getPromptType())) {
+                dataPoint.setValue(prompt.getResponseObject());
+            } else if (PromptType.single_choice_custom.equals(dataPoint.getPromptType())) {
+                dataPoint.setValue(prompt.getResponseObject());
+
+                // The condition evaluator needs to know the index of
+                // hardcoded options
+                if (prompt instanceof SingleChoiceCustomPrompt) {
+                    int idx = ((SingleChoiceCustomPrompt) prompt).getSelectedIndex();
+                    if (idx != -1)
+                        dataPoint.setIndex(idx);
+                }
+            } else if (PromptType.multi_choice.equals(dataPoint.getPromptType())) {
+                JSONArray jsonArray;
+                ArrayList<Integer> dataPointValue = new ArrayList<Integer>();
+                try {
+                    jsonArray = (JSONArray) prompt.getResponseObject();
+                    for (int j = 0; j < jsonArray.length(); j++) {
+                        dataPointValue.add((Integer) jsonArray.get(j));
+                    }
+                } catch (JSONException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                dataPoint.setValue(dataPointValue);
+            } else if (PromptType.multi_choice_custom.equals(dataPoint.getPromptType())) {
+                JSONArray jsonArray;
+                ArrayList<String> dataPointValue = new ArrayList<String>();
+                try {
+                    jsonArray = (JSONArray) prompt.getResponseObject();
+                    for (int j = 0; j < jsonArray.length(); j++) {
+                        dataPointValue.add((String) jsonArray.get(j));
                     }
+                } catch (JSONException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
                 }
+                dataPoint.setValue(dataPointValue);
 
-                previousResponses.add(dataPoint);
+                // The condition evaluator needs to know the index of
+                // hardcoded options
+                if (prompt instanceof MultiChoiceCustomPrompt) {
+                    dataPoint.setIndexes(((MultiChoiceCustomPrompt) prompt)
+                            .getSelectedIndexes());
+                }
+            } else if (PromptType.number.equals(dataPoint.getPromptType())) {
+                dataPoint.setValue(prompt.getResponseObject());
+            } else if (PromptType.hours_before_now.equals(dataPoint.getPromptType())) {
+                dataPoint.setValue(prompt.getResponseObject());
             }
         }
-        return previousResponses;
+
+        return dataPoint;
     }
 
     private String storeResponse() {
@@ -16,7 +16,8 @@ import com.android.volley.toolbox.ImageLoader.ImageListener;
 
 import org.ohmage.OhmageApplication;
 import org.ohmage.OhmageMarkdown;
-import org.ohmage.PromptXmlParser;
+import org.ohmage.SurveyCache;
+import org.ohmage.SurveyCache.CampaignSurveys;
 import org.ohmage.Utilities;
 import org.ohmage.Utilities.KVLTriplet;
 import org.ohmage.db.DbContract.Campaigns;
@@ -54,10 +55,23 @@ public class CampaignContentDownloadTask extends AsyncTask<Void, Void, ArrayList
                     Surveys.SURVEY_ID
                 }, null, null, null);
         final ArrayList<String> images = new ArrayList<String>();
-        while (surveys.moveToNext()) {
+
+        // Parse the campaign once for all of the surveys
+        CampaignSurveys campaignSurveys = null;
+        try {
+            campaignSurveys = SurveyCache.get(mContext, urn);
+        } catch (XmlPullParserException e) {
+            Log.e(TAG, "Error parsing prompts from xml", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Error parsing prompts from xml", e);
+        }
+
+        while (campaignSurveys != null && surveys.moveToNext()) {
             try {
-                List<SurveyElement> surveyElements = PromptXmlParser.parseSurveyElements(
-                        mContext, urn, surveys.getString(0));
+                List<SurveyElement> surveyElements = campaignSurveys.createSurveyElements(urn,
+                        surveys.getString(0));
+                if (surveyElements == null)
+                    continue;
                 for (SurveyElement elem : surveyElements) {
                     if (elem instanceof Prompt) {
                         ImageGetter imageGetter = new ImageGetter() {
@@ -80,10 +94,6 @@ public class CampaignContentDownloadTask extends AsyncTask<Void, Void, ArrayList
                 }
             } catch (NotFoundException e) {
                 Log.e(TAG, "Error parsing prompts from xml", e);
-            } catch (XmlPullParserException e) {
-                Log.e(TAG, "Error parsing prompts from xml", e);
-            } catch (IOException e) {
-                Log.e(TAG, "Error parsing prompts from xml", e);
             }
         }
         surveys.close();
@@ -13,7 +13,6 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.text.format.DateUtils;
 
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 
@@ -77,8 +76,7 @@ public class Histogram extends BarChart {
 		XYMultipleSeriesDataset dataSet = new XYMultipleSeriesDataset();
 		XYSeries series = new XYSeries("");
 
-		Double[] values = new Double[days];
-		Arrays.fill(values, 0.0);
+		double[] values = new double[days];
 
 		Calendar calendar = Calendar.getInstance();
 		Utilities.clearTime(calendar);
@@ -94,9 +92,11 @@ public class Histogram extends BarChart {
 			}
 		}
 
-		for(int i=0;i<values.length;i++) {
-			series.add(-i, values[i]);
+		double[] x = new double[days];
+		for(int i=0;i<x.length;i++) {
+			x[i] = -i;
 		}
+		series.addAll(x, values);
 
 		dataSet.addSeries(series);
 		return dataSet;
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohmage.conditionevaluator;
+
+import org.andwellness.config.grammar.syntaxtree.NodeSequence;
+import org.andwellness.config.grammar.syntaxtree.conjunction;
+import org.andwellness.config.grammar.syntaxtree.expr;
+import org.andwellness.config.grammar.syntaxtree.sentence;
+import org.andwellness.config.grammar.syntaxtree.sentence_prime;
+import org.andwellness.config.grammar.syntaxtree.start;
+import org.ohmage.conditionevaluator.comparator.DataPointComparatorFactory;
+
+import java.util.Map;
+
+/**
+ * A condition which has already been parsed into a tree of expressions and
+ * conjunctions. The tree is immutable so it can be shared between threads and
+ * evaluated any number of times without touching the parser again.
+ *
+ * Conjunctions are evaluated exactly like {@link ConditionDepthFirst} does: the
+ * grammar is right recursive, so {@code a and b or c} is {@code a and (b or c)},
+ * and the right side is only evaluated when the left side doesn't decide the
+ * result.
+ */
+public abstract class CompiledCondition {
+
+    /**
+     * The condition used for prompts which don't have one
+     */
+    public static final CompiledCondition ALWAYS_TRUE = new CompiledCondition() {
+        @Override
+        public boolean evaluate(Map<String, DataPoint> previousResponses) {
+            return true;
+        }
+    };
+
+    /**
+     * Checks if the condition is true for the given responses. If an id does
+     * not exist in the responses the expression using it is false.
+     *
+     * @param previousResponses the previous responses keyed by prompt id
+     * @return Whether or not the condition is true.
+     */
+    public abstract boolean evaluate(Map<String, DataPoint> previousResponses);
+
+    /**
+     * Builds the tree for a parsed condition
+     *
+     * @param s the syntax tree created by the parser
+     * @return the compiled condition
+     */
+    static CompiledCondition compile(start s) {
+        return compile(s.f0);
+    }
+
+    /**
+     * f0 -> expr() sentence_prime()
+     *       | "(" sentence() ")" sentence_prime()
+     */
+    private static CompiledCondition compile(sentence n) {
+        NodeSequence nodeSequence = (NodeSequence) n.f0.choice;
+        if (n.f0.which == 0) {
+            return compile(compile((expr) nodeSequence.elementAt(0)),
+                    (sentence_prime) nodeSequence.elementAt(1));
+        } else {
+            return compile(compile((sentence) nodeSequence.elementAt(1)),
+                    (sentence_prime) nodeSequence.elementAt(3));
+        }
+    }
+
+    /**
+     * f0 -> ( conjunction() sentence() sentence_prime() )?
+     *
+     * @param left the condition on the left side of the conjunction
+     */
+    private static CompiledCondition compile(CompiledCondition left, sentence_prime n) {
+        // Each sentence_prime conjoins everything before it with its sentence
+        while (n.f0.present()) {
+            NodeSequence nodeSequence = (NodeSequence) n.f0.node;
+            String conjValue = ((conjunction) nodeSequence.elementAt(0)).f0.choice.toString();
+            CompiledCondition right = compile((sentence) nodeSequence.elementAt(1));
+
+            if ("and".equals(conjValue)) {
+                left = new And(left, right);
+            } else if ("or".equals(conjValue)) {
+                left = new Or(left, right);
+            } else {
+                throw new IllegalArgumentException("Conjunction neither and nor or.");
+            }
+
+            n = (sentence_prime) nodeSequence.elementAt(2);
+        }
+        return left;
+    }
+
+    /**
+     * f0 -> id() f1 -> condition() f2 -> value()
+     */
+    private static CompiledCondition compile(expr n) {
+        return new Expression(n.f0.f0.toString(), n.f1.f0.choice.toString(), n.f2.f0.toString());
+    }
+
+    private static class Expression extends CompiledCondition {
+        private final String mId;
+        private final String mCondition;
+        private final String mValue;
+
+        public Expression(String id, String condition, String value) {
+            mId = id;
+            mCondition = condition;
+            mValue = value;
+        }
+
+        @Override
+        public boolean evaluate(Map<String, DataPoint> previousResponses) {
+            DataPoint dataPoint = previousResponses.get(mId);
+
+            // If we can't find the id, assume this expression is false
+            if (dataPoint == null) {
+                return false;
+            }
+
+            return DataPointComparatorFactory.createDataPointComparator(
+                    dataPoint.getPromptType()).compare(dataPoint, mValue, mCondition);
+        }
+
+        @Override
+        public String toString() {
+            return mId + " " + mCondition + " " + mValue;
+        }
+    }
+
+    private static class And extends CompiledCondition {
+        private final CompiledCondition mLeft;
+        private final CompiledCondition mRight;
+
+        public And(CompiledCondition left, CompiledCondition right) {
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        public boolean evaluate(Map<String, DataPoint> previousResponses) {
+            return mLeft.evaluate(previousResponses) && mRight.evaluate(previousResponses);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + mLeft + " and " + mRight + ")";
+        }
+    }
+
+    private static class Or extends CompiledCondition {
+        private final CompiledCondition mLeft;
+        private final CompiledCondition mRight;
+
+        public Or(CompiledCondition left, CompiledCondition right) {
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        public boolean evaluate(Map<String, DataPoint> previousResponses) {
+            return mLeft.evaluate(previousResponses) || mRight.evaluate(previousResponses);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + mLeft + " or " + mRight + ")";
+        }
+    }
+}
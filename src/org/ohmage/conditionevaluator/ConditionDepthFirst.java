@@ -32,6 +32,7 @@ import org.ohmage.conditionevaluator.comparator.DataPointComparatorFactory;
 import org.ohmage.logprobe.Log;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Check to see if the condition outputs to true or false, based on previous responses.
@@ -53,8 +54,8 @@ public class ConditionDepthFirst<R, A> extends GJDepthFirst<R, A> {
 	
 	private static final String TAG = "ConditionDepthFirst";
 	
-    // Holds the List of current ID/value pairs
-    private final List<DataPoint> _currentIdList;
+    // Holds the current ID/value pairs keyed by ID
+    private final Map<String, DataPoint> _currentIds;
     //private static Logger _logger = Logger.getLogger(ConditionDepthFirst.class);
     
     /**
@@ -63,7 +64,16 @@ public class ConditionDepthFirst<R, A> extends GJDepthFirst<R, A> {
      * @param currentIdList The current List of ID/Value pairs
      */
     public ConditionDepthFirst(List<DataPoint> currentIdList) {
-        _currentIdList = currentIdList;
+        this(DataPoint.mapById(currentIdList));
+    }
+
+    /**
+     * Used to set the current ID/value pairs for the visitors to access
+     * 
+     * @param currentIds The current ID/Value pairs keyed by ID
+     */
+    public ConditionDepthFirst(Map<String, DataPoint> currentIds) {
+        _currentIds = currentIds;
     }
     
     /**
@@ -253,12 +263,11 @@ public class ConditionDepthFirst<R, A> extends GJDepthFirst<R, A> {
        String nodeCondition = (String) n.f1.accept(this, argu);
        String nodeValue = (String) n.f2.accept(this, argu);
 
-       // Lookup the nodeID in the List of IDs with responses.
-       DataPoint dataPointForComparison = new DataPoint(nodeId);
-       int nodeIdLocation = _currentIdList.indexOf(dataPointForComparison);
+       // Lookup the nodeID in the IDs with responses.
+       DataPoint dataPoint = _currentIds.get(nodeId);
        
        // If we can't find the nodeId, assume this expression is false
-       if (nodeIdLocation == -1) {
+       if (dataPoint == null) {
            _ret = (R) new Boolean(false);
            
            /*if (ConditionDepthFirst._logger.isDebugEnabled()) {
@@ -268,7 +277,6 @@ public class ConditionDepthFirst<R, A> extends GJDepthFirst<R, A> {
        // If we find the ID, evaluation the expression
        else {
            boolean result;
-           DataPoint dataPoint = _currentIdList.get(nodeIdLocation);
            
            // Grab a DataPointComparator to compare the DataPoint to the value
            DataPointComparator dataPointComparator = 
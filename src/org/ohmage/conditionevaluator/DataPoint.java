@@ -168,4 +168,25 @@ public class DataPoint {
         
         return false;
     }
+
+    @Override
+    public int hashCode() {
+        return id != null ? id.hashCode() : 0;
+    }
+
+    /**
+     * Keys a list of DataPoints by id. If an id is in the list more than once
+     * the first DataPoint wins, just like {@link List#indexOf(Object)}.
+     * 
+     * @param dataPoints
+     * @return the DataPoints keyed by id
+     */
+    public static Map<String, DataPoint> mapById(List<DataPoint> dataPoints) {
+        HashMap<String, DataPoint> map = new HashMap<String, DataPoint>();
+        for (DataPoint dataPoint : dataPoints) {
+            if (!map.containsKey(dataPoint.getId()))
+                map.put(dataPoint.getId(), dataPoint);
+        }
+        return map;
+    }
 }
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package org.ohmage.conditionevaluator;
 
+import android.support.v4.util.LruCache;
+
 import org.andwellness.config.grammar.parser.ConditionParser;
 import org.andwellness.config.grammar.parser.ParseException;
 import org.andwellness.config.grammar.syntaxtree.start;
@@ -22,14 +24,20 @@ import org.ohmage.logprobe.Log;
 
 import java.io.StringReader;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Basic utility class to evaluate a string condition against a list of data points.
  * 
  * Each condition is a number of expressions 'and'ed and 'or'ed together. Each expression is
- * an 'id' conditioned against a 'value'. This class will create a new conditionParser to parse
- * the condition, then use the ConditionDepthFirst visitor class to recursively evaluate the condition
- * and produce an overall response.
+ * an 'id' conditioned against a 'value'. This class will use the conditionParser to parse
+ * the condition into a {@link CompiledCondition} which evaluates the expressions and produces an
+ * overall response.
+ * 
+ * The compiled tree is cached by the text of the condition, so the same condition in another
+ * prompt, survey or campaign is only parsed once, and stale trees can't be used after a campaign
+ * changes. The generated parser keeps its state in static fields, so parsing
+ * is serialized, but evaluating a compiled condition never touches the parser and is thread safe.
  * 
  * @author jhicks
  *
@@ -38,8 +46,14 @@ public class DataPointConditionEvaluator {
 	
 	private static final String TAG = "DataPointConditionEvaluator";
 	
+    private static final int CACHE_SIZE = 256;
+
     private static boolean conditionParserInitialized = false;  // Track whether the condition parse is initialized
     //private static Logger _logger = Logger.getLogger(DataPointConditionEvaluator.class);
+
+    // Compiled conditions keyed by the condition text
+    private static final LruCache<String, CompiledCondition> sCompiled
+            = new LruCache<String, CompiledCondition>(CACHE_SIZE);
     
     /**
      * Checks if the passed condition is true based on the passed list of node responses.  If the id does
@@ -50,41 +64,61 @@ public class DataPointConditionEvaluator {
      * @return Whether or not the condition is true.
      */
     public static boolean evaluateCondition(String condition, List<DataPoint> previousResponses) {
+        return evaluateCondition(condition, DataPoint.mapById(previousResponses));
+    }
+
+    /**
+     * Checks if the passed condition is true based on the passed map of node responses.  If the id does
+     * not exist in the responses, assume the response is NULL.
+     * 
+     * @param condition The condition to check.
+     * @param previousResponses The previous responses keyed by id.
+     * @return Whether or not the condition is true.
+     */
+    public static boolean evaluateCondition(String condition, Map<String, DataPoint> previousResponses) {
+        CompiledCondition compiled = compile(condition);
+        boolean conditionValue = compiled.evaluate(previousResponses);
+        Log.v(TAG, "Condition [" + condition + "] evaluated as " + conditionValue);
+        return conditionValue;
+    }
+
+    /**
+     * Parses the condition into a tree which can be evaluated many times. Compiled conditions are
+     * cached so calling this again for the same condition is cheap.
+     * 
+     * @param condition The condition to compile. Null or blank conditions are always true.
+     * @return The compiled condition.
+     * @throws IllegalArgumentException if the condition doesn't parse
+     */
+    public static CompiledCondition compile(String condition) {
         // Blank conditions are always valid
-        if(! "".equals(condition)) {
-            start s = null;
-            
-            try {
-                // The API is odd, we have to instantiate an object just to use its static methods below,
-                // we do not actually need to keep the object around for any reason
-                if (!conditionParserInitialized) {
-                    new ConditionParser(new StringReader(condition));
-                    conditionParserInitialized = true;
-                }
-                else {
-                    ConditionParser.ReInit(new StringReader(condition));
-                }
-                // Call start statically even though we have to instantiate the object above
-                s = ConditionParser.start();
-                
-                ConditionDepthFirst<Boolean, Boolean> visitor 
-                    = new ConditionDepthFirst<Boolean, Boolean>(previousResponses);
-                // Check the condition against the previous responses
-                Boolean conditionValue = visitor.visit(s, null);
-                
-                /*if (DataPointConditionEvaluator._logger.isDebugEnabled()) {
-                    DataPointConditionEvaluator._logger.debug("Condition [" + condition + "] evaluated as " + conditionValue.toString());
-                }*/
-                Log.v(TAG, "Condition [" + condition + "] evaluated as " + conditionValue.toString());
-                
-                return conditionValue.booleanValue();
-                
-            } catch (ParseException pe) {
+        if (condition == null || "".equals(condition)) {
+            return CompiledCondition.ALWAYS_TRUE;
+        }
 
-                throw new IllegalArgumentException("Condition failed to parse, should have been checked in the XML validator: " + condition);
+        CompiledCondition compiled = sCompiled.get(condition);
+        if (compiled == null) {
+            compiled = CompiledCondition.compile(parse(condition));
+            sCompiled.put(condition, compiled);
+        }
+        return compiled;
+    }
+
+    private static synchronized start parse(String condition) {
+        try {
+            // The API is odd, we have to instantiate an object just to use its static methods below,
+            // we do not actually need to keep the object around for any reason
+            if (!conditionParserInitialized) {
+                new ConditionParser(new StringReader(condition));
+                conditionParserInitialized = true;
+            }
+            else {
+                ConditionParser.ReInit(new StringReader(condition));
             }
+            // Call start statically even though we have to instantiate the object above
+            return ConditionParser.start();
+        } catch (ParseException pe) {
+            throw new IllegalArgumentException("Condition failed to parse, should have been checked in the XML validator: " + condition);
         }
-        
-        return true;
     }
 }
@@ -19,21 +19,15 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.support.v4.widget.CursorAdapter;
 import android.text.TextUtils;
 import android.util.Xml;
 
-import com.google.gson.GsonUtils;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.ohmage.db.DbContract.Campaigns;
 import org.ohmage.db.DbContract.PromptResponses;
@@ -41,7 +35,6 @@ import org.ohmage.db.DbContract.Responses;
 import org.ohmage.db.DbContract.SurveyPrompts;
 import org.ohmage.db.DbContract.Surveys;
 import org.ohmage.db.Models.Campaign;
-import org.ohmage.db.Models.PromptResponse;
 import org.ohmage.db.Models.Response;
 import org.ohmage.db.Models.Survey;
 import org.ohmage.db.Models.SurveyPrompt;
@@ -49,16 +42,14 @@ import org.ohmage.logprobe.Log;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.StringReader;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
-import java.util.Vector;
 
 public class DbHelper extends SQLiteOpenHelper {
 
@@ -116,6 +107,59 @@ public class DbHelper extends SQLiteOpenHelper {
 				PromptResponses.COMPOSITE_ID);
 	}
 
+	private static final String INSERT_SURVEY = "INSERT INTO " + Tables.SURVEYS + " ("
+			+ Surveys.SURVEY_ID + ", " + Surveys.CAMPAIGN_URN + ", "
+			+ Surveys.SURVEY_TITLE + ", " + Surveys.SURVEY_DESCRIPTION + ", "
+			+ Surveys.SURVEY_SUBMIT_TEXT + ", " + Surveys.SURVEY_INTRO_TEXT + ", "
+			+ Surveys.SURVEY_ANYTIME + ", " + Surveys.SURVEY_STATUS
+			+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private static final String INSERT_SURVEY_PROMPT = "INSERT INTO " + Tables.SURVEY_PROMPTS + " ("
+			+ SurveyPrompts.SURVEY_PID + ", " + SurveyPrompts.SURVEY_ID + ", "
+			+ SurveyPrompts.COMPOSITE_ID + ", " + SurveyPrompts.PROMPT_ID + ", "
+			+ SurveyPrompts.SURVEY_PROMPT_TEXT + ", " + SurveyPrompts.SURVEY_PROMPT_TYPE + ", "
+			+ SurveyPrompts.SURVEY_PROMPT_PROPERTIES
+			+ ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	// the campaign xml tags populateSurveysFromCampaignXML cares about
+	private static final int TAG_OTHER = 0;
+	private static final int TAG_SURVEY = 1;
+	private static final int TAG_PROMPT = 2;
+	private static final int TAG_PROPERTY = 3;
+	private static final int TAG_ID = 4;
+	private static final int TAG_TITLE = 5;
+	private static final int TAG_DESCRIPTION = 6;
+	private static final int TAG_SUBMIT_TEXT = 7;
+	private static final int TAG_INTRO_TEXT = 8;
+	private static final int TAG_ANYTIME = 9;
+	private static final int TAG_PROMPT_TEXT = 10;
+	private static final int TAG_PROMPT_TYPE = 11;
+	private static final int TAG_KEY = 12;
+	private static final int TAG_LABEL = 13;
+	private static final int TAG_VALUE = 14;
+
+	// tags are matched ignoring case, so the names are lower case
+	private static final HashMap<String, Integer> TAG_KINDS = new HashMap<String, Integer>();
+	static {
+		TAG_KINDS.put("survey", TAG_SURVEY);
+		TAG_KINDS.put("prompt", TAG_PROMPT);
+		TAG_KINDS.put("property", TAG_PROPERTY);
+		TAG_KINDS.put("id", TAG_ID);
+		TAG_KINDS.put("title", TAG_TITLE);
+		TAG_KINDS.put("description", TAG_DESCRIPTION);
+		TAG_KINDS.put("submittext", TAG_SUBMIT_TEXT);
+		TAG_KINDS.put("introtext", TAG_INTRO_TEXT);
+		TAG_KINDS.put("anytime", TAG_ANYTIME);
+		TAG_KINDS.put("prompttext", TAG_PROMPT_TEXT);
+		TAG_KINDS.put("prompttype", TAG_PROMPT_TYPE);
+		TAG_KINDS.put("key", TAG_KEY);
+		TAG_KINDS.put("label", TAG_LABEL);
+		TAG_KINDS.put("value", TAG_VALUE);
+	}
+
+	// json keys of the key, label and value of a prompt property
+	private static final String[] PROPERTY_KEYS = { "key", "label", "value" };
+
 	public DbHelper(Context context) {
 		super(context, DB_NAME, null, DB_VERSION);
 		mContext = context;
@@ -303,6 +347,18 @@ public class DbHelper extends SQLiteOpenHelper {
 	 * @return the ID of the inserted record, or -1 if unsuccessful
 	 */
 	public long addResponseRow(SQLiteDatabase db, ContentValues values) {
+		return addResponseRow(db, values, null);
+	}
+
+	/**
+	 * Adds a response to the feedback database, using the given writer to
+	 * insert its prompt responses so a batch of responses can share it.
+	 * 
+	 * @param writer the writer for the batch, or null to use one just for
+	 *            this response
+	 * @return the ID of the inserted record, or -1 if unsuccessful
+	 */
+	public long addResponseRow(SQLiteDatabase db, ContentValues values, PromptResponseWriter writer) {
 		long rowId = -1;
 
 		// extract data that we'll need to parse the json + insert prompt
@@ -336,8 +392,10 @@ public class DbHelper extends SQLiteOpenHelper {
 				if(rowId != -1 && madeTransaction)
 					db.setTransactionSuccessful();
 			} else {
-				if (populatePromptsFromResponseJSON(db, rowId, response,
-						campaignUrn, surveyId)) {
+				boolean populated = (writer != null)
+						? writer.write(rowId, response, campaignUrn, surveyId)
+						: populatePromptsFromResponseJSON(db, rowId, response, campaignUrn, surveyId);
+				if (populated) {
 					// and we're done; finalize the transaction
 					if(madeTransaction) db.setTransactionSuccessful();
 				}
@@ -500,7 +558,15 @@ public class DbHelper extends SQLiteOpenHelper {
 	 * 
 	 */
 	public boolean populateSurveysFromCampaignXML(SQLiteDatabase db, String campaignUrn, String campaignXML) {
+		boolean madeTransaction = !db.inTransaction();
+		SQLiteStatement insertSurvey = null;
+		SQLiteStatement insertPrompt = null;
+
 		try {
+			// all the inserts go in one transaction so sqlite doesn't have to
+			// sync the journal for every row
+			if(madeTransaction) db.beginTransaction();
+
 			// dump all the surveys (and consequently survey prompts) before we
 			// do anything
 			// this is (perhaps surprisingly) desired behavior, as the surveys +
@@ -510,36 +576,34 @@ public class DbHelper extends SQLiteOpenHelper {
 					new String[] { campaignUrn });
 
 			// We don't need to do anything else if there is no xml
-			if(TextUtils.isEmpty(campaignXML))
+			if(TextUtils.isEmpty(campaignXML)) {
+				if(madeTransaction) db.setTransactionSuccessful();
 				return true;
+			}
+
+			insertSurvey = db.compileStatement(INSERT_SURVEY);
+			insertPrompt = db.compileStatement(INSERT_SURVEY_PROMPT);
 
 			// do a pass over the XML to gather surveys and survey prompts
 			XmlPullParser xpp = Xml.newPullParser();
-			xpp.setInput(
-					new ByteArrayInputStream(campaignXML.getBytes("UTF-8")),
-					"UTF-8");
+			xpp.setInput(new StringReader(campaignXML));
 			int eventType = xpp.getEventType();
-			String tagName;
 
-			// various stacks to maintain state while walking through the xml
-			// tree
-			Stack<String> tagStack = new Stack<String>();
+			// the kind of each open tag, so we know where text belongs without
+			// comparing tag names
+			int[] tagStack = new int[16];
+			int depth = 0;
+			// tag names we have already seen, mapped to their kind
+			HashMap<String, Integer> tagKinds = new HashMap<String, Integer>();
+
 			Survey curSurvey = null; // valid only within a survey, null
 										// otherwise
-			Vector<SurveyPrompt> prompts = new Vector<SurveyPrompt>(); // valid
-																		// only
-																		// within
-																		// a
-																		// survey,
-																		// empty
-																		// otherwise
-			Vector<JSONObject> properties = new Vector<JSONObject>(); // valid
-																		// only
-																		// within
-																		// a
-																		// prompt,
-																		// empty
-																		// otherwise
+			// valid only within a survey, empty otherwise
+			ArrayList<SurveyPrompt> prompts = new ArrayList<SurveyPrompt>();
+			// the json for the properties of the current prompt
+			StringBuilder properties = new StringBuilder();
+			// key, label and value of the current property
+			String[] property = new String[3];
 
 			// iterate through the xml, paying attention only to surveys and
 			// prompts
@@ -547,10 +611,15 @@ public class DbHelper extends SQLiteOpenHelper {
 			// from crashing catastrophically
 			while (eventType != XmlPullParser.END_DOCUMENT) {
 				if (eventType == XmlPullParser.START_TAG) {
-					tagName = xpp.getName();
-					tagStack.push(tagName);
+					int kind = tagKind(tagKinds, xpp.getName());
+					if (depth == tagStack.length) {
+						int[] grown = new int[depth * 2];
+						System.arraycopy(tagStack, 0, grown, 0, depth);
+						tagStack = grown;
+					}
+					tagStack[depth++] = kind;
 
-					if (tagName.equalsIgnoreCase("survey")) {
+					if (kind == TAG_SURVEY) {
 						if (curSurvey != null)
 							throw new XmlPullParserException(
 									"encountered a survey tag inside another survey tag");
@@ -558,79 +627,68 @@ public class DbHelper extends SQLiteOpenHelper {
 						curSurvey = new Survey();
 						curSurvey.mCampaignUrn = campaignUrn;
 					}
-					else if (tagName.equalsIgnoreCase("prompt")) {
-						SurveyPrompt sp = new SurveyPrompt();
+					else if (kind == TAG_PROMPT) {
 						// FIXME: add the campaign + survey ID to make lookups
 						// easier?
-						prompts.add(sp);
+						prompts.add(new SurveyPrompt());
 					}
-					else if (tagName.equalsIgnoreCase("property")) {
-						properties.add(new JSONObject());
+					else if (kind == TAG_PROPERTY) {
+						property[0] = property[1] = property[2] = null;
 					}
 				}
 				else if (eventType == XmlPullParser.TEXT) {
-					if (tagStack.size() >= 2) {
+					if (depth >= 2) {
+						int tag = tagStack[depth - 1];
+
 						// we may be in an entity>property situation, so check
 						// and assign accordingly
-						if (tagStack.get(tagStack.size() - 2).equalsIgnoreCase(
-								"survey")) {
-							// populating the current survey object with its
-							// properties here
-							if (tagStack.peek().equalsIgnoreCase("id"))
-								curSurvey.mSurveyID = xpp.getText();
-							else if (tagStack.peek().equalsIgnoreCase("title"))
-								curSurvey.mTitle = xpp.getText();
-							else if (tagStack.peek().equalsIgnoreCase(
-									"description"))
-								curSurvey.mDescription = xpp.getText();
-							else if (tagStack.peek().equalsIgnoreCase(
-									"submitText"))
-								curSurvey.mSubmitText = xpp.getText();
-							else if (tagStack.peek().equalsIgnoreCase(
-									"introText"))
-								curSurvey.mIntroText = xpp.getText();
-							else if (tagStack.peek()
-									.equalsIgnoreCase("anytime"))
-								curSurvey.mAnytime = xpp.getText().equals(
-										"true") ? true : false;
-						}
-						else if (tagStack.get(tagStack.size() - 2)
-								.equalsIgnoreCase("prompt")) {
-							SurveyPrompt sp = prompts.lastElement();
-
-							// populating the last encountered survey prompt
-							// with its properties here
-							if (tagStack.peek().equalsIgnoreCase("id"))
-								sp.mPromptID = xpp.getText();
-							else if (tagStack.peek().equalsIgnoreCase(
-									"promptText"))
-								sp.mPromptText = xpp.getText();
-							else if (tagStack.peek().equalsIgnoreCase(
-									"promptType"))
-								sp.mPromptType = xpp.getText();
-						}
-						else if (tagStack.get(tagStack.size() - 2)
-								.equalsIgnoreCase("property")) {
-							JSONObject curProperty = properties.lastElement();
-
-							// populating the last encountered property
-							if (tagStack.peek().equalsIgnoreCase("key"))
-								curProperty.put("key", xpp.getText());
-							else if (tagStack.peek().equalsIgnoreCase("label"))
-								curProperty.put("label", xpp.getText());
-							else if (tagStack.peek().equalsIgnoreCase("value"))
-								curProperty.put("value", xpp.getText());
+						switch (tagStack[depth - 2]) {
+							case TAG_SURVEY:
+								// populating the current survey object with its
+								// properties here
+								if (tag == TAG_ID)
+									curSurvey.mSurveyID = xpp.getText();
+								else if (tag == TAG_TITLE)
+									curSurvey.mTitle = xpp.getText();
+								else if (tag == TAG_DESCRIPTION)
+									curSurvey.mDescription = xpp.getText();
+								else if (tag == TAG_SUBMIT_TEXT)
+									curSurvey.mSubmitText = xpp.getText();
+								else if (tag == TAG_INTRO_TEXT)
+									curSurvey.mIntroText = xpp.getText();
+								else if (tag == TAG_ANYTIME)
+									curSurvey.mAnytime = xpp.getText().equals("true");
+								break;
+							case TAG_PROMPT:
+								SurveyPrompt sp = prompts.get(prompts.size() - 1);
+
+								// populating the last encountered survey prompt
+								// with its properties here
+								if (tag == TAG_ID)
+									sp.mPromptID = xpp.getText();
+								else if (tag == TAG_PROMPT_TEXT)
+									sp.mPromptText = xpp.getText();
+								else if (tag == TAG_PROMPT_TYPE)
+									sp.mPromptType = xpp.getText();
+								break;
+							case TAG_PROPERTY:
+								// populating the last encountered property
+								if (tag == TAG_KEY)
+									property[0] = xpp.getText();
+								else if (tag == TAG_LABEL)
+									property[1] = xpp.getText();
+								else if (tag == TAG_VALUE)
+									property[2] = xpp.getText();
+								break;
 						}
 					}
 				}
 				else if (eventType == XmlPullParser.END_TAG) {
-					tagName = xpp.getName();
-					tagStack.pop();
+					int kind = tagStack[--depth];
 
-					if (tagName.equalsIgnoreCase("survey")) {
+					if (kind == TAG_SURVEY) {
 						// store the current survey to the database
-						long surveyPID = db.insert(Tables.SURVEYS, null,
-								curSurvey.toCV());
+						long surveyPID = insertSurvey(insertSurvey, curSurvey);
 
 						// also store all the prompts we accumulated for it
 						for (SurveyPrompt sp : prompts) {
@@ -638,7 +696,7 @@ public class DbHelper extends SQLiteOpenHelper {
 							sp.mSurveyPID = surveyPID;
 							sp.mCompositeID = curSurvey.mCampaignUrn + ":"
 									+ curSurvey.mSurveyID;
-							db.insert(Tables.SURVEY_PROMPTS, null, sp.toCV());
+							insertSurveyPrompt(insertPrompt, sp);
 						}
 
 						// flush the prompts we've stored up so far
@@ -647,173 +705,127 @@ public class DbHelper extends SQLiteOpenHelper {
 						// and clear us from being in any survey
 						curSurvey = null;
 					}
-					else if (tagName.equalsIgnoreCase("prompt")) {
-						SurveyPrompt sp = prompts.lastElement();
-
-						// update the current prompt with the collected
-						// properties
-						JSONArray propertyArray = new JSONArray();
-
-						for (JSONObject property : properties)
-							propertyArray.put(property);
-
-						// encode it as json and stuff it in the surveyprompt
-						sp.mProperties = propertyArray.toString();
+					else if (kind == TAG_PROMPT) {
+						// encode the collected properties as json and stuff
+						// them in the surveyprompt
+						prompts.get(prompts.size() - 1).mProperties = "[" + properties + "]";
 
 						// and wipe the properties
-						properties.clear();
+						properties.setLength(0);
+					}
+					else if (kind == TAG_PROPERTY) {
+						appendProperty(properties, property);
 					}
 				}
 
 				eventType = xpp.next();
 			}
-		}
-		catch (UnsupportedEncodingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return false;
+
+			if(madeTransaction) db.setTransactionSuccessful();
 		}
 		catch (XmlPullParserException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.e(TAG, "Error parsing campaign xml for " + campaignUrn, e);
+			// keep whatever was read, the caller decides if its own
+			// transaction should be rolled back
+			if(madeTransaction) db.setTransactionSuccessful();
 			return false;
 		}
 		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.e(TAG, "Error reading campaign xml for " + campaignUrn, e);
+			if(madeTransaction) db.setTransactionSuccessful();
 			return false;
 		}
-		catch (JSONException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return false;
+		finally {
+			if (insertSurvey != null)
+				insertSurvey.close();
+			if (insertPrompt != null)
+				insertPrompt.close();
+			if(madeTransaction) db.endTransaction();
 		}
 
 		return true;
 	}
 
-	public boolean populatePromptsFromResponseJSON(SQLiteDatabase db, long responseRowID, String response, String campaignUrn, String surveyId) {
-		try {
-			// create a list of metadata for this survey from the surveyprompts table
-			// this will help in remapping values for single and multichoice prompts, etc.
-			List<SurveyPrompt> promptsList = SurveyPrompt.fromCursor(
-						db.query(Tables.SURVEY_PROMPTS, null, SurveyPrompts.COMPOSITE_ID + "='" + campaignUrn + ":" + surveyId + "'", null, null, null, null)
-					);
-
-			JsonParser parser = new JsonParser();
-			JsonArray responseData = parser.parse(response).getAsJsonArray();
-
-			HashMap<String, JsonObject> promptsMap = new HashMap<String, JsonObject>();
-			
-			for (int i = 0; i < responseData.size(); ++i) {
-	             // nab the jsonobject, which contains "prompt_id" and "value"
-			    JsonObject item = responseData.get(i).getAsJsonObject();
-
-				// if the entry we're looking at doesn't include prompt_id or value, continue
-				if (!item.has("prompt_id") || !item.has("value"))
-					continue;
-				
-				promptsMap.put(item.get("prompt_id").getAsString(), item);
-			}
-
-			for (SurveyPrompt promptData : promptsList) {
-
-				// nab the jsonobject, which contains "prompt_id" and "value"
-				JsonObject item = promptsMap.get(promptData.mPromptID);
-
-				// construct a new PromptResponse object to populate
-				PromptResponse p = new PromptResponse();
-
-				p.mCompositeID = campaignUrn + ":" + surveyId;
-				p.mResponseID = responseRowID;
-				p.mPromptID = item.get("prompt_id").getAsString();
-
-				if (item.has("custom_choices")) {
-					// build a hashmap of ID->label so we can do the remapping
-					JsonArray choicesArray = item.get("custom_choices").getAsJsonArray();
-					HashMap<String,JsonElement> glossary = new HashMap<String, JsonElement>();
-
-					for (int iv = 0; iv < choicesArray.size(); ++iv) {
-						JsonObject choiceObject = choicesArray.get(iv).getAsJsonObject();
-						glossary.put(choiceObject.get("choice_id").getAsString(), choiceObject.get("choice_value"));
-					}
+	private static int tagKind(HashMap<String, Integer> tagKinds, String name) {
+		Integer kind = tagKinds.get(name);
+		if (kind == null) {
+			kind = TAG_KINDS.get(name.toLowerCase());
+			if (kind == null)
+				kind = TAG_OTHER;
+			tagKinds.put(name, kind);
+		}
+		return kind;
+	}
 
-					// determine if the value is singular or an array
-					// if it's an array, we need to remap each element
-					try {
-						JsonArray remapper = item.get("value").getAsJsonArray();
+	private static void appendProperty(StringBuilder properties, String[] property) {
+		if (properties.length() > 0)
+			properties.append(',');
+		properties.append('{');
+		boolean first = true;
+		for (int i = 0; i < property.length; i++) {
+			if (property[i] == null)
+				continue;
+			if (!first)
+				properties.append(',');
+			properties.append(JSONObject.quote(PROPERTY_KEYS[i])).append(':')
+					.append(JSONObject.quote(property[i]));
+			first = false;
+		}
+		properties.append('}');
+	}
 
-						for (int ir = 0; ir < remapper.size(); ++ir)
-							remapper.add(glossary.get(remapper.get(ir)));
+	private static long insertSurvey(SQLiteStatement insert, Survey survey) {
+		insert.clearBindings();
+		bindString(insert, 1, survey.mSurveyID);
+		bindString(insert, 2, survey.mCampaignUrn);
+		bindString(insert, 3, survey.mTitle);
+		bindString(insert, 4, survey.mDescription);
+		bindString(insert, 5, survey.mSubmitText);
+		bindString(insert, 6, survey.mIntroText);
+		insert.bindLong(7, survey.mAnytime ? 1 : 0);
+		insert.bindLong(8, survey.mStatus);
+		return executeInsert(insert);
+	}
 
-						p.mValue = remapper.toString();
-					}
-					catch (IllegalStateException e) {
-						// it wasn't a json array, so just remap the single value
-						p.mValue = GsonUtils.getString(glossary.get(item.get("value")));
-					}
-				}
-				else if (promptData.mPromptType.equalsIgnoreCase("single_choice")) {
-					// unload the json properties
-					JsonArray values = parser.parse(promptData.mProperties).getAsJsonArray();
-					// set the explicit value as the default; if we don't find a match, it'll end up as this
-					p.mValue = item.get("value").getAsString();
-
-					// search for a key that matches the given value
-					for (int ir = 0; ir < values.size(); ++ir) {
-						JsonObject entry = values.get(ir).getAsJsonObject();
-						if (entry.get("key").getAsString().equals(p.mValue)) {
-							p.mValue = entry.get("label").getAsString();
-							p.mExtraValue = item.get("value").getAsString();
-							break;
-						}
-					}
-				}
-				else if (promptData.mPromptType.equalsIgnoreCase("multi_choice")) {
-					// same procedure as above, except that we need to remap every value
-
-					try {
-						// unload the json properties
-						JsonArray values = parser.parse(promptData.mProperties).getAsJsonArray();
-						JsonArray newValues = item.get("value").getAsJsonArray();
-						JsonArray newLabels = new JsonArray();
-
-						// for each entry in newValues...
-						for (int io = 0; io < newValues.size(); ++io) {
-							// search for a key that matches the given value
-							for (int ir = 0; ir < values.size(); ++ir) {
-								JsonObject entry = values.get(ir).getAsJsonObject();
-								if (entry.get("key").getAsString().equals(newValues.get(io).getAsString())) {
-									// assign the remapped value to this index
-									newLabels.add(entry.get("label"));
-									break;
-								}
-							}
-						}
+	private static long insertSurveyPrompt(SQLiteStatement insert, SurveyPrompt prompt) {
+		insert.clearBindings();
+		insert.bindLong(1, prompt.mSurveyPID);
+		bindString(insert, 2, prompt.mSurveyID);
+		bindString(insert, 3, prompt.mCompositeID);
+		bindString(insert, 4, prompt.mPromptID);
+		bindString(insert, 5, prompt.mPromptText);
+		bindString(insert, 6, prompt.mPromptType);
+		bindString(insert, 7, prompt.mProperties);
+		return executeInsert(insert);
+	}
 
-						// and reassign mValue here
-						p.mValue = (newLabels.size() > 0) ? newLabels.toString() : newValues.toString();
-						p.mExtraValue = newValues.toString();
-					}
-					catch (IllegalStateException e) {
-						// it wasn't a json array, so just remap the value
-						p.mValue = GsonUtils.getString(item.get("value"));
-					}
-				}
-				else {
-                    p.mValue = GsonUtils.getString(item.get("value"));
-				}
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null)
+			statement.bindNull(index);
+		else
+			statement.bindString(index, value);
+	}
 
-				// and insert this into prompts				
-				db.insert(Tables.PROMPT_RESPONSES, null, p.toCV());
-			}
+	/**
+	 * Like {@link SQLiteDatabase#insert}, a row which can't be inserted is
+	 * logged and skipped instead of failing the whole campaign
+	 */
+	private static long executeInsert(SQLiteStatement insert) {
+		try {
+			return insert.executeInsert();
+		} catch (SQLException e) {
+			Log.e(TAG, "Error inserting survey row", e);
+			return -1;
 		}
-		catch (IllegalStateException e) {
-			Log.e(TAG, "Error parsing response JSON", e);
-			return false;
+	}
+
+	public boolean populatePromptsFromResponseJSON(SQLiteDatabase db, long responseRowID, String response, String campaignUrn, String surveyId) {
+		PromptResponseWriter writer = new PromptResponseWriter(db);
+		try {
+			return writer.write(responseRowID, response, campaignUrn, surveyId);
+		} finally {
+			writer.close();
 		}
-		
-		return true;
 	}
 	
 	/**
@@ -14,6 +14,8 @@ import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.ohmage.db.DbContract.Campaigns;
 import org.ohmage.db.DbContract.PromptResponses;
 import org.ohmage.db.DbContract.Responses;
@@ -22,9 +24,9 @@ import org.ohmage.db.DbContract.Surveys;
 import org.ohmage.db.DbHelper.Subqueries;
 import org.ohmage.db.DbHelper.Tables;
 import org.ohmage.db.Models.Campaign;
-import org.ohmage.db.Models.DbModel;
-import org.ohmage.db.Models.Response;
 import org.ohmage.db.utils.SelectionBuilder;
+import org.ohmage.service.MediaCleanupService;
+import org.ohmage.service.UploadService;
 import org.ohmage.triggers.glue.TriggerFramework;
 
 import java.util.ArrayList;
@@ -102,6 +104,10 @@ public class DbProvider extends ContentProvider {
 
 	private static UriMatcher sUriMatcher = buildUriMatcher();
 	private DbHelper dbHelper;
+
+	// the prompt response writer shared by the responses of the batch
+	// running on this thread, if there is one
+	private final ThreadLocal<PromptResponseWriter> mBatchWriter = new ThreadLocal<PromptResponseWriter>();
 	
 	// enum of the URIs we can match using sUriMatcher
 	private interface MatcherTypes {
@@ -202,7 +208,7 @@ public class DbProvider extends ContentProvider {
 		
 		switch (sUriMatcher.match(uri)) {
 			case MatcherTypes.RESPONSES:
-				insertID = dbHelper.addResponseRow(db, values);
+				insertID = dbHelper.addResponseRow(db, values, mBatchWriter.get());
 				campaignUrn = values.getAsString(Responses.CAMPAIGN_URN);
 				surveyID = values.getAsString(Responses.SURVEY_ID);
 				
@@ -218,6 +224,7 @@ public class DbProvider extends ContentProvider {
 				break;
 			case MatcherTypes.CAMPAIGNS:
 				insertID = dbHelper.addCampaign(db, values);
+				invalidateBatchWriter();
 				campaignUrn = values.getAsString(Campaigns.CAMPAIGN_URN);
 				resultingUri = Campaigns.buildCampaignUri(campaignUrn);
 
@@ -272,6 +279,7 @@ public class DbProvider extends ContentProvider {
 					dbHelper.populateSurveysFromCampaignXML(db, oldCampaigns.getString(0), values.getAsString(Campaigns.CAMPAIGN_CONFIGURATION_XML));
 			}
 			oldCampaigns.close();
+			invalidateBatchWriter();
 		} else if (values.containsKey(Responses.RESPONSE_JSON)
 				&& (sUriMatcher.match(uri) == MatcherTypes.RESPONSE_BY_PID || sUriMatcher
 						.match(uri) == MatcherTypes.RESPONSES)) {
@@ -289,8 +297,12 @@ public class DbProvider extends ContentProvider {
 
 				db.delete(Tables.PROMPT_RESPONSES, PromptResponses.RESPONSE_ID + "=" + id, null);
 
-				dbHelper.populatePromptsFromResponseJSON(db, id,
-						values.getAsString(Responses.RESPONSE_JSON), campaign, survey);
+				PromptResponseWriter writer = mBatchWriter.get();
+				if (writer != null)
+					writer.write(id, values.getAsString(Responses.RESPONSE_JSON), campaign, survey);
+				else
+					dbHelper.populatePromptsFromResponseJSON(db, id,
+							values.getAsString(Responses.RESPONSE_JSON), campaign, survey);
 			} else if (!c.isClosed()) {
 				c.close();
 			}
@@ -345,17 +357,20 @@ public class DbProvider extends ContentProvider {
 		// we should also add on the client's selection
 		builder.where(selection, selectionArgs);
 		
-		// Depending on the type of the thing deleted, we may have to do some clean up
-		ArrayList<Models.DbModel> models = new ArrayList<Models.DbModel>();
+		// Depending on the type of the thing deleted, we may have to do some clean up.
+		// Responses are deleted with the rest of the rows, only their media is kept
+		// around so it can be deleted in the background.
+		List<Campaign> campaigns = null;
+		ArrayList<String> uuids = new ArrayList<String>();
+		ArrayList<String> media = new ArrayList<String>();
 		switch (sUriMatcher.match(uri)) {
 			case MatcherTypes.RESPONSE_BY_PID:
 			case MatcherTypes.RESPONSES:
-				models.addAll(Response.fromCursor(builder.query(db, null, null)));
+				readResponses(builder.query(db, RESPONSE_CLEANUP_PROJECTION, null), uuids, media);
 				break;
 			case MatcherTypes.CAMPAIGN_BY_URN:
 			case MatcherTypes.CAMPAIGNS:
-				List<Campaign> campaigns = Campaign.fromCursor(builder.query(db, null, null));
-				models.addAll(campaigns);
+				campaigns = Campaign.fromCursor(builder.query(db, null, null));
 
 				// Also clean up all the responses for these campaigns
 				SelectionBuilder responseQuery = buildSelection(Responses.CONTENT_URI, true);
@@ -366,7 +381,8 @@ public class DbProvider extends ContentProvider {
 					if (campaign.mStatus != Campaign.STATUS_REMOTE)
 						responseQuery.where(Responses.CAMPAIGN_URN + "=?", SelectionBuilder.OR, campaign.mUrn);
 				}
-				models.addAll(Response.fromCursor(responseQuery.query(db, null, null)));
+				readResponses(responseQuery.query(db, RESPONSE_CLEANUP_PROJECTION, null), uuids, media);
+				invalidateBatchWriter();
 				break;
 		}
 		
@@ -399,14 +415,50 @@ public class DbProvider extends ContentProvider {
 			// we should always notify on our own uri regardless
 			cr.notifyChange(uri, null, false);
 
-			// Clean up the data associated with each of the models we deleted
-			for(DbModel model : models) {
-				model.cleanUp(getContext());
+			// Clean up the data associated with each of the campaigns we deleted
+			if (campaigns != null) {
+				for(Campaign campaign : campaigns) {
+					campaign.cleanUp(getContext());
+				}
 			}
+
+			UploadService.forgetMediaFailures(getContext(), uuids);
+			MediaCleanupService.enqueue(getContext(), media);
 		}
 
 		return count;
 	}
+
+	private static final String[] RESPONSE_CLEANUP_PROJECTION = new String[] {
+		Responses.RESPONSE_MEDIA, Responses.RESPONSE_UUID
+	};
+
+	/**
+	 * Reads the uuid of each response and the uuids of their media into the lists
+	 * @param c a cursor over {@link #RESPONSE_CLEANUP_PROJECTION}, which is closed
+	 * @param uuids
+	 * @param media
+	 */
+	private static void readResponses(Cursor c, List<String> uuids, List<String> media) {
+		try {
+			while (c.moveToNext()) {
+				uuids.add(c.getString(1));
+				String json = c.getString(0);
+				if (TextUtils.isEmpty(json))
+					continue;
+				try {
+					JSONArray array = new JSONArray(json);
+					for (int i = 0; i < array.length(); i++) {
+						media.add(array.getString(i));
+					}
+				} catch (JSONException e) {
+					Log.e(TAG, "Error reading response json to delete unused media", e);
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
 	
 	// ====================================
 	// === bulk insert/update/delete methods that make use of the smaller ones
@@ -423,13 +475,15 @@ public class DbProvider extends ContentProvider {
 		
 		ContentResolver cr = getContext().getContentResolver();
 		
+		PromptResponseWriter writer = new PromptResponseWriter(db);
+
 		try {
 			db.beginTransaction();
 		
 			switch (sUriMatcher.match(uri)) {
 				case MatcherTypes.RESPONSES:
 					for (ContentValues value : values) {
-						if (dbHelper.addResponseRow(db, value) > 0)
+						if (dbHelper.addResponseRow(db, value, writer) > 0)
 							count += 1;
 					}
 					
@@ -463,6 +517,7 @@ public class DbProvider extends ContentProvider {
 		finally {
 			// the transaction must be ended whether or not it was flagged successful
 			db.endTransaction();
+			writer.close();
 		}
 		
 		return count;
@@ -691,6 +746,9 @@ public class DbProvider extends ContentProvider {
 				
 				return builder.table(Tables.PROMPTS_JOIN_RESPONSES_SURVEYS_CAMPAIGNS + ", " + Subqueries.PROMPTS_GET_TYPES + " SQ")
 						.where("SQ." + SurveyPrompts.COMPOSITE_ID + "=" + Tables.PROMPT_RESPONSES + "." + PromptResponses.COMPOSITE_ID)
+						.where("SQ." + SurveyPrompts.PROMPT_ID + "=" + Tables.PROMPT_RESPONSES + "." + PromptResponses.PROMPT_ID)
+						.mapToTable(PromptResponses._ID, Tables.PROMPT_RESPONSES)
+						.mapToTable(PromptResponses.RESPONSE_ID, Tables.PROMPT_RESPONSES)
 						.mapToTable(Responses.CAMPAIGN_URN, Tables.RESPONSES)
 						.mapToTable(Responses.SURVEY_ID, Tables.RESPONSES);
 			}
@@ -716,18 +774,45 @@ public class DbProvider extends ContentProvider {
 	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
 		ContentProviderResult[] results = null;
 		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		// all the responses in the batch share the cached prompts and statement
+		PromptResponseWriter writer = new PromptResponseWriter(db);
+		mBatchWriter.set(writer);
 		db.beginTransaction();
 		try {
-			results  = super.applyBatch(operations);
+			final int numOperations = operations.size();
+			results = new ContentProviderResult[numOperations];
+			for (int i = 0; i < numOperations; i++) {
+				ContentProviderOperation operation = operations.get(i);
+				// let other writers in if the operation says it's a safe place to stop
+				if (i > 0 && operation.isYieldAllowed()) {
+					// the surveys may have changed while we weren't holding the lock
+					if (db.yieldIfContendedSafely())
+						writer.invalidate();
+				}
+				results[i] = operation.apply(this, results, i);
+			}
 			db.setTransactionSuccessful();
 		} catch (OperationApplicationException e) {
 			Log.e(TAG, "Error applying batch: " + e.getMessage());
+			results = null;
 		} finally {
 			db.endTransaction();
+			mBatchWriter.set(null);
+			writer.close();
 		}
 		return results;
 	}
 
+	/**
+	 * Drops the prompts cached for the batch on this thread since the surveys
+	 * may have changed
+	 */
+	private void invalidateBatchWriter() {
+		PromptResponseWriter writer = mBatchWriter.get();
+		if (writer != null)
+			writer.invalidate();
+	}
+
 	/**
 	 * {@link DbContract} fields that are fully qualified with a specific
 	 * parent {@link Tables}. Used when needed to work around SQL ambiguity.
@@ -20,6 +20,7 @@ import org.json.JSONException;
 import org.ohmage.CampaignPreferencesHelper;
 import org.ohmage.OhmageApplication;
 import org.ohmage.OhmageMarkdown;
+import org.ohmage.SurveyCache;
 import org.ohmage.Utilities;
 import org.ohmage.db.DbContract.Campaigns;
 import org.ohmage.db.DbContract.PromptResponses;
@@ -273,6 +274,7 @@ public class Models {
 
             // Remove campaign images
             Utilities.delete(Campaign.getCacheDirFor(context, mUrn));
+            SurveyCache.invalidate(mUrn);
 
             // Clear custom choices
             MultiChoiceCustomDbAdapter customMultiChoices = new MultiChoiceCustomDbAdapter(context);
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.ohmage.db;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.google.gson.GsonUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import org.ohmage.db.DbContract.PromptResponses;
+import org.ohmage.db.DbContract.SurveyPrompts;
+import org.ohmage.db.DbHelper.Tables;
+import org.ohmage.db.Models.SurveyPrompt;
+import org.ohmage.logprobe.Log;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fills in the prompt_responses table from the json of survey responses. A
+ * writer is meant to be used for a whole batch of responses: the prompts of
+ * each survey are read and their choices parsed only the first time a response
+ * for that survey is written, and the insert statement is compiled once.
+ *
+ * The cached prompts are only valid as long as the surveys don't change, so
+ * {@link #invalidate()} has to be called if a campaign is written while the
+ * writer is in use. A writer is not thread safe and has to be closed.
+ */
+public class PromptResponseWriter {
+
+	private static final String TAG = "PromptResponseWriter";
+
+	private static final String INSERT_PROMPT_RESPONSE = "INSERT INTO " + Tables.PROMPT_RESPONSES + " ("
+			+ PromptResponses.RESPONSE_ID + ", " + PromptResponses.COMPOSITE_ID + ", "
+			+ PromptResponses.PROMPT_ID + ", " + PromptResponses.PROMPT_RESPONSE_VALUE + ", "
+			+ PromptResponses.PROMPT_RESPONSE_EXTRA_VALUE
+			+ ") VALUES (?, ?, ?, ?, ?)";
+
+	private static final int TYPE_OTHER = 0;
+	private static final int TYPE_SINGLE_CHOICE = 1;
+	private static final int TYPE_MULTI_CHOICE = 2;
+
+	private final SQLiteDatabase mDb;
+	private final JsonParser mParser = new JsonParser();
+
+	// the prompts of each survey by composite id
+	private final HashMap<String, Prompt[]> mSurveys = new HashMap<String, Prompt[]>();
+	// the response items of the response being written by prompt id
+	private final HashMap<String, JsonObject> mItems = new HashMap<String, JsonObject>();
+
+	private SQLiteStatement mInsert;
+
+	public PromptResponseWriter(SQLiteDatabase db) {
+		mDb = db;
+	}
+
+	/**
+	 * Inserts a row into prompt_responses for each prompt of the survey which
+	 * has a value in the response
+	 *
+	 * @param responseRowID the id of the response row
+	 * @param response the json array of prompt responses
+	 * @param campaignUrn
+	 * @param surveyId
+	 * @return false if the response json couldn't be parsed
+	 */
+	public boolean write(long responseRowID, String response, String campaignUrn, String surveyId) {
+		String compositeId = campaignUrn + ":" + surveyId;
+
+		try {
+			JsonArray responseData = mParser.parse(response).getAsJsonArray();
+
+			mItems.clear();
+			for (int i = 0; i < responseData.size(); ++i) {
+				// nab the jsonobject, which contains "prompt_id" and "value"
+				JsonObject item = responseData.get(i).getAsJsonObject();
+
+				// if the entry we're looking at doesn't include prompt_id or value, continue
+				if (!item.has("prompt_id") || !item.has("value"))
+					continue;
+
+				mItems.put(item.get("prompt_id").getAsString(), item);
+			}
+
+			if (mInsert == null)
+				mInsert = mDb.compileStatement(INSERT_PROMPT_RESPONSE);
+
+			for (Prompt prompt : getPrompts(compositeId)) {
+				JsonObject item = mItems.get(prompt.mId);
+				if (item == null)
+					continue;
+
+				insert(responseRowID, compositeId, prompt, item);
+			}
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Error parsing response JSON", e);
+			return false;
+		} catch (JsonParseException e) {
+			Log.e(TAG, "Error parsing response JSON", e);
+			return false;
+		} finally {
+			mItems.clear();
+		}
+
+		return true;
+	}
+
+	private void insert(long responseRowID, String compositeId, Prompt prompt, JsonObject item) {
+		JsonElement value = item.get("value");
+		String mappedValue;
+		String extraValue = null;
+
+		if (item.has("custom_choices")) {
+			// the custom choices of a response map its ids to labels
+			HashMap<String, String> glossary = new HashMap<String, String>();
+			JsonArray choicesArray = item.get("custom_choices").getAsJsonArray();
+			for (int i = 0; i < choicesArray.size(); ++i) {
+				JsonObject choiceObject = choicesArray.get(i).getAsJsonObject();
+				if (choiceObject.has("choice_id") && choiceObject.has("choice_value"))
+					glossary.put(choiceObject.get("choice_id").getAsString(),
+							GsonUtils.getString(choiceObject.get("choice_value")));
+			}
+
+			if (value.isJsonArray()) {
+				mappedValue = mapLabels(value.getAsJsonArray(), glossary, true).toString();
+			} else {
+				mappedValue = GsonUtils.getString(value);
+				if (glossary.containsKey(mappedValue))
+					mappedValue = glossary.get(mappedValue);
+			}
+		} else if (prompt.mType == TYPE_SINGLE_CHOICE) {
+			// set the explicit value as the default; if we don't find a match, it'll end up as this
+			mappedValue = value.getAsString();
+			if (prompt.mLabels != null && prompt.mLabels.containsKey(mappedValue)) {
+				extraValue = mappedValue;
+				mappedValue = prompt.mLabels.get(mappedValue);
+			}
+		} else if (prompt.mType == TYPE_MULTI_CHOICE && value.isJsonArray()) {
+			JsonArray newLabels = mapLabels(value.getAsJsonArray(), prompt.mLabels, false);
+			mappedValue = (newLabels.size() > 0) ? newLabels.toString() : value.toString();
+			extraValue = value.toString();
+		} else {
+			mappedValue = GsonUtils.getString(value);
+		}
+
+		mInsert.clearBindings();
+		mInsert.bindLong(1, responseRowID);
+		bindString(mInsert, 2, compositeId);
+		bindString(mInsert, 3, prompt.mId);
+		bindString(mInsert, 4, mappedValue);
+		bindString(mInsert, 5, extraValue);
+		try {
+			mInsert.executeInsert();
+		} catch (SQLException e) {
+			Log.e(TAG, "Error inserting prompt response", e);
+		}
+	}
+
+	/**
+	 * Maps each id in the array to its label
+	 *
+	 * @param ids
+	 * @param labels
+	 * @param keepMissing if true ids without a label are kept as they are,
+	 *            otherwise they are left out
+	 * @return the labels
+	 */
+	private static JsonArray mapLabels(JsonArray ids, HashMap<String, String> labels, boolean keepMissing) {
+		JsonArray mapped = new JsonArray();
+		for (int i = 0; i < ids.size(); ++i) {
+			String id = GsonUtils.getString(ids.get(i));
+			if (labels != null && labels.containsKey(id)) {
+				mapped.add(new JsonPrimitive(labels.get(id)));
+			} else if (keepMissing) {
+				mapped.add(ids.get(i));
+			}
+		}
+		return mapped;
+	}
+
+	private Prompt[] getPrompts(String compositeId) {
+		Prompt[] prompts = mSurveys.get(compositeId);
+		if (prompts == null) {
+			// create a list of metadata for this survey from the surveyprompts table
+			// this will help in remapping values for single and multichoice prompts, etc.
+			List<SurveyPrompt> promptsList = SurveyPrompt.fromCursor(mDb.query(Tables.SURVEY_PROMPTS, null,
+					SurveyPrompts.COMPOSITE_ID + "=?", new String[] { compositeId }, null, null, null));
+
+			prompts = new Prompt[promptsList.size()];
+			for (int i = 0; i < prompts.length; i++) {
+				prompts[i] = new Prompt(promptsList.get(i));
+			}
+			mSurveys.put(compositeId, prompts);
+		}
+		return prompts;
+	}
+
+	/**
+	 * Drops the cached prompts. Must be called after surveys are changed.
+	 */
+	public void invalidate() {
+		mSurveys.clear();
+	}
+
+	public void close() {
+		if (mInsert != null) {
+			mInsert.close();
+			mInsert = null;
+		}
+		mSurveys.clear();
+	}
+
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null)
+			statement.bindNull(index);
+		else
+			statement.bindString(index, value);
+	}
+
+	/**
+	 * The parts of a survey prompt needed to write its responses
+	 */
+	private class Prompt {
+		private final String mId;
+		private final int mType;
+		// key to label for the choices of single and multi choice prompts
+		private HashMap<String, String> mLabels;
+
+		public Prompt(SurveyPrompt prompt) {
+			mId = prompt.mPromptID;
+
+			if ("single_choice".equalsIgnoreCase(prompt.mPromptType))
+				mType = TYPE_SINGLE_CHOICE;
+			else if ("multi_choice".equalsIgnoreCase(prompt.mPromptType))
+				mType = TYPE_MULTI_CHOICE;
+			else
+				mType = TYPE_OTHER;
+
+			if (mType != TYPE_OTHER && prompt.mProperties != null) {
+				try {
+					JsonArray values = mParser.parse(prompt.mProperties).getAsJsonArray();
+					mLabels = new HashMap<String, String>(values.size() * 2);
+					for (int i = 0; i < values.size(); ++i) {
+						JsonObject entry = values.get(i).getAsJsonObject();
+						// the first entry with a key wins, like the lookup did before
+						if (entry.has("key") && entry.has("label")
+								&& !mLabels.containsKey(entry.get("key").getAsString()))
+							mLabels.put(entry.get("key").getAsString(), entry.get("label").getAsString());
+					}
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Error parsing properties of " + mId, e);
+					mLabels = null;
+				}
+			}
+		}
+	}
+}
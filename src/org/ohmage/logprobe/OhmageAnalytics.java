@@ -19,6 +19,8 @@ package org.ohmage.logprobe;
 import android.content.Context;
 import android.database.Cursor;
 
+import org.ohmage.OhmageApiStats;
+import org.ohmage.OhmageApiStats.Endpoint;
 import org.ohmage.logprobe.LogProbe.Status;
 import org.ohmage.prompt.Prompt;
 import org.ohmage.triggers.base.TriggerDB;
@@ -62,6 +64,18 @@ public class OhmageAnalytics {
                     prompt.getPromptId(), status);
     }
 
+    /**
+     * Logs the timings of the requests made to each endpoint since the last
+     * time they were logged
+     */
+    public static void apiStats() {
+        if (!LogProbe.logAnalytics)
+            return;
+
+        for (Endpoint endpoint : OhmageApiStats.drain())
+            OhmageAnalyticsProbeWriter.apiStats(endpoint);
+    }
+
     /**
      * Logs trigger service events
      * 
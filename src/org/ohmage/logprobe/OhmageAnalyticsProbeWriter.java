@@ -20,6 +20,7 @@ import android.os.RemoteException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.ohmage.OhmageApiStats.Endpoint;
 import org.ohmage.OhmageApplication;
 import org.ohmage.logprobe.LogProbe.Status;
 import org.ohmage.logprobe.OhmageAnalytics.TriggerStatus;
@@ -34,6 +35,8 @@ import org.ohmage.probemanager.ProbeBuilder;
  */
 public class OhmageAnalyticsProbeWriter {
 
+    private static final String TAG = "OhmageAnalyticsProbeWriter";
+
     private static final String OBSERVER_ID = "org.ohmage.Analytics";
     private static final int OBSERVER_VERSION = 2;
 
@@ -43,6 +46,9 @@ public class OhmageAnalyticsProbeWriter {
     private static final String STREAM_TRIGGER = "trigger";
     private static final int STREAM_TRIGGER_VERSION = 2;
 
+    private static final String STREAM_API_STATS = "api_stats";
+    private static final int STREAM_API_STATS_VERSION = 1;
+
     public static void prompt(String type, String id, Status status) {
         try {
             ProbeBuilder probe = new ProbeBuilder(OBSERVER_ID, OBSERVER_VERSION);
@@ -89,4 +95,22 @@ public class OhmageAnalyticsProbeWriter {
             e.printStackTrace();
         }
     }
+
+    public static void apiStats(Endpoint endpoint) {
+        try {
+            ProbeBuilder probe = new ProbeBuilder(OBSERVER_ID, OBSERVER_VERSION);
+            probe.setStream(STREAM_API_STATS, STREAM_API_STATS_VERSION);
+
+            JSONObject data = endpoint.toJSON();
+            LogProbe.probeWriter.addDeviceId(data);
+            probe.setData(data.toString());
+            probe.withId().now();
+
+            probe.write(LogProbe.probeWriter);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to write api stats", e);
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to write api stats", e);
+        }
+    }
 }
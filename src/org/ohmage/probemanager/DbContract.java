@@ -15,6 +15,12 @@ public class DbContract {
     public static final String CONTENT_AUTHORITY = "org.ohmage.probemanager";
     private static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
+    /**
+     * Query parameter which limits the number of rows returned for probes and
+     * responses
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     public interface BaseProbeColumns {
         /** Upload priority */
         String UPLOAD_PRIORITY = "upload_priority";
@@ -56,6 +62,7 @@ public class DbContract {
     public static final class Probe {
         public String observer_id;
         public String observer_version;
+        public int upload_priority;
 
         public Probe(String id, String version) {
             observer_id = id;
@@ -86,6 +93,31 @@ public class DbContract {
 
     }
 
+    interface AckColumns {
+        /** The last path segment of the uri the acknowledged points belong to */
+        String KIND = "kind";
+        /** Observer id or campaign urn */
+        String NAME = "name";
+        /** Observer version or campaign creation timestamp */
+        String VERSION = "version";
+        /** All points up to and including this id have been uploaded */
+        String ACKED_ID = "acked_id";
+    }
+
+    private static final String PATH_ACKS = "acks";
+
+    /**
+     * Records how far the points for an observer or campaign have been
+     * uploaded. Inserting an ack deletes every point it covers, and since the
+     * ack is written first, points are never uploaded twice even if the
+     * process dies before they are deleted.
+     */
+    public static final class Acks implements BaseProbeColumns, AckColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_ACKS)
+                .build();
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.ohmage.ack";
+    }
+
     interface ProbeCountColumns {
         /** Unique string identifying the observer */
         String OBSERVER_ID = "observer_id";
@@ -16,40 +16,70 @@
 
 package org.ohmage.probemanager;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
+import org.ohmage.library.R;
+import org.ohmage.probemanager.DbContract.Acks;
 import org.ohmage.probemanager.DbContract.Probes;
 import org.ohmage.probemanager.DbContract.Responses;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class DbHelper extends SQLiteOpenHelper {
 
     private static final String DB_NAME = "probes.db";
-    private static final int DB_VERSION = 5;
+    private static final int DB_VERSION = 7;
 
     public interface Tables {
+        /** Packed probe rows, see {@link PackedProbeColumns} */
         static final String Probes = "probes";
+        /** Probes joined with their interned strings */
+        static final String ProbesView = "probes_view";
+        /** Interned observer, stream and user strings */
+        static final String Strings = "probe_strings";
         static final String Responses = "responses";
+        static final String Acks = "acks";
+    }
+
+    /**
+     * Columns of the packed probes table. Observer ids, stream ids and
+     * usernames are stored once in {@link Tables#Strings} and referenced by id.
+     * The metadata and data are stored in a single {@link ProbePayload}.
+     */
+    interface PackedProbeColumns {
+        String OBSERVER_REF = "observer_ref";
+        String STREAM_REF = "stream_ref";
+        String USERNAME_REF = "username_ref";
+        String PROBE_PAYLOAD = "probe_payload";
     }
 
+    interface StringColumns {
+        String VALUE = "value";
+    }
+
+    /**
+     * Ids of strings in {@link Tables#Strings} which have already been looked
+     * up
+     */
+    private final HashMap<String, Long> mStringIds = new HashMap<String, Long>();
+
+    private final boolean mCompress;
+
     public DbHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        mCompress = context.getResources().getBoolean(R.bool.compress_probe_data);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.Probes + " ("
-                + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + Probes.OBSERVER_ID + " TEXT NOT NULL, "
-                + Probes.OBSERVER_VERSION + " INTEGER NOT NULL, "
-                + Probes.STREAM_ID + " TEXT NOT NULL, "
-                + Probes.STREAM_VERSION + " INTEGER NOT NULL, "
-                + Probes.UPLOAD_PRIORITY + " INTEGER DEFAULT 0, "
-                + Probes.USERNAME + " TEXT NOT NULL, "
-                + Probes.PROBE_METADATA + " TEXT, "
-                + Probes.PROBE_DATA + " TEXT);");
+        createProbeTables(db);
 
         db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.Responses + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -58,19 +88,276 @@ public class DbHelper extends SQLiteOpenHelper {
                 + Responses.UPLOAD_PRIORITY + " INTEGER DEFAULT 0, "
                 + Responses.USERNAME + " TEXT NOT NULL, "
                 + Responses.RESPONSE_DATA + " TEXT);");
+
+        createAckTable(db);
+    }
+
+    private void createAckTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.Acks + " ("
+                + Acks.KIND + " TEXT NOT NULL, "
+                + Acks.NAME + " TEXT NOT NULL, "
+                + Acks.VERSION + " TEXT NOT NULL, "
+                + Acks.USERNAME + " TEXT NOT NULL, "
+                + Acks.ACKED_ID + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + Acks.KIND + ", " + Acks.NAME + ", " + Acks.VERSION + ", "
+                + Acks.USERNAME + "));");
+    }
+
+    private void createProbeTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.Strings + " ("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + StringColumns.VALUE + " TEXT NOT NULL UNIQUE);");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.Probes + " ("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PackedProbeColumns.OBSERVER_REF + " INTEGER NOT NULL, "
+                + Probes.OBSERVER_VERSION + " INTEGER NOT NULL, "
+                + PackedProbeColumns.STREAM_REF + " INTEGER NOT NULL, "
+                + Probes.STREAM_VERSION + " INTEGER NOT NULL, "
+                + Probes.UPLOAD_PRIORITY + " INTEGER DEFAULT 0, "
+                + PackedProbeColumns.USERNAME_REF + " INTEGER NOT NULL, "
+                + PackedProbeColumns.PROBE_PAYLOAD + " BLOB);");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Tables.Probes + "_observer_idx ON "
+                + Tables.Probes + " (" + PackedProbeColumns.USERNAME_REF + ", "
+                + PackedProbeColumns.OBSERVER_REF + ", " + Probes.OBSERVER_VERSION + ");");
+
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + Tables.ProbesView + " AS SELECT "
+                + "p." + BaseColumns._ID + " AS " + Probes._ID + ", "
+                + "o." + StringColumns.VALUE + " AS " + Probes.OBSERVER_ID + ", "
+                + "p." + Probes.OBSERVER_VERSION + " AS " + Probes.OBSERVER_VERSION + ", "
+                + "s." + StringColumns.VALUE + " AS " + Probes.STREAM_ID + ", "
+                + "p." + Probes.STREAM_VERSION + " AS " + Probes.STREAM_VERSION + ", "
+                + "p." + Probes.UPLOAD_PRIORITY + " AS " + Probes.UPLOAD_PRIORITY + ", "
+                + "u." + StringColumns.VALUE + " AS " + Probes.USERNAME + ", "
+                + "p." + PackedProbeColumns.PROBE_PAYLOAD + " AS "
+                + PackedProbeColumns.PROBE_PAYLOAD
+                + " FROM " + Tables.Probes + " p"
+                + " JOIN " + Tables.Strings + " o ON o." + BaseColumns._ID + "=p."
+                + PackedProbeColumns.OBSERVER_REF
+                + " JOIN " + Tables.Strings + " s ON s." + BaseColumns._ID + "=p."
+                + PackedProbeColumns.STREAM_REF
+                + " JOIN " + Tables.Strings + " u ON u." + BaseColumns._ID + "=p."
+                + PackedProbeColumns.USERNAME_REF + ";");
+    }
+
+    private void dropProbeTables(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + Tables.ProbesView);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.Probes);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.Strings);
+        synchronized (mStringIds) {
+            mStringIds.clear();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + Tables.Probes);
-        db.execSQL("DROP TABLE IF EXISTS " + Tables.Responses);
-        onCreate(db);
+        if (oldVersion < 5) {
+            dropProbeTables(db);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.Responses);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.Acks);
+            onCreate(db);
+            return;
+        }
+
+        if (oldVersion == 5) {
+            // Keep the points which haven't been uploaded yet
+            db.execSQL("ALTER TABLE " + Tables.Probes + " RENAME TO " + Tables.Probes + "_v5");
+            createProbeTables(db);
+            migrateTextProbes(db, Tables.Probes + "_v5");
+            db.execSQL("DROP TABLE " + Tables.Probes + "_v5");
+        }
+
+        if (oldVersion <= 6)
+            createAckTable(db);
     }
 
     public void clearAll() {
         SQLiteDatabase db = getWritableDatabase();
-        db.execSQL("DROP TABLE IF EXISTS " + Tables.Probes);
+        dropProbeTables(db);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.Responses);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.Acks);
         onCreate(db);
     }
+
+    /**
+     * Records an ack and deletes the points it covers. The ack is committed
+     * before the points are deleted so that a crash in between can't cause
+     * them to be uploaded again.
+     *
+     * @param values the {@link Acks} columns
+     * @return the number of points deleted
+     */
+    public int acknowledge(ContentValues values) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.insertWithOnConflict(Tables.Acks, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+        String kind = values.getAsString(Acks.KIND);
+        String name = values.getAsString(Acks.NAME);
+        String version = values.getAsString(Acks.VERSION);
+        String username = values.getAsString(Acks.USERNAME);
+        long ackedId = values.getAsLong(Acks.ACKED_ID);
+
+        if (Tables.Probes.equals(kind)) {
+            // Delete directly from the packed table so the index can be used
+            long observerRef = findStringId(db, name);
+            long usernameRef = findStringId(db, username);
+            if (observerRef == -1 || usernameRef == -1)
+                return 0;
+            return db.delete(Tables.Probes, PackedProbeColumns.USERNAME_REF + "=? AND "
+                    + PackedProbeColumns.OBSERVER_REF + "=? AND " + Probes.OBSERVER_VERSION
+                    + "=? AND " + BaseColumns._ID + "<=?", new String[] {
+                    String.valueOf(usernameRef), String.valueOf(observerRef), version,
+                    String.valueOf(ackedId)
+            });
+        } else if (Tables.Responses.equals(kind)) {
+            return db.delete(Tables.Responses, Responses.USERNAME + "=? AND "
+                    + Responses.CAMPAIGN_URN + "=? AND " + Responses.CAMPAIGN_CREATED
+                    + "=? AND " + BaseColumns._ID + "<=?", new String[] {
+                    username, name, version, String.valueOf(ackedId)
+            });
+        }
+        throw new IllegalArgumentException("Unknown ack kind: " + kind);
+    }
+
+    /**
+     * Copies probes from a table using the old TEXT schema into the packed
+     * table
+     *
+     * @param db
+     * @param table
+     */
+    private void migrateTextProbes(SQLiteDatabase db, String table) {
+        Cursor c = db.query(table, new String[] {
+                Probes.OBSERVER_ID, Probes.OBSERVER_VERSION, Probes.STREAM_ID,
+                Probes.STREAM_VERSION, Probes.UPLOAD_PRIORITY, Probes.USERNAME,
+                Probes.PROBE_METADATA, Probes.PROBE_DATA
+        }, null, null, null, null, BaseColumns._ID);
+        try {
+            // The ids aren't published since the upgrade may still be rolled
+            // back
+            HashMap<String, Long> added = new HashMap<String, Long>();
+            ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                values.clear();
+                DatabaseUtils.cursorRowToContentValues(c, values);
+                db.insert(Tables.Probes, BaseColumns._ID, packProbe(db, values, added));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Converts the values for a probe given in terms of {@link Probes} columns
+     * to the values stored in the packed table. Strings which are looked up or
+     * added are only remembered in {@code added} since the transaction they
+     * belong to may still be rolled back. Once it has committed they should be
+     * passed to {@link #publishStringIds(Map)}.
+     *
+     * @param db
+     * @param values
+     * @param added the string ids looked up in the current transaction
+     * @return the packed values
+     */
+    public ContentValues packProbe(SQLiteDatabase db, ContentValues values,
+            Map<String, Long> added) {
+        ContentValues packed = new ContentValues();
+        packed.put(PackedProbeColumns.OBSERVER_REF,
+                getStringId(db, values.getAsString(Probes.OBSERVER_ID), added));
+        packed.put(Probes.OBSERVER_VERSION, values.getAsInteger(Probes.OBSERVER_VERSION));
+        packed.put(PackedProbeColumns.STREAM_REF,
+                getStringId(db, values.getAsString(Probes.STREAM_ID), added));
+        packed.put(Probes.STREAM_VERSION, values.getAsInteger(Probes.STREAM_VERSION));
+        if (values.containsKey(Probes.UPLOAD_PRIORITY))
+            packed.put(Probes.UPLOAD_PRIORITY, values.getAsInteger(Probes.UPLOAD_PRIORITY));
+        packed.put(PackedProbeColumns.USERNAME_REF,
+                getStringId(db, values.getAsString(Probes.USERNAME), added));
+        packed.put(PackedProbeColumns.PROBE_PAYLOAD, ProbePayload.encode(
+                values.getAsString(Probes.PROBE_METADATA), values.getAsString(Probes.PROBE_DATA),
+                mCompress));
+        return packed;
+    }
+
+    /**
+     * Caches the string ids found by {@link #packProbe(SQLiteDatabase, ContentValues, Map)}.
+     * Must only be called after the transaction they were found in has
+     * committed.
+     *
+     * @param added
+     */
+    public void publishStringIds(Map<String, Long> added) {
+        synchronized (mStringIds) {
+            mStringIds.putAll(added);
+        }
+    }
+
+    /**
+     * @param db
+     * @param value
+     * @return the id of the string or -1 if it has never been stored
+     */
+    private long findStringId(SQLiteDatabase db, String value) {
+        synchronized (mStringIds) {
+            Long id = mStringIds.get(value);
+            if (id != null)
+                return id;
+        }
+
+        Cursor c = db.query(Tables.Strings, new String[] {
+            BaseColumns._ID
+        }, StringColumns.VALUE + "=?", new String[] {
+            value
+        }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Looks up the id for a string in {@link Tables#Strings}, adding it if it
+     * doesn't exist yet
+     *
+     * @param db
+     * @param value
+     * @param added ids found in the current transaction which haven't been
+     *            published yet
+     * @return the id of the string
+     */
+    private long getStringId(SQLiteDatabase db, String value, Map<String, Long> added) {
+        if (value == null)
+            throw new IllegalArgumentException("observer, stream and username are required");
+
+        Long id = added.get(value);
+        if (id != null)
+            return id;
+
+        synchronized (mStringIds) {
+            id = mStringIds.get(value);
+            if (id != null)
+                return id;
+
+            Cursor c = db.query(Tables.Strings, new String[] {
+                BaseColumns._ID
+            }, StringColumns.VALUE + "=?", new String[] {
+                value
+            }, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    id = c.getLong(0);
+                } else {
+                    ContentValues values = new ContentValues();
+                    values.put(StringColumns.VALUE, value);
+                    id = db.insertOrThrow(Tables.Strings, BaseColumns._ID, values);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        added.put(value, id);
+        return id;
+    }
 }
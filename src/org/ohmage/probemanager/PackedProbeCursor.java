@@ -0,0 +1,245 @@
+
+package org.ohmage.probemanager;
+
+import android.annotation.TargetApi;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Build;
+
+import org.ohmage.probemanager.DbContract.Probes;
+import org.ohmage.probemanager.DbHelper.PackedProbeColumns;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+/**
+ * Presents rows read from {@link DbHelper.Tables#ProbesView} with the
+ * {@link Probes#PROBE_METADATA} and {@link Probes#PROBE_DATA} columns consumers
+ * expect. Both are decoded from the packed payload the first time either is
+ * read for a row.
+ */
+public class PackedProbeCursor extends CursorWrapper {
+
+    private static final int METADATA = -1;
+    private static final int DATA = -2;
+
+    private final String[] mColumnNames;
+
+    /**
+     * Index into the wrapped cursor for each column, or {@link #METADATA} or
+     * {@link #DATA} for the decoded columns
+     */
+    private final int[] mColumnMap;
+
+    private final int mPayloadIndex;
+
+    private int mDecodedPosition = -1;
+    private String[] mDecoded;
+
+    /**
+     * Replaces the decoded columns in a projection with the payload column
+     *
+     * @param projection
+     * @return the projection which should be used to query the packed table
+     */
+    public static String[] mapProjection(String[] projection) {
+        if (projection == null)
+            return null;
+
+        ArrayList<String> ret = new ArrayList<String>(projection.length);
+        boolean payload = false;
+        for (String column : projection) {
+            if (Probes.PROBE_METADATA.equals(column) || Probes.PROBE_DATA.equals(column))
+                payload = true;
+            else
+                ret.add(column);
+        }
+        if (payload)
+            ret.add(PackedProbeColumns.PROBE_PAYLOAD);
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    /**
+     * @param cursor a cursor queried with {@link #mapProjection(String[])}
+     * @param projection the projection originally requested, or null for all
+     *            columns
+     */
+    public PackedProbeCursor(Cursor cursor, String[] projection) {
+        super(cursor);
+        mPayloadIndex = cursor.getColumnIndex(PackedProbeColumns.PROBE_PAYLOAD);
+
+        if (projection == null) {
+            String[] names = cursor.getColumnNames();
+            projection = new String[names.length + (mPayloadIndex != -1 ? 1 : 0)];
+            int j = 0;
+            for (String name : names) {
+                if (PackedProbeColumns.PROBE_PAYLOAD.equals(name)) {
+                    projection[j++] = Probes.PROBE_METADATA;
+                    projection[j++] = Probes.PROBE_DATA;
+                } else {
+                    projection[j++] = name;
+                }
+            }
+        }
+
+        mColumnNames = new String[projection.length];
+        mColumnMap = new int[projection.length];
+        int wrapped = 0;
+        for (int i = 0; i < projection.length; i++) {
+            if (Probes.PROBE_METADATA.equals(projection[i])) {
+                mColumnNames[i] = Probes.PROBE_METADATA;
+                mColumnMap[i] = METADATA;
+            } else if (Probes.PROBE_DATA.equals(projection[i])) {
+                mColumnNames[i] = Probes.PROBE_DATA;
+                mColumnMap[i] = DATA;
+            } else {
+                if (wrapped == mPayloadIndex)
+                    wrapped++;
+                mColumnNames[i] = cursor.getColumnName(wrapped);
+                mColumnMap[i] = wrapped++;
+            }
+        }
+    }
+
+    /**
+     * @param columnIndex
+     * @return the index into the wrapped cursor for a column which isn't
+     *         decoded from the payload
+     * @throws UnsupportedOperationException for the decoded columns, which
+     *             can only be read as strings or blobs
+     */
+    private int wrappedColumn(int columnIndex) {
+        int column = mColumnMap[columnIndex];
+        if (column < 0)
+            throw new UnsupportedOperationException("column '" + mColumnNames[columnIndex]
+                    + "' can only be read as a string or blob");
+        return column;
+    }
+
+    private String decoded(int column) {
+        if (mDecodedPosition != getPosition()) {
+            mDecoded = ProbePayload.decode(super.getBlob(mPayloadIndex));
+            mDecodedPosition = getPosition();
+        }
+        return mDecoded[column == METADATA ? 0 : 1];
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumnNames.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return mColumnNames[columnIndex];
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < mColumnNames.length; i++) {
+            if (mColumnNames[i].equalsIgnoreCase(columnName))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) throws IllegalArgumentException {
+        int index = getColumnIndex(columnName);
+        if (index == -1)
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        return index;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        int column = mColumnMap[columnIndex];
+        if (column < 0)
+            return decoded(column);
+        return super.getString(column);
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        int column = mColumnMap[columnIndex];
+        if (column >= 0) {
+            super.copyStringToBuffer(column, buffer);
+            return;
+        }
+
+        String value = decoded(column);
+        if (value == null) {
+            buffer.sizeCopied = 0;
+        } else {
+            if (buffer.data == null || buffer.data.length < value.length())
+                buffer.data = value.toCharArray();
+            else
+                value.getChars(0, value.length(), buffer.data, 0);
+            buffer.sizeCopied = value.length();
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        int column = mColumnMap[columnIndex];
+        if (column < 0) {
+            String value = decoded(column);
+            if (value == null)
+                return null;
+            try {
+                return value.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return super.getBlob(column);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        int column = mColumnMap[columnIndex];
+        if (column < 0)
+            return decoded(column) == null;
+        return super.isNull(column);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public int getType(int columnIndex) {
+        int column = mColumnMap[columnIndex];
+        if (column < 0)
+            return decoded(column) == null ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+        return super.getType(column);
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return super.getShort(wrappedColumn(columnIndex));
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return super.getInt(wrappedColumn(columnIndex));
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        return super.getLong(wrappedColumn(columnIndex));
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return super.getFloat(wrappedColumn(columnIndex));
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        return super.getDouble(wrappedColumn(columnIndex));
+    }
+}
@@ -0,0 +1,191 @@
+
+package org.ohmage.probemanager;
+
+import android.content.ContentValues;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring buffer used to hand points from the binder threads to
+ * the {@link PointWriter}. Any number of threads may call
+ * {@link #offer(ContentValues, int)} and {@link #poll()} concurrently. Each slot
+ * carries a sequence number which tells producers and consumers whether the
+ * slot is free or filled for the position they claimed.
+ */
+public class PointRingBuffer {
+
+    private final int mMask;
+    private final ContentValues[] mValues;
+    private final int[] mSizes;
+    private final AtomicLongArray mSequences;
+
+    private final AtomicLong mEnqueuePos = new AtomicLong();
+    private final AtomicLong mDequeuePos = new AtomicLong();
+
+    /**
+     * Number of bytes allocated to the data portion of the queued points
+     */
+    private final AtomicLong mByteSize = new AtomicLong();
+
+    /**
+     * Number of points which were dropped to make room for newer points
+     */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Number of points which were written to disk because the buffer was full
+     */
+    private final AtomicLong mSpilled = new AtomicLong();
+
+    /**
+     * Number of points which have been handed to the writer
+     */
+    private final AtomicLong mWritten = new AtomicLong();
+
+    /**
+     * @param capacity the minimum number of points the buffer can hold. It
+     *            will be rounded up to the next power of two.
+     */
+    public PointRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        mMask = size - 1;
+        mValues = new ContentValues[size];
+        mSizes = new int[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            mSequences.set(i, i);
+    }
+
+    /**
+     * Adds a point to the buffer
+     *
+     * @param values
+     * @param size the number of bytes of data this point holds
+     * @return false if the buffer is full
+     */
+    public boolean offer(ContentValues values, int size) {
+        while (true) {
+            long pos = mEnqueuePos.get();
+            int index = (int) (pos & mMask);
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mEnqueuePos.compareAndSet(pos, pos + 1)) {
+                    mValues[index] = values;
+                    mSizes[index] = size;
+                    mByteSize.addAndGet(size);
+                    // Publishing the sequence makes the slot visible to
+                    // consumers
+                    mSequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest point from the buffer
+     *
+     * @return the point or null if the buffer is empty
+     */
+    public ContentValues poll() {
+        while (true) {
+            long pos = mDequeuePos.get();
+            int index = (int) (pos & mMask);
+            long diff = mSequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (mDequeuePos.compareAndSet(pos, pos + 1)) {
+                    ContentValues values = mValues[index];
+                    mByteSize.addAndGet(-mSizes[index]);
+                    mValues[index] = null;
+                    // Mark the slot as free for the producer one lap ahead
+                    mSequences.set(index, pos + mMask + 1);
+                    return values;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest point to make room for a new one
+     *
+     * @return true if a point was dropped
+     */
+    public boolean dropOldest() {
+        if (poll() != null) {
+            mDropped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes up to {@code max} points from the buffer
+     *
+     * @param max
+     * @return the points in the order they were added
+     */
+    public ContentValues[] drain(int max) {
+        int count = Math.min(max, size());
+        ContentValues[] ret = new ContentValues[count];
+        int i = 0;
+        while (i < count) {
+            ContentValues values = poll();
+            if (values == null)
+                break;
+            ret[i++] = values;
+        }
+        if (i < count) {
+            ContentValues[] shrunk = new ContentValues[i];
+            System.arraycopy(ret, 0, shrunk, 0, i);
+            ret = shrunk;
+        }
+        mWritten.addAndGet(ret.length);
+        return ret;
+    }
+
+    void markSpilled() {
+        mSpilled.incrementAndGet();
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return the number of points currently queued
+     */
+    public int size() {
+        long size = mEnqueuePos.get() - mDequeuePos.get();
+        if (size < 0)
+            return 0;
+        return (int) Math.min(size, capacity());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public long getByteSize() {
+        return mByteSize.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public long getSpilledCount() {
+        return mSpilled.get();
+    }
+
+    public long getWrittenCount() {
+        return mWritten.get();
+    }
+}
@@ -0,0 +1,526 @@
+
+package org.ohmage.probemanager;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+
+import org.ohmage.Utilities.CountingInputStream;
+import org.ohmage.logprobe.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer thread which drains the {@link PointRingBuffer}s filled by
+ * {@link ProbeManager} into the {@link ProbeContentProvider}. Producers never
+ * touch the database. What happens when a buffer is full is determined by the
+ * {@link BackpressurePolicy}.
+ */
+public class PointWriter extends Thread {
+
+    private static final String TAG = "PointWriter";
+
+    /**
+     * How long a blocked producer waits before checking the buffer again
+     */
+    private static final long BLOCK_WAIT_NANOS = 1000 * 1000;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+
+    public static enum BackpressurePolicy {
+        /** Block the producer until there is space in the buffer */
+        BLOCK,
+        /** Drop the oldest point in the buffer to make space */
+        DROP_OLDEST,
+        /** Write the point to a file which is replayed once the buffer drains */
+        SPILL_TO_DISK;
+
+        public static BackpressurePolicy fromString(String policy) {
+            if ("drop_oldest".equals(policy))
+                return DROP_OLDEST;
+            else if ("spill_to_disk".equals(policy))
+                return SPILL_TO_DISK;
+            return BLOCK;
+        }
+    }
+
+    /**
+     * A buffer and where its points should be written
+     */
+    public static class Channel {
+        private final Uri mUri;
+        private final PointRingBuffer mBuffer;
+        private final File mSpillFile;
+        private final File mReplayFile;
+        private final Object mSpillLock = new Object();
+        private DataOutputStream mSpillOut;
+        private boolean mSpillChecked;
+
+        Channel(Uri uri, PointRingBuffer buffer, File spillFile) {
+            mUri = uri;
+            mBuffer = buffer;
+            mSpillFile = spillFile;
+            mReplayFile = new File(spillFile.getPath() + ".replay");
+        }
+
+        public PointRingBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public Uri getUri() {
+            return mUri;
+        }
+
+        boolean hasSpilled() {
+            synchronized (mSpillLock) {
+                return mSpillOut != null || mSpillFile.exists() || mReplayFile.exists();
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final BackpressurePolicy mPolicy;
+    private final int mFlushCount;
+    private final long mMaxByteSize;
+    private final long mFlushDelayNanos;
+    private final ArrayList<Channel> mChannels = new ArrayList<Channel>();
+
+    /** The writer which was shut down last, it may still be flushing */
+    private static PointWriter sStopping;
+
+    /**
+     * The writer which was still flushing when this one was created. Nothing
+     * is written by this writer until it is done.
+     */
+    private volatile PointWriter mPrevious;
+    private long mShutdownTimeout;
+
+    private volatile boolean mRunning = true;
+    private volatile boolean mIdle;
+    private volatile boolean mFlushRequested;
+
+    /**
+     * @param context
+     * @param policy what to do when a buffer is full
+     * @param flushCount points in a buffer which trigger an immediate flush
+     * @param maxByteSize bytes across all buffers which trigger an immediate
+     *            flush
+     * @param flushDelay maximum number of milliseconds to wait before flushing
+     */
+    public PointWriter(Context context, BackpressurePolicy policy, int flushCount,
+            long maxByteSize, long flushDelay) {
+        super(TAG);
+        mContext = context.getApplicationContext();
+        mPolicy = policy;
+        mFlushCount = flushCount;
+        mMaxByteSize = maxByteSize;
+        mFlushDelayNanos = flushDelay * 1000 * 1000;
+
+        synchronized (PointWriter.class) {
+            if (sStopping != null && sStopping.isAlive())
+                mPrevious = sStopping;
+            sStopping = null;
+        }
+    }
+
+    /**
+     * Adds a buffer which will be drained into the given uri. Must be called
+     * before the thread is started.
+     *
+     * @param uri
+     * @param capacity
+     * @return the channel which points should be offered to
+     */
+    public Channel addChannel(Uri uri, int capacity) {
+        Channel channel = new Channel(uri, new PointRingBuffer(capacity), new File(
+                mContext.getFilesDir(), uri.getLastPathSegment() + ".spill"));
+        mChannels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Queues a point to be written. Called from any thread.
+     *
+     * @param channel
+     * @param values
+     * @param size the number of bytes of data in this point
+     * @return true if the point was accepted
+     */
+    public boolean offer(Channel channel, ContentValues values, int size) {
+        PointRingBuffer buffer = channel.mBuffer;
+
+        while (!buffer.offer(values, size)) {
+            if (!mRunning) {
+                // The writer is gone so we have to insert it ourselves
+                return mContext.getContentResolver().insert(channel.mUri, values) != null;
+            }
+
+            switch (mPolicy) {
+                case DROP_OLDEST:
+                    buffer.dropOldest();
+                    break;
+                case SPILL_TO_DISK:
+                    // The previous writer may still be replaying the same files
+                    if (mPrevious == null && spill(channel, values)) {
+                        buffer.markSpilled();
+                        requestFlush();
+                        return true;
+                    }
+                    // fall through to blocking if we couldn't write the file
+                case BLOCK:
+                default:
+                    requestFlush();
+                    LockSupport.parkNanos(this, BLOCK_WAIT_NANOS);
+                    break;
+            }
+        }
+
+        if (!mRunning) {
+            // The writer may have stopped before it could see this point
+            drain(channel);
+            return true;
+        }
+
+        if (buffer.size() >= mFlushCount || getByteSize() >= mMaxByteSize)
+            requestFlush();
+        else if (mIdle)
+            LockSupport.unpark(this);
+        return true;
+    }
+
+    /**
+     * Wakes up the writer so it flushes all the points immediately
+     */
+    public void requestFlush() {
+        mFlushRequested = true;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Stops the writer. Waits for the batch which is being written to the db,
+     * then spills the points left in the buffers to disk so they are written
+     * by the next writer, which is much quicker than writing them to the db.
+     *
+     * @param timeout the maximum number of milliseconds to wait for the
+     *            current batch
+     */
+    public void shutdown(long timeout) {
+        synchronized (PointWriter.class) {
+            mShutdownTimeout = timeout;
+            sStopping = this;
+        }
+        mRunning = false;
+        LockSupport.unpark(this);
+        try {
+            join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Channel c : mChannels) {
+            ContentValues[] remaining;
+            while ((remaining = c.mBuffer.drain(mFlushCount)).length > 0) {
+                for (int i = 0; i < remaining.length; i++) {
+                    if (!spill(c, remaining[i])) {
+                        // Nowhere else to keep them
+                        ContentValues[] rest = new ContentValues[remaining.length - i];
+                        System.arraycopy(remaining, i, rest, 0, rest.length);
+                        bulkInsert(c.mUri, rest);
+                        break;
+                    }
+                    c.mBuffer.markSpilled();
+                }
+            }
+            synchronized (c.mSpillLock) {
+                closeSpill(c);
+            }
+        }
+    }
+
+    public ArrayList<Channel> getChannels() {
+        return mChannels;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        PointWriter previous = mPrevious;
+        if (previous != null) {
+            long timeout;
+            synchronized (PointWriter.class) {
+                timeout = previous.mShutdownTimeout;
+            }
+            try {
+                previous.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mPrevious = null;
+        }
+
+        while (mRunning) {
+            mIdle = true;
+            if (isEmpty()) {
+                LockSupport.park(this);
+                mIdle = false;
+                continue;
+            }
+            mIdle = false;
+
+            // Give the producers a chance to fill up the batch
+            if (!mFlushRequested)
+                LockSupport.parkNanos(this, mFlushDelayNanos);
+
+            mFlushRequested = false;
+            flush();
+        }
+
+        // The points which are still buffered are spilled by shutdown()
+        logStats();
+    }
+
+    /**
+     * Writes the points in the buffer of a channel to the db on the calling
+     * thread
+     *
+     * @param channel
+     */
+    private void drain(Channel channel) {
+        ContentValues[] toFlush;
+        while ((toFlush = channel.mBuffer.drain(mFlushCount)).length > 0) {
+            bulkInsert(channel.mUri, toFlush);
+        }
+    }
+
+    private boolean isEmpty() {
+        for (Channel c : mChannels) {
+            if (!c.mBuffer.isEmpty() || c.hasSpilled())
+                return false;
+        }
+        return true;
+    }
+
+    private long getByteSize() {
+        long size = 0;
+        for (Channel c : mChannels) {
+            size += c.mBuffer.getByteSize();
+        }
+        return size;
+    }
+
+    private void flush() {
+        for (Channel c : mChannels) {
+            drain(c);
+            // Replaying can take a while, so it is left to the next writer
+            // once we are shutting down
+            if (mRunning && c.hasSpilled())
+                replaySpill(c);
+        }
+    }
+
+    private void bulkInsert(Uri uri, ContentValues[] values) {
+        try {
+            mContext.getContentResolver().bulkInsert(uri, values);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to write " + values.length + " points to " + uri, e);
+        }
+    }
+
+    private void logStats() {
+        for (Channel c : mChannels) {
+            PointRingBuffer b = c.mBuffer;
+            Log.d(TAG, c.mUri.getLastPathSegment() + ": written=" + b.getWrittenCount()
+                    + " queued=" + b.size() + " dropped=" + b.getDroppedCount() + " spilled="
+                    + b.getSpilledCount());
+        }
+    }
+
+    private boolean spill(Channel channel, ContentValues values) {
+        synchronized (channel.mSpillLock) {
+            try {
+                if (!channel.mSpillChecked) {
+                    truncateSpill(channel.mSpillFile);
+                    channel.mSpillChecked = true;
+                }
+                if (channel.mSpillOut == null)
+                    channel.mSpillOut = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(channel.mSpillFile, true)));
+                writeValues(channel.mSpillOut, values);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to spill point to disk", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Cuts off a point which was only partly written to a spill file when the
+     * process died, so the points spilled after it can be read back
+     *
+     * @param spill
+     * @throws IOException
+     */
+    private static void truncateSpill(File spill) throws IOException {
+        if (!spill.exists())
+            return;
+
+        long complete = 0;
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+                new FileInputStream(spill)));
+        try {
+            DataInputStream in = new DataInputStream(counter);
+            while (true) {
+                readValues(in);
+                complete = counter.amountRead();
+            }
+        } catch (EOFException e) {
+            // Either the end of the file or an incomplete point
+        } finally {
+            counter.close();
+        }
+
+        if (complete < spill.length()) {
+            Log.w(TAG, "Dropping incomplete point at the end of " + spill.getName());
+            RandomAccessFile file = new RandomAccessFile(spill, "rw");
+            try {
+                file.setLength(complete);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Reads all the spilled points back from disk and writes them to the db.
+     * The spill file is moved aside while holding the lock so producers can
+     * start a new file while the old one is being read. An incomplete point at
+     * the end of the file is skipped.
+     *
+     * @param channel
+     */
+    private void replaySpill(Channel channel) {
+        File replay = channel.mReplayFile;
+        synchronized (channel.mSpillLock) {
+            closeSpill(channel);
+            // A previous replay might have been interrupted
+            if (!replay.exists() && !channel.mSpillFile.renameTo(replay))
+                return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(replay)));
+            ArrayList<ContentValues> batch = new ArrayList<ContentValues>(mFlushCount);
+            while (true) {
+                ContentValues values;
+                try {
+                    values = readValues(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                batch.add(values);
+                if (batch.size() >= mFlushCount) {
+                    bulkInsert(channel.mUri, batch.toArray(new ContentValues[batch.size()]));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty())
+                bulkInsert(channel.mUri, batch.toArray(new ContentValues[batch.size()]));
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading spilled points", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing spill file", e);
+                }
+            }
+            replay.delete();
+        }
+    }
+
+    /**
+     * Closes the spill file if it is open. Must hold the spill lock.
+     *
+     * @param channel
+     */
+    private static void closeSpill(Channel channel) {
+        if (channel.mSpillOut != null) {
+            try {
+                channel.mSpillOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing spill file", e);
+            }
+            channel.mSpillOut = null;
+        }
+    }
+
+    private static void writeValues(DataOutputStream out, ContentValues values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (Entry<String, Object> entry : values.valueSet()) {
+            out.writeUTF(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                out.writeByte(TYPE_INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else if (value != null) {
+                // Strings can be longer than writeUTF allows
+                byte[] bytes = value.toString().getBytes("UTF-8");
+                out.writeByte(TYPE_STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else {
+                out.writeByte(TYPE_NULL);
+            }
+        }
+        out.flush();
+    }
+
+    private static ContentValues readValues(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ContentValues values = new ContentValues(count);
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            switch (in.readByte()) {
+                case TYPE_INTEGER:
+                    values.put(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    values.put(key, in.readLong());
+                    break;
+                case TYPE_STRING:
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    values.put(key, new String(bytes, "UTF-8"));
+                    break;
+                default:
+                    values.putNull(key);
+                    break;
+            }
+        }
+        return values;
+    }
+}
@@ -13,11 +13,14 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import org.ohmage.probemanager.DbContract.Acks;
 import org.ohmage.probemanager.DbContract.ProbeCount;
 import org.ohmage.probemanager.DbContract.Probes;
 import org.ohmage.probemanager.DbContract.Responses;
 import org.ohmage.probemanager.DbHelper.Tables;
 
+import java.util.HashMap;
+
 public class ProbeContentProvider extends ContentProvider {
 
     // enum of the URIs we can match using sUriMatcher
@@ -25,6 +28,7 @@ public class ProbeContentProvider extends ContentProvider {
         int PROBES = 0;
         int RESPONSES = 1;
         int PROBE_COUNTS = 2;
+        int ACKS = 3;
     }
 
     private DbHelper dbHelper;
@@ -35,6 +39,7 @@ public class ProbeContentProvider extends ContentProvider {
         sUriMatcher.addURI(DbContract.CONTENT_AUTHORITY, "responses", MatcherTypes.RESPONSES);
         sUriMatcher
                 .addURI(DbContract.CONTENT_AUTHORITY, "probes/counts", MatcherTypes.PROBE_COUNTS);
+        sUriMatcher.addURI(DbContract.CONTENT_AUTHORITY, "acks", MatcherTypes.ACKS);
 
     }
 
@@ -45,8 +50,11 @@ public class ProbeContentProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
 
             case MatcherTypes.PROBES:
+                // The selection is in terms of the columns in the view
                 count = dbHelper.getWritableDatabase().delete(Tables.Probes,
-                        selection == null ? "1" : selection, selectionArgs);
+                        selection == null ? "1" : BaseColumns._ID + " IN (SELECT "
+                                + BaseColumns._ID + " FROM " + Tables.ProbesView + " WHERE "
+                                + selection + ")", selectionArgs);
                 break;
             case MatcherTypes.RESPONSES:
                 count = dbHelper.getWritableDatabase().delete(Tables.Responses,
@@ -68,6 +76,8 @@ public class ProbeContentProvider extends ContentProvider {
                 return Probes.CONTENT_TYPE;
             case MatcherTypes.RESPONSES:
                 return Responses.CONTENT_TYPE;
+            case MatcherTypes.ACKS:
+                return Acks.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("getType(): Unknown URI: " + uri);
         }
@@ -80,7 +90,12 @@ public class ProbeContentProvider extends ContentProvider {
 
         switch (sUriMatcher.match(uri)) {
             case MatcherTypes.PROBES:
-                id = dbHelper.getWritableDatabase().insert(Tables.Probes, BaseColumns._ID, values);
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                HashMap<String, Long> added = new HashMap<String, Long>();
+                id = db.insert(Tables.Probes, BaseColumns._ID,
+                        dbHelper.packProbe(db, values, added));
+                // Each statement commits on its own outside of a transaction
+                dbHelper.publishStringIds(added);
                 cr.notifyChange(Probes.CONTENT_URI, null, false);
                 break;
             case MatcherTypes.RESPONSES:
@@ -88,6 +103,17 @@ public class ProbeContentProvider extends ContentProvider {
                         values);
                 cr.notifyChange(Responses.CONTENT_URI, null, false);
                 break;
+            case MatcherTypes.ACKS:
+                // Deleting the acknowledged points happens in a single
+                // statement with a single notification
+                int count = dbHelper.acknowledge(values);
+                if (count > 0) {
+                    if (Tables.Probes.equals(values.getAsString(Acks.KIND)))
+                        cr.notifyChange(Probes.CONTENT_URI, null, false);
+                    else
+                        cr.notifyChange(Responses.CONTENT_URI, null, false);
+                }
+                return uri;
             default:
                 throw new UnsupportedOperationException("insert(): Unknown URI: " + uri);
         }
@@ -111,7 +137,7 @@ public class ProbeContentProvider extends ContentProvider {
             case MatcherTypes.PROBE_COUNTS:
 
                 SQLiteQueryBuilder probes = new SQLiteQueryBuilder();
-                probes.setTables(Tables.Probes);
+                probes.setTables(Tables.ProbesView);
 
                 SQLiteQueryBuilder responses = new SQLiteQueryBuilder();
                 responses.setTables(Tables.Responses);
@@ -129,12 +155,17 @@ public class ProbeContentProvider extends ContentProvider {
                 cursor = new MergeCursor(merged);
                 break;
             case MatcherTypes.PROBES:
-                cursor = dbHelper.getReadableDatabase().query(Tables.Probes, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                cursor = new PackedProbeCursor(dbHelper.getReadableDatabase().query(
+                        Tables.ProbesView, PackedProbeCursor.mapProjection(projection), selection,
+                        selectionArgs, null, null, sortOrder, getLimit(uri)), projection);
                 break;
             case MatcherTypes.RESPONSES:
                 cursor = dbHelper.getReadableDatabase().query(Tables.Responses, projection,
-                        selection, selectionArgs, null, null, sortOrder);
+                        selection, selectionArgs, null, null, sortOrder, getLimit(uri));
+                break;
+            case MatcherTypes.ACKS:
+                cursor = dbHelper.getReadableDatabase().query(Tables.Acks, projection, selection,
+                        selectionArgs, null, null, sortOrder);
                 break;
             default:
                 throw new UnsupportedOperationException("query(): Unknown URI: " + uri);
@@ -144,6 +175,22 @@ public class ProbeContentProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * @param uri
+     * @return the limit given by {@link DbContract#QUERY_PARAMETER_LIMIT} or
+     *         null if there is none
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(DbContract.QUERY_PARAMETER_LIMIT);
+        if (limit == null)
+            return null;
+        try {
+            return String.valueOf(Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         // TODO: Implement this to handle requests to update one or more rows.
@@ -153,6 +200,7 @@ public class ProbeContentProvider extends ContentProvider {
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         int count = 0;
+        HashMap<String, Long> added = new HashMap<String, Long>();
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
@@ -160,9 +208,11 @@ public class ProbeContentProvider extends ContentProvider {
             db.beginTransaction();
 
             String table;
+            boolean packed = false;
             switch (sUriMatcher.match(uri)) {
                 case MatcherTypes.PROBES:
                     table = Tables.Probes;
+                    packed = true;
                     break;
                 case MatcherTypes.RESPONSES:
                     table = Tables.Responses;
@@ -172,6 +222,8 @@ public class ProbeContentProvider extends ContentProvider {
             }
 
             for (ContentValues v : values) {
+                if (packed)
+                    v = dbHelper.packProbe(db, v, added);
                 if (db.insert(table, BaseColumns._ID, v) != -1)
                     count++;
             }
@@ -181,6 +233,10 @@ public class ProbeContentProvider extends ContentProvider {
             db.endTransaction();
         }
 
+        // Strings added during the transaction can only be cached once it
+        // has committed
+        dbHelper.publishStringIds(added);
+
         notifyInsert(uri, count);
 
         return count;
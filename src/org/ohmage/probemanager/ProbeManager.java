@@ -4,19 +4,16 @@ package org.ohmage.probemanager;
 import android.app.Service;
 import android.content.ContentValues;
 import android.content.Intent;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
 import org.ohmage.AccountHelper;
+import org.ohmage.ConfigHelper;
 import org.ohmage.PreferenceStore;
 import org.ohmage.probemanager.DbContract.Probes;
 import org.ohmage.probemanager.DbContract.Responses;
-
-import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import org.ohmage.probemanager.PointWriter.BackpressurePolicy;
 
 public class ProbeManager extends Service {
 
@@ -47,58 +44,42 @@ public class ProbeManager extends Service {
             16 * 1024 * 1024);
 
     /**
-     * Maximum number of points which should be in the buffer at any give time
+     * Number of points in the buffer which cause it to be flushed immediately
      */
     private static final int MAX_BUFFER = 600;
 
+    /**
+     * Number of points the buffer can hold before the backpressure policy is
+     * applied
+     */
+    private static final int BUFFER_CAPACITY = 4 * MAX_BUFFER;
+
     /**
      * Maximum number of milliseconds to wait before flushing data to db
      */
     private static final long FLUSH_DELAY = 500;
 
     /**
-     * Number of bytes allocated to the data portions of probePoints
+     * Amount of time to wait for the writer to finish the batch it is writing
+     * when the service is destroyed
      */
-    private int probeByteSize = 0;
+    private static final long SHUTDOWN_TIMEOUT = 5000;
 
     /**
-     * Number of bytes allocated to the data portion of responsePoints
+     * Drains the buffered points to the db
      */
-    private int responseByteSize = 0;
+    private PointWriter mWriter;
 
     /**
      * Probe data
      */
-    ArrayList<ContentValues> probePoints = new ArrayList<ContentValues>();
+    private PointWriter.Channel mProbePoints;
 
     /**
      * Response data
      */
-    ArrayList<ContentValues> responsePoints = new ArrayList<ContentValues>();
-
-    /**
-     * Handles a flush message
-     * 
-     * @author cketcham
-     */
-    static class PointFlushHandler extends Handler {
-        private final WeakReference<ProbeManager> mService;
-
-        PointFlushHandler(ProbeManager service) {
-            mService = new WeakReference<ProbeManager>(service);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            ProbeManager service = mService.get();
-            if (service != null) {
-                service.flushProbes();
-                service.flushResponses();
-            }
-        }
-    }
+    private PointWriter.Channel mResponsePoints;
 
-    PointFlushHandler mHandler = new PointFlushHandler(this);
     private AccountHelper mAccount;
 
     private PreferenceStore mPreferencesHelper;
@@ -128,20 +109,12 @@ public class ProbeManager extends Service {
                 values.put(Probes.USERNAME, username);
 
                 if (BUFFER_POINTS) {
-                    synchronized (probePoints) {
-                        if(data != null)
-                            probeByteSize += data.length();
-                        if(metadata != null)
-                            probeByteSize += metadata.length();
-                        probePoints.add(values);
-                        if (probePoints.size() > MAX_BUFFER
-                                || probeByteSize + responseByteSize > MAX_BYTE_SIZE) {
-                            mHandler.removeMessages(0);
-                            flushProbes();
-                        } else
-                            queueFlush();
-                    }
-                    return true;
+                    int size = 0;
+                    if (data != null)
+                        size += data.length();
+                    if (metadata != null)
+                        size += metadata.length();
+                    return mWriter.offer(mProbePoints, values, size);
                 } else {
                     return getContentResolver().insert(Probes.CONTENT_URI, values) != null;
                 }
@@ -164,18 +137,8 @@ public class ProbeManager extends Service {
                 values.put(Responses.USERNAME, username);
 
                 if (BUFFER_POINTS) {
-                    synchronized (responsePoints) {
-                        if(data != null)
-                            responseByteSize += data.length();
-                        responsePoints.add(values);
-                        if (responsePoints.size() > MAX_BUFFER
-                                || probeByteSize + responseByteSize > MAX_BYTE_SIZE) {
-                            mHandler.removeMessages(0);
-                            flushResponses();
-                        } else
-                            queueFlush();
-                    }
-                    return true;
+                    return mWriter.offer(mResponsePoints, values,
+                            data != null ? data.length() : 0);
                 } else {
                     return getContentResolver().insert(Responses.CONTENT_URI, values) != null;
                 }
@@ -188,44 +151,23 @@ public class ProbeManager extends Service {
         super.onCreate();
         mAccount = new AccountHelper(this);
         mPreferencesHelper = new PreferenceStore(this);
+
+        mWriter = new PointWriter(this, BackpressurePolicy.fromString(ConfigHelper
+                .getProbeBackpressurePolicy()), MAX_BUFFER, MAX_BYTE_SIZE, FLUSH_DELAY);
+        mProbePoints = mWriter.addChannel(Probes.CONTENT_URI, BUFFER_CAPACITY);
+        mResponsePoints = mWriter.addChannel(Responses.CONTENT_URI, BUFFER_CAPACITY);
+        mWriter.start();
     }
 
     @Override
     public void onLowMemory() {
         super.onLowMemory();
-        flushProbes();
-        flushResponses();
+        mWriter.requestFlush();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        flushProbes();
-        flushResponses();
-    }
-
-    private void flushProbes() {
-        ContentValues[] toFlush;
-        synchronized (probePoints) {
-            toFlush = probePoints.toArray(new ContentValues[] {});
-            probePoints.clear();
-            probeByteSize = 0;
-        }
-        getContentResolver().bulkInsert(Probes.CONTENT_URI, toFlush);
-    }
-
-    private void flushResponses() {
-        ContentValues[] toFlush;
-        synchronized (responsePoints) {
-            toFlush = responsePoints.toArray(new ContentValues[] {});
-            responsePoints.clear();
-            responseByteSize = 0;
-        }
-        getContentResolver().bulkInsert(Responses.CONTENT_URI, toFlush);
-    }
-
-    private void queueFlush() {
-        mHandler.removeMessages(0);
-        mHandler.sendEmptyMessageDelayed(0, FLUSH_DELAY);
+        mWriter.shutdown(SHUTDOWN_TIMEOUT);
     }
 }
@@ -0,0 +1,161 @@
+
+package org.ohmage.probemanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes the metadata and data of a probe point into the single blob stored
+ * in the {@link DbHelper.PackedProbeColumns#PROBE_PAYLOAD} column. The payload
+ * is a flag byte followed by the length prefixed UTF-8 metadata and data. A
+ * length of -1 means the value was null. If {@link #FLAG_DEFLATED} is set, the
+ * flag byte is followed by the uncompressed length and the deflated body.
+ */
+public final class ProbePayload {
+
+    public static final byte FLAG_DEFLATED = 0x01;
+
+    /**
+     * Bodies smaller than this are never compressed since deflate would only
+     * make them larger
+     */
+    private static final int MIN_COMPRESS_SIZE = 128;
+
+    private static final String CHARSET = "UTF-8";
+
+    private ProbePayload() {
+    }
+
+    /**
+     * @param metadata
+     * @param data
+     * @param compress true if the payload should be deflated when it helps
+     * @return the encoded payload
+     */
+    public static byte[] encode(String metadata, String data, boolean compress) {
+        byte[] meta = toBytes(metadata);
+        byte[] d = toBytes(data);
+
+        int length = 8 + (meta != null ? meta.length : 0) + (d != null ? d.length : 0);
+        ByteBuffer body = ByteBuffer.allocate(length);
+        putBytes(body, meta);
+        putBytes(body, d);
+
+        if (compress && length >= MIN_COMPRESS_SIZE) {
+            byte[] deflated = deflate(body.array());
+            if (deflated != null && deflated.length + 4 < length) {
+                ByteBuffer payload = ByteBuffer.allocate(5 + deflated.length);
+                payload.put(FLAG_DEFLATED);
+                payload.putInt(length);
+                payload.put(deflated);
+                return payload.array();
+            }
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(1 + length);
+        payload.put((byte) 0);
+        payload.put(body.array());
+        return payload.array();
+    }
+
+    /**
+     * @param payload
+     * @return an array holding the metadata and the data
+     */
+    public static String[] decode(byte[] payload) {
+        if (payload == null || payload.length == 0)
+            return new String[2];
+
+        ByteBuffer body;
+        if ((payload[0] & FLAG_DEFLATED) != 0) {
+            int length = ByteBuffer.wrap(payload, 1, 4).getInt();
+            body = ByteBuffer.wrap(inflate(payload, 5, length));
+        } else {
+            body = ByteBuffer.wrap(payload, 1, payload.length - 1);
+        }
+
+        return new String[] {
+                getString(body), getString(body)
+        };
+    }
+
+    private static byte[] toBytes(String value) {
+        if (value == null)
+            return null;
+        try {
+            return value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        try {
+            String ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    length, CHARSET);
+            buffer.position(buffer.position() + length);
+            return ret;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buf);
+                out.write(buf, 0, count);
+            }
+            out.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] input, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, input.length - offset);
+            byte[] out = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int count = inflater.inflate(out, read, length - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                read += count;
+            }
+            if (read != length)
+                throw new IllegalStateException("Probe payload is truncated");
+            return out;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Probe payload is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
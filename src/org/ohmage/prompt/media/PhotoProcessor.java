@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohmage.prompt.media;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+
+import org.ohmage.Utilities;
+import org.ohmage.logprobe.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Prepares a photo taken by the camera for upload. The photo is decoded once,
+ * sampled down as far as possible while the decoder reads it, and then used to
+ * write the upload resolution jpeg and to build a small preview. Nothing here
+ * should be called from the ui thread.
+ */
+public class PhotoProcessor {
+
+	private static final String TAG = "PhotoProcessor";
+
+	private static final int JPEG_QUALITY = 90;
+
+	/**
+	 * The number of times decoding is tried with a larger sample size if we
+	 * run out of memory
+	 */
+	private static final int MAX_DECODE_ATTEMPTS = 3;
+
+	/**
+	 * Receives the progress of {@link PhotoProcessor#process}
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param percent from 0 to 100
+		 */
+		public void onProgress(int percent);
+
+		/**
+		 * Checked while holding the lock of the listener right before the
+		 * photo is replaced, so a listener which is cancelled while holding
+		 * its own lock never has the photo replaced afterwards.
+		 *
+		 * @return true if the photo should be left as it is
+		 */
+		public boolean isCancelled();
+	}
+
+	/**
+	 * Resizes the photo so its longer side is at most {@code maxSize} and
+	 * returns a preview of it. The photo is replaced only once the resized
+	 * jpeg is completely written. If the photo is already small enough it is
+	 * not encoded again.
+	 *
+	 * @param f the photo
+	 * @param maxSize length of the longer side of the photo to upload, or 0 to
+	 *            keep the photo as it is
+	 * @param previewSize length of the longer side of the preview
+	 * @param listener notified of the progress, may be null
+	 * @return the preview, or null if the photo could not be decoded, the
+	 *         listener cancelled processing or the photo was replaced by a
+	 *         new one while it was being resized
+	 * @throws IOException if the resized photo could not be written
+	 */
+	public static Bitmap process(File f, int maxSize, int previewSize,
+			ProgressListener listener) throws IOException {
+		// The camera writes a retaken photo to the same file, so a resized
+		// copy of the old photo must not replace it
+		long modified = f.lastModified();
+		long length = f.length();
+
+		Options bounds = Utilities.decodeImageOptions(f);
+		int longSide = Math.max(bounds.outWidth, bounds.outHeight);
+		if (longSide <= 0)
+			return null;
+		progress(listener, 10);
+
+		boolean resize = maxSize > 0 && longSide > maxSize;
+		int target = resize ? maxSize : Math.min(previewSize, longSide);
+
+		Bitmap decoded = decode(f, longSide, target);
+		if (decoded == null)
+			return null;
+		progress(listener, 40);
+
+		try {
+			if (resize) {
+				Bitmap scaled = scale(decoded, maxSize);
+				if (scaled != decoded) {
+					decoded.recycle();
+					decoded = scaled;
+				}
+				progress(listener, 60);
+
+				if (listener != null && listener.isCancelled())
+					return null;
+				if (!write(decoded, f, modified, length, listener))
+					return null;
+				progress(listener, 90);
+			}
+
+			Bitmap preview = scale(decoded, previewSize);
+			if (preview == decoded) {
+				// The caller owns the preview, so it has to be a bitmap we
+				// don't recycle below
+				decoded = null;
+			}
+			progress(listener, 100);
+			return preview;
+		} finally {
+			if (decoded != null)
+				decoded.recycle();
+		}
+	}
+
+	/**
+	 * Decodes the image with the largest power of two sample size which still
+	 * leaves the longer side at least {@code target} pixels long. The sample
+	 * size is doubled if we run out of memory.
+	 */
+	private static Bitmap decode(File f, int longSide, int target) throws IOException {
+		int sampleSize = 1;
+		while (longSide / (sampleSize * 2) >= target)
+			sampleSize *= 2;
+
+		for (int i = 0; i < MAX_DECODE_ATTEMPTS; i++) {
+			Options o = new Options();
+			o.inSampleSize = sampleSize;
+			try {
+				return BitmapFactory.decodeFile(f.getAbsolutePath(), o);
+			} catch (OutOfMemoryError e) {
+				Log.e(TAG, "Out of memory decoding image with sample size " + sampleSize);
+				sampleSize *= 2;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Scales the bitmap so its longer side is at most {@code maxSize}
+	 *
+	 * @return the scaled bitmap, or the same bitmap if it is already small
+	 *         enough
+	 */
+	private static Bitmap scale(Bitmap b, int maxSize) {
+		int longSide = Math.max(b.getWidth(), b.getHeight());
+		if (longSide <= maxSize)
+			return b;
+
+		float ratio = maxSize / (float) longSide;
+		int width = Math.max(1, Math.round(b.getWidth() * ratio));
+		int height = Math.max(1, Math.round(b.getHeight() * ratio));
+		return Bitmap.createScaledBitmap(b, width, height, true);
+	}
+
+	/**
+	 * Writes the bitmap to a temporary file next to the photo and then
+	 * replaces the photo with it so a partial jpeg is never left behind
+	 *
+	 * @return false if the photo was left as it is because the listener was
+	 *         cancelled or the photo changed since it was decoded
+	 */
+	private static boolean write(Bitmap b, File f, long modified, long length,
+			ProgressListener listener) throws IOException {
+		File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			if (!b.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out))
+				throw new IOException("Unable to compress image");
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			if (listener == null)
+				return replace(tmp, f, modified, length, listener);
+			synchronized (listener) {
+				return replace(tmp, f, modified, length, listener);
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Nothing more to do
+				}
+			}
+			tmp.delete();
+		}
+	}
+
+	private static boolean replace(File tmp, File f, long modified, long length,
+			ProgressListener listener) throws IOException {
+		if (listener != null && listener.isCancelled())
+			return false;
+		if (f.lastModified() != modified || f.length() != length) {
+			Log.w(TAG, "Photo changed while it was resized, discarding the resized copy");
+			return false;
+		}
+		if (!tmp.renameTo(f))
+			throw new IOException("Unable to replace " + f);
+		return true;
+	}
+
+	private static void progress(ProgressListener listener, int percent) {
+		if (listener != null)
+			listener.onProgress(percent);
+	}
+}
@@ -19,9 +19,9 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.provider.MediaStore;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -29,18 +29,39 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 
 import org.ohmage.library.R;
-import org.ohmage.Utilities;
 import org.ohmage.activity.SurveyActivity;
 import org.ohmage.logprobe.Log;
 
+import java.io.File;
+import java.io.IOException;
+
 public class PhotoPrompt extends MediaPrompt {
 
 	private static final String TAG = "PhotoPrompt";
 
+	/**
+	 * Length of the longer side of the preview shown in the prompt
+	 */
+	private static final int PREVIEW_SIZE = 480;
+
 	Integer mResolution = 800;
 
+	/**
+	 * Resizes the photo and builds the preview, null if it isn't running
+	 */
+	private PhotoTask mTask;
+
+	/**
+	 * The preview of the photo, it is recycled with the view it is shown in
+	 */
+	private Bitmap mPreview;
+
+	private ImageView mImageView;
+	private ProgressBar mProgressView;
+
 	public PhotoPrompt() {
 		super();
 	}
@@ -65,23 +86,28 @@ public class PhotoPrompt extends MediaPrompt {
 	@Override
 	public void handleActivityResult(Context context, int resultCode, Intent data) {
 		if (resultCode == Activity.RESULT_OK) {
-
-		    if(mResolution != null) {
-		        // Give the image two tries to resize... and then we just use the
-		        // original size? there is not much we can do here
-		        if(!Utilities.resizeImageFile(getMedia(), mResolution)) {
-		            System.gc();
-		            Log.e(TAG, "First image resize failed. Trying again.");
-		            if(!Utilities.resizeImageFile(getMedia(), mResolution)) {
-		                Log.e(TAG, "Second image resize failed. Using original size image");
-		            }
-		        }
-		    }
+			mPreview = null;
+			startTask(mResolution != null ? mResolution : 0);
 
 			((SurveyActivity) context).reloadCurrentPrompt();
 		} 
 	}
 
+	/**
+	 * The photo only counts once it has been resized
+	 */
+	@Override
+	public boolean isPromptAnswered() {
+		return mTask == null && super.isPromptAnswered();
+	}
+
+	@Override
+	protected void clearTypeSpecificResponseData() {
+		cancelTask();
+		mPreview = null;
+		super.clearTypeSpecificResponseData();
+	}
+
 	@Override
 	public View inflateView(Context context, ViewGroup parent) {
 		super.inflateView(context, parent);
@@ -90,10 +116,19 @@ public class PhotoPrompt extends MediaPrompt {
 		View layout = inflater.inflate(R.layout.prompt_photo, parent);
 
 		ImageButton button = (ImageButton) layout.findViewById(R.id.photo_button);
-		ImageView imageView = (ImageView) layout.findViewById(R.id.image_view);
-
-		if (isPromptAnswered()) {
-			imageView.setImageBitmap(BitmapFactory.decodeFile(getMedia().getAbsolutePath()));
+		mImageView = (ImageView) layout.findViewById(R.id.image_view);
+		mProgressView = (ProgressBar) layout.findViewById(R.id.photo_progress);
+
+		if (mTask != null) {
+			showProgress(mTask.mProgress);
+		} else if (super.isPromptAnswered()) {
+			if (mPreview != null && !mPreview.isRecycled()) {
+				mImageView.setImageBitmap(mPreview);
+			} else {
+				// The preview was recycled with the last view, build it again
+				startTask(0);
+				showProgress(0);
+			}
 		}
 
 		final Activity act = (Activity) context;
@@ -112,6 +147,90 @@ public class PhotoPrompt extends MediaPrompt {
 		return layout;
 	}
 
+	private void startTask(int resolution) {
+		cancelTask();
+		mTask = new PhotoTask(getMedia(), resolution);
+		mTask.execute();
+	}
+
+	private void cancelTask() {
+		if (mTask != null) {
+			// Holding the lock makes sure the task can't replace the photo
+			// after this, see PhotoProcessor.ProgressListener#isCancelled()
+			synchronized (mTask) {
+				mTask.cancel(false);
+			}
+			mTask = null;
+		}
+	}
+
+	private void showProgress(int percent) {
+		if (mProgressView != null) {
+			mProgressView.setVisibility(View.VISIBLE);
+			mProgressView.setProgress(percent);
+		}
+	}
+
+	private void onTaskDone(PhotoTask task, Bitmap preview) {
+		if (task != mTask)
+			return;
+
+		mTask = null;
+		mPreview = preview;
+
+		if (mProgressView != null)
+			mProgressView.setVisibility(View.GONE);
+		if (mImageView != null)
+			mImageView.setImageBitmap(preview);
+	}
+
+	/**
+	 * Resizes the photo to the upload resolution and builds the preview off
+	 * of the ui thread. Camera photos are large enough that decoding them on
+	 * the ui thread can make the survey unresponsive or run out of memory.
+	 */
+	private class PhotoTask extends AsyncTask<Void, Integer, Bitmap> implements
+			PhotoProcessor.ProgressListener {
+
+		private final File mFile;
+		private final int mMaxSize;
+		private int mProgress;
+
+		public PhotoTask(File file, int maxSize) {
+			mFile = file;
+			mMaxSize = maxSize;
+		}
+
+		@Override
+		protected Bitmap doInBackground(Void... params) {
+			try {
+				return PhotoProcessor.process(mFile, mMaxSize, PREVIEW_SIZE, this);
+			} catch (IOException e) {
+				Log.e(TAG, "Image resize failed. Using original size image", e);
+			} catch (OutOfMemoryError e) {
+				Log.e(TAG, "Image resize failed. Using original size image", e);
+			}
+			return null;
+		}
+
+		@Override
+		public void onProgress(int percent) {
+			publishProgress(percent);
+		}
+
+		@Override
+		protected void onProgressUpdate(Integer... values) {
+			mProgress = values[0];
+			if (this == mTask)
+				showProgress(mProgress);
+		}
+
+		@Override
+		protected void onPostExecute(Bitmap result) {
+			onTaskDone(this, result);
+		}
+	}
+
 	/**
 	 * Recycles the image if it was set
 	 * @param view
@@ -0,0 +1,184 @@
+
+package org.ohmage.responsesync;
+
+import android.text.TextUtils;
+
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compact summary of the responses in a campaign. Responses are grouped by the
+ * utc day they were taken on and each day keeps the number of responses and an
+ * order independent hash of their uuids. Comparing the digest the server
+ * reports now with the one saved after the last sync tells us which days have
+ * to be reconciled.
+ */
+public class ResponseDigest {
+
+    public static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final int RADIX = 36;
+
+    /**
+     * Maps each day to its response count and hash
+     */
+    private final TreeMap<Long, long[]> mDays = new TreeMap<Long, long[]>();
+
+    /**
+     * @param time in milliseconds
+     * @return the day this time falls on
+     */
+    public static long dayOf(long time) {
+        return time / DAY_MILLIS;
+    }
+
+    /**
+     * @param day
+     * @return the time in milliseconds that this day starts
+     */
+    public static long startOf(long day) {
+        return day * DAY_MILLIS;
+    }
+
+    /**
+     * Adds a response to the digest
+     *
+     * @param time
+     * @param uuid
+     */
+    public void add(long time, String uuid) {
+        long day = dayOf(time);
+        long[] entry = mDays.get(day);
+        if (entry == null) {
+            entry = new long[2];
+            mDays.put(day, entry);
+        }
+        entry[0]++;
+        // Summing the mixed hashes makes the result independent of the order
+        // responses are read in without letting duplicates cancel out
+        entry[1] += mix(uuid.hashCode());
+    }
+
+    public boolean isEmpty() {
+        return mDays.isEmpty();
+    }
+
+    /**
+     * @return the number of responses which were added to the digest
+     */
+    public long getCount() {
+        long count = 0;
+        for (long[] entry : mDays.values())
+            count += entry[0];
+        return count;
+    }
+
+    /**
+     * Finds the days which differ between this digest and an older one
+     *
+     * @param previous the older digest, or null if there isn't one
+     * @param fromDay days before this are ignored
+     * @return the days which were added, removed or changed
+     */
+    public SortedSet<Long> changedDays(ResponseDigest previous, long fromDay) {
+        TreeSet<Long> changed = new TreeSet<Long>();
+        for (Entry<Long, long[]> day : mDays.tailMap(fromDay).entrySet()) {
+            long[] old = previous != null ? previous.mDays.get(day.getKey()) : null;
+            if (old == null || old[0] != day.getValue()[0] || old[1] != day.getValue()[1])
+                changed.add(day.getKey());
+        }
+        if (previous != null) {
+            for (Long day : previous.mDays.tailMap(fromDay).keySet()) {
+                if (!mDays.containsKey(day))
+                    changed.add(day);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Replaces all the days starting with {@code fromDay} with the days from
+     * another digest
+     *
+     * @param other
+     * @param fromDay
+     */
+    public void replaceFrom(ResponseDigest other, long fromDay) {
+        replace(mDays.tailMap(fromDay), other.mDays.tailMap(fromDay));
+    }
+
+    /**
+     * Replaces the days from {@code fromDay} up to but not including
+     * {@code toDay} with the days from another digest
+     *
+     * @param other
+     * @param fromDay
+     * @param toDay
+     */
+    public void replace(ResponseDigest other, long fromDay, long toDay) {
+        replace(mDays.subMap(fromDay, toDay), other.mDays.subMap(fromDay, toDay));
+    }
+
+    private static void replace(SortedMap<Long, long[]> days, SortedMap<Long, long[]> other) {
+        // the views write through to the backing map
+        days.clear();
+        for (Entry<Long, long[]> day : other.entrySet())
+            days.put(day.getKey(), day.getValue().clone());
+    }
+
+    /**
+     * @return the digest encoded as {@code day:count:hash} entries separated
+     *         by commas
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry<Long, long[]> day : mDays.entrySet()) {
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(Long.toString(day.getKey(), RADIX)).append(':')
+                    .append(Long.toString(day.getValue()[0], RADIX)).append(':')
+                    .append(Long.toString(day.getValue()[1], RADIX));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param digest a string created by {@link #toString()}
+     * @return the digest or null if it could not be parsed
+     */
+    public static ResponseDigest fromString(String digest) {
+        if (digest == null)
+            return null;
+
+        ResponseDigest ret = new ResponseDigest();
+        if (TextUtils.isEmpty(digest))
+            return ret;
+
+        try {
+            for (String day : digest.split(",")) {
+                String[] parts = day.split(":");
+                if (parts.length != 3)
+                    return null;
+                ret.mDays.put(Long.parseLong(parts[0], RADIX), new long[] {
+                        Long.parseLong(parts[1], RADIX), Long.parseLong(parts[2], RADIX)
+                });
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ret;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,5 +1,6 @@
 package org.ohmage.responsesync;
 
+import android.app.AlarmManager;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.Intent;
@@ -8,13 +9,11 @@ import android.database.Cursor;
 import android.os.RemoteException;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
-import com.google.gson.GsonUtils;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonOptionalElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import org.ohmage.AccountHelper;
+import org.ohmage.CampaignPreferencesHelper;
 import org.ohmage.ConfigHelper;
 import org.ohmage.OhmageApi;
 import org.ohmage.OhmageApi.Result;
@@ -34,12 +33,16 @@ import org.ohmage.prompt.AbstractPrompt;
 import org.ohmage.responsesync.ResponseImageLoader.ResponseImage;
 import org.ohmage.service.SurveyGeotagService;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 public class ResponseSyncService extends WakefulIntentService {
 	private static final String TAG = "ResponseSyncService";
@@ -54,6 +57,31 @@ public class ResponseSyncService extends WakefulIntentService {
 
 	public static final String RESPONSE_SYNC_STARTED = "org.ohmage.RESPONSE_SYNC_STARTED";
 	public static final String RESPONSE_SYNC_FINISHED = "org.ohmage.RESPONSE_SYNC_FINISHED";
+	/** Sent each time a chunk of responses has been written to the db */
+	public static final String RESPONSE_SYNC_PROGRESS = "org.ohmage.RESPONSE_SYNC_PROGRESS";
+
+	// extras sent with the progress broadcast along with EXTRA_CAMPAIGN_URN
+	/** Position of the campaign being synced */
+	public static final String EXTRA_CAMPAIGN_INDEX = "campaign_index";
+	/** Number of campaigns being synced */
+	public static final String EXTRA_CAMPAIGN_COUNT = "campaign_count";
+	/** Number of inserts and deletes applied so far */
+	public static final String EXTRA_OPERATIONS_APPLIED = "operations_applied";
+
+	/** How often every day of a campaign is compared with the saved digest */
+	private static final long FULL_SYNC_INTERVAL = AlarmManager.INTERVAL_DAY;
+
+	/** Number of days before the high water mark which are compared on each sync */
+	private static final int OVERLAP_DAYS = 1;
+
+	/** Maximum number of operations applied in one transaction */
+	private static final int CHUNK_SIZE = 100;
+
+	/** Number of operations after which a transaction may yield to other writers */
+	private static final int YIELD_INTERVAL = 25;
+
+	/** Columns needed to build the digest of the responses on the server */
+	private static final String LIST_COLUMNS = "urn:ohmage:survey:id,urn:ohmage:context:epoch_millis";
 
 	private AccountHelper mPrefs;
 
@@ -94,10 +122,9 @@ public class ResponseSyncService extends WakefulIntentService {
 		mRunning = true;
 		sendBroadcast(new Intent(RESPONSE_SYNC_STARTED));
 
-		// for the time being, we just pull all the surveys and update our feedback cache with them
-		// FIXME: in the future, we should only download what we need...two strategies for that:
-		// 1) maintain a timestamp of the most recent refresh and request only things after it
-		// 2) somehow figure out which surveys the server has and we don't via the hashcode and sync accordingly
+		// each campaign keeps the newest response time it has seen and a per day digest of
+		// the responses on the server so we only download and reconcile the days which changed.
+		// If the server can't list responses with their times we pull all the surveys as before.
 		
 		Log.v(TAG, "Response sync service starting");
 		
@@ -117,7 +144,7 @@ public class ResponseSyncService extends WakefulIntentService {
 		String hashedPassword = mPrefs.getAuthToken();
 
 		final ContentResolver cr = getContentResolver();
-		final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		final OperationChunker operations = new OperationChunker();
 		// and also create a list to hold some campaigns
 		List<Campaign> campaigns;
 
@@ -160,17 +187,25 @@ public class ResponseSyncService extends WakefulIntentService {
 		// === 3. process responses on server for each campaign
 		// ==================================================================
 
+		boolean forceAll = intent.getBooleanExtra(EXTRA_FORCE_ALL, false);
+		boolean incremental = ConfigHelper.getIncrementalResponseSync();
+		int campaignIndex = 0;
+
 		// we'll have to iterate through all the campaigns in which this user
 		// is participating in order to gather all of their data
 		for (final Campaign c : campaigns) {
 			Log.v(TAG, "Requesting responses for campaign " + c.mUrn + "...");
+			operations.startCampaign(c.mUrn, campaignIndex++, campaigns.size());
 
 			if(!Utilities.checkUserLoggedInForTask(TAG)) {
 				return;
 			}
 
+			if (incremental && incrementalSync(api, username, hashedPassword, c, forceAll, farPastDate, nearFutureDate, operations))
+				continue;
+
 			String cutoffDate = null;
-			if (!intent.getBooleanExtra(EXTRA_FORCE_ALL, false)) {
+			if (!forceAll) {
 				// I add 1 second since the request is inclusive of this time
 				cutoffDate = ISO8601Utilities.format(c.getLastDownloadedResponseTime(this) + 1000);
 			}
@@ -196,10 +231,17 @@ public class ResponseSyncService extends WakefulIntentService {
 					}
 
 					@Override
-					public void readObject(JsonObject survey) {
+					public void readObject(JsonReader survey) throws IOException {
 						// build up a list of IDs
 						// later, we'll attempt to delete everything that's not in this list
-						responseIDs.add(survey.get("survey_key").getAsString());
+						survey.beginObject();
+						while (survey.hasNext()) {
+							if ("survey_key".equals(survey.nextName()))
+								responseIDs.add(survey.nextString());
+							else
+								survey.skipValue();
+						}
+						survey.endObject();
 						
 						// TODO: we could also push back the cutoff date if we find
 						// an ID that's present in this list that we don't have.
@@ -215,8 +257,8 @@ public class ResponseSyncService extends WakefulIntentService {
 						HashSet<String> idsSet = new HashSet<String>();
 						idsSet.addAll(responseIDs);
 
-						Cursor responses = cr.query(Responses.CONTENT_URI, new String[] { Responses.RESPONSE_UUID }, Responses.RESPONSE_STATUS + "=" + Response.STATUS_DOWNLOADED +
-								" OR " + Responses.RESPONSE_STATUS + "=" + Response.STATUS_UPLOADED +
+						Cursor responses = cr.query(Responses.CONTENT_URI, new String[] { Responses.RESPONSE_UUID }, "(" + Responses.RESPONSE_STATUS + "=" + Response.STATUS_DOWNLOADED +
+								" OR " + Responses.RESPONSE_STATUS + "=" + Response.STATUS_UPLOADED + ")" +
 								" AND " + Qualified.RESPONSES_CAMPAIGN_URN + "=?", new String[] { c.mUrn }, null);
 
 
@@ -224,11 +266,7 @@ public class ResponseSyncService extends WakefulIntentService {
 						while(responses.moveToNext()) {
 							uuid = responses.getString(0);
 							if(!idsSet.contains(uuid)) {
-								operations.add(ContentProviderOperation.newDelete(Responses.CONTENT_URI)
-										.withSelection("(" + Responses.RESPONSE_STATUS + "=" + Response.STATUS_DOWNLOADED +
-												" OR " + Responses.RESPONSE_STATUS + "=" + Response.STATUS_UPLOADED + ")" +
-												" AND " + Responses.CAMPAIGN_URN + "=?" + " AND " + Responses.RESPONSE_UUID + "=?",
-												new String[] {c.mUrn, uuid }).build());
+								operations.add(newDeleteOperation(c.mUrn, uuid));
 							}
 						}
 						responses.close();
@@ -240,175 +278,17 @@ public class ResponseSyncService extends WakefulIntentService {
 			// === 3b. download responses from after the cutoff date
 			// ==================================================================
 
-			// also maintain a list of photo UUIDs that may or may not be on the device
-			// this is campaign-response-specific, which is why it's happening in this loop over the campaigns
-			final LinkedList<ResponseImage> responsePhotos = new LinkedList<ResponseImage>();
-
 			if(!Utilities.checkUserLoggedInForTask(TAG)) {
 				return;
 			}
 
 			// do the call and process the streaming response data
 			OhmageApi.Response readResult = api.surveyResponseRead(ConfigHelper.serverUrl(), username, hashedPassword, OhmageApi.CLIENT_NAME, c.mUrn, username, null, null, "json-rows", true, cutoffDate, nearFutureDate,
-				new StreamingResponseListener() {
-					int curRecord;
-					
-					@Override
-					public void beforeRead() {
-						Log.v(TAG, "Beginning record read...");
-						curRecord = 0;
-					}
-					
-					@Override
-					public void readObject(JsonObject survey) {
-						// deal with the elements we read via stream parsing here
-						Log.v(TAG, "Processing record " + ((curRecord++)+1) + " in " + c.mUrn + "...");
-						
-						// for each survey, insert a record into our feedback db
-						// if we're unable to insert, just continue (likely a duplicate)
-						// also, note the schema follows the definition in the documentation
-
-						try {
-							// create an instance of a response to hold the data we're going to insert
-							Response candidate = new Response();
-							
-							// we need to gather all of the appropriate data
-							// from the survey response. some of this data needs to
-							// be transformed to match the format that SurveyActivity
-							// uploads/broadcasts, since our survey responses can come
-							// from either source and need to be stored the same way.
-							candidate.uuid = survey.get("survey_key").getAsString();
-							candidate.surveyId = survey.get("survey_id").getAsString();
-							candidate.campaignUrn = c.mUrn;
-							candidate.username = survey.get("user").getAsString();
-							candidate.date = survey.get("timestamp").getAsString();
-							candidate.timezone = survey.get("timezone").getAsString();
-							candidate.time = survey.get("time").getAsLong();
-
-							// much of the location data is optional, hence the "opt*()" calls
-							candidate.locationStatus = survey.get("location_status").getAsString();
-							if(candidate.locationStatus != null && !candidate.locationStatus.equals(SurveyGeotagService.LOCATION_UNAVAILABLE)) {
-								candidate.locationLatitude = new JsonOptionalElement(survey.get("latitude")).getAsDouble();
-								candidate.locationLongitude = new JsonOptionalElement(survey.get("longitude")).getAsDouble();
-								candidate.locationProvider = new JsonOptionalElement(survey.get("location_provider")).getAsString();
-								candidate.locationAccuracy = new JsonOptionalElement(survey.get("location_accuracy")).getAsFloat();
-								candidate.locationTime = new JsonOptionalElement(survey.get("location_timestamp")).getAsLong();
-							}
-							
-							candidate.surveyLaunchContext = survey.get("launch_context_long").toString();
-							
-							// we need to parse out the responses and put them in
-							// the same format as what we collect from the local activity
-							JsonObject inputResponses = survey.get("responses").getAsJsonObject();
-							
-							// iterate through inputResponses and create a new JSON object of prompt_ids and values
-							JsonArray responseJson = new JsonArray();
-
-							for(String key : GsonUtils.getKeys(inputResponses)) {
-								JsonObject curItem = inputResponses.get(key).getAsJsonObject();
-								
-								if (curItem.has("prompt_response")) {
-									JsonObject newItem = new JsonObject();
-
-								    JsonElement value = curItem.get("prompt_response");
-									String type = curItem.get("prompt_type").getAsString();
-									newItem.addProperty("prompt_id", key);
-
-									// also enter the custom_choices data if the type supports custom choices
-									// and if the custom choice data is actually there (e.g. in the glossary for the prompt)
-									if (curItem.has("prompt_choice_glossary")) {
-										if (type.equals("single_choice_custom") || type.equals("multi_choice_custom")) {
-											// unfortunately, the glossary is in a totally different format than
-											// what the survey returns; we can't just store it directly.
-											// we have to reformat the glossary entries to be of the following form:
-											// [{"choice_value": "Exercise", "choice_id": 1}, etc.]
-
-											JsonArray customChoiceArray = new JsonArray();
-											JsonObject glossary = curItem.get("prompt_choice_glossary").getAsJsonObject();
-
-											for(String glossaryKey: GsonUtils.getKeys(glossary)) {
-												// grab the glossary key and its corresponding element
-
-												JsonObject curGlossaryItem = glossary.get(glossaryKey).getAsJsonObject();
-
-												// create a new object that remaps the values from the glossary
-												// to the custom choices format
-												JsonObject newChoiceItem = new JsonObject();
-												newChoiceItem.addProperty("choice_value", curGlossaryItem.get("label").getAsString());
-												newChoiceItem.addProperty("choice_id", glossaryKey);
-
-												// and add it to our custom choices array
-												customChoiceArray.add(newChoiceItem);
-											}
-
-											// put our newly reformatted custom choices array into the object, too
-											newItem.add("custom_choices", customChoiceArray);
-										 }
-									}
-
-									// if it's a photo, put its value (the photo's UUID) into the photoUUIDs list
-									if (curItem.get("prompt_type").getAsString().equalsIgnoreCase("photo") && !value.getAsString().equalsIgnoreCase(AbstractPrompt.NOT_DISPLAYED_VALUE) && !value.getAsString().equalsIgnoreCase(AbstractPrompt.SKIPPED_VALUE)) {
-										responsePhotos.add(new ResponseImage(candidate.campaignUrn, value.getAsString()));
-									}
-
-									// add the value, which is generally just a number
-									newItem.add("value", value);
-
-									responseJson.add(newItem);
-								}
-					       }
-
-						   // render it to a string for storage into our db
-							candidate.response = responseJson.toString();
-							candidate.status = Response.STATUS_DOWNLOADED;
-
-							operations.add(ContentProviderOperation.newInsert(Responses.CONTENT_URI).withValues(candidate.toCV()).build());
-						} catch (IllegalStateException e) {
-							Log.e(TAG, "Problem parsing response json: " + e.getMessage(), e);
-						}
-					}
-					
-					@Override
-					public void afterRead() {
-						Log.v(TAG, "Finished record read");
-					}
-					
-					@Override
-					public void readResult(Result result, String[] errorCodes) {
-						String error = null;
-						
-						switch (result) {
-							case FAILURE:			error = "survey response query failed";
-							case HTTP_ERROR:		error = "http error during request";
-							case INTERNAL_ERROR:	error = "internal error during request";
-						}
-						
-						if (error != null) {
-							Log.e(TAG, error);
-							return;
-						}
-
-						Intent intent = new Intent(ResponseSyncService.this, ResponseImageLoader.class);
-						intent.putExtra(ResponseImageLoader.EXTRA_IMAGES, responsePhotos);
-						startService(intent);
-					}
-			});
+					new ResponseReader(c.mUrn, operations));
 			readResult.handleError(this);
-		}
-
-		if(!Utilities.checkUserLoggedInForTask(TAG)) {
-			return;
-		}
 
-		// Apply the operations
-		try {
-			cr.applyBatch(DbContract.CONTENT_AUTHORITY, operations);
-		} catch (RemoteException e) {
-			Log.e(TAG, "Error applying database operations", e);
-			e.printStackTrace();
-		} catch (OperationApplicationException e) {
-			Log.e(TAG, "Error applying database operations", e);
-			e.printStackTrace();
+			// apply whatever is left for this campaign
+			operations.flush();
 		}
 
 		// ==================================================================
@@ -419,4 +299,393 @@ public class ResponseSyncService extends WakefulIntentService {
 		sendBroadcast(new Intent(RESPONSE_SYNC_FINISHED));
 		mRunning = false;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Reconciles only the days which changed on the server since the last sync
+	 * of this campaign. The server is asked for the uuid and time of each
+	 * response after the saved high water mark (or of every response when a
+	 * full sync is due) and the per day digest of that list is compared with
+	 * the digest saved after the last sync. Responses are only deleted and
+	 * downloaded for the days which differ.
+	 *
+	 * @return false if the server could not list the responses with their times
+	 *         and the campaign should be synced the old way
+	 */
+	private boolean incrementalSync(OhmageApi api, String username, String hashedPassword, Campaign c, boolean forceAll,
+			String farPastDate, String nearFutureDate, OperationChunker operations) {
+		CampaignPreferencesHelper campaignPrefs = new CampaignPreferencesHelper(this, c.mUrn);
+		long now = System.currentTimeMillis();
+
+		ResponseDigest previous = forceAll ? null : campaignPrefs.getSyncDigest();
+		boolean full = previous == null || now - campaignPrefs.getLastFullSync() > FULL_SYNC_INTERVAL;
+
+		// only days starting with fromDay are compared. The list starts a day
+		// earlier in case the server uses a different timezone for the dates
+		long fromDay = Long.MIN_VALUE;
+		String startDate = farPastDate;
+		if (!full) {
+			fromDay = ResponseDigest.dayOf(campaignPrefs.getSyncHighWater()) - OVERLAP_DAYS;
+			startDate = ISO8601Utilities.format(ResponseDigest.startOf(fromDay - 1));
+		}
+
+		// ==================================================================
+		// === 3a. list the responses on the server and find the changed days
+		// ==================================================================
+
+		ResponseLister lister = new ResponseLister();
+		OhmageApi.Response listResult = api.surveyResponseRead(ConfigHelper.serverUrl(), username, hashedPassword, OhmageApi.CLIENT_NAME, c.mUrn, username, null, LIST_COLUMNS, "json-rows", true, startDate, nearFutureDate, lister);
+
+		if (listResult.getResult() == Result.FAILURE || lister.mUntimed) {
+			Log.w(TAG, "Unable to list responses with their times for " + c.mUrn);
+			return false;
+		} else if (listResult.getResult() != Result.SUCCESS) {
+			listResult.handleError(this);
+			return true;
+		}
+
+		SortedSet<Long> changed = lister.mDigest.changedDays(previous, fromDay);
+		Log.v(TAG, (full ? "Full" : "Incremental") + " sync of " + c.mUrn + " found " + changed.size() + " changed days");
+
+		// ==================================================================
+		// === 3b. reconcile the changed days a run of consecutive days at a time
+		// ===   * local responses which aren't on the server are deleted
+		// ===   * days with responses we don't have are downloaded again
+		// ===   * the digest is checkpointed so an interrupted sync can resume
+		// ==================================================================
+
+		ResponseDigest checkpoint = previous != null ? previous : new ResponseDigest();
+		int checkpointed = operations.getCount();
+
+		for (long[] run : runsOf(changed)) {
+			if(!Utilities.checkUserLoggedInForTask(TAG)) {
+				return true;
+			}
+
+			SortedSet<Long> missing = reconcileDays(c.mUrn, run[0], run[1], lister.mIds, operations);
+
+			for (long[] fetch : runsOf(missing)) {
+				String start = ISO8601Utilities.format(ResponseDigest.startOf(fetch[0] - 1));
+				String end = ISO8601Utilities.format(ResponseDigest.startOf(fetch[1] + 2));
+				OhmageApi.Response readResult = api.surveyResponseRead(ConfigHelper.serverUrl(), username, hashedPassword, OhmageApi.CLIENT_NAME, c.mUrn, username, null, null, "json-rows", true, start, end,
+						new ResponseReader(c.mUrn, operations));
+				readResult.handleError(this);
+				if (readResult.getResult() != Result.SUCCESS)
+					return true;
+			}
+
+			checkpoint.replace(lister.mDigest, run[0], run[1] + 1);
+
+			// writing the checkpoint after every run would be slow for long histories
+			if (operations.getCount() - checkpointed >= CHUNK_SIZE) {
+				if (!operations.flush())
+					return true;
+				campaignPrefs.setSyncState(campaignPrefs.getSyncHighWater(), checkpoint, campaignPrefs.getLastFullSync());
+				checkpointed = operations.getCount();
+			}
+		}
+
+		// only remember what we synced once it is actually in the db
+		if (operations.flush()) {
+			checkpoint.replaceFrom(lister.mDigest, fromDay);
+			campaignPrefs.setSyncState(Math.max(lister.mHighWater, campaignPrefs.getSyncHighWater()), checkpoint,
+					full ? now : campaignPrefs.getLastFullSync());
+		}
+		return true;
+	}
+
+	/**
+	 * Queues deletes for the synced responses on these days which are no
+	 * longer on the server
+	 *
+	 * @param campaignUrn
+	 * @param firstDay
+	 * @param lastDay
+	 * @param serverIds the uuids on the server for each day
+	 * @param operations
+	 * @return the days which have responses on the server we don't have
+	 */
+	private SortedSet<Long> reconcileDays(String campaignUrn, long firstDay, long lastDay, HashMap<Long, HashSet<String>> serverIds, OperationChunker operations) {
+		HashSet<String> local = new HashSet<String>();
+		Cursor responses = getContentResolver().query(Responses.CONTENT_URI, new String[] { Responses.RESPONSE_UUID, Responses.RESPONSE_TIME, Responses.RESPONSE_STATUS },
+				Qualified.RESPONSES_CAMPAIGN_URN + "=? AND " + Responses.RESPONSE_TIME + ">=? AND " + Responses.RESPONSE_TIME + "<?",
+				new String[] { campaignUrn, String.valueOf(ResponseDigest.startOf(firstDay)), String.valueOf(ResponseDigest.startOf(lastDay + 1)) }, null);
+
+		while (responses.moveToNext()) {
+			String uuid = responses.getString(0);
+			local.add(uuid);
+
+			// anything which was synced before but isn't on the server anymore is deleted
+			int status = responses.getInt(2);
+			HashSet<String> ids = serverIds.get(ResponseDigest.dayOf(responses.getLong(1)));
+			if ((status == Response.STATUS_DOWNLOADED || status == Response.STATUS_UPLOADED) && (ids == null || !ids.contains(uuid)))
+				operations.add(newDeleteOperation(campaignUrn, uuid));
+		}
+		responses.close();
+
+		TreeSet<Long> missing = new TreeSet<Long>();
+		for (long day = firstDay; day <= lastDay; day++) {
+			HashSet<String> ids = serverIds.get(day);
+			if (ids != null && !local.containsAll(ids))
+				missing.add(day);
+		}
+		return missing;
+	}
+
+	/**
+	 * @param days
+	 * @return the first and last day of each run of consecutive days
+	 */
+	private static ArrayList<long[]> runsOf(SortedSet<Long> days) {
+		ArrayList<long[]> runs = new ArrayList<long[]>();
+		long[] run = null;
+		for (Long day : days) {
+			if (run != null && day == run[1] + 1) {
+				run[1] = day;
+			} else {
+				run = new long[] { day, day };
+				runs.add(run);
+			}
+		}
+		return runs;
+	}
+
+	private static ContentProviderOperation.Builder newDeleteOperation(String campaignUrn, String uuid) {
+		return ContentProviderOperation.newDelete(Responses.CONTENT_URI)
+				.withSelection("(" + Responses.RESPONSE_STATUS + "=" + Response.STATUS_DOWNLOADED +
+						" OR " + Responses.RESPONSE_STATUS + "=" + Response.STATUS_UPLOADED + ")" +
+						" AND " + Responses.CAMPAIGN_URN + "=?" + " AND " + Responses.RESPONSE_UUID + "=?",
+						new String[] {campaignUrn, uuid });
+	}
+
+	/**
+	 * Builds the digest of the responses listed by the server
+	 */
+	private static class ResponseLister extends StreamingResponseListener {
+		final ResponseDigest mDigest = new ResponseDigest();
+		final HashMap<Long, HashSet<String>> mIds = new HashMap<Long, HashSet<String>>();
+		long mHighWater;
+		boolean mUntimed;
+
+		@Override
+		public void beforeRead() {
+			Log.v(TAG, "Beginning UUID read...");
+		}
+
+		@Override
+		public void readObject(JsonReader survey) throws IOException {
+			String uuid = null;
+			Long time = null;
+
+			survey.beginObject();
+			while (survey.hasNext()) {
+				String name = survey.nextName();
+				if ("survey_key".equals(name)) {
+					uuid = survey.nextString();
+				} else if ("time".equals(name) && survey.peek() != JsonToken.NULL) {
+					time = survey.nextLong();
+				} else {
+					survey.skipValue();
+				}
+			}
+			survey.endObject();
+
+			if (time == null) {
+				// older servers can't give us the time so we can't use the digest
+				mUntimed = true;
+				return;
+			}
+
+			long t = time;
+			mDigest.add(t, uuid);
+			mHighWater = Math.max(mHighWater, t);
+
+			Long day = ResponseDigest.dayOf(t);
+			HashSet<String> ids = mIds.get(day);
+			if (ids == null) {
+				ids = new HashSet<String>();
+				mIds.put(day, ids);
+			}
+			ids.add(uuid);
+		}
+
+		@Override
+		public boolean isListening() {
+			return !mUntimed;
+		}
+	}
+
+	/**
+	 * Collects operations and applies them in chunks so only a few of them are
+	 * held in memory and responses show up while the sync is still running.
+	 * Each chunk is applied in its own transaction which yields to other
+	 * writers every {@link #YIELD_INTERVAL} operations.
+	 */
+	private class OperationChunker {
+		private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<ContentProviderOperation>(CHUNK_SIZE);
+
+		private String mCampaignUrn;
+		private int mCampaignIndex;
+		private int mCampaignCount;
+
+		private int mApplied;
+		private boolean mFailed;
+
+		public void startCampaign(String campaignUrn, int index, int count) {
+			mCampaignUrn = campaignUrn;
+			mCampaignIndex = index;
+			mCampaignCount = count;
+			mFailed = false;
+		}
+
+		public void add(ContentProviderOperation.Builder builder) {
+			if (!mOperations.isEmpty() && mOperations.size() % YIELD_INTERVAL == 0)
+				builder.withYieldAllowed(true);
+			mOperations.add(builder.build());
+
+			if (mOperations.size() >= CHUNK_SIZE)
+				flush();
+		}
+
+		/**
+		 * @return the number of operations which have been added, including
+		 *         the ones which haven't been applied yet
+		 */
+		public int getCount() {
+			return mApplied + mOperations.size();
+		}
+
+		/**
+		 * Applies the queued operations
+		 *
+		 * @return false if any chunk for the current campaign failed
+		 */
+		public boolean flush() {
+			if (mOperations.isEmpty())
+				return !mFailed;
+
+			try {
+				if (getContentResolver().applyBatch(DbContract.CONTENT_AUTHORITY, mOperations) != null) {
+					mApplied += mOperations.size();
+
+					Intent progress = new Intent(RESPONSE_SYNC_PROGRESS);
+					progress.putExtra(EXTRA_CAMPAIGN_URN, mCampaignUrn);
+					progress.putExtra(EXTRA_CAMPAIGN_INDEX, mCampaignIndex);
+					progress.putExtra(EXTRA_CAMPAIGN_COUNT, mCampaignCount);
+					progress.putExtra(EXTRA_OPERATIONS_APPLIED, mApplied);
+					sendBroadcast(progress);
+				} else {
+					mFailed = true;
+				}
+			} catch (RemoteException e) {
+				Log.e(TAG, "Error applying database operations", e);
+				mFailed = true;
+			} catch (OperationApplicationException e) {
+				Log.e(TAG, "Error applying database operations", e);
+				mFailed = true;
+			} finally {
+				mOperations.clear();
+			}
+			return !mFailed;
+		}
+	}
+
+	/**
+	 * Turns each response read from the server into an insert operation
+	 */
+	private class ResponseReader extends StreamingResponseListener {
+		private final String mCampaignUrn;
+		private final OperationChunker mOperations;
+
+		// also maintain a list of photo UUIDs that may or may not be on the device
+		private final LinkedList<ResponseImage> responsePhotos = new LinkedList<ResponseImage>();
+
+		private final SurveyResponseDecoder mDecoder = new SurveyResponseDecoder();
+
+		int curRecord;
+
+		public ResponseReader(String campaignUrn, OperationChunker operations) {
+			mCampaignUrn = campaignUrn;
+			mOperations = operations;
+		}
+
+		@Override
+		public void beforeRead() {
+			Log.v(TAG, "Beginning record read...");
+			curRecord = 0;
+		}
+		
+		@Override
+		public void readObject(JsonReader reader) throws IOException {
+			// deal with the elements we read via stream parsing here
+			Log.v(TAG, "Processing record " + ((curRecord++)+1) + " in " + mCampaignUrn + "...");
+
+			// for each survey, insert a record into our feedback db
+			// the decoder writes the responses in the same format that
+			// SurveyActivity stores them in, since our survey responses can
+			// come from either source and need to be stored the same way.
+			SurveyResponseDecoder.Record survey = mDecoder.decode(reader);
+			if (survey == null) {
+				Log.e(TAG, "Problem parsing response json: missing required values");
+				return;
+			}
+
+			// create an instance of a response to hold the data we're going to insert
+			Response candidate = new Response();
+			candidate.uuid = survey.uuid;
+			candidate.surveyId = survey.surveyId;
+			candidate.campaignUrn = mCampaignUrn;
+			candidate.username = survey.username;
+			candidate.date = survey.date;
+			candidate.timezone = survey.timezone;
+			candidate.time = survey.time;
+
+			// much of the location data is optional, missing values are left at 0 or null
+			candidate.locationStatus = survey.locationStatus;
+			if(!candidate.locationStatus.equals(SurveyGeotagService.LOCATION_UNAVAILABLE)) {
+				candidate.locationLatitude = survey.locationLatitude;
+				candidate.locationLongitude = survey.locationLongitude;
+				candidate.locationProvider = survey.locationProvider;
+				candidate.locationAccuracy = survey.locationAccuracy;
+				candidate.locationTime = survey.locationTime;
+			}
+
+			candidate.surveyLaunchContext = survey.getLaunchContext();
+			candidate.response = survey.getResponses();
+			candidate.status = Response.STATUS_DOWNLOADED;
+
+			// put the photo UUIDs into the list of photos that may or may not be on the device
+			for (String photo : survey.getPhotos()) {
+				if (!photo.equalsIgnoreCase(AbstractPrompt.NOT_DISPLAYED_VALUE) && !photo.equalsIgnoreCase(AbstractPrompt.SKIPPED_VALUE)) {
+					responsePhotos.add(new ResponseImage(candidate.campaignUrn, photo));
+				}
+			}
+
+			mOperations.add(ContentProviderOperation.newInsert(Responses.CONTENT_URI).withValues(candidate.toCV()));
+		}
+		
+		@Override
+		public void afterRead() {
+			Log.v(TAG, "Finished record read");
+		}
+		
+		@Override
+		public void readResult(Result result, String[] errorCodes) {
+			String error = null;
+			
+			switch (result) {
+				case FAILURE:			error = "survey response query failed";
+				case HTTP_ERROR:		error = "http error during request";
+				case INTERNAL_ERROR:	error = "internal error during request";
+			}
+			
+			if (error != null) {
+				Log.e(TAG, error);
+				return;
+			}
+
+			Intent intent = new Intent(ResponseSyncService.this, ResponseImageLoader.class);
+			intent.putExtra(ResponseImageLoader.EXTRA_IMAGES, responsePhotos);
+			startService(intent);
+		}
+	}
+}
@@ -0,0 +1,363 @@
+
+package org.ohmage.responsesync;
+
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+/**
+ * Decodes the records of a json-rows survey_response/read straight from the
+ * stream. Each record is read token by token into a {@link Record} which is
+ * reused for the next record, and the prompt responses are written out in the
+ * format SurveyActivity stores them in while they are read, so no json tree is
+ * built for the record.
+ */
+public class SurveyResponseDecoder {
+
+    private static final String SINGLE_CHOICE_CUSTOM = "single_choice_custom";
+    private static final String MULTI_CHOICE_CUSTOM = "multi_choice_custom";
+    private static final String PHOTO = "photo";
+
+    private final Record mRecord = new Record();
+
+    /** Holds the json of one prompt response until we know it has a value */
+    private final StringWriter mPromptJson = new StringWriter();
+
+    /** The glossary of the prompt being read as id, label pairs */
+    private final ArrayList<String> mGlossary = new ArrayList<String>();
+
+    /**
+     * Reads the next record from the reader. The record which is returned is
+     * reused, so it is only valid until the next call.
+     *
+     * @param reader positioned at the start of a record
+     * @return the record, or null if it was missing a required value in which
+     *         case the reader is still moved past it
+     * @throws IOException if the stream is not valid json
+     */
+    public Record decode(JsonReader reader) throws IOException {
+        Record r = mRecord;
+        r.reset();
+
+        boolean hasTime = false;
+        boolean hasResponses = false;
+        boolean hasLaunchContext = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("survey_key".equals(name)) {
+                r.uuid = nextString(reader);
+            } else if ("survey_id".equals(name)) {
+                r.surveyId = nextString(reader);
+            } else if ("user".equals(name)) {
+                r.username = nextString(reader);
+            } else if ("timestamp".equals(name)) {
+                r.date = nextString(reader);
+            } else if ("timezone".equals(name)) {
+                r.timezone = nextString(reader);
+            } else if ("time".equals(name)) {
+                hasTime = reader.peek() != JsonToken.NULL;
+                r.time = nextLong(reader);
+            } else if ("location_status".equals(name)) {
+                r.locationStatus = nextString(reader);
+            } else if ("latitude".equals(name)) {
+                r.locationLatitude = nextDouble(reader);
+            } else if ("longitude".equals(name)) {
+                r.locationLongitude = nextDouble(reader);
+            } else if ("location_provider".equals(name)) {
+                r.locationProvider = nextString(reader);
+            } else if ("location_accuracy".equals(name)) {
+                String accuracy = nextString(reader);
+                r.locationAccuracy = accuracy != null ? Float.parseFloat(accuracy) : 0;
+            } else if ("location_timestamp".equals(name)) {
+                // older servers send the location time as a date which we
+                // can't store, so it is left out like any other missing value
+                try {
+                    r.locationTime = nextLong(reader);
+                } catch (NumberFormatException e) {
+                    r.locationTime = 0;
+                }
+            } else if ("launch_context_long".equals(name)) {
+                r.launchContext.getBuffer().setLength(0);
+                copy(reader, newWriter(r.launchContext));
+                hasLaunchContext = true;
+            } else if ("responses".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readResponses(reader, r);
+                hasResponses = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (r.uuid == null || r.surveyId == null || r.username == null || r.date == null
+                || r.timezone == null || !hasTime || r.locationStatus == null
+                || !hasLaunchContext || !hasResponses)
+            return null;
+        return r;
+    }
+
+    /**
+     * Reads the responses object of a record and writes the prompts which
+     * have a value to {@link Record#responses} as a json array
+     */
+    private void readResponses(JsonReader reader, Record r) throws IOException {
+        StringBuffer out = r.responses.getBuffer();
+        out.append('[');
+        boolean first = true;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String promptId = reader.nextName();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+
+            mPromptJson.getBuffer().setLength(0);
+            JsonWriter prompt = newWriter(mPromptJson);
+            prompt.beginObject();
+            prompt.name("prompt_id").value(promptId);
+
+            String type = null;
+            String value = null;
+            boolean hasValue = false;
+            boolean hasGlossary = false;
+            mGlossary.clear();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("prompt_response".equals(name)) {
+                    prompt.name("value");
+                    if (reader.peek() == JsonToken.STRING) {
+                        value = reader.nextString();
+                        prompt.value(value);
+                    } else {
+                        copy(reader, prompt);
+                    }
+                    hasValue = true;
+                } else if ("prompt_type".equals(name)) {
+                    type = nextString(reader);
+                } else if ("prompt_choice_glossary".equals(name)
+                        && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    readGlossary(reader);
+                    hasGlossary = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!hasValue)
+                continue;
+
+            // custom choices are stored with the response since the campaign
+            // doesn't know about them
+            if (hasGlossary
+                    && (SINGLE_CHOICE_CUSTOM.equals(type) || MULTI_CHOICE_CUSTOM.equals(type))) {
+                prompt.name("custom_choices").beginArray();
+                for (int i = 0; i < mGlossary.size(); i += 2) {
+                    prompt.beginObject();
+                    prompt.name("choice_value").value(mGlossary.get(i + 1));
+                    prompt.name("choice_id").value(mGlossary.get(i));
+                    prompt.endObject();
+                }
+                prompt.endArray();
+            }
+            prompt.endObject();
+            prompt.flush();
+
+            if (!first)
+                out.append(',');
+            out.append(mPromptJson.getBuffer());
+            first = false;
+
+            if (value != null && PHOTO.equalsIgnoreCase(type))
+                r.photos.add(value);
+        }
+        reader.endObject();
+
+        out.append(']');
+    }
+
+    /**
+     * Reads the glossary into {@link #mGlossary}. The glossary maps each
+     * choice id to an object with the label of the choice.
+     */
+    private void readGlossary(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String choiceId = reader.nextName();
+            String label = null;
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("label".equals(reader.nextName()))
+                        label = nextString(reader);
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+            mGlossary.add(choiceId);
+            mGlossary.add(label);
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Copies the next value from the reader to the writer. Numbers are copied
+     * as they were written so none of their precision is lost.
+     */
+    private static void copy(JsonReader reader, JsonWriter writer) throws IOException {
+        int depth = 0;
+        do {
+            switch (reader.peek()) {
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    writer.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    reader.endArray();
+                    writer.endArray();
+                    depth--;
+                    break;
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    writer.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    writer.endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    writer.name(reader.nextName());
+                    break;
+                case STRING:
+                    writer.value(reader.nextString());
+                    break;
+                case NUMBER:
+                    writer.value(new LazilyParsedNumber(reader.nextString()));
+                    break;
+                case BOOLEAN:
+                    writer.value(reader.nextBoolean());
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    writer.nullValue();
+                    break;
+                default:
+                    throw new IOException("Unexpected end of document");
+            }
+        } while (depth > 0);
+        writer.flush();
+    }
+
+    /**
+     * Creates a writer which writes json the same way JsonElement#toString()
+     * does
+     */
+    private static JsonWriter newWriter(StringWriter out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true);
+        return writer;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static long nextLong(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+        return reader.nextLong();
+    }
+
+    private static double nextDouble(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+        return reader.nextDouble();
+    }
+
+    /**
+     * The values of one record. Fields which weren't in the record are left
+     * at their defaults.
+     */
+    public static class Record {
+        public String uuid;
+        public String surveyId;
+        public String username;
+        public String date;
+        public String timezone;
+        public long time;
+        public String locationStatus;
+        public double locationLatitude;
+        public double locationLongitude;
+        public String locationProvider;
+        public float locationAccuracy;
+        public long locationTime;
+
+        /** The launch context exactly as it was sent */
+        final StringWriter launchContext = new StringWriter();
+
+        /** The prompt responses in the format they are stored in */
+        final StringWriter responses = new StringWriter();
+
+        /** The values of the photo prompts, which may be skipped values */
+        final ArrayList<String> photos = new ArrayList<String>();
+
+        void reset() {
+            uuid = null;
+            surveyId = null;
+            username = null;
+            date = null;
+            timezone = null;
+            time = 0;
+            locationStatus = null;
+            locationLatitude = 0;
+            locationLongitude = 0;
+            locationProvider = null;
+            locationAccuracy = 0;
+            locationTime = 0;
+            launchContext.getBuffer().setLength(0);
+            responses.getBuffer().setLength(0);
+            photos.clear();
+        }
+
+        public String getLaunchContext() {
+            return launchContext.toString();
+        }
+
+        public String getResponses() {
+            return responses.toString();
+        }
+
+        /**
+         * @return the values of the photo prompts in this record, valid until
+         *         the next record is read
+         */
+        public ArrayList<String> getPhotos() {
+            return photos;
+        }
+    }
+}
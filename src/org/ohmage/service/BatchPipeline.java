@@ -0,0 +1,78 @@
+package org.ohmage.service;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads a sequence of batches, preparing each batch on another thread while
+ * the one before it is being uploaded. At most two batches exist at a time:
+ * the one being uploaded and the one after it.
+ *
+ * @param <B> the type of a prepared batch
+ */
+public class BatchPipeline<B> {
+
+    public interface Stage<B> {
+        /**
+         * Prepares the batch which comes after the given one. Called on one of
+         * the executor threads while the previous batch is being uploaded,
+         * except for the first batch.
+         *
+         * @param previous the previous batch, or null for the first one
+         * @return the batch, or null if there is nothing left to upload
+         * @throws IOException
+         */
+        public B prepare(B previous) throws IOException;
+
+        /**
+         * Uploads a batch
+         *
+         * @param batch
+         * @return false if no more batches should be uploaded
+         */
+        public boolean upload(B batch);
+    }
+
+    private final Stage<B> mStage;
+    private final ExecutorService mExecutor;
+
+    public BatchPipeline(Stage<B> stage, ExecutorService executor) {
+        mStage = stage;
+        mExecutor = executor;
+    }
+
+    /**
+     * Uploads batches until there are none left or an upload fails
+     *
+     * @throws IOException if the first batch could not be prepared
+     * @throws ExecutionException if a later batch could not be prepared
+     * @throws InterruptedException
+     */
+    public void run() throws IOException, ExecutionException, InterruptedException {
+        B current = mStage.prepare(null);
+        Future<B> next = null;
+        try {
+            while (current != null) {
+                final B previous = current;
+                next = mExecutor.submit(new Callable<B>() {
+                    @Override
+                    public B call() throws Exception {
+                        return mStage.prepare(previous);
+                    }
+                });
+
+                if (!mStage.upload(current))
+                    return;
+
+                current = next.get();
+                next = null;
+            }
+        } finally {
+            if (next != null)
+                next.cancel(true);
+        }
+    }
+}
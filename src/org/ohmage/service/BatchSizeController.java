@@ -0,0 +1,110 @@
+
+package org.ohmage.service;
+
+import org.ohmage.PreferenceStore;
+
+/**
+ * Chooses how many points to upload in each batch for an observer. The batch
+ * grows additively while uploads succeed quickly and is cut in half when an
+ * upload times out or fails with an http error. The learned size is saved in
+ * the {@link PreferenceStore} so the next upload starts where this one left
+ * off. Throughput is tracked as an exponentially weighted moving average.
+ * The upload thread and the thread preparing the next batch may use the same
+ * controller.
+ */
+public class BatchSizeController {
+
+    /** Number of points in the first batch for an observer **/
+    public static final int INITIAL_COUNT = 1000;
+
+    /** Number of bytes in the first batch for an observer **/
+    public static final long INITIAL_BYTES = 1024 * 512;
+
+    private static final int MIN_COUNT = 10;
+    private static final int MAX_COUNT = 5000;
+    private static final int COUNT_INCREMENT = 100;
+
+    private static final long MIN_BYTES = 1024 * 16;
+    private static final long MAX_BYTES = 1024 * 1024 * 4;
+    private static final long BYTES_INCREMENT = 1024 * 128;
+
+    /**
+     * Uploads which take longer than this many milliseconds don't grow the
+     * batch
+     */
+    private static final long TARGET_ROUND_TRIP = 5000;
+
+    /** Weight of the newest sample in the throughput average **/
+    private static final float THROUGHPUT_WEIGHT = 0.3f;
+
+    private final PreferenceStore mPrefs;
+    private final String mObserverId;
+
+    private int mCount;
+    private long mBytes;
+
+    public BatchSizeController(PreferenceStore prefs, String observerId) {
+        mPrefs = prefs;
+        mObserverId = observerId;
+        mCount = prefs.getUploadBatchCount(observerId, INITIAL_COUNT);
+        mBytes = prefs.getUploadBatchBytes(observerId, INITIAL_BYTES);
+    }
+
+    /**
+     * @return the maximum number of points in the next batch
+     */
+    public synchronized int getBatchCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the maximum number of bytes in the next batch
+     */
+    public synchronized long getBatchBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Called after a batch was accepted by the server
+     *
+     * @param points the number of points in the batch
+     * @param bytes the number of bytes in the batch
+     * @param roundTrip how long the upload took in milliseconds
+     */
+    public synchronized void onSuccess(int points, long bytes, long roundTrip) {
+        // Only grow if the batch was actually full, otherwise we know nothing
+        // about how larger batches would behave
+        boolean full = points >= mCount || bytes >= mBytes;
+        if (full && roundTrip < TARGET_ROUND_TRIP) {
+            mCount = Math.min(mCount + COUNT_INCREMENT, MAX_COUNT);
+            mBytes = Math.min(mBytes + BYTES_INCREMENT, MAX_BYTES);
+        }
+
+        float throughput = mPrefs.getUploadThroughput(mObserverId);
+        float sample = points * 1000f / Math.max(roundTrip, 1);
+        if (throughput > 0)
+            sample = THROUGHPUT_WEIGHT * sample + (1 - THROUGHPUT_WEIGHT) * throughput;
+
+        mPrefs.edit().putUploadBatchSize(mObserverId, mCount, mBytes)
+                .putUploadThroughput(mObserverId, sample).commit();
+    }
+
+    /**
+     * Called after a batch failed due to a timeout or http error
+     */
+    public synchronized void onError() {
+        mCount = Math.max(mCount / 2, MIN_COUNT);
+        mBytes = Math.max(mBytes / 2, MIN_BYTES);
+        mPrefs.edit().putUploadBatchSize(mObserverId, mCount, mBytes).commit();
+    }
+
+    /**
+     * @param prefs
+     * @param observerId
+     * @return the average number of points uploaded per second for this
+     *         observer, or 0 if nothing has been uploaded yet
+     */
+    public static float getThroughput(PreferenceStore prefs, String observerId) {
+        return prefs.getUploadThroughput(observerId);
+    }
+}
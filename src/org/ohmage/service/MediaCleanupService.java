@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.ohmage.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import com.commonsware.cwac.wakeful.WakefulIntentService;
+
+import org.ohmage.db.Models.Response;
+import org.ohmage.logprobe.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes the media of deleted responses in the background. The uuids of the
+ * media to delete are appended to a journal before the service is started, and
+ * the position in the journal up to which files have been deleted is saved
+ * after each batch, so files are still deleted if the process dies before the
+ * service gets to them. Files are deleted a batch at a time with a pause in
+ * between so a large cleanup doesn't hog the storage.
+ */
+public class MediaCleanupService extends WakefulIntentService {
+
+    private static final String TAG = "MediaCleanupService";
+
+    /** Journal of the uuids of media to delete, one per line */
+    private static final String JOURNAL = "media_cleanup";
+
+    private static final String PREFS = "media_cleanup";
+
+    /** Position in the journal up to which media has been deleted */
+    private static final String KEY_DONE = "done";
+
+    /** Number of files deleted before pausing */
+    private static final int DELETE_BATCH = 50;
+
+    /** Time to pause between batches */
+    private static final long BATCH_DELAY = 250;
+
+    /** Guards the journal, which is appended to from the provider */
+    private static final Object sLock = new Object();
+
+    public MediaCleanupService() {
+        super(TAG);
+    }
+
+    /**
+     * Adds media to the journal and starts the service to delete it
+     *
+     * @param context
+     * @param uuids the uuids of the media
+     */
+    public static void enqueue(Context context, List<String> uuids) {
+        if (uuids.isEmpty())
+            return;
+
+        synchronized (sLock) {
+            FileOutputStream out = null;
+            try {
+                out = context.openFileOutput(JOURNAL, Context.MODE_APPEND);
+                Writer writer = new OutputStreamWriter(out, "US-ASCII");
+                for (String uuid : uuids) {
+                    writer.write(uuid);
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.getFD().sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to save media to delete", e);
+                return;
+            } finally {
+                close(out);
+            }
+        }
+
+        sendWakefulWork(context, MediaCleanupService.class);
+    }
+
+    /**
+     * Starts the service if there is media left over from before the process
+     * was last killed
+     *
+     * @param context
+     */
+    public static void resume(Context context) {
+        if (context.getFileStreamPath(JOURNAL).length() > 0)
+            sendWakefulWork(context, MediaCleanupService.class);
+    }
+
+    @Override
+    protected void doWakefulWork(Intent intent) {
+        SharedPreferences prefs = getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        List<String> batch = new ArrayList<String>(DELETE_BATCH);
+
+        while (true) {
+            long done = prefs.getLong(KEY_DONE, 0);
+
+            batch.clear();
+            long next;
+            synchronized (sLock) {
+                next = readBatch(done, batch);
+                if (next == done) {
+                    // Everything in the journal is deleted, so start a new one.
+                    // If we die in between, the old journal is just read again.
+                    prefs.edit().remove(KEY_DONE).commit();
+                    deleteFile(JOURNAL);
+                    return;
+                }
+            }
+            if (next < 0)
+                return;
+
+            for (String uuid : batch) {
+                Response.getTemporaryResponsesMedia(uuid).delete();
+            }
+            prefs.edit().putLong(KEY_DONE, next).commit();
+
+            SystemClock.sleep(BATCH_DELAY);
+        }
+    }
+
+    /**
+     * Reads the next lines of the journal after the ones already handled
+     *
+     * @param offset the position in the journal up to which media was deleted
+     * @param batch filled with up to {@link #DELETE_BATCH} uuids
+     * @return the position after the lines which were read, the same position
+     *         if there is nothing left in the journal, or -1 if it couldn't be
+     *         read
+     */
+    private long readBatch(long offset, List<String> batch) {
+        File journal = getFileStreamPath(JOURNAL);
+        if (!journal.exists())
+            return offset;
+
+        RandomAccessFile reader = null;
+        try {
+            reader = new RandomAccessFile(journal, "r");
+            reader.seek(offset);
+            String line;
+            while (batch.size() < DELETE_BATCH && (line = reader.readLine()) != null) {
+                if (line.length() > 0)
+                    batch.add(line);
+            }
+            return reader.getFilePointer();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read media to delete", e);
+            return -1;
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.ohmage.service;
 
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.CharArrayBuffer;
@@ -30,16 +31,29 @@ import org.ohmage.Utilities;
 import org.ohmage.logprobe.Analytics;
 import org.ohmage.logprobe.Log;
 import org.ohmage.logprobe.LogProbe.Status;
+import org.ohmage.logprobe.OhmageAnalytics;
+import org.ohmage.probemanager.DbContract;
+import org.ohmage.probemanager.DbContract.Acks;
 import org.ohmage.probemanager.DbContract.BaseProbeColumns;
 import org.ohmage.probemanager.DbContract.Probe;
 import org.ohmage.probemanager.DbContract.Probes;
 import org.ohmage.probemanager.DbContract.Responses;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ProbeUploadService extends WakefulIntentService {
     private static final String TAG = "ProbeUploadService";
@@ -57,12 +71,6 @@ public class ProbeUploadService extends WakefulIntentService {
      */
     public static final String EXTRA_OBSERVER_VERSION = "extra_observer_version";
 
-    /** Uploaded in batches based on the size of the points **/
-    private static final long BATCH_MAX_SIZE_MB = 1024 * 256;
-
-    /** Uploaded in batches based on the number of points **/
-    private static final int BATCH_MAX_COUNT = 200;
-
     public static final String PROBE_UPLOAD_STARTED = "org.ohmage.PROBE_UPLOAD_STARTED";
     public static final String PROBE_UPLOAD_FINISHED = "org.ohmage.PROBE_UPLOAD_FINISHED";
     public static final String PROBE_UPLOAD_ERROR = "org.ohmage.PROBE_UPLOAD_ERROR";
@@ -75,6 +83,23 @@ public class ProbeUploadService extends WakefulIntentService {
 
     public static final String EXTRA_PROBE_ERROR = "extra_probe_error";
 
+    /**
+     * Number of observers which upload at the same time. Matches the number
+     * of connections the http client allows to a single server.
+     */
+    private static final int UPLOAD_THREADS = 2;
+
+    private static final ThreadFactory sUploadThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG + " #" + mCount.incrementAndGet());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+
     private static boolean mRunning;
 
     private OhmageApi mApi;
@@ -84,7 +109,7 @@ public class ProbeUploadService extends WakefulIntentService {
     /**
      * Set to true if there was any data which uploaded
      */
-    private boolean mUploadedData = false;
+    private volatile boolean mUploadedData = false;
 
     private AccountHelper mAccount;
     private PreferenceStore mPrefs;
@@ -135,6 +160,9 @@ public class ProbeUploadService extends WakefulIntentService {
         if (mObserverId != null)
             mObserverVersion = intent.getStringExtra(EXTRA_OBSERVER_VERSION);
 
+        // The api timings go out with the rest of the analytics points
+        OhmageAnalytics.apiStats();
+
         Log.v(TAG, "upload probes");
         ProbesUploader probesUploader = new ProbesUploader();
         probesUploader.upload();
@@ -202,9 +230,13 @@ public class ProbeUploadService extends WakefulIntentService {
 
             ArrayList<Probe> observers = queryObservers();
 
-            for (Probe o : observers) {
-                Log.d(TAG, "starting to upload " + o.observer_id + " v" + o.observer_version);
-                uploadBatches(o);
+            if (ConfigHelper.getPipelineProbeUploads() && observers.size() > 0)
+                uploadConcurrently(observers);
+            else {
+                for (Probe o : observers) {
+                    Log.d(TAG, "starting to upload " + o.observer_id + " v" + o.observer_version);
+                    uploadBatches(o);
+                }
             }
 
             Log.d(TAG, "total time: " + (System.currentTimeMillis() - start));
@@ -212,6 +244,49 @@ public class ProbeUploadService extends WakefulIntentService {
             uploadFinished();
         }
 
+        /**
+         * Uploads the observers in priority order, with up to
+         * {@link #UPLOAD_THREADS} observers uploading at the same time. The
+         * next batch for each observer is serialized while the previous one is
+         * in flight.
+         *
+         * @param observers
+         */
+        private void uploadConcurrently(ArrayList<Probe> observers) {
+            ExecutorService uploaders = Executors.newFixedThreadPool(UPLOAD_THREADS,
+                    sUploadThreadFactory);
+            final ExecutorService serializers = Executors.newFixedThreadPool(UPLOAD_THREADS,
+                    sUploadThreadFactory);
+
+            try {
+                ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+                for (final Probe o : observers) {
+                    tasks.add(uploaders.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.d(TAG, "starting to upload " + o.observer_id + " v"
+                                    + o.observer_version + " (priority " + o.upload_priority + ")");
+                            uploadPipelined(o, serializers);
+                        }
+                    }));
+                }
+
+                for (Future<?> task : tasks) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Error uploading observer", e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while uploading", e);
+                Thread.currentThread().interrupt();
+            } finally {
+                uploaders.shutdownNow();
+                serializers.shutdownNow();
+            }
+        }
+
         /**
          * Query for a list of observers which have data
          * 
@@ -233,17 +308,36 @@ public class ProbeUploadService extends WakefulIntentService {
             }
 
             Cursor observersCursor = getContentResolver().query(getContentURI(), new String[] {
-                    "distinct " + getNameColumn(), getVersionColumn()
+                    "distinct " + getNameColumn(), getVersionColumn(),
+                    BaseProbeColumns.UPLOAD_PRIORITY
             }, select, new String[] {
                 mAccountUsername
             }, null);
 
-
+            // An observer may have points with different priorities, in which
+            // case the highest one is used
+            HashMap<String, Probe> byName = new HashMap<String, Probe>();
             while (observersCursor.moveToNext()) {
-                observers
-                        .add(new Probe(observersCursor.getString(0), observersCursor.getString(1)));
+                String key = observersCursor.getString(0) + "\0" + observersCursor.getString(1);
+                Probe probe = byName.get(key);
+                if (probe == null) {
+                    probe = new Probe(observersCursor.getString(0), observersCursor.getString(1));
+                    probe.upload_priority = observersCursor.getInt(2);
+                    byName.put(key, probe);
+                    observers.add(probe);
+                } else {
+                    probe.upload_priority = Math.max(probe.upload_priority,
+                            observersCursor.getInt(2));
+                }
             }
             observersCursor.close();
+
+            Collections.sort(observers, new Comparator<Probe>() {
+                @Override
+                public int compare(Probe lhs, Probe rhs) {
+                    return rhs.upload_priority - lhs.upload_priority;
+                }
+            });
             return observers;
         }
 
@@ -255,45 +349,192 @@ public class ProbeUploadService extends WakefulIntentService {
          */
         protected void uploadBatches(Probe o) {
             DeletingCursor c = queryProbe(o);
+            BatchSizeController batch = new BatchSizeController(mPrefs, o.observer_id);
 
             int i = 0;
 
             while (i < c.getCount()) {
                 long startTime = System.currentTimeMillis();
-                ProbeWriterBody probeWriter = new ProbeWriterBody(this, c, BATCH_MAX_SIZE_MB,
-                        BATCH_MAX_COUNT);
-                if (!upload(o, probeWriter))
+                ProbeWriterBody probeWriter = new ProbeWriterBody(this, c,
+                        batch.getBatchBytes(), batch.getBatchCount());
+                if (!upload(o, probeWriter, batch))
                     break;
-                int uploadedCount = c.deleteMarkedIds(ProbeUploadService.this, getContentURI());
-                mUploadedData |= uploadedCount > 0;
-                Log.d(TAG,
-                        "uploaded batch of " + uploadedCount + " points in: "
-                                + (System.currentTimeMillis() - startTime));
+                long roundTrip = System.currentTimeMillis() - startTime;
+                int uploadedCount = c.acknowledgeMarkedIds(ProbeUploadService.this,
+                        createAck(o));
+                batch.onSuccess(uploadedCount, probeWriter.getWrittenBytes(), roundTrip);
+                if (uploadedCount > 0)
+                    mUploadedData = true;
+                Log.d(TAG, "uploaded batch of " + uploadedCount + " points in: " + roundTrip
+                        + " (" + BatchSizeController.getThroughput(mPrefs, o.observer_id)
+                        + " points/s)");
                 i += uploadedCount;
             }
 
             c.close();
         }
 
+        /**
+         * Uploads all the points for an observer. While a batch is being
+         * uploaded, the next one is read from the db and serialized on one of
+         * the serializer threads, so at most two batches of the size the
+         * {@link BatchSizeController} allows are held in memory per observer.
+         * Batches are read by id so a batch which fails to upload leaves the
+         * following ones untouched.
+         *
+         * @param o
+         * @param serializers
+         */
+        protected void uploadPipelined(final Probe o, ExecutorService serializers) {
+            final BatchSizeController batch = new BatchSizeController(mPrefs, o.observer_id);
+
+            BatchPipeline<PreparedBatch> pipeline = new BatchPipeline<PreparedBatch>(
+                    new BatchPipeline.Stage<PreparedBatch>() {
+
+                        @Override
+                        public PreparedBatch prepare(PreparedBatch previous) throws IOException {
+                            long afterId = previous == null ? queryAckedId(o) : previous
+                                    .getLastId();
+                            return prepareBatch(o, afterId, batch.getBatchCount(),
+                                    batch.getBatchBytes());
+                        }
+
+                        @Override
+                        public boolean upload(PreparedBatch current) {
+                            long startTime = System.currentTimeMillis();
+                            if (!Uploader.this.upload(o, current, batch))
+                                return false;
+                            long roundTrip = System.currentTimeMillis() - startTime;
+
+                            int uploadedCount = current.getCount();
+                            acknowledge(o, current.getLastId());
+                            batch.onSuccess(uploadedCount, current.getBytes(), roundTrip);
+                            mUploadedData = true;
+                            Log.d(TAG, "uploaded batch of " + uploadedCount + " points in: "
+                                    + roundTrip + " ("
+                                    + BatchSizeController.getThroughput(mPrefs, o.observer_id)
+                                    + " points/s)");
+                            return true;
+                        }
+                    }, serializers);
+
+            try {
+                pipeline.run();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to serialize batch for " + o.observer_id, e);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Unable to serialize batch for " + o.observer_id, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Reads and serializes the points which come after the given id
+         *
+         * @param o the observer
+         * @param afterId only points with a larger id are included
+         * @param maxCount
+         * @param maxBytes
+         * @return the serialized batch, or null if there are no more points
+         * @throws IOException
+         */
+        private PreparedBatch prepareBatch(Probe o, long afterId, int maxCount, long maxBytes)
+                throws IOException {
+            Cursor c = getContentResolver().query(
+                    getContentURI().buildUpon()
+                            .appendQueryParameter(DbContract.QUERY_PARAMETER_LIMIT,
+                                    String.valueOf(maxCount)).build(),
+                    getProjection(),
+                    BaseProbeColumns.USERNAME + "=? AND " + getNameColumn() + "=? AND "
+                            + getVersionColumn() + "=? AND " + BaseColumns._ID + ">" + afterId,
+                    new String[] {
+                            mAccountUsername, o.observer_id, o.observer_version
+                    }, BaseColumns._ID);
+
+            try {
+                PreparedBatch batch = PreparedBatch.read(this, c, maxBytes);
+                return batch.getCount() > 0 ? batch : null;
+            } finally {
+                c.close();
+            }
+        }
+
         private DeletingCursor queryProbe(Probe o) {
+            // Sorted by id so an ack for the last uploaded point covers
+            // exactly the points which were uploaded
             return new DeletingCursor(getContentResolver().query(
                     getContentURI(),
                     getProjection(),
                     BaseProbeColumns.USERNAME + "=? AND " + getNameColumn() + "=? AND "
-                            + getVersionColumn() + "=?", new String[] {
+                            + getVersionColumn() + "=? AND " + BaseColumns._ID + ">"
+                            + queryAckedId(o), new String[] {
                             mAccountUsername, o.observer_id, o.observer_version
-                    }, null));
+                    }, BaseColumns._ID));
+        }
+
+        /**
+         * Creates the values which identify this observer in an ack
+         *
+         * @param o
+         * @return the ack values without an id
+         */
+        private ContentValues createAck(Probe o) {
+            ContentValues values = new ContentValues();
+            values.put(Acks.KIND, getContentURI().getLastPathSegment());
+            values.put(Acks.NAME, o.observer_id);
+            values.put(Acks.VERSION, o.observer_version);
+            values.put(Acks.USERNAME, mAccountUsername);
+            return values;
+        }
+
+        /**
+         * Marks all points for this observer up to the given id as uploaded,
+         * which deletes them
+         *
+         * @param o
+         * @param ackedId
+         */
+        private void acknowledge(Probe o, long ackedId) {
+            ContentValues values = createAck(o);
+            values.put(Acks.ACKED_ID, ackedId);
+            getContentResolver().insert(Acks.CONTENT_URI, values);
+        }
+
+        /**
+         * Finds the last point which is known to have been uploaded for this
+         * observer. Points up to this id may still exist if the process was
+         * killed before they could be deleted, but they must not be uploaded
+         * again.
+         *
+         * @param o
+         * @return the last acknowledged id or -1
+         */
+        private long queryAckedId(Probe o) {
+            Cursor c = getContentResolver().query(Acks.CONTENT_URI, new String[] {
+                Acks.ACKED_ID
+            }, Acks.KIND + "=? AND " + Acks.NAME + "=? AND " + Acks.VERSION + "=? AND "
+                    + Acks.USERNAME + "=?", new String[] {
+                    getContentURI().getLastPathSegment(), o.observer_id, o.observer_version,
+                    mAccountUsername
+            }, null);
+            try {
+                return c.moveToFirst() ? c.getLong(0) : -1;
+            } finally {
+                c.close();
+            }
         }
 
         /**
          * Uploads probes to the server
          * 
-         * @param probes the probe json
-         * @param c the cursor object
+         * @param observer the observer the data belongs to
+         * @param data the probe json
+         * @param batch is told about http errors so it can shrink the batch
          * @return false only if there was an error which indicates we shouldn't
          *         continue uploading
          */
-        private boolean upload(Probe observer, JsonContentBody data) {
+        private boolean upload(Probe observer, JsonContentBody data, BatchSizeController batch) {
 
             String username = mAccount.getUsername();
             if(!Utilities.checkUserLoggedInForTask(TAG) || username == null) {
@@ -308,8 +549,9 @@ public class ProbeUploadService extends WakefulIntentService {
             response.handleError(ProbeUploadService.this);
 
             if (response.getResult().equals(OhmageApi.Result.HTTP_ERROR)) {
-                Log.d(TAG, "failed due to http error (max_mb:" + BATCH_MAX_SIZE_MB
-                        + ", max_points:" + BATCH_MAX_COUNT + ")");
+                Log.d(TAG, "failed due to http error (max_bytes:" + batch.getBatchBytes()
+                        + ", max_points:" + batch.getBatchCount() + ")");
+                batch.onError();
             }
 
             if (response.getResult().equals(OhmageApi.Result.FAILURE)) {
@@ -510,9 +752,95 @@ public class ProbeUploadService extends WakefulIntentService {
         }
     }
 
+    /**
+     * A batch of points which has already been serialized
+     */
+    public static class PreparedBatch extends JsonContentBody {
+
+        private final byte[] mJson;
+        private final int mCount;
+        private final long mLastId;
+        private final long mBytes;
+
+        private PreparedBatch(byte[] json, int count, long lastId, long bytes) {
+            mJson = json;
+            mCount = count;
+            mLastId = lastId;
+            mBytes = bytes;
+        }
+
+        /**
+         * Serializes points from the cursor until the batch holds at least
+         * {@code maxBytes} of point data or the cursor runs out
+         *
+         * @param uploader
+         * @param c
+         * @param maxBytes
+         * @return the batch
+         * @throws IOException
+         */
+        static PreparedBatch read(Uploader uploader, Cursor c, long maxBytes) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CustomJsonWriter writer = new CustomJsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            long size = maxBytes;
+            int count = 0;
+            long lastId = -1;
+            writer.beginArray();
+            // Note the moveToNext call must be last, otherwise it will
+            // assume it was added to the batch
+            while (size > 0 && c.moveToNext()) {
+                size -= uploader.createProbe(c, writer);
+                lastId = c.getLong(0);
+                count++;
+            }
+            writer.endArray();
+            writer.flush();
+            return new PreparedBatch(out.toByteArray(), count, lastId, maxBytes - size);
+        }
+
+        /**
+         * @return the number of points in this batch
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the id of the last point in this batch
+         */
+        public long getLastId() {
+            return mLastId;
+        }
+
+        /**
+         * @return the number of bytes of point data in this batch
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mJson.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(mJson);
+            out.flush();
+        }
+
+        @Override
+        protected void writeJson(CustomJsonWriter writer) throws IOException {
+            // writeTo() sends the serialized bytes as they are
+            throw new UnsupportedOperationException();
+        }
+    }
+
     public static class ProbeWriterBody extends JsonContentBody {
 
         private final DeletingCursor mCursor;
+        private final long mMaxSize;
         private long mSize;
         private final Uploader mUploader;
         private int mNum;
@@ -520,30 +848,31 @@ public class ProbeUploadService extends WakefulIntentService {
         public ProbeWriterBody(Uploader uploader, DeletingCursor c, long size, int num) {
             mUploader = uploader;
             mCursor = c;
+            mMaxSize = size;
             mSize = size;
             mNum = num;
         }
 
-        @Override
-        protected void writeJson(CustomJsonWriter writer) {
-            try {
+        /**
+         * @return the number of bytes of point data written to the request
+         */
+        public long getWrittenBytes() {
+            return mMaxSize - mSize;
+        }
 
-                writer.beginArray();
-                // Note the moveToNext call must be last, otherwise it will
-                // assume it was added to the batch
-                while (mSize > 0 && mNum > 0 && mCursor.moveToNext()) {
-                    try {
-                        mSize -= mUploader.createProbe(mCursor, writer);
-                    } catch (IOException e) {
-                        Log.e(TAG, "There was an error creating a probe");
-                    }
-                    mNum--;
-                }
-                writer.endArray();
-                writer.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "there was an error uploading probes", e);
+        @Override
+        protected void writeJson(CustomJsonWriter writer) throws IOException {
+            // Points are written straight to the connection, so an error here
+            // means the request failed and must be passed on to the client
+            writer.beginArray();
+            // Note the moveToNext call must be last, otherwise it will
+            // assume it was added to the batch
+            while (mSize > 0 && mNum > 0 && mCursor.moveToNext()) {
+                mSize -= mUploader.createProbe(mCursor, writer);
+                mNum--;
             }
+            writer.endArray();
+            writer.flush();
         }
     }
 
@@ -563,25 +892,23 @@ public class ProbeUploadService extends WakefulIntentService {
             mCount = mCursor.getCount();
         }
 
-        public int deleteMarkedIds(Context context, Uri contentUri) {
-            StringBuilder deleteString = new StringBuilder();
+        /**
+         * Acknowledges the points which have been read since the last call.
+         * Since the cursor is sorted by id, a single ack for the last id
+         * covers all of them.
+         *
+         * @param context
+         * @param ack the {@link Acks} values identifying the observer
+         * @return the number of points acknowledged
+         */
+        public int acknowledgeMarkedIds(Context context, ContentValues ack) {
+            if (ids.isEmpty())
+                return 0;
 
-            // Deleting this batch of points. We can only delete
-            // with a maximum expression tree depth of 1000
-            int batch = 0;
-            for (Long id : ids) {
-                if (deleteString.length() != 0)
-                    deleteString.append(" OR ");
-                deleteString.append(BaseColumns._ID + "=" + id);
-                batch++;
+            ContentValues values = new ContentValues(ack);
+            values.put(Acks.ACKED_ID, ids.getLast());
+            context.getContentResolver().insert(Acks.CONTENT_URI, values);
 
-                // If we have 1000 Expressions or we are at the last
-                // point, delete them
-                if ((batch % (1000 - 2) == 0) || batch == ids.size()) {
-                    context.getContentResolver().delete(contentUri, deleteString.toString(), null);
-                    deleteString = new StringBuilder();
-                }
-            }
             int count = ids.size();
             mDeleted += count;
             ids.clear();
@@ -842,6 +1169,6 @@ public class ProbeUploadService extends WakefulIntentService {
             writeJson(writer);
         }
 
-        protected abstract void writeJson(CustomJsonWriter writer);
+        protected abstract void writeJson(CustomJsonWriter writer) throws IOException;
     }
 }
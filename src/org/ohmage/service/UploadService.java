@@ -3,9 +3,13 @@ package org.ohmage.service;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 import com.google.gson.JsonArray;
@@ -17,6 +21,7 @@ import org.ohmage.ConfigHelper;
 import org.ohmage.NotificationHelper;
 import org.ohmage.OhmageApi;
 import org.ohmage.OhmageApi.MediaPart;
+import org.ohmage.OhmageApi.Result;
 import org.ohmage.db.DbContract.Campaigns;
 import org.ohmage.db.DbContract.PromptResponses;
 import org.ohmage.db.DbContract.Responses;
@@ -32,6 +37,9 @@ import org.ohmage.prompt.media.MediaPrompt;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
 
 public class UploadService extends WakefulIntentService {
 
@@ -40,10 +48,43 @@ public class UploadService extends WakefulIntentService {
 
     private static final String TAG = "UploadService";
 
+    /** Maximum number of responses sent in one upload request */
+    private static final int MAX_BATCH_COUNT = 20;
+
+    /** Maximum number of bytes of media sent in one upload request */
+    private static final long MAX_BATCH_MEDIA_BYTES = 1024 * 1024 * 5;
+
+    /**
+     * Responses with at least this much media are always sent on their own so
+     * a failed transfer doesn't hold back the responses around them
+     */
+    private static final long LARGE_MEDIA_BYTES = 1024 * 1024;
+
+    /**
+     * Number of times a request with less than {@link #LARGE_MEDIA_BYTES} of
+     * media is sent before giving up
+     */
+    private static final int MAX_MEDIA_ATTEMPTS = 3;
+
+    /** Time to wait before sending a request with media again */
+    private static final long MEDIA_RETRY_DELAY = 5 * 1000;
+
+    /** Longest time a background upload waits before sending large media again */
+    private static final long MAX_MEDIA_BACKOFF = 6 * 60 * 60 * 1000;
+
+    /**
+     * Preferences holding the number of failed uploads of each response with
+     * large media, keyed by the response uuid. Entries are removed once the
+     * response is sent or deleted.
+     */
+    private static final String MEDIA_FAILURES_PREFS = "upload_media_failures";
+
     private OhmageApi mApi;
 
     private boolean isBackground;
 
+    private boolean mUploadErrorOccurred;
+
     public UploadService() {
         super(TAG);
     }
@@ -73,7 +114,7 @@ public class UploadService extends WakefulIntentService {
         AccountHelper helper = new AccountHelper(this);
         String username = helper.getUsername();
         String hashedPassword = helper.getAuthToken();
-        boolean uploadErrorOccurred = false;
+        mUploadErrorOccurred = false;
 
         Uri dataUri = intent.getData();
         if (!Responses.isResponseUri(dataUri)) {
@@ -106,7 +147,8 @@ public class UploadService extends WakefulIntentService {
                 Responses.RESPONSE_STATUS + "!=" + Response.STATUS_UPLOADED + " AND " +
                 Responses.RESPONSE_STATUS + "!=" + Response.STATUS_WAITING_FOR_LOCATION;
 
-        Cursor cursor = cr.query(dataUri, projection, select, null, null);
+        Cursor cursor = cr.query(dataUri, projection, select, null, Tables.RESPONSES + "."
+                + Responses.CAMPAIGN_URN);
 
         // If there is no data we should just return
         if (cursor == null)
@@ -120,154 +162,402 @@ public class UploadService extends WakefulIntentService {
         cv.put(Responses.RESPONSE_STATUS, Response.STATUS_QUEUED);
         cr.update(dataUri, cv, select, null);
 
-        for (int i = 0; i < cursor.getCount(); i++) {
+        // Collect the responses for each campaign into groups which are sent
+        // together. The cursor is sorted by campaign so each group only needs
+        // to look at consecutive rows.
+        JsonParser parser = new JsonParser();
+        ArrayList<PendingResponse> group = new ArrayList<PendingResponse>(MAX_BATCH_COUNT);
+        String campaignUrn = null;
+        String campaignCreationTimestamp = null;
+
+        while (!cursor.isAfterLast()) {
+            String urn = cursor.getString(cursor.getColumnIndex(Responses.CAMPAIGN_URN));
+            if (!group.isEmpty()
+                    && (!urn.equals(campaignUrn) || group.size() >= MAX_BATCH_COUNT)) {
+                uploadGroup(serverUrl, username, hashedPassword, campaignUrn,
+                        campaignCreationTimestamp, group);
+                group.clear();
+            }
 
-            long responseId = cursor.getLong(cursor.getColumnIndex(Responses._ID));
+            campaignUrn = urn;
+            campaignCreationTimestamp = cursor.getString(cursor
+                    .getColumnIndex(Campaigns.CAMPAIGN_CREATED));
+            group.add(readResponse(cursor, parser));
+            cursor.moveToNext();
+        }
 
-            ContentValues values = new ContentValues();
-            values.put(Responses.RESPONSE_STATUS, Response.STATUS_UPLOADING);
-            cr.update(Responses.buildResponseUri(responseId), values, null, null);
-            // cr.update(Responses.CONTENT_URI, values, Tables.RESPONSES + "." +
-            // Responses._ID + "=" + responseId, null);
-
-            JsonParser parser = new JsonParser();
-            JsonArray responsesJsonArray = new JsonArray();
-            JsonObject responseJson = new JsonObject();
-            final ArrayList<MediaPart> media = new ArrayList<MediaPart>();
-
-            OhmageApi.UploadResponse response = null;
-
-            responseJson.addProperty("survey_key",
-                    cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_UUID)));
-            responseJson.addProperty("time",
-                    cursor.getLong(cursor.getColumnIndex(Responses.RESPONSE_TIME)));
-            responseJson.addProperty("timezone",
+        if (!group.isEmpty())
+            uploadGroup(serverUrl, username, hashedPassword, campaignUrn,
+                    campaignCreationTimestamp, group);
+
+        cursor.close();
+
+        if (isBackground && mUploadErrorOccurred) {
+            NotificationHelper.showUploadErrorNotification(this);
+        }
+    }
+
+    /**
+     * Creates the json the server expects for the response at the current
+     * position of the cursor
+     *
+     * @param cursor
+     * @param parser
+     * @return the response waiting to be uploaded
+     */
+    private PendingResponse readResponse(Cursor cursor, JsonParser parser) {
+        JsonObject responseJson = new JsonObject();
+
+        responseJson.addProperty("survey_key",
+                cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_UUID)));
+        responseJson.addProperty("time",
+                cursor.getLong(cursor.getColumnIndex(Responses.RESPONSE_TIME)));
+        responseJson.addProperty("timezone",
+                cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_TIMEZONE)));
+        String locationStatus = cursor.getString(cursor
+                .getColumnIndex(Responses.RESPONSE_LOCATION_STATUS));
+        responseJson.addProperty("location_status", locationStatus);
+        if (locationStatus.equals(SurveyGeotagService.LOCATION_VALID)) {
+            JsonObject locationJson = new JsonObject();
+            locationJson.addProperty("latitude", cursor.getDouble(cursor
+                    .getColumnIndex(Responses.RESPONSE_LOCATION_LATITUDE)));
+            locationJson.addProperty("longitude", cursor.getDouble(cursor
+                    .getColumnIndex(Responses.RESPONSE_LOCATION_LONGITUDE)));
+            String provider = cursor.getString(cursor
+                    .getColumnIndex(Responses.RESPONSE_LOCATION_PROVIDER));
+            locationJson.addProperty("provider", provider);
+            Log.i(TAG, "Response uploaded with " + provider + " location");
+            locationJson.addProperty("accuracy", cursor.getFloat(cursor
+                    .getColumnIndex(Responses.RESPONSE_LOCATION_ACCURACY)));
+            locationJson.addProperty("time",
+                    cursor.getLong(cursor.getColumnIndex(Responses.RESPONSE_LOCATION_TIME)));
+            locationJson.addProperty("timezone",
                     cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_TIMEZONE)));
-            String locationStatus = cursor.getString(cursor
-                    .getColumnIndex(Responses.RESPONSE_LOCATION_STATUS));
-            responseJson.addProperty("location_status", locationStatus);
-            if (locationStatus.equals(SurveyGeotagService.LOCATION_VALID)) {
-                JsonObject locationJson = new JsonObject();
-                locationJson.addProperty("latitude", cursor.getDouble(cursor
-                        .getColumnIndex(Responses.RESPONSE_LOCATION_LATITUDE)));
-                locationJson.addProperty("longitude", cursor.getDouble(cursor
-                        .getColumnIndex(Responses.RESPONSE_LOCATION_LONGITUDE)));
-                String provider = cursor.getString(cursor
-                        .getColumnIndex(Responses.RESPONSE_LOCATION_PROVIDER));
-                locationJson.addProperty("provider", provider);
-                Log.i(TAG, "Response uploaded with " + provider + " location");
-                locationJson.addProperty("accuracy", cursor.getFloat(cursor
-                        .getColumnIndex(Responses.RESPONSE_LOCATION_ACCURACY)));
-                locationJson.addProperty("time",
-                        cursor.getLong(cursor.getColumnIndex(Responses.RESPONSE_LOCATION_TIME)));
-                locationJson.addProperty("timezone",
-                        cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_TIMEZONE)));
-                responseJson.add("location", locationJson);
-            } else {
-                Log.w(TAG, "Response uploaded without a location");
+            responseJson.add("location", locationJson);
+        } else {
+            Log.w(TAG, "Response uploaded without a location");
+        }
+        responseJson.addProperty("survey_id",
+                cursor.getString(cursor.getColumnIndex(Responses.SURVEY_ID)));
+        responseJson.add("survey_launch_context", parser.parse(cursor.getString(cursor
+                .getColumnIndex(Responses.RESPONSE_SURVEY_LAUNCH_CONTEXT))));
+        responseJson.add("responses",
+                parser.parse(cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_JSON))));
+
+        return new PendingResponse(cursor.getLong(cursor.getColumnIndex(Responses._ID)),
+                cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_UUID)), responseJson);
+    }
+
+    /**
+     * Uploads a group of responses from the same campaign. The media for the
+     * whole group is found with one query, then the group is split into
+     * batches which stay under {@link #MAX_BATCH_MEDIA_BYTES}.
+     */
+    private void uploadGroup(String serverUrl, String username, String hashedPassword,
+            String campaignUrn, String campaignCreationTimestamp, List<PendingResponse> group) {
+        findMedia(group);
+
+        HashMap<Integer, ArrayList<Long>> statuses = new HashMap<Integer, ArrayList<Long>>();
+        ArrayList<PendingResponse> batch = new ArrayList<PendingResponse>(group.size());
+        long mediaBytes = 0;
+
+        for (PendingResponse r : group) {
+            if (r.missingMedia) {
+                putStatus(statuses, Response.STATUS_MISSING_MEDIA, r);
+                continue;
             }
-            responseJson.addProperty("survey_id",
-                    cursor.getString(cursor.getColumnIndex(Responses.SURVEY_ID)));
-            responseJson.add("survey_launch_context", parser.parse(cursor.getString(cursor
-                    .getColumnIndex(Responses.RESPONSE_SURVEY_LAUNCH_CONTEXT))));
-            responseJson.add("responses",
-                    parser.parse(cursor.getString(cursor.getColumnIndex(Responses.RESPONSE_JSON))));
-
-            ContentResolver cr2 = getContentResolver();
-            Cursor promptsCursor = cr2.query(Responses.buildPromptResponsesUri(responseId),
-                    new String[] {
-                            PromptResponses.PROMPT_RESPONSE_VALUE, SurveyPrompts.SURVEY_PROMPT_TYPE
-                    }, PromptResponses.PROMPT_RESPONSE_VALUE + "!=? AND "
-                            + PromptResponses.PROMPT_RESPONSE_VALUE + "!=? AND ("
-                            + SurveyPrompts.SURVEY_PROMPT_TYPE + "=? OR "
-                            + SurveyPrompts.SURVEY_PROMPT_TYPE + "=? OR "
-                            + SurveyPrompts.SURVEY_PROMPT_TYPE + "=?)", new String[] {
-                            AbstractPrompt.SKIPPED_VALUE, AbstractPrompt.NOT_DISPLAYED_VALUE,
-                            PromptFactory.PHOTO, PromptFactory.VIDEO, PromptFactory.AUDIO
-                    }, null);
-
-            boolean missingMedia = false;
-            while (promptsCursor.moveToNext()) {
-                String filename = promptsCursor.getString(0);
-                if(MediaPrompt.isValue(filename)) {
-                    File m = new File(Response.getResponseMediaUploadDir(), filename);
-                    if (!m.exists()) {
-                        missingMedia = true;
-                        break;
-                    }
-                    media.add(new MediaPart(m, promptsCursor.getString(1)));
+
+            if (r.mediaBytes >= LARGE_MEDIA_BYTES) {
+                if (isBackground && isBackingOff(r)) {
+                    putStatus(statuses, Response.STATUS_ERROR_HTTP, r);
+                    continue;
                 }
+
+                // Sent on its own so other responses don't wait on its media
+                ArrayList<PendingResponse> single = new ArrayList<PendingResponse>(1);
+                single.add(r);
+                uploadBatch(serverUrl, username, hashedPassword, campaignUrn,
+                        campaignCreationTimestamp, single, statuses);
+                continue;
             }
 
-            promptsCursor.close();
-            int responseStatus = Response.STATUS_ERROR_OTHER;
-
-            if (!missingMedia) {
-
-                responsesJsonArray.add(responseJson);
-
-                String campaignUrn = cursor
-                        .getString(cursor.getColumnIndex(Responses.CAMPAIGN_URN));
-                String campaignCreationTimestamp = cursor.getString(cursor
-                        .getColumnIndex(Campaigns.CAMPAIGN_CREATED));
-
-                response = mApi.surveyUpload(serverUrl, username, hashedPassword,
-                        OhmageApi.CLIENT_NAME, campaignUrn, campaignCreationTimestamp,
-                        responsesJsonArray.toString(), media);
-                response.handleError(this);
-
-                switch (response.getResult()) {
-                    case SUCCESS:
-                        NotificationHelper.hideUploadErrorNotification(this);
-                        responseStatus = Response.STATUS_UPLOADED;
-                        break;
-
-                    case FAILURE:
-                        if (response.hasAuthError()) {
-                            responseStatus = Response.STATUS_ERROR_AUTHENTICATION;
-                        } else {
-                            uploadErrorOccurred = true;
-
-                            if (response.getErrorCodes().contains("0700")) {
-                                responseStatus = Response.STATUS_ERROR_CAMPAIGN_NO_EXIST;
-                            } else if (response.getErrorCodes().contains("0707")) {
-                                responseStatus = Response.STATUS_ERROR_INVALID_USER_ROLE;
-                            } else if (response.getErrorCodes().contains("0703")) {
-                                responseStatus = Response.STATUS_ERROR_CAMPAIGN_STOPPED;
-                            } else if (response.getErrorCodes().contains("0710")) {
-                                responseStatus = Response.STATUS_ERROR_CAMPAIGN_OUT_OF_DATE;
-                            }
-                        }
-
-                        break;
-
-                    case INTERNAL_ERROR:
-                        uploadErrorOccurred = true;
-                        break;
-
-                    case HTTP_ERROR:
-                        responseStatus = Response.STATUS_ERROR_HTTP;
-                        break;
+            if (!batch.isEmpty() && mediaBytes + r.mediaBytes > MAX_BATCH_MEDIA_BYTES) {
+                uploadBatch(serverUrl, username, hashedPassword, campaignUrn,
+                        campaignCreationTimestamp, batch, statuses);
+                batch.clear();
+                mediaBytes = 0;
+            }
+            batch.add(r);
+            mediaBytes += r.mediaBytes;
+        }
+
+        if (!batch.isEmpty())
+            uploadBatch(serverUrl, username, hashedPassword, campaignUrn,
+                    campaignCreationTimestamp, batch, statuses);
+        else
+            updateStatuses(statuses);
+    }
+
+    /**
+     * Marks the batch as uploading, sends it and saves the resulting statuses
+     */
+    private void uploadBatch(String serverUrl, String username, String hashedPassword,
+            String campaignUrn, String campaignCreationTimestamp, List<PendingResponse> batch,
+            HashMap<Integer, ArrayList<Long>> statuses) {
+        HashMap<Integer, ArrayList<Long>> uploading = new HashMap<Integer, ArrayList<Long>>();
+        for (PendingResponse r : batch)
+            putStatus(uploading, Response.STATUS_UPLOADING, r);
+        updateStatuses(uploading);
+
+        upload(serverUrl, username, hashedPassword, campaignUrn, campaignCreationTimestamp,
+                batch, statuses);
+        for (PendingResponse r : batch) {
+            if (r.mediaBytes >= LARGE_MEDIA_BYTES)
+                recordMediaUpload(r, statuses);
+        }
+        updateStatuses(statuses);
+        statuses.clear();
+    }
+
+    /**
+     * Sends the batch in a single request and works out the status of each
+     * response from the result. The server accepts or rejects a request as a
+     * whole, so if a batch fails for a reason which isn't about the campaign
+     * or the account it is split in half to find the responses which caused
+     * it.
+     */
+    private void upload(String serverUrl, String username, String hashedPassword,
+            String campaignUrn, String campaignCreationTimestamp, List<PendingResponse> batch,
+            HashMap<Integer, ArrayList<Long>> statuses) {
+        JsonArray responsesJsonArray = new JsonArray();
+        ArrayList<MediaPart> media = new ArrayList<MediaPart>();
+        long mediaBytes = 0;
+        for (PendingResponse r : batch) {
+            responsesJsonArray.add(r.json);
+            media.addAll(r.media);
+            mediaBytes += r.mediaBytes;
+        }
+
+        // The server has no way to continue a partial request, so a request
+        // with a little media which was cut off by the network is sent again
+        // from the start a few times before the responses are left for the
+        // next upload. Large media is only sent again after backing off.
+        boolean retry = !media.isEmpty() && mediaBytes < LARGE_MEDIA_BYTES;
+        OhmageApi.UploadResponse response = null;
+        for (int attempt = 1;; attempt++) {
+            response = mApi.surveyUpload(serverUrl, username, hashedPassword,
+                    OhmageApi.CLIENT_NAME, campaignUrn, campaignCreationTimestamp,
+                    responsesJsonArray.toString(), media);
+            if (response.getResult() != Result.HTTP_ERROR || !retry
+                    || attempt >= MAX_MEDIA_ATTEMPTS)
+                break;
+
+            Log.w(TAG, "Upload with media failed, trying again (attempt " + attempt + ")");
+            SystemClock.sleep(MEDIA_RETRY_DELAY << (attempt - 1));
+        }
+        response.handleError(this);
+
+        int responseStatus = Response.STATUS_ERROR_OTHER;
+
+        switch (response.getResult()) {
+            case SUCCESS:
+                NotificationHelper.hideUploadErrorNotification(this);
+                responseStatus = Response.STATUS_UPLOADED;
+                break;
+
+            case FAILURE:
+                if (response.hasAuthError()) {
+                    responseStatus = Response.STATUS_ERROR_AUTHENTICATION;
+                } else {
+                    mUploadErrorOccurred = true;
+
+                    if (response.getErrorCodes().contains("0700")) {
+                        responseStatus = Response.STATUS_ERROR_CAMPAIGN_NO_EXIST;
+                    } else if (response.getErrorCodes().contains("0707")) {
+                        responseStatus = Response.STATUS_ERROR_INVALID_USER_ROLE;
+                    } else if (response.getErrorCodes().contains("0703")) {
+                        responseStatus = Response.STATUS_ERROR_CAMPAIGN_STOPPED;
+                    } else if (response.getErrorCodes().contains("0710")) {
+                        responseStatus = Response.STATUS_ERROR_CAMPAIGN_OUT_OF_DATE;
+                    } else if (batch.size() > 1) {
+                        int half = batch.size() / 2;
+                        upload(serverUrl, username, hashedPassword, campaignUrn,
+                                campaignCreationTimestamp, batch.subList(0, half), statuses);
+                        upload(serverUrl, username, hashedPassword, campaignUrn,
+                                campaignCreationTimestamp, batch.subList(half, batch.size()),
+                                statuses);
+                        return;
+                    }
                 }
-            } else {
-                responseStatus = Response.STATUS_MISSING_MEDIA;
+
+                break;
+
+            case INTERNAL_ERROR:
+                mUploadErrorOccurred = true;
+                break;
+
+            case HTTP_ERROR:
+                responseStatus = Response.STATUS_ERROR_HTTP;
+                break;
+        }
+
+        for (PendingResponse r : batch)
+            putStatus(statuses, responseStatus, r);
+    }
+
+    /**
+     * Finds the media files for a group of responses with a single query
+     *
+     * @param group
+     */
+    private void findMedia(List<PendingResponse> group) {
+        HashMap<Long, PendingResponse> byId = new HashMap<Long, PendingResponse>();
+        for (PendingResponse r : group)
+            byId.put(r.id, r);
+
+        Cursor promptsCursor = getContentResolver().query(PromptResponses.CONTENT_URI,
+                new String[] {
+                        PromptResponses.RESPONSE_ID, PromptResponses.PROMPT_RESPONSE_VALUE,
+                        SurveyPrompts.SURVEY_PROMPT_TYPE
+                }, PromptResponses.RESPONSE_ID + " IN (" + TextUtils.join(",", byId.keySet())
+                        + ") AND " + PromptResponses.PROMPT_RESPONSE_VALUE + "!=? AND "
+                        + PromptResponses.PROMPT_RESPONSE_VALUE + "!=? AND ("
+                        + SurveyPrompts.SURVEY_PROMPT_TYPE + "=? OR "
+                        + SurveyPrompts.SURVEY_PROMPT_TYPE + "=? OR "
+                        + SurveyPrompts.SURVEY_PROMPT_TYPE + "=?)", new String[] {
+                        AbstractPrompt.SKIPPED_VALUE, AbstractPrompt.NOT_DISPLAYED_VALUE,
+                        PromptFactory.PHOTO, PromptFactory.VIDEO, PromptFactory.AUDIO
+                }, null);
+
+        if (promptsCursor == null)
+            return;
+
+        while (promptsCursor.moveToNext()) {
+            PendingResponse r = byId.get(promptsCursor.getLong(0));
+            String filename = promptsCursor.getString(1);
+            if (r == null || r.missingMedia || !MediaPrompt.isValue(filename))
+                continue;
+
+            File m = new File(Response.getResponseMediaUploadDir(), filename);
+            if (!m.exists()) {
+                r.missingMedia = true;
+                continue;
             }
+            r.media.add(new MediaPart(m, promptsCursor.getString(2)));
+            r.mediaBytes += m.length();
+        }
 
-            ContentValues cv2 = new ContentValues();
-            cv2.put(Responses.RESPONSE_STATUS, responseStatus);
-            cr.update(Responses.buildResponseUri(responseId), cv2, null, null);
+        promptsCursor.close();
+    }
 
-            cursor.moveToNext();
+    /**
+     * Checks if a background upload should wait before sending the large media
+     * of a response again. Each failed upload doubles the wait, starting from
+     * {@link #MEDIA_RETRY_DELAY}, up to {@link #MAX_MEDIA_BACKOFF}.
+     */
+    private boolean isBackingOff(PendingResponse r) {
+        SharedPreferences prefs = getSharedPreferences(MEDIA_FAILURES_PREFS, MODE_PRIVATE);
+        int failures = prefs.getInt(r.uuid, 0);
+        if (failures == 0)
+            return false;
+
+        long backoff = MAX_MEDIA_BACKOFF;
+        if (failures < 32)
+            backoff = Math.min(MAX_MEDIA_BACKOFF, MEDIA_RETRY_DELAY << failures);
+        long lastAttempt = prefs.getLong(r.uuid + ".time", 0);
+        long now = System.currentTimeMillis();
+        return lastAttempt <= now && now < lastAttempt + backoff;
+    }
+
+    /**
+     * Remembers whether the large media of a response failed to upload so
+     * background uploads back off from it, or forgets it once it is sent
+     */
+    private void recordMediaUpload(PendingResponse r, HashMap<Integer, ArrayList<Long>> statuses) {
+        SharedPreferences prefs = getSharedPreferences(MEDIA_FAILURES_PREFS, MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        ArrayList<Long> failed = statuses.get(Response.STATUS_ERROR_HTTP);
+        if (failed != null && failed.contains(r.id)) {
+            editor.putInt(r.uuid, prefs.getInt(r.uuid, 0) + 1);
+            editor.putLong(r.uuid + ".time", System.currentTimeMillis());
+        } else {
+            editor.remove(r.uuid);
+            editor.remove(r.uuid + ".time");
         }
+        editor.commit();
+    }
 
-        cursor.close();
+    /**
+     * Forgets the failed uploads of responses which were deleted
+     *
+     * @param context
+     * @param uuids the uuids of the deleted responses
+     */
+    public static void forgetMediaFailures(Context context, List<String> uuids) {
+        SharedPreferences prefs = context.getSharedPreferences(MEDIA_FAILURES_PREFS,
+                MODE_PRIVATE);
+        SharedPreferences.Editor editor = null;
+        for (String uuid : uuids) {
+            if (prefs.contains(uuid)) {
+                if (editor == null)
+                    editor = prefs.edit();
+                editor.remove(uuid);
+                editor.remove(uuid + ".time");
+            }
+        }
+        if (editor != null)
+            editor.commit();
+    }
 
-        if (isBackground && uploadErrorOccurred) {
-            NotificationHelper.showUploadErrorNotification(this);
+    private static void putStatus(HashMap<Integer, ArrayList<Long>> statuses, int status,
+            PendingResponse response) {
+        ArrayList<Long> ids = statuses.get(status);
+        if (ids == null) {
+            ids = new ArrayList<Long>();
+            statuses.put(status, ids);
+        }
+        ids.add(response.id);
+    }
+
+    /**
+     * Saves the statuses with one update for each distinct status
+     *
+     * @param statuses
+     */
+    private void updateStatuses(HashMap<Integer, ArrayList<Long>> statuses) {
+        ContentResolver cr = getContentResolver();
+        for (Entry<Integer, ArrayList<Long>> status : statuses.entrySet()) {
+            ContentValues values = new ContentValues();
+            values.put(Responses.RESPONSE_STATUS, status.getKey());
+
+            ArrayList<Long> ids = status.getValue();
+            if (ids.size() == 1)
+                cr.update(Responses.buildResponseUri(ids.get(0)), values, null, null);
+            else
+                cr.update(Responses.CONTENT_URI, values, Responses._ID + " IN ("
+                        + TextUtils.join(",", ids) + ")", null);
         }
     }
 
     public void setOhmageApi(OhmageApi api) {
         mApi = api;
     }
+
+    /**
+     * A response which has been read from the db and is waiting to be sent
+     */
+    private static class PendingResponse {
+        final long id;
+        final String uuid;
+        final JsonObject json;
+        final ArrayList<MediaPart> media = new ArrayList<MediaPart>();
+        long mediaBytes;
+        boolean missingMedia;
+
+        public PendingResponse(long id, String uuid, JsonObject json) {
+            this.id = id;
+            this.uuid = uuid;
+            this.json = json;
+        }
+    }
 }
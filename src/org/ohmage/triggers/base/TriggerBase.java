@@ -86,25 +86,11 @@ public abstract class TriggerBase {
 	
 		Log.v(TAG, "TriggerBase: getAllTriggerIds()");
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		
-		//Query the triggers of this type
-		Cursor c = db.getTriggers(campaignUrn, this.getTriggerType());
 		LinkedList<Integer> ids = new LinkedList<Integer>();
-		
-		//Populate the list
-		if(c.moveToFirst()) {
-			do {
-				ids.add(c.getInt(
-				 		c.getColumnIndexOrThrow(TriggerDB.KEY_ID)));	
-				
-			} while(c.moveToNext());
+		for(TriggerRegistry.Entry trig : TriggerRegistry.getTriggers(
+								context, campaignUrn, this.getTriggerType())) {
+			ids.add(trig.getId());
 		}
-			
-				
-		c.close();
-		db.close();
 		
 		return ids;
 	}
@@ -113,44 +99,19 @@ public abstract class TriggerBase {
 	 * Get the list of ids of all the active triggers for a specific campaign. A trigger
 	 * is active if it has at least one survey associated with it.
 	 * 
-	 * Note: This function can be optimized by storing the action
-	 * count separately in the db.
 	 */
 	public LinkedList<Integer> getAllActiveTriggerIds(Context context, String campaignUrn) {
 		Log.v(TAG, "TriggerBase: getAllActiveTriggerIds()");
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		
-		//Get the triggers of this type
-		Cursor c = db.getTriggers(campaignUrn, this.getTriggerType());
 		LinkedList<Integer> ids =  new LinkedList<Integer>();
-		
-		//Iterate through the list of all triggers of this type
-		if(c.moveToFirst()) {
-			do {
-				String actDesc = c.getString(
-								 c.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_ACTION_DESCRIPT));
-				
-				TriggerActionDesc desc = new TriggerActionDesc();
-				if(!desc.loadString(actDesc)) {
-					continue;
-				}
-				
-				//Add the trigger id to the list if there is at least
-				//one survey associated with this trigger
-				if(desc.getCount() > 0) {
-				
-					ids.add(c.getInt(
-					 		c.getColumnIndexOrThrow(TriggerDB.KEY_ID)));	
-				}
-				
-			} while(c.moveToNext());
+		for(TriggerRegistry.Entry trig : TriggerRegistry.getTriggers(
+								context, campaignUrn, this.getTriggerType())) {
+			//Add the trigger id to the list if there is at least
+			//one survey associated with this trigger
+			if(trig.isActive()) {
+				ids.add(trig.getId());
+			}
 		}
-			
-				
-		c.close();
-		db.close();
 	
 		return ids;
 	}
@@ -163,28 +124,13 @@ public abstract class TriggerBase {
 	public String getTrigger(Context context, int trigId) {
 		Log.v(TAG, "TriggerBase: getTrigger(" + trigId + ")");
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-	
-		String ret = null;
-		Cursor c = db.getTrigger(trigId);
-		if(c.moveToFirst()) {
-			
-			ret = c.getString(
-				  c.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_DESCRIPT));
-		}
-		
-		c.close();
-		db.close();
-		return ret;
+		TriggerRegistry.Entry trig = TriggerRegistry.getTrigger(context, trigId);
+		return trig != null ? trig.getTriggerDescription() : null;
 	}
 	
 	public String getCampaignUrn(Context context, int trigId) {
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		String campaignUrn = db.getCampaignUrn(trigId); 
-		db.close();
-		return campaignUrn;
+		TriggerRegistry.Entry trig = TriggerRegistry.getTrigger(context, trigId);
+		return trig != null ? trig.getCampaignUrn() : null;
 	}
 	
 	/*
@@ -198,24 +144,8 @@ public abstract class TriggerBase {
 	public long getTriggerLatestTimeStamp(Context context, int trigId) {
 		Log.v(TAG, "TriggerBase: getTriggerLatestTimeStamp(" + trigId + ")");
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-	
-		long ret = -1;
-		Cursor c = db.getTrigger(trigId);
-		if(c.moveToFirst()) {
-			
-			String rtDesc = c.getString(
-							c.getColumnIndexOrThrow(TriggerDB.KEY_RUNTIME_DESCRIPT));
-			TriggerRunTimeDesc desc = new TriggerRunTimeDesc();
-			if(desc.loadString(rtDesc)) {
-				ret = desc.getTriggerTimeStamp();
-			}
-		}
-		
-		c.close();
-		db.close();
-		return ret;
+		TriggerRegistry.Entry trig = TriggerRegistry.getTrigger(context, trigId);
+		return trig != null ? trig.getTriggerTimeStamp() : -1;
 	}
 	
 	/*
@@ -117,7 +117,9 @@ public class TriggerDB {
 		values.put(KEY_NOTIF_DESCRIPT, notifDescript);
 		values.put(KEY_RUNTIME_DESCRIPT, rtDescript);
 
-		return mDb.insert(TABLE_TRIGGERS, null, values);
+		long trigId = mDb.insert(TABLE_TRIGGERS, null, values);
+		TriggerRegistry.invalidate();
+		return trigId;
 	}
 	
 	/*
@@ -177,15 +179,15 @@ public class TriggerDB {
 //						 null, null, null);
 //	}
 //	
-//	/*
-//	 * Get all triggers in the system
-//	 */
-//	public Cursor getAllTriggers() {
-//		Log.v(DEBUG_TAG, "DB: getAllTriggers");
-//		
-//		return mDb.query(TABLE_TRIGGERS, null, null, 
-//				null, null, null, null);
-//	}
+	/*
+	 * Get all triggers in the system
+	 */
+	public Cursor getAllTriggers() {
+		Log.v(TAG, "DB: getAllTriggers");
+		
+		return mDb.query(TABLE_TRIGGERS, null, null, 
+				null, null, null, null);
+	}
 	
 	/*
 	 * Get the notification description for a trigger
@@ -311,13 +313,12 @@ public class TriggerDB {
 		ContentValues values = new ContentValues();
 		values.put(KEY_TRIG_DESCRIPT, newDesc);
 		
-		if(mDb.update(TABLE_TRIGGERS, values, 
+		int count = mDb.update(TABLE_TRIGGERS, values, 
 					  KEY_ID + "=?", 
-					  new String[]{ String.valueOf(trigId)}) != 1) {
-			return false;
-		}
+					  new String[]{ String.valueOf(trigId)});
+		TriggerRegistry.invalidate();
 		
-		return true;
+		return count == 1;
 	}
 	
 	/*
@@ -330,13 +331,12 @@ public class TriggerDB {
 		ContentValues values = new ContentValues();
 		values.put(KEY_TRIG_ACTION_DESCRIPT, newDesc);
 		
-		if(mDb.update(TABLE_TRIGGERS, values, 
+		int count = mDb.update(TABLE_TRIGGERS, values, 
 					  KEY_ID + "=?", 
-					  new String[]{ String.valueOf(trigId)}) != 1) {
-			return false;
-		}
+					  new String[]{ String.valueOf(trigId)});
+		TriggerRegistry.invalidate();
 		
-		return true;
+		return count == 1;
 	}
 
 	/*
@@ -349,13 +349,12 @@ public class TriggerDB {
 		ContentValues values = new ContentValues();
 		values.put(KEY_RUNTIME_DESCRIPT, newDesc);
 		
-		if(mDb.update(TABLE_TRIGGERS, values, 
+		int count = mDb.update(TABLE_TRIGGERS, values, 
 					  KEY_ID + "=?", 
-					  new String[]{ String.valueOf(trigId)}) != 1) {
-			return false;
-		}
+					  new String[]{ String.valueOf(trigId)});
+		TriggerRegistry.invalidate();
 		
-		return true;
+		return count == 1;
 	}
 	
 //	/*
@@ -383,6 +382,7 @@ public class TriggerDB {
 		values.put(KEY_NOTIF_DESCRIPT, newDesc);
 		
 		mDb.update(TABLE_TRIGGERS, values, null, null);
+		TriggerRegistry.invalidate();
 		return true;
 	}
 	
@@ -394,6 +394,7 @@ public class TriggerDB {
 		
 		mDb.delete(TABLE_TRIGGERS, KEY_ID + "=?", 
 				   new String[] {String.valueOf(trigId)});
+		TriggerRegistry.invalidate();
 
 		return true;
 	}
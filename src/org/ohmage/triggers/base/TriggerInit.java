@@ -29,6 +29,7 @@ import org.ohmage.db.Models.Campaign;
 import org.ohmage.logprobe.Log;
 import org.ohmage.triggers.config.NotifConfig;
 import org.ohmage.triggers.notif.NotifDesc;
+import org.ohmage.triggers.notif.NotifSurveyAdaptor;
 import org.ohmage.triggers.notif.Notifier;
 import org.ohmage.triggers.types.location.LocTrigMapsActivity;
 import org.ohmage.triggers.types.location.LocationTrigger;
@@ -150,6 +151,7 @@ public class TriggerInit {
 		
 		//Clear all preference files registered with the preference manager
 		TrigPrefManager.clearPreferenceFiles(context, campaignUrn);
+		NotifSurveyAdaptor.invalidateSurveysTaken(campaignUrn);
 		
 		return true;
 	}
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohmage.triggers.base;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import org.ohmage.logprobe.Log;
+import org.ohmage.triggers.notif.NotifDesc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Process wide copy of the trigger db. All the triggers are read
+ * and their descriptors parsed the first time any of them is asked
+ * for, and the copy is kept until the db is written to. TriggerDB
+ * invalidates the registry after every write, so the next lookup
+ * reloads it.
+ *
+ * The entries are immutable and may be shared between threads.
+ * A trigger keeps the same entry across reloads until its row
+ * changes, so callers may cache values computed from an entry
+ * for as long as they get the same entry back.
+ */
+public class TriggerRegistry {
+
+	private static final String TAG = "TriggerFramework";
+
+	private static final List<Entry> EMPTY = Collections.emptyList();
+
+	/* The loaded triggers, null if they have to be reloaded.
+	 * Guarded by the class lock. */
+	private static Snapshot sSnapshot;
+
+	/* The triggers before the last invalidate(). Unchanged
+	 * triggers are reused from it so an entry is only replaced
+	 * when its row changes. Guarded by the class lock. */
+	private static Snapshot sStale;
+
+	/*
+	 * Get a trigger given its id. Returns null if there is
+	 * no such trigger.
+	 */
+	public static Entry getTrigger(Context context, int trigId) {
+		return getSnapshot(context).mById.get(trigId);
+	}
+
+	/*
+	 * Get all the triggers of a campaign
+	 */
+	public static List<Entry> getTriggers(Context context, String campaignUrn) {
+		List<Entry> ret = getSnapshot(context).mByCampaign.get(campaignUrn);
+		return ret != null ? ret : EMPTY;
+	}
+
+	/*
+	 * Get all the triggers of a type for a campaign
+	 */
+	public static List<Entry> getTriggers(Context context, String campaignUrn,
+										  String trigType) {
+		List<Entry> ret = getSnapshot(context).mByCampaignType.get(
+								typeKey(campaignUrn, trigType));
+		return ret != null ? ret : EMPTY;
+	}
+
+	/*
+	 * Get all the triggers of a type in every campaign
+	 */
+	public static List<Entry> getTriggersOfType(Context context, String trigType) {
+		List<Entry> ret = getSnapshot(context).mByType.get(trigType);
+		return ret != null ? ret : EMPTY;
+	}
+
+	/*
+	 * Drop the loaded triggers. Must be called after every
+	 * change to the trigger db.
+	 */
+	public static synchronized void invalidate() {
+		if(sSnapshot != null) {
+			sStale = sSnapshot;
+		}
+		sSnapshot = null;
+	}
+
+	/*
+	 * Loading while holding the lock makes an invalidate() which
+	 * follows a write wait for any load that may have read the
+	 * db before the write, so a stale copy is never kept.
+	 */
+	private static synchronized Snapshot getSnapshot(Context context) {
+		if(sSnapshot == null) {
+			Snapshot snapshot = load(context.getApplicationContext());
+			if(snapshot == null) {
+				//Don't keep the empty copy, try again next time
+				return new Snapshot();
+			}
+			sSnapshot = snapshot;
+			sStale = null;
+		}
+
+		return sSnapshot;
+	}
+
+	private static Snapshot load(Context context) {
+		Log.v(TAG, "TriggerRegistry: loading triggers");
+
+		TriggerDB db = new TriggerDB(context);
+		if(!db.open()) {
+			return null;
+		}
+
+		Snapshot snapshot = new Snapshot();
+
+		Cursor c = db.getAllTriggers();
+		if(c.moveToFirst()) {
+			int idCol = c.getColumnIndexOrThrow(TriggerDB.KEY_ID);
+			int campaignCol = c.getColumnIndexOrThrow(TriggerDB.KEY_CAMPAIGN_URN);
+			int typeCol = c.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_TYPE);
+			int trigCol = c.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_DESCRIPT);
+			int actCol = c.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_ACTION_DESCRIPT);
+			int notifCol = c.getColumnIndexOrThrow(TriggerDB.KEY_NOTIF_DESCRIPT);
+			int rtCol = c.getColumnIndexOrThrow(TriggerDB.KEY_RUNTIME_DESCRIPT);
+
+			do {
+				int id = c.getInt(idCol);
+				String campaignUrn = c.getString(campaignCol);
+				String trigType = c.getString(typeCol);
+				String trigDesc = c.getString(trigCol);
+				String actDesc = c.getString(actCol);
+				String notifDesc = c.getString(notifCol);
+				String rtDesc = c.getString(rtCol);
+
+				Entry entry = (sStale != null) ? sStale.mById.get(id) : null;
+				if(entry == null || !entry.hasRow(campaignUrn, trigType, trigDesc,
+												  actDesc, notifDesc, rtDesc)) {
+					entry = new Entry(id, campaignUrn, trigType, trigDesc,
+									  actDesc, notifDesc, rtDesc);
+				}
+				snapshot.add(entry);
+			} while(c.moveToNext());
+		}
+		c.close();
+		db.close();
+
+		snapshot.seal();
+		return snapshot;
+	}
+
+	private static String typeKey(String campaignUrn, String trigType) {
+		return campaignUrn + '\n' + trigType;
+	}
+
+	private static class Snapshot {
+		private final SparseArray<Entry> mById = new SparseArray<Entry>();
+		private final HashMap<String, List<Entry>> mByCampaign
+								= new HashMap<String, List<Entry>>();
+		private final HashMap<String, List<Entry>> mByCampaignType
+								= new HashMap<String, List<Entry>>();
+		private final HashMap<String, List<Entry>> mByType
+								= new HashMap<String, List<Entry>>();
+
+		private void add(Entry entry) {
+			mById.put(entry.getId(), entry);
+			addTo(mByCampaign, entry.getCampaignUrn(), entry);
+			addTo(mByCampaignType,
+				  typeKey(entry.getCampaignUrn(), entry.getTriggerType()), entry);
+			addTo(mByType, entry.getTriggerType(), entry);
+		}
+
+		/* Make the lists read only before the snapshot is shared */
+		private void seal() {
+			seal(mByCampaign);
+			seal(mByCampaignType);
+			seal(mByType);
+		}
+
+		private static void addTo(HashMap<String, List<Entry>> index,
+								  String key, Entry entry) {
+			List<Entry> list = index.get(key);
+			if(list == null) {
+				list = new ArrayList<Entry>();
+				index.put(key, list);
+			}
+			list.add(entry);
+		}
+
+		private static void seal(HashMap<String, List<Entry>> index) {
+			for(String key : index.keySet()) {
+				index.put(key, Collections.unmodifiableList(index.get(key)));
+			}
+		}
+	}
+
+	/*
+	 * A row of the trigger db along with the values parsed
+	 * from its descriptors
+	 */
+	public static class Entry {
+		private final int mId;
+		private final String mCampaignUrn;
+		private final String mTrigType;
+		private final String mTrigDesc;
+		private final String mActDesc;
+		private final String mNotifDesc;
+		private final String mRTDesc;
+
+		//Null if the action description failed to parse
+		private final String[] mSurveys;
+		//Null if the run time description failed to parse
+		private final Long mTrigTimeStamp;
+		//Duration and suppression window in minutes, null if
+		//the notification description failed to parse
+		private final int[] mNotif;
+
+		private Entry(int id, String campaignUrn, String trigType,
+					  String trigDesc, String actDesc,
+					  String notifDesc, String rtDesc) {
+			mId = id;
+			mCampaignUrn = campaignUrn;
+			mTrigType = trigType;
+			mTrigDesc = trigDesc;
+			mActDesc = actDesc;
+			mNotifDesc = notifDesc;
+			mRTDesc = rtDesc;
+
+			TriggerActionDesc act = new TriggerActionDesc();
+			mSurveys = act.loadString(actDesc) ? act.getSurveys() : null;
+
+			TriggerRunTimeDesc rt = new TriggerRunTimeDesc();
+			mTrigTimeStamp = rt.loadString(rtDesc) ? rt.getTriggerTimeStamp() : null;
+
+			NotifDesc notif = new NotifDesc();
+			mNotif = notif.loadString(notifDesc)
+				   ? new int[] {notif.getDuration(), notif.getSuppression()} : null;
+		}
+
+		/*
+		 * Check if the row this entry was read from
+		 * still has the same values
+		 */
+		private boolean hasRow(String campaignUrn, String trigType,
+							   String trigDesc, String actDesc,
+							   String notifDesc, String rtDesc) {
+			return TextUtils.equals(mCampaignUrn, campaignUrn)
+				&& TextUtils.equals(mTrigType, trigType)
+				&& TextUtils.equals(mTrigDesc, trigDesc)
+				&& TextUtils.equals(mActDesc, actDesc)
+				&& TextUtils.equals(mNotifDesc, notifDesc)
+				&& TextUtils.equals(mRTDesc, rtDesc);
+		}
+
+		public int getId() {
+			return mId;
+		}
+
+		public String getCampaignUrn() {
+			return mCampaignUrn;
+		}
+
+		public String getTriggerType() {
+			return mTrigType;
+		}
+
+		public String getTriggerDescription() {
+			return mTrigDesc;
+		}
+
+		public String getActionDescription() {
+			return mActDesc;
+		}
+
+		public String getNotifDescription() {
+			return mNotifDesc;
+		}
+
+		public String getRunTimeDescription() {
+			return mRTDesc;
+		}
+
+		public boolean hasValidActionDesc() {
+			return mSurveys != null;
+		}
+
+		public boolean hasValidRunTimeDesc() {
+			return mTrigTimeStamp != null;
+		}
+
+		public boolean hasValidNotifDesc() {
+			return mNotif != null;
+		}
+
+		/*
+		 * Check if all the descriptors used to decide whether
+		 * the trigger is active could be parsed
+		 */
+		public boolean hasValidDescriptors() {
+			return hasValidActionDesc() && hasValidRunTimeDesc() && hasValidNotifDesc();
+		}
+
+		/*
+		 * A trigger is active if it has at least one survey
+		 * associated with it
+		 */
+		public boolean isActive() {
+			return mSurveys != null && mSurveys.length > 0;
+		}
+
+		/*
+		 * Get the surveys in the action description, or an
+		 * empty array if it failed to parse
+		 */
+		public String[] getSurveys() {
+			return mSurveys != null ? mSurveys.clone() : new String[0];
+		}
+
+		/*
+		 * Check if a survey is in the action description
+		 */
+		public boolean hasSurvey(String survey) {
+			if(mSurveys != null) {
+				for(String s : mSurveys) {
+					if(s.equals(survey)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		/*
+		 * Get the time the trigger went off the last time.
+		 * Returns -1 if it has not gone off or the run time
+		 * description failed to parse.
+		 */
+		public long getTriggerTimeStamp() {
+			return mTrigTimeStamp != null ? mTrigTimeStamp
+										  : TriggerRunTimeDesc.INVALID_TIMESTAMP;
+		}
+
+		/*
+		 * Get the notification duration in minutes
+		 */
+		public int getNotifDuration() {
+			return mNotif != null ? mNotif[0] : 0;
+		}
+
+		/*
+		 * Get the suppression window in minutes
+		 */
+		public int getNotifSuppression() {
+			return mNotif != null ? mNotif[1] : 0;
+		}
+	}
+}
@@ -17,21 +17,23 @@ package org.ohmage.triggers.notif;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.database.Cursor;
+import android.util.SparseArray;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.ohmage.logprobe.Log;
-import org.ohmage.triggers.base.TriggerActionDesc;
 import org.ohmage.triggers.base.TriggerBase;
-import org.ohmage.triggers.base.TriggerDB;
+import org.ohmage.triggers.base.TriggerRegistry;
 import org.ohmage.triggers.base.TriggerRunTimeDesc;
 import org.ohmage.triggers.base.TriggerTypeMap;
 import org.ohmage.triggers.utils.TrigPrefManager;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 
 /*
@@ -60,6 +62,37 @@ public class NotifSurveyAdaptor {
 	private static final String KEY_UNTAKEN_SURVEYS = "surveys_not_taken";
 	private static final String KEY_CAMPAIGN_URN = "campaign_urn";
 	
+	/* In memory copy of the survey taken time stamps of each campaign,
+	 * loaded from the preferences the first time a campaign is used.
+	 * Guarded by the class lock. */
+	private static final HashMap<String, SurveysTaken> sSurveysTaken 
+								= new HashMap<String, SurveysTaken>();
+	
+	/* The last set of active surveys computed for each trigger.
+	 * Guarded by the class lock. */
+	private static final SparseArray<ActiveSurveys> sActiveSurveys 
+								= new SparseArray<ActiveSurveys>();
+	
+	/*
+	 * Get the active surveys of a trigger. The set computed the last
+	 * time is reused as long as the trigger and the survey taken time
+	 * stamps of its campaign have not changed and it has not reached
+	 * the time the set changes on its own. 
+	 */
+	private static synchronized Set<String> getActiveSurveys(Context context, 
+															 TriggerRegistry.Entry trig) {
+		long now = System.currentTimeMillis();
+		SurveysTaken taken = getSurveysTaken(context, trig.getCampaignUrn());
+		
+		ActiveSurveys act = sActiveSurveys.get(trig.getId());
+		if(act == null || !act.isValid(trig, taken, now)) {
+			act = computeActiveSurveys(trig, taken, now);
+			sActiveSurveys.put(trig.getId(), act);
+		}
+		
+		return act.mSurveys;
+	}
+	
 	/*
 	 * Helper function to prepare the list of active surveys corresponding 
 	 * to trigger. 
@@ -71,102 +104,116 @@ public class NotifSurveyAdaptor {
 	 * 	- EXCEPT those which have already been taken by the user within
 	 * 	  the suppression window. 
 	 */
-	private static HashSet<String> getActiveSurveys(Context context, Cursor trig) {
+	private static ActiveSurveys computeActiveSurveys(TriggerRegistry.Entry trig, 
+													  SurveysTaken taken, long now) {
 		
 		HashSet<String> actSurveys = new HashSet<String>();
 		
-		String runTime = trig.getString(
-						 trig.getColumnIndexOrThrow(TriggerDB.KEY_RUNTIME_DESCRIPT));
-		
-		String notif = trig.getString(
-					   trig.getColumnIndexOrThrow(TriggerDB.KEY_NOTIF_DESCRIPT));
-		
-		String actions = trig.getString(
-						 trig.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_ACTION_DESCRIPT));
-		
-		String campaignUrn = trig.getString(
-				 trig.getColumnIndexOrThrow(TriggerDB.KEY_CAMPAIGN_URN));
-	
 		Log.v(TAG, "NotifSurveyAdaptor: Calculating active surveys for trigger");
 		
-		TriggerRunTimeDesc rtDesc = new TriggerRunTimeDesc();
-		NotifDesc notifDesc = new NotifDesc();
-		TriggerActionDesc actDesc = new TriggerActionDesc();
-		
-		if(!rtDesc.loadString(runTime) || 
-		   !notifDesc.loadString(notif) || 
-		   !actDesc.loadString(actions)) {
+		if(!trig.hasValidDescriptors()) {
 				
 			Log.e(TAG, "NotifSurveyAdaptor: Descritptor(s) failed to parse");
 			
-			return actSurveys;
+			return new ActiveSurveys(trig, taken, now, Long.MAX_VALUE, actSurveys);
 		}
 		
-		if(!rtDesc.hasTriggerTimeStamp()) {
+		if(trig.getTriggerTimeStamp() == TriggerRunTimeDesc.INVALID_TIMESTAMP) {
 			Log.v(TAG, "NotifSurveyAdaptor: Trigger has not gone off");
 			
-			return actSurveys;
+			return new ActiveSurveys(trig, taken, now, Long.MAX_VALUE, actSurveys);
 		}
 		
-		long now = System.currentTimeMillis();
-		long trigTS = rtDesc.getTriggerTimeStamp();
+		long trigTS = trig.getTriggerTimeStamp();
 			
 		if(trigTS > now) {
 			Log.e(TAG, "NotifSurveyAdaptor: Trigger time stamp is in the future!");
-			return actSurveys;
+			return new ActiveSurveys(trig, taken, now, trigTS, actSurveys);
 		}
 		
 		//How long it has been since the trigger went off
 		long elapsedMS = now - trigTS;
 		
-		long durationMS = notifDesc.getDuration() * 60000;
-		long suppressMS = notifDesc.getSuppression() * 60000;  
+		long durationMS = trig.getNotifDuration() * 60000;
+		long suppressMS = trig.getNotifSuppression() * 60000;  
 
 		if(elapsedMS < durationMS) {
 			
 			//The trigger has not expired, check each survey
 			
-			String[] surveys = actDesc.getSurveys();
+			String[] surveys = trig.getSurveys();
 			for(int i = 0; i < surveys.length; i++) {
 			
 				//Has the survey been taken in within the 
 				//suppression window?
-				if(IsSurveyTaken(context, campaignUrn, surveys[i], 
-							     trigTS - suppressMS)) {
+				if(taken.isTaken(surveys[i], trigTS - suppressMS)) {
 					continue;
 				}
 				
 				//Add the active survey to the set
 				actSurveys.add(surveys[i]);
 			}
+			
+			//The surveys stay active until the trigger expires
+			return new ActiveSurveys(trig, taken, now, trigTS + durationMS, actSurveys);
 		}
 		
-		return actSurveys;
+		return new ActiveSurveys(trig, taken, now, Long.MAX_VALUE, actSurveys);
 	}
 	
 	/*
 	 * Utility function to check if a survey has been taken
 	 * by the user since a given time. This function checks 
-	 * the time stamp of the survey stored in shared preferences.
+	 * the in memory copy of the time stamps stored in shared 
+	 * preferences.
 	 */
-	private static boolean IsSurveyTaken(Context context, 
-										 String campaignUrn,
-							      		 String survey, 
-							      		 long since) {
-		
-		SharedPreferences pref = context.getSharedPreferences(
-				 				NotifSurveyAdaptor.class.getName() + "_" + campaignUrn, 
-				 				Context.MODE_PRIVATE);
+	private static synchronized boolean IsSurveyTaken(Context context, 
+													  String campaignUrn,
+										      		  String survey, 
+										      		  long since) {
 		
-		if(!pref.contains(survey)) {
-			return false;
-		}
-		
-		if(pref.getLong(survey, 0) <= since) {
-			return false;
+		return getSurveysTaken(context, campaignUrn).isTaken(survey, since);
+	}
+	
+	/*
+	 * Get the survey taken time stamps of a campaign, loading
+	 * them from the preferences if required. Must be called 
+	 * with the class lock held.
+	 */
+	private static SurveysTaken getSurveysTaken(Context context, String campaignUrn) {
+		SurveysTaken taken = sSurveysTaken.get(campaignUrn);
+		if(taken == null) {
+			taken = new SurveysTaken();
+			
+			Map<String, ?> times = getSurveyTakenPrefs(context, campaignUrn).getAll();
+			if(times != null) {
+				for(Map.Entry<String, ?> time : times.entrySet()) {
+					if(time.getValue() instanceof Long) {
+						taken.mTimes.put(time.getKey(), (Long) time.getValue());
+					}
+				}
+			}
+			
+			sSurveysTaken.put(campaignUrn, taken);
 		}
 		
-		return true;
+		return taken;
+	}
+	
+	private static SharedPreferences getSurveyTakenPrefs(Context context, String campaignUrn) {
+		return context.getSharedPreferences(
+					NotifSurveyAdaptor.class.getName() + "_" + campaignUrn, 
+					Context.MODE_PRIVATE);
+	}
+	
+	/*
+	 * Drop the in memory copy of the survey taken time stamps 
+	 * of a campaign. Must be called when the preference file 
+	 * of the campaign is cleared.
+	 */
+	public static synchronized void invalidateSurveysTaken(String campaignUrn) {
+		sSurveysTaken.remove(campaignUrn);
+		sActiveSurveys.clear();
 	}
 
 	/*
@@ -180,19 +227,9 @@ public class NotifSurveyAdaptor {
 	public static Set<String> getAllActiveSurveys(Context context, String campaignUrn) {
 		HashSet<String> actSurveys = new HashSet<String>();
 	
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		
-		Cursor c = db.getAllTriggers(campaignUrn);
-		if(c.moveToFirst()) {
-			do {
-				
-				actSurveys.addAll(getActiveSurveys(context, c));
-				
-			} while(c.moveToNext());
+		for(TriggerRegistry.Entry trig : TriggerRegistry.getTriggers(context, campaignUrn)) {
+			actSurveys.addAll(getActiveSurveys(context, trig));
 		}
-		c.close();
-		db.close();
 		
 		return actSurveys;
 	} 
@@ -204,17 +241,11 @@ public class NotifSurveyAdaptor {
 														 int trigId) {
 		HashSet<String> actSurveys = new HashSet<String>();
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		
-		Cursor c = db.getTrigger(trigId);
-		if(c.moveToFirst()) {
-			actSurveys.addAll(getActiveSurveys(context, c));
+		TriggerRegistry.Entry trig = TriggerRegistry.getTrigger(context, trigId);
+		if(trig != null) {
+			actSurveys.addAll(getActiveSurveys(context, trig));
 		}
 		
-		c.close();
-		db.close();
-		
 		return actSurveys;
 	}
 														 
@@ -222,16 +253,18 @@ public class NotifSurveyAdaptor {
 	 * Saves the current time stamp against the given survey name.
 	 * This must be called whenever a survey is taken by the user.
 	 */
-	public static void recordSurveyTaken(Context context, String campaignUrn, String survey) {
-			
-		SharedPreferences pref = context.getSharedPreferences(
-								 NotifSurveyAdaptor.class.getName() + "_" + campaignUrn, 
-								 Context.MODE_PRIVATE);
+	public static synchronized void recordSurveyTaken(Context context, String campaignUrn, String survey) {
+		
+		long now = System.currentTimeMillis();
 		
-		SharedPreferences.Editor editor = pref.edit();
-		editor.putLong(survey, System.currentTimeMillis());
+		SharedPreferences.Editor editor = getSurveyTakenPrefs(context, campaignUrn).edit();
+		editor.putLong(survey, now);
 		editor.commit();
 		
+		SurveysTaken taken = getSurveysTaken(context, campaignUrn);
+		taken.mTimes.put(survey, now);
+		taken.mVersion++;
+		
 		TrigPrefManager.registerPreferenceFile(context, campaignUrn, NotifSurveyAdaptor.class.getName());
 	}
 	
@@ -240,23 +273,14 @@ public class NotifSurveyAdaptor {
 	 * trigger to JSON array.
 	 */
 	private static void addTriggerInfoToArray(Context context, 
-			 								  Cursor trig, JSONArray jArray) {
-		String rtDesc = trig.getString(
-				 		trig.getColumnIndexOrThrow(TriggerDB.KEY_RUNTIME_DESCRIPT));
+			 								  TriggerRegistry.Entry trig, JSONArray jArray) {
 		TriggerRunTimeDesc desc = new TriggerRunTimeDesc();
-		desc.loadString(rtDesc);
+		desc.loadString(trig.getRunTimeDescription());
 
-		String notifDesc = trig.getString(
-						   trig.getColumnIndexOrThrow(TriggerDB.KEY_NOTIF_DESCRIPT));
-		
-		String trigDesc = trig.getString(
-						  trig.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_DESCRIPT));
-		
-		String trigType = trig.getString(
-						  trig.getColumnIndexOrThrow(TriggerDB.KEY_TRIG_TYPE));
-		
-		String campaignUrn = trig.getString(
-				  trig.getColumnIndexOrThrow(TriggerDB.KEY_CAMPAIGN_URN));
+		String notifDesc = trig.getNotifDescription();
+		String trigDesc = trig.getTriggerDescription();
+		String trigType = trig.getTriggerType();
+		String campaignUrn = trig.getCampaignUrn();
 		
 		JSONObject jPref = new JSONObject();
 		TriggerBase trigBase = new TriggerTypeMap().getTrigger(trigType);
@@ -290,20 +314,11 @@ public class NotifSurveyAdaptor {
 		JSONObject jInfo = new JSONObject();
 		JSONArray jTrigs = new JSONArray();
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		
-		Cursor c = db.getAllTriggers(campaignUrn);
-		if(c.moveToFirst()) {
-			do {
-				if(getActiveSurveys(context, c).contains(survey)) {
-					addTriggerInfoToArray(context, c, jTrigs);
-				}
-				
-			} while(c.moveToNext());
+		for(TriggerRegistry.Entry trig : TriggerRegistry.getTriggers(context, campaignUrn)) {
+			if(getActiveSurveys(context, trig).contains(survey)) {
+				addTriggerInfoToArray(context, trig, jTrigs);
+			}
 		}
-		c.close();
-		db.close();
 		
 		try {
 			jInfo.put(KEY_ACTIVE_TRIGGERS, jTrigs);	
@@ -320,41 +335,25 @@ public class NotifSurveyAdaptor {
 	 * but were activated by the given trigger. 
 	 */
 	public static void handleExpiredTrigger(Context context, int trigId) {
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		
-		String sActDesc = db.getActionDescription(trigId);
-		String sTrigDesc = db.getTriggerDescription(trigId);
-		String sTrigType = db.getTriggerType(trigId);
-		String sRTDesc = db.getRunTimeDescription(trigId);
-		String sCampaignUrn = db.getCampaignUrn(trigId);
-		
-		db.close();
-		
-		if(sActDesc == null || 
-		   sTrigDesc == null || 
-		   sTrigType == null || 
-		   sCampaignUrn == null ||
-		   sRTDesc == null) {
+		TriggerRegistry.Entry trig = TriggerRegistry.getTrigger(context, trigId);
+		
+		if(trig == null || 
+		   trig.getTriggerDescription() == null || 
+		   trig.getTriggerType() == null || 
+		   trig.getCampaignUrn() == null ||
+		   !trig.hasValidActionDesc() || 
+		   !trig.hasValidRunTimeDesc()) {
 			
 			return;
 		}
 		
-		TriggerActionDesc actDesc = new TriggerActionDesc();
-		if(!actDesc.loadString(sActDesc)) {
-			return;
-		}
-		
-		TriggerRunTimeDesc rtDesc = new TriggerRunTimeDesc();
-		if(!rtDesc.loadString(sRTDesc)) {
-			return;
-		}
+		String[] surveys = trig.getSurveys();
 		
 		LinkedList<String> untakenList = new LinkedList<String>();
-		for(String survey: actDesc.getSurveys()) {
+		for(String survey: surveys) {
 			
-			if(!IsSurveyTaken(context, sCampaignUrn, survey, 
-					rtDesc.getTriggerTimeStamp())) {
+			if(!IsSurveyTaken(context, trig.getCampaignUrn(), survey, 
+					trig.getTriggerTimeStamp())) {
 				
 				untakenList.add(survey);
 			}
@@ -365,7 +364,7 @@ public class NotifSurveyAdaptor {
 		}
 		
 		JSONArray jSurveyList = new JSONArray();
-		for(String survey : actDesc.getSurveys()) {
+		for(String survey : surveys) {
 			jSurveyList.put(survey);
 		}
 		
@@ -377,11 +376,11 @@ public class NotifSurveyAdaptor {
 		JSONObject jExpired = new JSONObject();
 		
 		try {
-			jExpired.put(KEY_TRIGGER_TYPE, sTrigType);
-			jExpired.put(KEY_TRIGGER_DESC, new JSONObject(sTrigDesc));
+			jExpired.put(KEY_TRIGGER_TYPE, trig.getTriggerType());
+			jExpired.put(KEY_TRIGGER_DESC, new JSONObject(trig.getTriggerDescription()));
 			jExpired.put(KEY_SURVEY_LIST, jSurveyList);
 			jExpired.put(KEY_UNTAKEN_SURVEYS, jUntakenSurveys);
-			jExpired.put(KEY_CAMPAIGN_URN, sCampaignUrn);
+			jExpired.put(KEY_CAMPAIGN_URN, trig.getCampaignUrn());
 		} catch (JSONException e) {
 			return;
 		}
@@ -389,4 +388,48 @@ public class NotifSurveyAdaptor {
 		//Log the info
 		Log.v(TAG, "Expired trigger has surveys not taken: " + jExpired.toString());		
 	}
+	
+	/*
+	 * The survey taken time stamps of a campaign
+	 */
+	private static class SurveysTaken {
+		private final HashMap<String, Long> mTimes = new HashMap<String, Long>();
+		//Incremented whenever a time stamp changes
+		private int mVersion;
+		
+		private boolean isTaken(String survey, long since) {
+			Long time = mTimes.get(survey);
+			return time != null && time > since;
+		}
+	}
+	
+	/*
+	 * The active surveys of a trigger along with what they
+	 * were computed from and the time range they hold for 
+	 */
+	private static class ActiveSurveys {
+		private final TriggerRegistry.Entry mTrigger;
+		private final SurveysTaken mTaken;
+		private final int mTakenVersion;
+		private final long mComputed;
+		private final long mValidUntil;
+		private final Set<String> mSurveys;
+		
+		private ActiveSurveys(TriggerRegistry.Entry trig, SurveysTaken taken,
+							  long computed, long validUntil, Set<String> surveys) {
+			mTrigger = trig;
+			mTaken = taken;
+			mTakenVersion = taken.mVersion;
+			mComputed = computed;
+			mValidUntil = validUntil;
+			mSurveys = Collections.unmodifiableSet(surveys);
+		}
+		
+		private boolean isValid(TriggerRegistry.Entry trig, SurveysTaken taken, long now) {
+			//The clock may have been set back
+			return mTrigger == trig 
+				&& mTaken == taken && mTakenVersion == taken.mVersion
+				&& now >= mComputed && now < mValidUntil;
+		}
+	}
 }
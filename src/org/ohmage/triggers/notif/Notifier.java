@@ -34,7 +34,7 @@ import org.ohmage.db.DbHelper;
 import org.ohmage.logprobe.Log;
 import org.ohmage.logprobe.OhmageAnalytics;
 import org.ohmage.logprobe.OhmageAnalytics.TriggerStatus;
-import org.ohmage.triggers.base.TriggerDB;
+import org.ohmage.triggers.base.TriggerRegistry;
 import org.ohmage.triggers.utils.TrigPrefManager;
 
 import java.util.List;
@@ -411,16 +411,21 @@ public class Notifier {
 		return ret;
 	}
 	
+	/*
+	 * Get the campaign a trigger belongs to
+	 */
+	private static String getCampaignUrn(Context context, int trigId) {
+		TriggerRegistry.Entry trig = TriggerRegistry.getTrigger(context, trigId);
+		return trig != null ? trig.getCampaignUrn() : null;
+	}
+	
 	/*
 	 * Utility function to handle a repeat reminder alarm. Refreshes the
 	 * notification and resets the repeat alarm if required.
 	 */
 	private static void repeatReminder(Context context, int trigId, Intent intent) {
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		String campaignUrn = db.getCampaignUrn(trigId); 
-		db.close();
+		String campaignUrn = getCampaignUrn(context, trigId);
 		
 		Set<String> actSurveys = NotifSurveyAdaptor.getActiveSurveysForTrigger(context, 
 																			   trigId);
@@ -489,10 +494,7 @@ public class Notifier {
 		//Log information related to expired triggers.
 		NotifSurveyAdaptor.handleExpiredTrigger(context, trigId);
 		
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		String campaignUrn = db.getCampaignUrn(trigId); 
-		db.close();
+		String campaignUrn = getCampaignUrn(context, trigId);
 		
 		//Quietly refresh the notification
 		Notifier.refreshNotification(context, campaignUrn, true);
@@ -506,10 +508,7 @@ public class Notifier {
 	public static void notifyNewTrigger(Context context, 
 							  		 	int trigId, 
 							  		 	String notifDesc) {
-		TriggerDB db = new TriggerDB(context);
-		db.open();
-		String campaignUrn = db.getCampaignUrn(trigId); 
-		db.close();
+		String campaignUrn = getCampaignUrn(context, trigId);
 		
 		//Clear all existing alarms for this trigger if required
 		cancelAllAlarms(context, trigId);
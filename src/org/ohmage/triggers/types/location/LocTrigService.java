@@ -47,8 +47,8 @@ import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.SparseArray;
 
-import com.google.android.gms.maps.model.LatLng;
 
 import edu.ucla.cens.accelservice.IAccelService;
 import edu.ucla.cens.wifigpslocation.ILocationChangedCallback;
@@ -61,12 +61,14 @@ import org.ohmage.db.Models.Campaign;
 import org.ohmage.logprobe.Analytics;
 import org.ohmage.logprobe.Log;
 import org.ohmage.logprobe.LogProbe.Status;
+import org.ohmage.triggers.base.TriggerRegistry;
 import org.ohmage.triggers.config.LocTrigConfig;
 import org.ohmage.triggers.utils.SimpleTime;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -219,8 +221,22 @@ public class LocTrigService extends Service
 		}
 	};
 	
-	//The list of all locations to watch for
-	private LinkedList<LocListItem> mLocList;
+	//Index of all locations to watch for
+	private LocationGrid mLocGrid;
+
+	//Cached visit time stamp and minimum reentry interval of each
+	//category. Cleared whenever the triggers or locations change.
+	private final SparseArray<long[]> mCategExpiry = new SparseArray<long[]>();
+	private boolean mCategExpiryLoaded = false;
+
+	//Only the categories which have expired count when looking for
+	//the closest location
+	private final LocationGrid.CategoryFilter mExpiredFilter = new LocationGrid.CategoryFilter() {
+		@Override
+		public boolean accept(int categoryId) {
+			return checkIfCategoryExpired(categoryId);
+		}
+	};
 
 
 	@Override
@@ -236,7 +252,6 @@ public class LocTrigService extends Service
 		setKeepAliveAlarm();
 		
 		//Cache the locations
-		mLocList = new LinkedList<LocListItem>();
 		populateLocList();
 		
 		initState(); 
@@ -277,12 +292,15 @@ public class LocTrigService extends Service
 		String trigDesc = intent.getStringExtra(KEY_TRIG_DESC);
 		
 		if(intent.getAction().equals(ACTION_START_TRIGGER)) {
+			invalidateCategoryExpiry();
 			setTriggerAlwaysAlarm(trigId, trigDesc);
 		}
 		else if(intent.getAction().equals(ACTION_REMOVE_TRIGGER)) {
+			invalidateCategoryExpiry();
 			cancelTriggerAlwaysAlarm(trigId);
 		}
 		else if(intent.getAction().equals(ACTION_RESET_TRIGGER)) {
+			invalidateCategoryExpiry();
 			setTriggerAlwaysAlarm(trigId, trigDesc);
 		}
 		else if(intent.getAction().equals(ACTION_HANDLE_ALARM)) {
@@ -308,7 +326,8 @@ public class LocTrigService extends Service
 
 		stopGPS();
 		
-		mLocList.clear();
+		mLocGrid = null;
+		invalidateCategoryExpiry();
 		
 		disconnectRemoteServices();
 		
@@ -588,7 +607,7 @@ public class LocTrigService extends Service
 		//Start sampling if there are active surveys 
 		//or if the location tracing is enabled.
 		if(mLocTraceEnabled || 
-		   (actTrigs.size() > 0 && mLocList.size() > 0)) {
+		   (actTrigs.size() > 0 && mLocGrid.size() > 0)) {
 			startSampling();
 		}
 		else {
@@ -1025,10 +1044,8 @@ public class LocTrigService extends Service
 		cancelSamplingAlarm(ACTION_ALRM_PASS_THROUGH);
 	}
 	
-	/* Populate the cached list of locations */
+	/* Populate the cached index of locations */
 	private void populateLocList() {
-		mLocList.clear();
-		
 		LocTrigDB db = new LocTrigDB(this);
 		db.open();
 		Cursor c = db.getAllLocations();
@@ -1036,6 +1053,13 @@ public class LocTrigService extends Service
 		Log.v(TAG, "LocTrigService: populating loc list with "
 			  + c.getCount() + " locations");
 		
+		int count = c.getCount();
+		int[] lats = new int[count];
+		int[] longs = new int[count];
+		int[] categs = new int[count];
+		float[] radii = new float[count];
+		
+		int i = 0;
 		if(c.moveToFirst()) {
 			do {
 				int latE6 = c.getInt(c.getColumnIndexOrThrow(LocTrigDB.KEY_LAT));
@@ -1048,13 +1072,22 @@ public class LocTrigService extends Service
 						  + ", category id = " + cId
 						  + ", radius = " + r);
 				
-				mLocList.add(new LocListItem(latE6, longE6, cId, r));
+				lats[i] = latE6;
+				longs[i] = longE6;
+				categs[i] = cId;
+				radii[i] = r;
+				i++;
 				
-			} while(c.moveToNext());
+			} while(c.moveToNext() && i < count);
 		}
 		
 		c.close();
 		db.close();
+		
+		mLocGrid = new LocationGrid(lats, longs, categs, radii, i, CATEG_ACCURACY_MARGIN);
+		
+		//Categories might have been renamed or removed
+		invalidateCategoryExpiry();
 	}
 	
 	/*
@@ -1062,120 +1095,116 @@ public class LocTrigService extends Service
 	 * Return the category id in that case.
 	 */
 	private int getLocCategory(Location loc) {
-		for(LocListItem item : mLocList) {
-			
-			float[] dist = new float[1];
-			Location.distanceBetween(loc.getLatitude(), loc.getLongitude(), 
-									 item.gp.latitude, 
-									 item.gp.longitude, 
-									 dist);
-			
-			//Check if the given location (including its accuracy)
-			//completely falls inside an existing location (with an
-			//error threshold)
-			if((dist[0] + loc.getAccuracy()) <= (item.radius + CATEG_ACCURACY_MARGIN)) {
-				return item.categoryId;
-			}
-		}
-		
-		return CATEG_ID_INVAL;
+		//Check if the given location (including its accuracy)
+		//completely falls inside an existing location (with an
+		//error threshold)
+		return mLocGrid.getCategory(loc.getLatitude(), loc.getLongitude(), 
+									loc.getAccuracy(), CATEG_ACCURACY_MARGIN);
 	}
 	
 	/*
-	 * Can be optimized by caching
+	 * Find the minimum reentry interval of the active triggers
+	 * for each category name (in lower case). Parses every trigger
+	 * once instead of once per category.
 	 */
-	private long getMinCategoryExpirationTime(int categId) {
-		LocationTrigger locTrig = new LocationTrigger();
+	private HashMap<String, Integer> getMinReentryIntervals() {
+		String trigType = new LocationTrigger().getTriggerType();
 		
-		LocTrigDB db = new LocTrigDB(this);
-		db.open();
-		String categName = db.getCategoryName(categId);
-		db.close();
-		
-		int minReentry = -1;
-		
-		LinkedList<Integer> trigs = new LinkedList<Integer>();
+		LinkedList<TriggerRegistry.Entry> trigs = new LinkedList<TriggerRegistry.Entry>();
 		
 		DbHelper dbHelper = new DbHelper(this);
 		for (Campaign c : dbHelper.getReadyCampaigns()) {
-			trigs.addAll(locTrig.getAllActiveTriggerIds(this, c.mUrn));
+			trigs.addAll(TriggerRegistry.getTriggers(this, c.mUrn, trigType));
 		}
 		
-		for(int trig : trigs) {
-			LocTrigDesc desc = new LocTrigDesc();
-			
-			if(!desc.loadString(locTrig.getTrigger(this, trig))) {
+		HashMap<String, Integer> minReentry = new HashMap<String, Integer>();
+		for(TriggerRegistry.Entry trig : trigs) {
+			if(!trig.isActive()) {
 				continue;
 			}
 			
-			if(!desc.getLocation().equalsIgnoreCase(categName)) {
+			LocTrigDesc desc = new LocTrigDesc();
+			
+			if(!desc.loadString(trig.getTriggerDescription())) {
 				continue;
 			}
 			
+			String categName = desc.getLocation().toLowerCase();
 			int cur = desc.getMinReentryInterval();
-			if(minReentry == -1) {
-				minReentry = cur;
-			}
-			else if(cur < minReentry) {
-				minReentry = cur;
+			Integer prev = minReentry.get(categName);
+			if(prev == null || cur < prev) {
+				minReentry.put(categName, cur);
 			}
 		}
 		
-		if(minReentry == -1) {
-			return -1;
+		return minReentry;
+	}
+	
+	/*
+	 * Load the time stamp and expiration time of every category
+	 * in one pass over the triggers.
+	 */
+	private void loadCategoryExpiry() {
+		mCategExpiry.clear();
+		
+		HashMap<String, Integer> minReentry = getMinReentryIntervals();
+		
+		LocTrigDB db = new LocTrigDB(this);
+		db.open();
+		Cursor c = db.getAllCategories();
+		if(c.moveToFirst()) {
+			do {
+				int categId = c.getInt(c.getColumnIndexOrThrow(LocTrigDB.KEY_ID));
+				String categName = c.getString(c.getColumnIndexOrThrow(LocTrigDB.KEY_NAME));
+				
+				Integer reentry = (categName == null) ? null 
+								: minReentry.get(categName.toLowerCase());
+				long expiration = (reentry == null) ? -1 : (reentry * 60 * 1000L);
+				
+				mCategExpiry.put(categId, new long[] {
+						db.getCategoryTimeStamp(categId), expiration });
+			} while(c.moveToNext());
 		}
+		c.close();
+		db.close();
 		
-		return (minReentry * 60 * 1000);
+		mCategExpiryLoaded = true;
+	}
+	
+	private void invalidateCategoryExpiry() {
+		mCategExpiry.clear();
+		mCategExpiryLoaded = false;
 	}
 	
 	private boolean checkIfCategoryExpired(int categId) {
-		LocTrigDB db = new LocTrigDB(this);
-		db.open();
+		if(!mCategExpiryLoaded) {
+			loadCategoryExpiry();
+		}
 		
-		boolean expired = false;
+		long[] expiry = mCategExpiry.get(categId);
+		if(expiry == null) {
+			//The category doesn't exist anymore
+			return true;
+		}
 		
-		long categTS = db.getCategoryTimeStamp(categId);
+		long categTS = expiry[0];
 		if(categTS == LocTrigDB.TIME_STAMP_INVALID) {
-			expired = true;
-		}
-		else {
-			long elapsed = System.currentTimeMillis() - categTS;
-			if(elapsed >= getMinCategoryExpirationTime(categId)) {
-				expired = true;
-			}
+			return true;
 		}
 		
-		db.close();
-		
-		return expired;
+		long elapsed = System.currentTimeMillis() - categTS;
+		return elapsed >= expiry[1];
 	}
 	
 
 	private float getDistanceToClosestCategory() {
 	
-		float minDist = -1;
-		
-		for(LocListItem item : mLocList) {
-			
-			//Check the distance to all locations to watch for.
-			//This includes only those locations which have not 
-			//expired.
-			if(checkIfCategoryExpired(item.categoryId)) {
-				
-				float[] dist = new float[1];
-				Location.distanceBetween(mLastKnownLoc.getLatitude(), 
-										 mLastKnownLoc.getLongitude(), 
-										 item.gp.latitude, 
-										 item.gp.longitude, 
-										 dist);
-				
-				float d = dist[0] - item.radius;
-				if(d > 0) {
-					minDist = (minDist == -1) ? d :
-							  Math.min(minDist, d);
-				}
-			}
-		}
+		//Check the distance to all locations to watch for.
+		//This includes only those locations which have not 
+		//expired.
+		float minDist = mLocGrid.getDistanceToClosest(mLastKnownLoc.getLatitude(), 
+													  mLastKnownLoc.getLongitude(), 
+													  mExpiredFilter);
 		
 		//If there is no closest location, and if the tracing
 		//needs to be done, use a constant factor
@@ -1300,10 +1329,16 @@ public class LocTrigService extends Service
 		mLatestCateg = categId;
 		
 		if(categId != CATEG_ID_INVAL) {
+			long now = System.currentTimeMillis();
 			LocTrigDB db = new LocTrigDB(this);
 			db.open();
-			db.setCategoryTimeStamp(categId, System.currentTimeMillis());
+			db.setCategoryTimeStamp(categId, now);
 			db.close();
+			
+			long[] expiry = mCategExpiry.get(categId);
+			if(expiry != null) {
+				expiry[0] = now;
+			}
 		}
 	}
 	
@@ -1566,19 +1601,6 @@ public class LocTrigService extends Service
 
 	
 	/************************ INNER CLASSES ************************/
-    /* Class representing an item in the cached location list */
-    private class LocListItem {
-		public LatLng gp;
-		public float radius;
-		public int categoryId;
-
-		public LocListItem(int latE6, int longE6, int cId, float radius) {
-			this.gp = new LatLng(latE6 / 1E6, longE6 / 1E6);
-			this.categoryId = cId;
-			this.radius = radius;
-		}
-	}
-
     /* Receiver for all the alarms */
 	public static class AlarmReceiver extends BroadcastReceiver {
 
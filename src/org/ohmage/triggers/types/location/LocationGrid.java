@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohmage.triggers.types.location;
+
+import android.location.Location;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Grid index over the saved locations. The locations are bucketed into
+ * cells which are at least as large as the biggest location radius, so
+ * a fix only has to be compared with the locations in its own cell and
+ * the eight cells around it. The index is immutable once built and the
+ * queries reuse a preallocated buffer, so they do not allocate.
+ *
+ * The queries are not thread safe.
+ */
+public class LocationGrid {
+
+	public static final int CATEG_ID_INVAL = -1;
+
+	/* Shortest length of a degree of latitude, rounded down */
+	private static final double METERS_PER_DEGREE = 110000;
+
+	/* Cells are never smaller than this */
+	private static final float MIN_CELL_SIZE = 100; //m
+
+	/* Highest latitude used to size the cells in longitude */
+	private static final double MAX_SCALE_LATITUDE = 85;
+
+	/* Closest location searches which don't finish within this
+	 * many rings of cells fall back to looking at every location */
+	private static final int MAX_RINGS = 3;
+
+	/* Decides which locations the closest location search looks at */
+	public interface CategoryFilter {
+		public boolean accept(int categoryId);
+	}
+
+	private final int mCount;
+
+	//Locations sorted by cell
+	private final double[] mLat;
+	private final double[] mLong;
+	private final float[] mRadius;
+	private final int[] mCategory;
+	//Position of the location in the list it was built from
+	private final int[] mOrder;
+
+	//Sorted keys of the non empty cells and the index of the
+	//first location in each. mCellStart has an extra entry
+	//marking the end of the last cell
+	private final long[] mCellKeys;
+	private final int[] mCellStart;
+
+	private final double mCellLat;
+	private final double mCellLong;
+	private final float mCellSize;
+	private final float mMaxRadius;
+
+	private final float[] mDist = new float[1];
+
+	/*
+	 * Build the index. margin is the largest distance
+	 * a fix may be outside a location and still match it.
+	 */
+	public LocationGrid(int[] latE6, int[] longE6, int[] categories,
+						float[] radii, int count, float margin) {
+		mCount = count;
+
+		float maxRadius = 0;
+		double maxAbsLat = 0;
+		for(int i = 0; i < count; i++) {
+			maxRadius = Math.max(maxRadius, radii[i]);
+			maxAbsLat = Math.max(maxAbsLat, Math.abs(latE6[i] / 1E6));
+		}
+		mMaxRadius = maxRadius;
+		mCellSize = Math.max(maxRadius + margin, MIN_CELL_SIZE);
+		mCellLat = mCellSize / METERS_PER_DEGREE;
+
+		//Size the cells in longitude for the highest latitude a
+		//matching fix could be at, so they are wide enough everywhere
+		double scaleLat = Math.min(maxAbsLat + mCellLat, MAX_SCALE_LATITUDE);
+		mCellLong = mCellLat / Math.cos(Math.toRadians(scaleLat));
+
+		//Sort the locations by cell
+		long[] keyed = new long[count];
+		Integer[] order = new Integer[count];
+		final long[] keys = new long[count];
+		for(int i = 0; i < count; i++) {
+			keys[i] = cellKey(row(latE6[i] / 1E6), col(longE6[i] / 1E6));
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				if(keys[lhs] != keys[rhs]) {
+					return keys[lhs] < keys[rhs] ? -1 : 1;
+				}
+				return lhs - rhs;
+			}
+		});
+
+		mLat = new double[count];
+		mLong = new double[count];
+		mRadius = new float[count];
+		mCategory = new int[count];
+		mOrder = new int[count];
+
+		int cells = 0;
+		for(int i = 0; i < count; i++) {
+			int j = order[i];
+			mLat[i] = latE6[j] / 1E6;
+			mLong[i] = longE6[j] / 1E6;
+			mRadius[i] = radii[j];
+			mCategory[i] = categories[j];
+			mOrder[i] = j;
+			keyed[i] = keys[j];
+			if(i == 0 || keyed[i] != keyed[i - 1]) {
+				cells++;
+			}
+		}
+
+		mCellKeys = new long[cells];
+		mCellStart = new int[cells + 1];
+		int cell = -1;
+		for(int i = 0; i < count; i++) {
+			if(i == 0 || keyed[i] != keyed[i - 1]) {
+				cell++;
+				mCellKeys[cell] = keyed[i];
+				mCellStart[cell] = i;
+			}
+		}
+		mCellStart[cells] = count;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	/*
+	 * Find the category of the location which completely contains
+	 * a fix with the given accuracy (with an error threshold).
+	 * If more than one location matches, the one which came first
+	 * in the list the index was built from wins.
+	 */
+	public int getCategory(double lat, double lng, float accuracy, float margin) {
+		int row = row(lat);
+		int col = col(lng);
+
+		int match = -1;
+		for(int r = row - 1; r <= row + 1; r++) {
+			for(int c = col - 1; c <= col + 1; c++) {
+				int cell = Arrays.binarySearch(mCellKeys, cellKey(r, c));
+				if(cell < 0) {
+					continue;
+				}
+
+				for(int i = mCellStart[cell]; i < mCellStart[cell + 1]; i++) {
+					if(match != -1 && mOrder[i] > mOrder[match]) {
+						continue;
+					}
+
+					Location.distanceBetween(lat, lng, mLat[i], mLong[i], mDist);
+					if((mDist[0] + accuracy) <= (mRadius[i] + margin)) {
+						match = i;
+					}
+				}
+			}
+		}
+
+		return match == -1 ? CATEG_ID_INVAL : mCategory[match];
+	}
+
+	/*
+	 * Find the distance from a point to the edge of the closest
+	 * location accepted by the filter. Locations which contain
+	 * the point are ignored. Returns -1 if there is no such location.
+	 */
+	public float getDistanceToClosest(double lat, double lng, CategoryFilter filter) {
+		int row = row(lat);
+		int col = col(lng);
+
+		//Cells are narrower than mCellSize if the point is further
+		//from the equator than any of the locations
+		double ringSize = Math.min(mCellSize, mCellLong * METERS_PER_DEGREE
+				* Math.cos(Math.toRadians(Math.min(Math.abs(lat), 90))));
+
+		float minDist = -1;
+		for(int ring = 0; ring <= MAX_RINGS; ring++) {
+			for(int r = row - ring; r <= row + ring; r++) {
+				//Only the first and last rows of the ring are full,
+				//the rest only have their two ends
+				int step = (r == row - ring || r == row + ring) ? 1 : Math.max(2 * ring, 1);
+				for(int c = col - ring; c <= col + ring; c += step) {
+					int cell = Arrays.binarySearch(mCellKeys, cellKey(r, c));
+					if(cell >= 0) {
+						minDist = closestInCell(cell, lat, lng, filter, minDist);
+					}
+				}
+			}
+
+			//Every location we haven't looked at is at least
+			//ring cells away from the point
+			if(minDist != -1 && minDist <= ring * ringSize - mMaxRadius) {
+				return minDist;
+			}
+		}
+
+		//The closest location is far away, just look at all of them
+		minDist = -1;
+		for(int cell = 0; cell < mCellKeys.length; cell++) {
+			minDist = closestInCell(cell, lat, lng, filter, minDist);
+		}
+		return minDist;
+	}
+
+	private float closestInCell(int cell, double lat, double lng,
+								CategoryFilter filter, float minDist) {
+		for(int i = mCellStart[cell]; i < mCellStart[cell + 1]; i++) {
+			if(!filter.accept(mCategory[i])) {
+				continue;
+			}
+
+			Location.distanceBetween(lat, lng, mLat[i], mLong[i], mDist);
+			float d = mDist[0] - mRadius[i];
+			if(d > 0) {
+				minDist = (minDist == -1) ? d : Math.min(minDist, d);
+			}
+		}
+		return minDist;
+	}
+
+	private int row(double lat) {
+		return (int) Math.floor(lat / mCellLat);
+	}
+
+	private int col(double lng) {
+		return (int) Math.floor(lng / mCellLong);
+	}
+
+	private static long cellKey(int row, int col) {
+		return ((long) row << 32) | (col & 0xffffffffL);
+	}
+}
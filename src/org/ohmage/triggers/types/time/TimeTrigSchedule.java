@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2011 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohmage.triggers.types.time;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ * The next fire time of every time trigger in all the campaigns,
+ * ordered by time. The service keeps a single alarm for the
+ * earliest of them instead of one alarm per trigger.
+ *
+ * The times are also saved to preferences so the schedule
+ * survives the process being killed while the alarm is pending.
+ * The randomized times can't be computed again without picking
+ * a new time.
+ */
+class TimeTrigSchedule {
+
+	private static final String PREF_FILE_NAME =
+			TimeTrigSchedule.class.getName();
+
+	/* Ordered by time and then by trigger id */
+	private static final Comparator<long[]> EVENT_ORDER = new Comparator<long[]>() {
+		@Override
+		public int compare(long[] lhs, long[] rhs) {
+			if(lhs[0] != rhs[0]) {
+				return lhs[0] < rhs[0] ? -1 : 1;
+			}
+			if(lhs[1] != rhs[1]) {
+				return lhs[1] < rhs[1] ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	private final SharedPreferences mPrefs;
+
+	//{time, trigger id} of each scheduled trigger
+	private final TreeSet<long[]> mQueue = new TreeSet<long[]>(EVENT_ORDER);
+	private final HashMap<Integer, Long> mTimes = new HashMap<Integer, Long>();
+
+	public TimeTrigSchedule(Context context) {
+		mPrefs = context.getSharedPreferences(PREF_FILE_NAME,
+											  Context.MODE_PRIVATE);
+
+		Map<String, ?> saved = mPrefs.getAll();
+		if(saved == null) {
+			return;
+		}
+
+		for(Map.Entry<String, ?> e : saved.entrySet()) {
+			if(!(e.getValue() instanceof Long)) {
+				continue;
+			}
+
+			try {
+				add(Integer.parseInt(e.getKey()), (Long) e.getValue());
+			} catch(NumberFormatException ex) {
+				continue;
+			}
+		}
+	}
+
+	/*
+	 * Set the next fire time of a trigger, replacing
+	 * the time it had before
+	 */
+	public void set(int trigId, long time) {
+		Long prev = mTimes.get(trigId);
+		if(prev != null && prev == time) {
+			return;
+		}
+
+		remove(trigId, false);
+		add(trigId, time);
+
+		SharedPreferences.Editor editor = mPrefs.edit();
+		editor.putLong(String.valueOf(trigId), time);
+		editor.commit();
+	}
+
+	/*
+	 * Remove a trigger from the schedule
+	 */
+	public void remove(int trigId) {
+		remove(trigId, true);
+	}
+
+	/*
+	 * Get the earliest fire time, or -1 if
+	 * there are no triggers scheduled
+	 */
+	public long getNextTime() {
+		return mQueue.isEmpty() ? -1 : mQueue.first()[0];
+	}
+
+	/*
+	 * Get the triggers whose fire time is before the given time
+	 */
+	public List<Integer> getDueBefore(long time) {
+		List<Integer> due = new ArrayList<Integer>();
+		for(long[] event : mQueue) {
+			if(event[0] >= time) {
+				break;
+			}
+			due.add((int) event[1]);
+		}
+		return due;
+	}
+
+	/*
+	 * Remove and return the trigger with the earliest fire
+	 * time if that time is not after the given time.
+	 * Returns -1 if there is no such trigger.
+	 *
+	 * The saved time is kept until the trigger is set again
+	 * or removed, so the trigger isn't lost if the process
+	 * dies before its next time is set.
+	 */
+	public int pollDue(long until) {
+		if(mQueue.isEmpty() || mQueue.first()[0] > until) {
+			return -1;
+		}
+
+		int trigId = (int) mQueue.first()[1];
+		remove(trigId, false);
+		return trigId;
+	}
+
+	private void add(int trigId, long time) {
+		mTimes.put(trigId, time);
+		mQueue.add(new long[] {time, trigId});
+	}
+
+	private void remove(int trigId, boolean save) {
+		Long prev = mTimes.remove(trigId);
+		if(prev != null) {
+			mQueue.remove(new long[] {prev, trigId});
+		}
+
+		//A polled trigger is no longer queued but still saved
+		if(save) {
+			SharedPreferences.Editor editor = mPrefs.edit();
+			editor.remove(String.valueOf(trigId));
+			editor.commit();
+		}
+	}
+}
@@ -48,20 +48,36 @@ public class TimeTrigService extends Service {
 	public static final String KEY_TRIG_ID = "trigger_id";
 	public static final String KEY_TRIG_DESC = "trigger_desc";
 
+	private static final String ACTION_HANDLE_SCHEDULE = "handle_schedule";
+
 	private static final String ACTION_TRIG_ALM = 
 			"edu.ucla.cens.triggers.types.time.TimeTriggerAlarm";
 	private static final String DATA_PREFIX_TRIG_ALM = 
 			"timetrigger://edu.ucla.cens.triggers.types.time/";
+	/* Data of the single alarm set for the schedule. Alarms
+	 * set for a trigger id are from older versions */
+	private static final String DATA_SCHEDULE_ALM = 
+			DATA_PREFIX_TRIG_ALM + "schedule";
 
 	private AlarmManager mAlarmMan = null;
 	private static PowerManager.WakeLock mWakeLock = null;
 
+	private TimeTrigSchedule mSchedule = null;
+	//The time the schedule alarm is set for, -1 if unknown
+	private long mAlarmTime = -1;
+	//Wall clock minus elapsed time when the alarm was set
+	private long mAlarmClockOffset;
+	//Change in the clock offset after which the alarm is set again
+	private static final long CLOCK_CHANGE_TOLERANCE = 1000;
+
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		Analytics.service(this, Status.ON);
 
 		mAlarmMan = (AlarmManager) getSystemService(ALARM_SERVICE);
+		mSchedule = new TimeTrigSchedule(this);
+		rescheduleMissedTriggers();
 	}
 
 	@Override
@@ -70,6 +86,18 @@ public class TimeTrigService extends Service {
 		Log.v(TAG, "TimeTriggerService: onStart");
 
 		String action = intent.getAction();
+		if(ACTION_HANDLE_SCHEDULE.equals(action)) {
+			Log.v(TAG, "TimeTriggerService: Handling scheduled triggers");
+
+			//The alarm which started us has gone off
+			mAlarmTime = -1;
+			handleDueTriggers();
+			updateScheduleAlarm();
+
+			releaseWakeLock();
+			return START_NOT_STICKY;
+		}
+		
 		if(action == null ||
 				!intent.hasExtra(KEY_TRIG_ID) ||
 				!intent.hasExtra(KEY_TRIG_DESC)) {
@@ -87,6 +115,8 @@ public class TimeTrigService extends Service {
 			Log.v(TAG, "TimeTriggerService: Handling trigger "
 					+ trigId);
 
+			//An alarm set by an older version for this trigger
+			removeTrigger(trigId, trigDesc);
 			//Notify user
 			new TimeTrigger().notifyTrigger(this, trigId);
 			//repeat the alarm
@@ -96,6 +126,8 @@ public class TimeTrigService extends Service {
 			Log.v(TAG, "TimeTriggerService: Setting trigger "
 					+ trigId);
 
+			//An alarm set by an older version for this trigger
+			cancelAlarm(trigId, trigDesc);
 			setTrigger(trigId, trigDesc);
 		}
 		else if(action.equals(ACTION_REMOVE_TRIGGER)) {
@@ -112,6 +144,7 @@ public class TimeTrigService extends Service {
 			setTrigger(trigId, trigDesc);
 		}
 
+		updateScheduleAlarm();
 		releaseWakeLock();
 
 		return START_NOT_STICKY;
@@ -249,8 +282,16 @@ public class TimeTrigService extends Service {
 
 	private long getAlarmTimeInMillis(int trigId, TimeTrigDesc trigDesc) {
 
+		int today = Calendar.getInstance().get(Calendar.DAY_OF_WEEK);
 		for(int i = 0; i <= 7; i++) {
 
+			//Skip the days the trigger does not repeat on
+			//without building a calendar for each of them
+			int day = (today - Calendar.SUNDAY + i) % 7 + Calendar.SUNDAY;
+			if(!trigDesc.doesRepeatOnDay(TimeTrigDesc.getDayOfWeekString(day))) {
+				continue;
+			}
+
 			Calendar target = getTriggerTimeForDay(trigId, trigDesc, i);
 			if(target != null) {
 				Log.v(TAG, "TimeTriggerService: Calculated target time: " +
@@ -266,6 +307,10 @@ public class TimeTrigService extends Service {
 		return -1;
 	}
 
+	/*
+	 * Cancel the alarm set for a trigger by older versions,
+	 * which set one alarm per trigger
+	 */
 	private void cancelAlarm(int trigId, String trigDesc) {
 
 		Intent i = createAlarmIntent(trigId, trigDesc);
@@ -282,22 +327,40 @@ public class TimeTrigService extends Service {
 		}
 	}
 
-	private void setAlarm(int trigId, TimeTrigDesc desc) {
+	private PendingIntent getScheduleIntent(int flags) {
+		Intent i = new Intent();
 
-		//Cancel the pending intent and the existing alarm first
-		cancelAlarm(trigId, desc.toString());
+		i.setAction(ACTION_TRIG_ALM);
+		i.setData(Uri.parse(DATA_SCHEDULE_ALM));
+		return PendingIntent.getBroadcast(this, 0, i, flags);
+	}
 
-		Log.v(TAG, "TimeTriggerService: Attempting to set trigger " 
-				+ trigId);
+	/*
+	 * Set the single alarm for the earliest trigger in the 
+	 * schedule. Nothing is done if the alarm is already set
+	 * for that time and the clock hasn't been changed since.
+	 * The alarm is set in elapsed time, so after the clock is
+	 * changed it would go off at the wrong wall clock time.
+	 */
+	private void updateScheduleAlarm() {
+
+		long nextTime = mSchedule.getNextTime();
+		long clockOffset = System.currentTimeMillis()
+						   - SystemClock.elapsedRealtime();
+		if(nextTime == mAlarmTime && (nextTime == -1 ||
+				Math.abs(clockOffset - mAlarmClockOffset) < CLOCK_CHANGE_TOLERANCE)) {
+			return;
+		}
 
-		Intent i = createAlarmIntent(trigId, desc.toString());
-		PendingIntent pi = PendingIntent.getBroadcast(this, 0, i, 
-				PendingIntent.FLAG_CANCEL_CURRENT);
+		if(nextTime == -1) {
+			Log.v(TAG, "TimeTriggerService: No triggers scheduled");
 
-		long alarmTime = getAlarmTimeInMillis(trigId, desc);
-		if(alarmTime == -1) {
-			Log.v(TAG, "TimeTriggerService: No valid time found for " 
-					+ trigId);
+			PendingIntent pi = getScheduleIntent(PendingIntent.FLAG_NO_CREATE);
+			if(pi != null) {
+				mAlarmMan.cancel(pi);
+				pi.cancel();
+			}
+			mAlarmTime = -1;
 			return;
 		}
 
@@ -306,19 +369,97 @@ public class TimeTrigService extends Service {
 		 * set off all the alarms and a trigger might go off before
 		 * we get a chance to cancel it
 		 */
-		long elapsedRT = alarmTime - System.currentTimeMillis();
-		if(elapsedRT <= 0) {
+		long elapsedRT = Math.max(nextTime - System.currentTimeMillis(), 0);
+
+		Log.v(TAG, "TimeTriggerService: Setting alarm for " + elapsedRT
+				+ " millis into the future");
+
+		//Setting the same pending intent replaces the previous alarm
+		mAlarmMan.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, 
+				SystemClock.elapsedRealtime() + elapsedRT, 
+				getScheduleIntent(PendingIntent.FLAG_UPDATE_CURRENT));
+		mAlarmTime = nextTime;
+		mAlarmClockOffset = clockOffset;
+	}
+
+	/*
+	 * Notify all the triggers whose time has come and
+	 * schedule their next times
+	 */
+	private void handleDueTriggers() {
+
+		TimeTrigger timeTrig = new TimeTrigger();
+
+		int trigId;
+		while((trigId = mSchedule.pollDue(System.currentTimeMillis())) != -1) {
+
+			String trigDesc = timeTrig.getTrigger(this, trigId);
+			if(trigDesc == null) {
+				Log.v(TAG, "TimeTriggerService: Trigger " + trigId
+						+ " no longer exists");
+				mSchedule.remove(trigId);
+				continue;
+			}
+
+			Log.v(TAG, "TimeTriggerService: Handling trigger "
+					+ trigId);
+
+			//Notify user
+			timeTrig.notifyTrigger(this, trigId);
+			//repeat the alarm
+			setTrigger(trigId, trigDesc);
+		}
+	}
+
+	/*
+	 * The schedule alarm doesn't survive a reboot, so times which
+	 * passed while the phone was off are not fired late when the
+	 * saved schedule is loaded. The next time of those triggers is
+	 * computed again instead.
+	 */
+	private void rescheduleMissedTriggers() {
+
+		long bootTime = System.currentTimeMillis()
+						- SystemClock.elapsedRealtime();
+
+		TimeTrigger timeTrig = new TimeTrigger();
+		for(int trigId : mSchedule.getDueBefore(bootTime)) {
+
+			Log.v(TAG, "TimeTriggerService: Trigger " + trigId
+					+ " was missed while the phone was off");
+
+			String trigDesc = timeTrig.getTrigger(this, trigId);
+			if(trigDesc == null) {
+				mSchedule.remove(trigId);
+				continue;
+			}
+
+			setTrigger(trigId, trigDesc);
+		}
+	}
+
+	private void setAlarm(int trigId, TimeTrigDesc desc) {
+
+		Log.v(TAG, "TimeTriggerService: Attempting to set trigger " 
+				+ trigId);
+
+		long alarmTime = getAlarmTimeInMillis(trigId, desc);
+		if(alarmTime == -1) {
+			Log.v(TAG, "TimeTriggerService: No valid time found for " 
+					+ trigId);
+			mSchedule.remove(trigId);
+			return;
+		}
+
+		if(alarmTime <= System.currentTimeMillis()) {
 			Log.v(TAG, "TimeTriggerService: negative elapsed realtime - "
 					+ "alarm not setting: "
 					+ trigId);
+			mSchedule.remove(trigId);
 			return;
 		}
 
-		Log.v(TAG, "TimeTriggerService: Setting alarm for " + elapsedRT
-				+ " millis into the future");
-
-		mAlarmMan.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, 
-				SystemClock.elapsedRealtime() + elapsedRT, pi);
+		mSchedule.set(trigId, alarmTime);
 	}
 
 	private void setTrigger(int trigId, String trigDesc) {
@@ -338,6 +479,7 @@ public class TimeTrigService extends Service {
 
 	private void removeTrigger(int trigId, String trigDesc) {
 		cancelAlarm(trigId, trigDesc);
+		mSchedule.remove(trigId);
 	}
 
 	@Override
@@ -363,8 +505,14 @@ public class TimeTrigService extends Service {
 
 				Intent i = new Intent(context, TimeTrigService.class);
 
-				i.setAction(ACTION_HANDLE_TRIGGER);
-				i.replaceExtras(intent);
+				if(intent.hasExtra(KEY_TRIG_ID)) {
+					//Alarm set for a single trigger by an older version
+					i.setAction(ACTION_HANDLE_TRIGGER);
+					i.replaceExtras(intent);
+				}
+				else {
+					i.setAction(ACTION_HANDLE_SCHEDULE);
+				}
 				context.startService(i);
 			}
 		}
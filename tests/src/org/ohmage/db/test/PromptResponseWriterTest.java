@@ -0,0 +1,139 @@
+package org.ohmage.db.test;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import org.ohmage.db.DbContract.Campaigns;
+import org.ohmage.db.DbContract.PromptResponses;
+import org.ohmage.db.DbContract.Responses;
+import org.ohmage.db.DbHelper;
+import org.ohmage.db.DbHelper.Tables;
+import org.ohmage.db.PromptResponseWriter;
+
+/**
+ * Tests that responses added with a shared {@link PromptResponseWriter} get
+ * the same prompt responses as responses added one at a time.
+ */
+public class PromptResponseWriterTest extends AndroidTestCase {
+
+	private static final String CAMPAIGN_URN = "urn:campaign:test";
+	private static final String SURVEY_ID = "foodButton";
+
+	private static final String CAMPAIGN_XML = "<campaign><surveys><survey>"
+			+ "<id>" + SURVEY_ID + "</id><title>Food</title>"
+			+ "<contentList>"
+			+ "<prompt><id>howHungry</id><promptType>number</promptType></prompt>"
+			+ "<prompt><id>where</id><promptType>single_choice</promptType><properties>"
+			+ "<property><key>0</key><label>Home</label></property>"
+			+ "<property><key>1</key><label>Work</label></property>"
+			+ "</properties></prompt>"
+			+ "<prompt><id>what</id><promptType>multi_choice</promptType><properties>"
+			+ "<property><key>0</key><label>Fruit</label></property>"
+			+ "<property><key>1</key><label>Bread</label></property>"
+			+ "<property><key>2</key><label>Cheese</label></property>"
+			+ "</properties></prompt>"
+			+ "<prompt><id>other</id><promptType>single_choice_custom</promptType></prompt>"
+			+ "<prompt><id>notes</id><promptType>text</promptType></prompt>"
+			+ "</contentList></survey></surveys></campaign>";
+
+	private static final String RESPONSE_JSON = "["
+			+ "{\"prompt_id\":\"howHungry\",\"value\":3},"
+			+ "{\"prompt_id\":\"where\",\"value\":\"1\"},"
+			+ "{\"prompt_id\":\"what\",\"value\":[0,2]},"
+			+ "{\"prompt_id\":\"other\",\"value\":7,\"custom_choices\":"
+			+ "[{\"choice_value\":\"Gym\",\"choice_id\":7}]},"
+			+ "{\"prompt_id\":\"notes\",\"value\":\"SKIPPED\"}]";
+
+	private DbHelper mDbHelper;
+	private SQLiteDatabase mDb;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "test_");
+		mDbHelper = new DbHelper(context);
+		mDb = mDbHelper.getWritableDatabase();
+		mDbHelper.clearAll(mDb);
+
+		ContentValues campaign = new ContentValues();
+		campaign.put(Campaigns.CAMPAIGN_URN, CAMPAIGN_URN);
+		campaign.put(Campaigns.CAMPAIGN_CONFIGURATION_XML, CAMPAIGN_XML);
+		mDbHelper.addCampaign(mDb, campaign);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDbHelper.clearAll(mDb);
+		mDbHelper.close();
+		super.tearDown();
+	}
+
+	public void testMapsChoicesToLabels() {
+		long id = mDbHelper.addResponseRow(mDb, response(0));
+
+		assertEquals("3", value(id, "howHungry"));
+		assertEquals("Work", value(id, "where"));
+		assertEquals("[\"Fruit\",\"Cheese\"]", value(id, "what"));
+		assertEquals("Gym", value(id, "other"));
+		assertEquals("SKIPPED", value(id, "notes"));
+	}
+
+	public void testBatchMatchesSingleResponses() {
+		long single = mDbHelper.addResponseRow(mDb, response(0));
+
+		PromptResponseWriter writer = new PromptResponseWriter(mDb);
+		long batched;
+		try {
+			mDbHelper.addResponseRow(mDb, response(1), writer);
+			batched = mDbHelper.addResponseRow(mDb, response(2), writer);
+		} finally {
+			writer.close();
+		}
+
+		for (String prompt : new String[] { "howHungry", "where", "what", "other", "notes" }) {
+			assertEquals(value(single, prompt), value(batched, prompt));
+		}
+	}
+
+	public void testInvalidateReadsChangedPrompts() {
+		PromptResponseWriter writer = new PromptResponseWriter(mDb);
+		try {
+			mDbHelper.addResponseRow(mDb, response(0), writer);
+
+			mDbHelper.populateSurveysFromCampaignXML(mDb, CAMPAIGN_URN,
+					CAMPAIGN_XML.replace("<label>Work</label>", "<label>Office</label>"));
+			writer.invalidate();
+
+			long id = mDbHelper.addResponseRow(mDb, response(1), writer);
+			assertEquals("Office", value(id, "where"));
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static ContentValues response(int i) {
+		ContentValues values = new ContentValues();
+		values.put(Responses.RESPONSE_UUID, "uuid-" + i);
+		values.put(Responses.CAMPAIGN_URN, CAMPAIGN_URN);
+		values.put(Responses.SURVEY_ID, SURVEY_ID);
+		values.put(Responses.RESPONSE_TIME, 1352154121000L + i * 60000L);
+		values.put(Responses.RESPONSE_JSON, RESPONSE_JSON);
+		return values;
+	}
+
+	private String value(long responseId, String promptId) {
+		Cursor c = mDb.query(Tables.PROMPT_RESPONSES,
+				new String[] { PromptResponses.PROMPT_RESPONSE_VALUE },
+				PromptResponses.RESPONSE_ID + "=? AND " + PromptResponses.PROMPT_ID + "=?",
+				new String[] { String.valueOf(responseId), promptId }, null, null, null);
+		try {
+			assertTrue("No response for " + promptId, c.moveToFirst());
+			return c.getString(0);
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.ohmage.responsesync.test;
+
+import com.google.gson.GsonUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import junit.framework.TestCase;
+
+import org.ohmage.responsesync.SurveyResponseDecoder;
+import org.ohmage.responsesync.SurveyResponseDecoder.Record;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Tests the {@link SurveyResponseDecoder} against the json tree parsing it
+ * replaced on a survey_response/read payload recorded from the server.
+ */
+public class SurveyResponseDecoderTest extends TestCase {
+
+	/** A json-rows record as the server returns it */
+	private static final String RECORD = "{"
+			+ "\"survey_key\":\"%d7c1ed5a-0b49-4a5e-9c3e-3d9d7b6a1c2f\","
+			+ "\"user\":\"ohmage.participant\","
+			+ "\"timestamp\":\"2012-11-05 14:22:01\","
+			+ "\"time\":%d,"
+			+ "\"timezone\":\"America/Los_Angeles\","
+			+ "\"location_status\":\"valid\","
+			+ "\"location_provider\":\"gps\","
+			+ "\"location_timestamp\":1352154115000,"
+			+ "\"location_accuracy\":12.5,"
+			+ "\"latitude\":34.0689254,"
+			+ "\"longitude\":-118.4451814,"
+			+ "\"survey_id\":\"foodButton\","
+			+ "\"survey_title\":\"Food\","
+			+ "\"survey_description\":\"What did you eat?\","
+			+ "\"launch_context_long\":{\"launch_time\":1352154121000,"
+			+ "\"launch_timezone\":\"America/Los_Angeles\",\"active_triggers\":[]},"
+			+ "\"privacy_state\":\"private\","
+			+ "\"responses\":{"
+			+ "\"howHungry\":{\"prompt_response\":3,\"prompt_type\":\"number\","
+			+ "\"prompt_text\":\"How hungry were you?\",\"prompt_index\":0},"
+			+ "\"whatFood\":{\"prompt_response\":[0,2],\"prompt_type\":\"multi_choice_custom\","
+			+ "\"prompt_choice_glossary\":{\"0\":{\"label\":\"Fruit\"},\"2\":{\"label\":\"Caf\\u00e9 \\\"special\\\"\"}},"
+			+ "\"prompt_text\":\"What did you eat?\",\"prompt_index\":1},"
+			+ "\"where\":{\"prompt_response\":1,\"prompt_type\":\"single_choice\","
+			+ "\"prompt_choice_glossary\":{\"0\":{\"label\":\"Home\",\"value\":0},\"1\":{\"label\":\"Work\",\"value\":1}},"
+			+ "\"prompt_index\":2},"
+			+ "\"foodPhoto\":{\"prompt_response\":\"0f6c1d1e-61e1-4bcb-9f7e-2f0b8d5e3a11\","
+			+ "\"prompt_type\":\"photo\",\"prompt_index\":3},"
+			+ "\"notes\":{\"prompt_response\":\"SKIPPED\",\"prompt_type\":\"text\",\"prompt_index\":4},"
+			+ "\"calories\":{\"prompt_response\":512.25,\"prompt_type\":\"number\",\"prompt_index\":5}"
+			+ "}}";
+
+	public void testDecodeMatchesTreeParsing() throws IOException {
+		String payload = payload(10);
+		JsonParser parser = new JsonParser();
+		JsonArray records = parser.parse(payload).getAsJsonObject().get("data").getAsJsonArray();
+
+		SurveyResponseDecoder decoder = new SurveyResponseDecoder();
+		JsonReader reader = openData(payload);
+		for (JsonElement element : records) {
+			JsonObject survey = element.getAsJsonObject();
+			Record r = decoder.decode(reader);
+			assertNotNull(r);
+
+			assertEquals(survey.get("survey_key").getAsString(), r.uuid);
+			assertEquals(survey.get("survey_id").getAsString(), r.surveyId);
+			assertEquals(survey.get("user").getAsString(), r.username);
+			assertEquals(survey.get("timestamp").getAsString(), r.date);
+			assertEquals(survey.get("timezone").getAsString(), r.timezone);
+			assertEquals(survey.get("time").getAsLong(), r.time);
+			assertEquals(survey.get("location_status").getAsString(), r.locationStatus);
+			assertEquals(survey.get("latitude").getAsDouble(), r.locationLatitude);
+			assertEquals(survey.get("longitude").getAsDouble(), r.locationLongitude);
+			assertEquals(survey.get("location_accuracy").getAsFloat(), r.locationAccuracy);
+			assertEquals(survey.get("launch_context_long").toString(), r.getLaunchContext());
+
+			assertEquals(parser.parse(treeResponses(survey)), parser.parse(r.getResponses()));
+			assertEquals(1, r.getPhotos().size());
+			assertEquals("0f6c1d1e-61e1-4bcb-9f7e-2f0b8d5e3a11", r.getPhotos().get(0));
+		}
+		reader.endArray();
+	}
+
+	public void testDecodeSkipsIncompleteRecord() throws IOException {
+		JsonReader reader = new JsonReader(new StringReader(
+				"{\"survey_key\":\"abc\",\"unknown\":{\"a\":[1,2]}}"));
+		assertNull(new SurveyResponseDecoder().decode(reader));
+	}
+
+	/**
+	 * Builds the stored responses the way the sync service did before the
+	 * decoder was added
+	 */
+	private static String treeResponses(JsonObject survey) {
+		JsonObject inputResponses = survey.get("responses").getAsJsonObject();
+		JsonArray responseJson = new JsonArray();
+		for (String key : GsonUtils.getKeys(inputResponses)) {
+			JsonObject curItem = inputResponses.get(key).getAsJsonObject();
+			if (curItem.has("prompt_response")) {
+				JsonObject newItem = new JsonObject();
+				JsonElement value = curItem.get("prompt_response");
+				String type = curItem.get("prompt_type").getAsString();
+				newItem.addProperty("prompt_id", key);
+				if (curItem.has("prompt_choice_glossary")
+						&& (type.equals("single_choice_custom") || type.equals("multi_choice_custom"))) {
+					JsonArray customChoiceArray = new JsonArray();
+					JsonObject glossary = curItem.get("prompt_choice_glossary").getAsJsonObject();
+					for (String glossaryKey : GsonUtils.getKeys(glossary)) {
+						JsonObject newChoiceItem = new JsonObject();
+						newChoiceItem.addProperty("choice_value", glossary.get(glossaryKey)
+								.getAsJsonObject().get("label").getAsString());
+						newChoiceItem.addProperty("choice_id", glossaryKey);
+						customChoiceArray.add(newChoiceItem);
+					}
+					newItem.add("custom_choices", customChoiceArray);
+				}
+				newItem.add("value", value);
+				responseJson.add(newItem);
+			}
+		}
+		return responseJson.toString();
+	}
+
+	private static String payload(int count) {
+		StringBuilder payload = new StringBuilder("{\"result\":\"success\",\"data\":[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				payload.append(',');
+			payload.append(String.format(RECORD, i, 1352154121000L + i * 60000L));
+		}
+		return payload.append("]}").toString();
+	}
+
+	/**
+	 * @return a reader positioned at the first record of the payload
+	 */
+	private static JsonReader openData(String payload) throws IOException {
+		JsonReader reader = new JsonReader(new StringReader(payload));
+		reader.beginObject();
+		while (!"data".equals(reader.nextName()))
+			reader.skipValue();
+		reader.beginArray();
+		return reader;
+	}
+}
@@ -0,0 +1,128 @@
+package org.ohmage.service.test;
+
+import junit.framework.TestCase;
+
+import org.ohmage.service.BatchPipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the {@link BatchPipeline} prepares the next batch while the
+ * previous one is uploading, and stops when an upload fails.
+ */
+public class BatchPipelineTest extends TestCase {
+
+	private ExecutorService mExecutor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testPreparesNextBatchWhileUploading() throws Exception {
+		final CountDownLatch secondPrepared = new CountDownLatch(1);
+		final ArrayList<Integer> uploaded = new ArrayList<Integer>();
+
+		new BatchPipeline<Integer>(new BatchPipeline.Stage<Integer>() {
+
+			@Override
+			public Integer prepare(Integer previous) {
+				if (previous == null)
+					return 1;
+				if (previous == 1) {
+					secondPrepared.countDown();
+					return 2;
+				}
+				return null;
+			}
+
+			@Override
+			public boolean upload(Integer batch) {
+				if (batch == 1) {
+					// The first upload only finishes once the second batch
+					// has been read on the other thread
+					try {
+						assertTrue("second batch wasn't read during the first upload",
+								secondPrepared.await(5, TimeUnit.SECONDS));
+					} catch (InterruptedException e) {
+						fail();
+					}
+				}
+				uploaded.add(batch);
+				return true;
+			}
+		}, mExecutor).run();
+
+		assertEquals(2, uploaded.size());
+		assertEquals(1, (int) uploaded.get(0));
+		assertEquals(2, (int) uploaded.get(1));
+	}
+
+	public void testStopsWhenUploadFails() throws Exception {
+		final ArrayList<Integer> uploaded = new ArrayList<Integer>();
+
+		new BatchPipeline<Integer>(new BatchPipeline.Stage<Integer>() {
+
+			@Override
+			public Integer prepare(Integer previous) {
+				return previous == null ? 1 : previous + 1;
+			}
+
+			@Override
+			public boolean upload(Integer batch) {
+				uploaded.add(batch);
+				return batch < 2;
+			}
+		}, mExecutor).run();
+
+		assertEquals(2, uploaded.size());
+	}
+
+	public void testNothingToUpload() throws Exception {
+		new BatchPipeline<Integer>(new BatchPipeline.Stage<Integer>() {
+
+			@Override
+			public Integer prepare(Integer previous) {
+				return null;
+			}
+
+			@Override
+			public boolean upload(Integer batch) {
+				fail("there was nothing to upload");
+				return false;
+			}
+		}, mExecutor).run();
+	}
+
+	public void testFirstBatchErrorIsThrown() throws Exception {
+		try {
+			new BatchPipeline<Integer>(new BatchPipeline.Stage<Integer>() {
+
+				@Override
+				public Integer prepare(Integer previous) throws IOException {
+					throw new IOException();
+				}
+
+				@Override
+				public boolean upload(Integer batch) {
+					return true;
+				}
+			}, mExecutor).run();
+			fail("the error should be passed on");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -271,7 +271,8 @@ public class UploadServiceTest extends ServiceTestCase<UploadService> {
 	}
 
 	/**
-	 * As each response starts to upload it should be set to uploading
+	 * As each batch starts to upload all its responses should be set to uploading
+	 * with a single update, and then set to uploaded with a single update
 	 * @throws InterruptedException
 	 */
 	public void testEachUploadingState() throws InterruptedException {
@@ -284,15 +285,16 @@ public class UploadServiceTest extends ServiceTestCase<UploadService> {
 
 			@Override
 			public int update(Uri uri, ContentValues values, String where, String[] selectionArgs) {
-				if(update > 0 && update < 6) {
+				if(update == 1) {
+					// Set the batch to uploading
 					assertResponse(0, uri, where);
-					if(update%2==1) {
-						// Set the first one to uploading
-						assertTrue(values.getAsLong(Responses.RESPONSE_STATUS) == Response.STATUS_UPLOADING);	
-					} else {
-						// then set it to uploaded
-						assertTrue(values.getAsLong(Responses.RESPONSE_STATUS) == Response.STATUS_UPLOADED);
-					}
+					assertTrue(values.getAsLong(Responses.RESPONSE_STATUS) == Response.STATUS_UPLOADING);
+				} else if(update == 2) {
+					// then set it to uploaded
+					assertResponse(0, uri, where);
+					assertTrue(values.getAsLong(Responses.RESPONSE_STATUS) == Response.STATUS_UPLOADED);
+				} else if(update > 2) {
+					fail("responses should be updated once per batch");
 				}
 				update++;
 				return super.update(uri, values, where, selectionArgs);
@@ -305,6 +307,36 @@ public class UploadServiceTest extends ServiceTestCase<UploadService> {
 		startService(i);
 	}
 
+	/**
+	 * Responses for the same campaign should be sent in a single request
+	 * @throws InterruptedException
+	 */
+	public void testResponsesUploadedInOneBatch() throws InterruptedException {
+		Intent i =new Intent();
+		i.setData(Responses.CONTENT_URI);
+		i.putExtra("upload_surveys", true);
+
+		UploadServiceResponsesContext context = new UploadServiceResponsesContext(mContext, i.getData(), 5);
+
+		setContext(context);
+
+		startService(i, new OhmageApi() {
+			int uploads = 0;
+
+			@Override
+			public UploadResponse surveyUpload(String serverUrl, String username, String hashedPassword, String client, String campaignUrn, String campaignCreationTimestamp, String responseJson, ArrayList<MediaPart> photos) {
+				assertEquals(0, uploads++);
+				assertEquals(ResponseCursor.MOCK_CAMPAIGN_URN, campaignUrn);
+				try {
+					assertEquals(5, new JSONArray(responseJson).length());
+				} catch (JSONException e) {
+					fail();
+				}
+				return new UploadResponse(Result.SUCCESS, null);
+			}
+		});
+	}
+
 	public void testCampaignDoesNotExistError() throws InterruptedException {
 		errorTestHelper("0700", Response.STATUS_ERROR_CAMPAIGN_NO_EXIST, Campaign.STATUS_NO_EXIST);
 	}
@@ -438,7 +470,8 @@ public class UploadServiceTest extends ServiceTestCase<UploadService> {
 	 * @param where
 	 */
 	protected void assertResponse(int id, Uri uri, String where) {
-		assertTrue(Responses.buildResponseUri(id).equals(uri) || (Responses.CONTENT_URI.equals(uri) && where.contains(Responses._ID + "=" + id)));
+		assertTrue(Responses.buildResponseUri(id).equals(uri) || (Responses.CONTENT_URI.equals(uri) && (where.contains(Responses._ID + "=" + id)
+				|| where.matches(".*" + Responses._ID + " IN \\((.*,)?" + id + "(,.*)?\\).*"))));
 	}
 
 	/**
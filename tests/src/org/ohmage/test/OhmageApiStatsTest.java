@@ -0,0 +1,115 @@
+package org.ohmage.test;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.ohmage.OhmageApiStats;
+import org.ohmage.OhmageApiStats.Endpoint;
+
+import java.util.List;
+
+/**
+ * Tests that {@link OhmageApiStats} keeps the timings of each endpoint apart
+ * and separates new connections from reused ones, and that the timings are
+ * cleared once they are drained for the analytics stream.
+ */
+public class OhmageApiStatsTest extends TestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		OhmageApiStats.reset();
+	}
+
+	public void testSeparatesNewAndReusedConnections() {
+		OhmageApiStats.firstByte("/app/survey/upload", 300, false);
+		OhmageApiStats.firstByte("/app/survey/upload", 40, true);
+		OhmageApiStats.firstByte("/app/survey/upload", 60, true);
+		OhmageApiStats.completed("/app/survey/upload", 100, 10);
+		OhmageApiStats.completed("/app/survey/upload", 200, 20);
+		OhmageApiStats.failed("/app/survey/upload");
+
+		Endpoint e = get("/app/survey/upload");
+		assertEquals(3, e.getRequests());
+		assertEquals(1, e.getOpenedConnections());
+		assertEquals(2, e.getReusedConnections());
+		assertEquals(1, e.getFailures());
+		assertEquals(300, e.getAverageOpenedFirstByte());
+		assertEquals(50, e.getAverageReusedFirstByte());
+		assertEquals(150, e.getAverageTotal());
+		assertEquals(30, e.getBytes());
+	}
+
+	public void testKeepsEndpointsApart() {
+		OhmageApiStats.firstByte("/app/user/auth", 100, false);
+		OhmageApiStats.firstByte("/app/campaign/read", 200, true);
+
+		assertEquals(2, OhmageApiStats.getEndpoints().size());
+		assertEquals(1, get("/app/user/auth").getOpenedConnections());
+		assertEquals(0, get("/app/user/auth").getReusedConnections());
+		assertEquals(1, get("/app/campaign/read").getReusedConnections());
+	}
+
+	public void testEndpointsAreCopies() {
+		OhmageApiStats.firstByte("/app/user/auth", 100, false);
+		Endpoint e = get("/app/user/auth");
+		OhmageApiStats.firstByte("/app/user/auth", 100, false);
+
+		assertEquals(1, e.getRequests());
+		assertEquals(2, get("/app/user/auth").getRequests());
+	}
+
+	public void testEmptyEndpointAverages() {
+		OhmageApiStats.failed("/app/image/upload");
+
+		Endpoint e = get("/app/image/upload");
+		assertEquals(0, e.getRequests());
+		assertEquals(0, e.getAverageOpenedFirstByte());
+		assertEquals(0, e.getAverageReusedFirstByte());
+		assertEquals(0, e.getAverageTotal());
+	}
+
+	public void testDrainClearsEndpoints() {
+		OhmageApiStats.firstByte("/app/user/auth", 100, false);
+		OhmageApiStats.firstByte("/app/campaign/read", 200, true);
+
+		List<Endpoint> drained = OhmageApiStats.drain();
+		assertEquals(2, drained.size());
+		assertEquals(0, OhmageApiStats.drain().size());
+		assertEquals(0, OhmageApiStats.getEndpoints().size());
+
+		OhmageApiStats.firstByte("/app/user/auth", 100, false);
+		assertEquals(1, get("/app/user/auth").getRequests());
+	}
+
+	public void testDrainedEndpointToJSON() throws JSONException {
+		OhmageApiStats.firstByte("/app/stream/upload", 300, false);
+		OhmageApiStats.firstByte("/app/stream/upload", 100, true);
+		OhmageApiStats.completed("/app/stream/upload", 400, 1024);
+		OhmageApiStats.failed("/app/stream/upload");
+
+		List<Endpoint> drained = OhmageApiStats.drain();
+		assertEquals(1, drained.size());
+
+		JSONObject data = drained.get(0).toJSON();
+		assertEquals("/app/stream/upload", data.getString("endpoint"));
+		assertEquals(1, data.getInt("opened"));
+		assertEquals(1, data.getInt("reused"));
+		assertEquals(1, data.getInt("failed"));
+		assertEquals(300, data.getLong("opened_first_byte"));
+		assertEquals(100, data.getLong("reused_first_byte"));
+		assertEquals(400, data.getLong("total"));
+		assertEquals(1024, data.getLong("bytes"));
+	}
+
+	private static Endpoint get(String name) {
+		List<Endpoint> endpoints = OhmageApiStats.getEndpoints();
+		for (Endpoint e : endpoints) {
+			if (name.equals(e.getName()))
+				return e;
+		}
+		fail("No stats for " + name);
+		return null;
+	}
+}